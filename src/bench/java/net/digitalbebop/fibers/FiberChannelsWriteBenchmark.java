@@ -0,0 +1,94 @@
+package net.digitalbebop.fibers;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Aggregate write throughput through {@link FiberChannels#newOutputStream(WritableByteChannel)}
+ * as the number of connections grows. Every JMH thread is one connection with its own channel,
+ * and the channel stalls a little on every write the way a slow client socket does. JMH sums
+ * the per-thread scores, so with no shared state on the write path the score should grow
+ * roughly linearly with the number of connections.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FiberChannelsWriteBenchmark {
+    private static final int PAYLOAD_SIZE = 64 * 1024;
+    private static final int SOCKET_WRITE_SIZE = 16 * 1024;
+    private static final long SOCKET_STALL_NANOS = 50_000;
+
+    /**
+     * Stand-in for a client socket, accepts at most {@link #SOCKET_WRITE_SIZE} bytes per call
+     * and stalls for a short while doing so.
+     */
+    private static class SlowChannel implements WritableByteChannel {
+        private volatile boolean open = true;
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int n = Math.min(src.remaining(), SOCKET_WRITE_SIZE);
+            src.position(src.position() + n);
+            LockSupport.parkNanos(SOCKET_STALL_NANOS);
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Connection {
+        final byte[] payload = new byte[PAYLOAD_SIZE];
+        OutputStream os;
+
+        @Setup
+        public void open() throws Exception {
+            os = FiberChannels.newOutputStream(new SlowChannel());
+        }
+
+        @TearDown
+        public void close() throws IOException {
+            os.close();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void connections01(Connection conn) throws IOException {
+        conn.os.write(conn.payload);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void connections04(Connection conn) throws IOException {
+        conn.os.write(conn.payload);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void connections16(Connection conn) throws IOException {
+        conn.os.write(conn.payload);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void connections64(Connection conn) throws IOException {
+        conn.os.write(conn.payload);
+    }
+}
@@ -0,0 +1,164 @@
+package net.digitalbebop.http;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.name.Names;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load test of {@link BasicHttpServerImpl}, comparing clients that reuse one persistent
+ * connection against clients that open a new connection for every request. Run in both
+ * throughput and sample time mode, the latter reports the p99 request latency.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class HttpKeepAliveBenchmark {
+    private static final byte[] PAYLOAD = new byte[512];
+
+    @State(Scope.Benchmark)
+    public static class Server {
+        int port;
+
+        @Setup
+        public void start() throws Exception {
+            try (ServerSocket probe = new ServerSocket(0)) {
+                port = probe.getLocalPort();
+            }
+
+            final HttpRouter router = new HttpRouter() {
+                @Override
+                public ListenableFuture<HttpResponse> route(HttpRequest req, InetSocketAddress address,
+                                                            Optional<InputStream> payload) {
+                    return Futures.immediateFuture(Response.ok(PAYLOAD));
+                }
+
+                @Override
+                public void init() {}
+            };
+
+            HttpServer server = Guice.createInjector(new AbstractModule() {
+                @Override
+                protected void configure() {
+                    bindConstant().annotatedWith(Names.named("bindAddress")).to("127.0.0.1");
+                    bindConstant().annotatedWith(Names.named("bindPort")).to(port);
+                    bindConstant().annotatedWith(Names.named("parallelism")).to(64);
+                    bindConstant().annotatedWith(Names.named("httpIdleTimeout")).to(30000);
+                    bindConstant().annotatedWith(Names.named("httpMaxKeepAliveRequests")).to(Integer.MAX_VALUE);
+                    bindConstant().annotatedWith(Names.named("sessionBufferPoolSize")).to(64);
+                    bind(HttpRouter.class).toInstance(router);
+                }
+            }).getInstance(BasicHttpServerImpl.class);
+            server.init();
+
+            /* The socket is bound asynchronously by the server's accept fiber */
+            for (;;) {
+                try {
+                    new Socket("127.0.0.1", port).close();
+                    return;
+                } catch (IOException e) {
+                    Thread.sleep(50);
+                }
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        Socket socket;
+        InputStream in;
+        OutputStream out;
+
+        void connect(int port) throws IOException {
+            socket = new Socket("127.0.0.1", port);
+            socket.setTcpNoDelay(true);
+            in = new BufferedInputStream(socket.getInputStream());
+            out = socket.getOutputStream();
+        }
+
+        @TearDown
+        public void close() throws IOException {
+            if (socket != null) {
+                socket.close();
+            }
+        }
+    }
+
+    private static final byte[] KEEP_ALIVE_REQUEST =
+            "GET /api/search?search=foo HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CLOSE_REQUEST =
+            "GET /api/search?search=foo HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n"
+                    .getBytes(StandardCharsets.US_ASCII);
+
+    @Benchmark
+    public int keepAlive(Server server, Client client) throws IOException {
+        if (client.socket == null) {
+            client.connect(server.port);
+        }
+        client.out.write(KEEP_ALIVE_REQUEST);
+        client.out.flush();
+        return readResponse(client.in);
+    }
+
+    @Benchmark
+    public int connectionClose(Server server, Client client) throws IOException {
+        client.connect(server.port);
+        try {
+            client.out.write(CLOSE_REQUEST);
+            client.out.flush();
+            return readResponse(client.in);
+        } finally {
+            client.close();
+            client.socket = null;
+        }
+    }
+
+    /**
+     * Reads one response off the stream, returning the body length.
+     */
+    private static int readResponse(InputStream in) throws IOException {
+        int contentLength = 0;
+        String line;
+        while (!(line = readLine(in)).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).equalsIgnoreCase("Content-Length")) {
+                contentLength = Integer.parseInt(line.substring(colon + 1).trim());
+            }
+        }
+        for (int i = 0; i < contentLength; i++) {
+            if (in.read() < 0) {
+                throw new EOFException("Response body cut short");
+            }
+        }
+        return contentLength;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new EOFException("Connection closed mid response");
+            }
+            if (c != '\r') {
+                builder.append((char) c);
+            }
+        }
+        return builder.toString();
+    }
+}
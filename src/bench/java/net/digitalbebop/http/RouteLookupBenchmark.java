@@ -0,0 +1,97 @@
+package net.digitalbebop.http;
+
+import net.digitalbebop.http.handlers.RequestHandler;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Optional;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Cost of finding the handler for a request, the frozen {@link RouteTable} against the linear
+ * regex scan that EndpointRouter used before it. Both are loaded with Pulse's endpoints plus
+ * {@code extraRoutes} more, and look up the last registered endpoint, which is the worst case
+ * for the scan.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouteLookupBenchmark {
+    private static final String[] PULSE_ROUTES = {
+            "/", "/api/index", "/api/delete", "/api/get_data", "/api/get_thumbnail", "/api/search"
+    };
+
+    /**
+     * The route lookup as EndpointRouter did it before the route table.
+     */
+    private static class LinearScan {
+        private static class EndpointMap {
+            final Pattern pattern;
+            final RequestType type;
+            final RequestHandler handler;
+
+            EndpointMap(Pattern pattern, RequestType type, RequestHandler handler) {
+                this.pattern = pattern;
+                this.type = type;
+                this.handler = handler;
+            }
+        }
+
+        private final ConcurrentLinkedQueue<EndpointMap> endpointMap = new ConcurrentLinkedQueue<>();
+
+        void add(String regex, RequestType type, RequestHandler handler) {
+            endpointMap.add(new EndpointMap(Pattern.compile(regex), type, handler));
+        }
+
+        RequestHandler find(String method, String path) {
+            for (EndpointMap map : endpointMap) {
+                if (map.type.toString().equals(method) && map.pattern.matcher(path).matches()) {
+                    return map.handler;
+                }
+            }
+            return null;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Routes {
+        @Param({"0", "50"})
+        int extraRoutes;
+
+        LinearScan scan;
+        RouteTable table;
+        String method = "GET";
+        String path;
+
+        @Setup
+        public void setup() {
+            RequestHandler handler = new RequestHandler() {};
+            scan = new LinearScan();
+            RouteTable.Builder builder = new RouteTable.Builder();
+
+            for (int i = 0; i < extraRoutes; i++) {
+                scan.add("/api/extra" + i, RequestType.POST, handler);
+                builder.add("/api/extra" + i, RequestType.POST, handler);
+            }
+            for (String route : PULSE_ROUTES) {
+                scan.add(route, RequestType.GET, handler);
+                builder.add(route, RequestType.GET, handler);
+            }
+            table = builder.build();
+            path = PULSE_ROUTES[PULSE_ROUTES.length - 1];
+        }
+    }
+
+    @Benchmark
+    public RequestHandler linearScan(Routes routes) {
+        return routes.scan.find(routes.method, routes.path);
+    }
+
+    @Benchmark
+    public Optional<RequestHandler> routeTable(Routes routes) {
+        return RouteTable.requestType(routes.method).flatMap(t -> routes.table.find(t, routes.path));
+    }
+}
@@ -0,0 +1,76 @@
+package net.digitalbebop.http;
+
+import co.paralleluniverse.fibers.Fiber;
+import co.paralleluniverse.fibers.FiberForkJoinScheduler;
+import co.paralleluniverse.fibers.FiberScheduler;
+import co.paralleluniverse.fibers.futures.AsyncListenableFuture;
+import net.digitalbebop.fibers.BlockingPools;
+import net.digitalbebop.http.handlers.RequestHandler;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.message.BasicHttpRequest;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Request handling cost of the two {@link EndpointRouter} execution modes, without the sockets.
+ * Every operation is a connection fiber routing one request and waiting for the response, the
+ * way {@link BasicHttpServerImpl} does. The handler makes one blocking storage call, which in
+ * fibers mode goes to the storage {@link net.digitalbebop.fibers.BlockingPool} and in threads
+ * mode runs on the router thread.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(64)
+@Fork(1)
+public class RouterExecutionBenchmark {
+    private static final long STORAGE_CALL_NANOS = 20_000;
+    private static final byte[] PAYLOAD = new byte[512];
+    private static final InetSocketAddress ADDRESS = new InetSocketAddress("127.0.0.1", 8080);
+
+    @State(Scope.Benchmark)
+    public static class Router {
+        @Param({"threads", "fibers"})
+        String execution;
+
+        EndpointRouter router;
+        FiberScheduler scheduler;
+
+        @Setup
+        public void setup() {
+            final BlockingPools pools = new BlockingPools(16, 16);
+            scheduler = new FiberForkJoinScheduler("bench", Runtime.getRuntime().availableProcessors());
+            router = new EndpointRouter(1000, execution);
+            router.registerEndpoint("/api/get_data", RequestType.GET, new RequestHandler() {
+                @Override
+                public HttpResponse handleGet(HttpRequest req, InetSocketAddress address, HashMap<String, String> params) {
+                    return Response.ok(pools.storage().call(() -> {
+                        LockSupport.parkNanos(STORAGE_CALL_NANOS);
+                        return PAYLOAD;
+                    }));
+                }
+            });
+            router.init();
+        }
+    }
+
+    @Benchmark
+    public HttpResponse route(Router state) throws Exception {
+        final HttpRequest request = new BasicHttpRequest("GET", "/api/get_data?moduleName=a&moduleId=b&timestamp=0");
+        return new Fiber<>(state.scheduler, () -> {
+            try {
+                return AsyncListenableFuture.get(state.router.route(request, ADDRESS, Optional.empty()));
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e);
+            }
+        }).start().get();
+    }
+}
@@ -0,0 +1,69 @@
+package net.digitalbebop.http;
+
+import com.codahale.metrics.MetricRegistry;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.impl.io.*;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Synthetic connection load comparing the allocation rate of a fresh pair of 100KB session
+ * buffers per connection against buffers borrowed from {@link SessionBufferPool}. Each operation
+ * is one connection serving one search request. Run with "-prof gc" and compare
+ * gc.alloc.rate.norm, the bytes allocated per connection.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+public class SessionBufferPoolBenchmark {
+    private static final int UNPOOLED_BUFFER_SIZE = 100*1024;
+    private static final byte[] REQUEST =
+            "GET /api/search?search=foo HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    @State(Scope.Benchmark)
+    public static class Pool {
+        final SessionBufferPool pool = new SessionBufferPool(1024, new MetricRegistry());
+        final HttpTransportMetricsImpl transMetricImpl = new HttpTransportMetricsImpl();
+    }
+
+    @Benchmark
+    public HttpRequest allocatePerConnection(Pool state) throws IOException, HttpException {
+        SessionInputBufferImpl in = new SessionInputBufferImpl(state.transMetricImpl, UNPOOLED_BUFFER_SIZE);
+        SessionOutputBufferImpl out = new SessionOutputBufferImpl(state.transMetricImpl, UNPOOLED_BUFFER_SIZE);
+        return serve(in, out);
+    }
+
+    @Benchmark
+    public HttpRequest pooled(Pool state) throws IOException, HttpException {
+        SessionInputBufferImpl in = state.pool.acquireInput(false);
+        SessionOutputBufferImpl out = state.pool.acquireOutput();
+        try {
+            return serve(in, out);
+        } finally {
+            state.pool.release(in);
+            state.pool.release(out);
+        }
+    }
+
+    private static HttpRequest serve(SessionInputBufferImpl in, SessionOutputBufferImpl out)
+            throws IOException, HttpException {
+        in.bind(new ByteArrayInputStream(REQUEST));
+        out.bind(NullOutputStream.NULL_OUTPUT_STREAM);
+
+        HttpRequest request = new DefaultHttpRequestParser(in).parse();
+        new DefaultHttpResponseWriter(out).write(new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK"));
+        out.flush();
+        return request;
+    }
+}
@@ -0,0 +1,120 @@
+package net.digitalbebop.http.handlers;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.protobuf.ByteString;
+import net.digitalbebop.ClientRequests;
+import net.digitalbebop.fibers.BlockingPools;
+import net.digitalbebop.indexer.IndexConduit;
+import net.digitalbebop.indexer.SearchResult;
+import net.digitalbebop.storage.FileStorageConduit;
+import net.digitalbebop.storage.ThumbnailPipeline;
+import org.apache.commons.io.FileUtils;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.openjdk.jmh.annotations.*;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of /api/index for new images, each of which needs a thumbnail. The thumbnails are
+ * rendered by a {@link ThumbnailPipeline} behind the request, so what is measured is parsing,
+ * storing and committing the raw data. How many renders were done and how many were dropped for
+ * a full queue is printed at the end of each trial.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IndexThumbnailBenchmark {
+    private static final int IMAGE_SIZE = 1024;
+    private static final InetSocketAddress ADDRESS = new InetSocketAddress("127.0.0.1", 0);
+
+    private static final IndexConduit NO_INDEX = new IndexConduit() {
+        @Override
+        public void index(ClientRequests.IndexRequest indexRequest) {}
+
+        @Override
+        public void delete(ClientRequests.DeleteRequest deleteRequest) {}
+
+        @Override
+        public Optional<SearchResult> search(String search, int offset, int limit) {
+            return Optional.empty();
+        }
+    };
+
+    private File dir;
+    private FileStorageConduit storage;
+    private MetricRegistry metrics;
+    private ThumbnailPipeline thumbnails;
+    private IndexRequestHandler handler;
+    private byte[] image;
+    private long timestamp;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("pulse-thumbnail-bench").toFile();
+        metrics = new MetricRegistry();
+        storage = FileStorageConduit.builder(new File(dir, "data").getPath()).metrics(metrics).build();
+        thumbnails = new ThumbnailPipeline(storage, 0, 256L*1024*1024, 10_000, 256L*1024*1024, "", metrics);
+        handler = new IndexRequestHandler(NO_INDEX, storage, new BlockingPools(1, 1), thumbnails, 256*1024*1024,
+                "async");
+
+        BufferedImage img = new BufferedImage(IMAGE_SIZE, IMAGE_SIZE, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(0);
+        for (int y = 0; y < IMAGE_SIZE; y++) {
+            for (int x = 0; x < IMAGE_SIZE; x++) {
+                img.setRGB(x, y, random.nextInt());
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(img, "png", out);
+        /* Room after the end of the PNG to make every upload unique without breaking the image */
+        out.write(new byte[Long.BYTES]);
+        image = out.toByteArray();
+    }
+
+    @TearDown
+    public void teardown() {
+        System.out.printf("%n%d thumbnails rendered, %d dropped%n",
+                metrics.timer(MetricRegistry.name(ThumbnailPipeline.class, "render-time", "image")).getCount(),
+                metrics.meter(MetricRegistry.name(ThumbnailPipeline.class, "rejected")).getCount());
+        thumbnails.close();
+        storage.close();
+        FileUtils.deleteQuietly(dir);
+    }
+
+    @Benchmark
+    public HttpResponse index() {
+        timestamp++;
+        for (int i = 0; i < Long.BYTES; i++) {
+            image[image.length - 1 - i] = (byte) (timestamp >>> (8 * i));
+        }
+        byte[] body = ClientRequests.IndexRequest.newBuilder()
+                .setModuleName("bench")
+                .setModuleId("image")
+                .setMetaTags("{\"format\": \"image\"}")
+                .setIndexData("image")
+                .setRawData(ByteString.copyFrom(image))
+                .setTimestamp(timestamp)
+                .build()
+                .toByteArray();
+
+        BasicHttpEntityEnclosingRequest req = new BasicHttpEntityEnclosingRequest("POST", "/api/index");
+        req.setHeader(HttpHeaders.CONTENT_LENGTH, Integer.toString(body.length));
+        return handler.handlePost(req, ADDRESS, new HashMap<>(), Optional.of(new ByteArrayInputStream(body)));
+    }
+}
@@ -0,0 +1,132 @@
+package net.digitalbebop.http.handlers;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+import net.digitalbebop.ClientRequests;
+import net.digitalbebop.fibers.BlockingPools;
+import net.digitalbebop.indexer.IndexConduit;
+import net.digitalbebop.indexer.SearchResult;
+import net.digitalbebop.storage.FileStorageConduit;
+import net.digitalbebop.storage.ThumbnailPipeline;
+import net.digitalbebop.storage.Thumbnails;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One 50MB upload through /api/index, comparing the old path, which buffered the body, parsed
+ * it and copied the raw data back out, against {@link IndexRequestHandler} parsing the body in
+ * place. Run with "-prof gc" for the bytes allocated per upload. For the peak heap, run each
+ * benchmark on its own with shrinking "-jvmArgs -Xmx..." until it fails with an OutOfMemoryError.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class IndexUploadBenchmark {
+    private static final int UPLOAD_SIZE = 50*1024*1024;
+    private static final InetSocketAddress ADDRESS = new InetSocketAddress("127.0.0.1", 0);
+
+    private static final IndexConduit NO_INDEX = new IndexConduit() {
+        @Override
+        public void index(ClientRequests.IndexRequest indexRequest) {}
+
+        @Override
+        public void delete(ClientRequests.DeleteRequest deleteRequest) {}
+
+        @Override
+        public Optional<SearchResult> search(String search, int offset, int limit) {
+            return Optional.empty();
+        }
+    };
+
+    @State(Scope.Benchmark)
+    public static class Upload {
+        File dir;
+        FileStorageConduit storage;
+        ThumbnailPipeline thumbnails;
+        IndexRequestHandler handler;
+        byte[] body;
+
+        @Setup
+        public void setup() throws IOException {
+            dir = Files.createTempDirectory("pulse-upload-bench").toFile();
+            storage = FileStorageConduit.builder(new File(dir, "data").getPath()).build();
+            thumbnails = new ThumbnailPipeline(storage, 1, 256L*1024*1024, 10_000, 256L*1024*1024, "",
+                    new MetricRegistry());
+            handler = new IndexRequestHandler(NO_INDEX, storage, new BlockingPools(1, 1), thumbnails, 256*1024*1024,
+                    "async");
+
+            body = serializedRequest();
+        }
+
+        /**
+         * Writes the request straight into one array, so that setting up doesn't itself need
+         * several copies of the upload on the heap.
+         */
+        private static byte[] serializedRequest() throws IOException {
+            int headerSize = CodedOutputStream.computeStringSize(3, "bench") +
+                    CodedOutputStream.computeStringSize(4, "upload") +
+                    CodedOutputStream.computeStringSize(5, "{\"format\": \"binary\"}") +
+                    CodedOutputStream.computeStringSize(6, "upload") +
+                    CodedOutputStream.computeTagSize(7) +
+                    CodedOutputStream.computeRawVarint32Size(UPLOAD_SIZE);
+            byte[] body = new byte[headerSize + UPLOAD_SIZE];
+
+            CodedOutputStream out = CodedOutputStream.newInstance(body);
+            out.writeString(3, "bench");
+            out.writeString(4, "upload");
+            out.writeString(5, "{\"format\": \"binary\"}");
+            out.writeString(6, "upload");
+            out.writeTag(7, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            out.writeRawVarint32(UPLOAD_SIZE);
+            out.flush();
+
+            Random random = new Random(0);
+            for (int i = headerSize; i < body.length; i++) {
+                body[i] = (byte) random.nextInt();
+            }
+            return body;
+        }
+
+        @TearDown
+        public void teardown() {
+            thumbnails.close();
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    @Benchmark
+    public Object bufferedCopy(Upload upload) throws IOException {
+        InputStream is = new ByteArrayInputStream(upload.body);
+        ClientRequests.IndexRequest indexRequest = ClientRequests.IndexRequest.parseFrom(IOUtils.toByteArray(is));
+        byte[] rawPayload = indexRequest.getRawData().toByteArray();
+        upload.storage.putRaw(indexRequest.getModuleName(), indexRequest.getModuleId(),
+                indexRequest.getTimestamp(), rawPayload);
+        return Thumbnails.convert("binary", rawPayload);
+    }
+
+    @Benchmark
+    public HttpResponse streamingParse(Upload upload) {
+        BasicHttpEntityEnclosingRequest req = new BasicHttpEntityEnclosingRequest("POST", "/api/index");
+        req.setHeader(HttpHeaders.CONTENT_LENGTH, Integer.toString(upload.body.length));
+        return upload.handler.handlePost(req, ADDRESS, new HashMap<>(),
+                Optional.of(new ByteArrayInputStream(upload.body)));
+    }
+}
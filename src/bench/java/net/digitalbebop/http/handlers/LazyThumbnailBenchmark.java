@@ -0,0 +1,159 @@
+package net.digitalbebop.http.handlers;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.protobuf.ByteString;
+import net.digitalbebop.ClientRequests;
+import net.digitalbebop.fibers.BlockingPools;
+import net.digitalbebop.indexer.IndexConduit;
+import net.digitalbebop.indexer.SearchResult;
+import net.digitalbebop.storage.FileStorageConduit;
+import net.digitalbebop.storage.ThumbnailPipeline;
+import org.apache.commons.io.FileUtils;
+import org.apache.http.HttpHeaders;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.pdfbox.exceptions.COSVisitorException;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.edit.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Thumbnails of pdfs rendered when they are indexed against when they are first viewed, for a
+ * workload where one in ten indexed documents is ever looked at. Each operation indexes ten new
+ * pdfs and gets the thumbnail of one of them, and in eager mode also waits for the background
+ * renders to catch up, so that the time is the total work done either way. How many renders each
+ * mode did is printed at the end of each trial.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LazyThumbnailBenchmark {
+    private static final int INDEXED_PER_VIEW = 10;
+    private static final InetSocketAddress ADDRESS = new InetSocketAddress("127.0.0.1", 0);
+
+    private static final IndexConduit NO_INDEX = new IndexConduit() {
+        @Override
+        public void index(ClientRequests.IndexRequest indexRequest) {}
+
+        @Override
+        public void delete(ClientRequests.DeleteRequest deleteRequest) {}
+
+        @Override
+        public Optional<SearchResult> search(String search, int offset, int limit) {
+            return Optional.empty();
+        }
+    };
+
+    @Param({"eager", "lazy"})
+    public String mode;
+
+    private File dir;
+    private FileStorageConduit storage;
+    private MetricRegistry metrics;
+    private ThumbnailPipeline thumbnails;
+    private IndexRequestHandler index;
+    private GetThumbnailRequestHandler get;
+    private byte[] pdf;
+    private long timestamp;
+    private long indexed;
+
+    @Setup
+    public void setup() throws IOException, COSVisitorException {
+        dir = Files.createTempDirectory("pulse-lazy-thumbnail-bench").toFile();
+        metrics = new MetricRegistry();
+        storage = FileStorageConduit.builder(new File(dir, "data").getPath()).metrics(metrics).build();
+        thumbnails = new ThumbnailPipeline(storage, 0, 256L*1024*1024, 10_000, 256L*1024*1024,
+                mode.equals("lazy") ? "pdf" : "", metrics);
+        BlockingPools pools = new BlockingPools(1, 1);
+        index = new IndexRequestHandler(NO_INDEX, storage, pools, thumbnails, 256*1024*1024, "async");
+        get = new GetThumbnailRequestHandler(storage, (req, address) -> true, pools, thumbnails);
+
+        try (PDDocument document = new PDDocument()) {
+            PDPage page = new PDPage();
+            document.addPage(page);
+            try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                content.beginText();
+                content.setFont(PDType1Font.HELVETICA, 10);
+                content.moveTextPositionByAmount(72, 720);
+                for (int line = 0; line < 50; line++) {
+                    content.drawString("Line " + line + " of a document that is indexed and maybe looked at.");
+                    content.moveTextPositionByAmount(0, -12);
+                }
+                content.endText();
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            document.save(out);
+            /* A comment after the end of the file to make every upload unique */
+            out.write("\n%".getBytes(StandardCharsets.US_ASCII));
+            out.write(new byte[Long.BYTES]);
+            pdf = out.toByteArray();
+        }
+    }
+
+    @TearDown
+    public void teardown() {
+        System.out.printf("%n%s: %d pdfs indexed, %d thumbnails rendered%n", mode, indexed, renders());
+        thumbnails.close();
+        storage.close();
+        FileUtils.deleteQuietly(dir);
+    }
+
+    @Benchmark
+    public Object indexAndView() {
+        for (int i = 0; i < INDEXED_PER_VIEW; i++) {
+            indexPdf();
+        }
+        HashMap<String, String> params = new HashMap<>();
+        params.put("moduleName", "bench");
+        params.put("moduleId", "pdf");
+        params.put("timestamp", Long.toString(timestamp));
+        Object response = get.handleGet(new BasicHttpRequest("GET", "/api/get_thumbnail"), ADDRESS, params);
+        while (mode.equals("eager") && renders() < indexed) {
+            LockSupport.parkNanos(100_000);
+        }
+        return response;
+    }
+
+    private void indexPdf() {
+        timestamp++;
+        indexed++;
+        for (int i = 0; i < Long.BYTES; i++) {
+            pdf[pdf.length - 1 - i] = (byte) ('a' + (timestamp >>> (4 * i) & 0xF));
+        }
+        byte[] body = ClientRequests.IndexRequest.newBuilder()
+                .setModuleName("bench")
+                .setModuleId("pdf")
+                .setMetaTags("{\"format\": \"pdf\"}")
+                .setIndexData("pdf")
+                .setRawData(ByteString.copyFrom(pdf))
+                .setTimestamp(timestamp)
+                .build()
+                .toByteArray();
+
+        BasicHttpEntityEnclosingRequest req = new BasicHttpEntityEnclosingRequest("POST", "/api/index");
+        req.setHeader(HttpHeaders.CONTENT_LENGTH, Integer.toString(body.length));
+        index.handlePost(req, ADDRESS, new HashMap<>(), Optional.of(new ByteArrayInputStream(body)));
+    }
+
+    private long renders() {
+        return metrics.timer(MetricRegistry.name(ThumbnailPipeline.class, "render-time", "pdf")).getCount()
+                + metrics.meter(MetricRegistry.name(ThumbnailPipeline.class, "rejected")).getCount();
+    }
+}
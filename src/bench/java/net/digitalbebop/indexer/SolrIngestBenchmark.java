@@ -0,0 +1,115 @@
+package net.digitalbebop.indexer;
+
+import com.codahale.metrics.MetricRegistry;
+import com.sun.net.httpserver.HttpServer;
+import net.digitalbebop.ClientRequests;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.common.util.JavaBinCodec;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ingest throughput of {@link SolrConduit} against a stand-in Solr, an embedded HTTP server that
+ * answers every update after a fixed delay the way a real Solr does when it isn't the bottleneck.
+ * The callers are the index pool threads of a busy server. {@code perDocument} sends one update
+ * request per document from the calling thread, which is what the conduit used to do, and
+ * {@code batched} goes through the conduit's batched writer.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(16)
+@Fork(1)
+public class SolrIngestBenchmark {
+    private static final long UPDATE_LATENCY_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+
+    @State(Scope.Benchmark)
+    public static class Solr {
+        final AtomicLong updates = new AtomicLong();
+        HttpServer server;
+        ExecutorService executor;
+        SolrConduit conduit;
+        HttpSolrClient client;
+        ClientRequests.IndexRequest request;
+
+        @Param({"4"})
+        int writerThreads;
+
+        @Param({"500"})
+        int batchSize;
+
+        @Setup
+        public void start() throws Exception {
+            NamedList<Object> header = new SimpleOrderedMap<>();
+            header.add("status", 0);
+            header.add("QTime", 0);
+            NamedList<Object> body = new NamedList<>();
+            body.add("responseHeader", header);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new JavaBinCodec().marshal(body, out);
+            final byte[] response = out.toByteArray();
+
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            executor = Executors.newFixedThreadPool(32);
+            server.setExecutor(executor);
+            server.createContext("/solr/pulse/update", exchange -> {
+                try (InputStream in = exchange.getRequestBody()) {
+                    byte[] buf = new byte[8192];
+                    while (in.read(buf) >= 0) {
+                        // drain the update body
+                    }
+                }
+                LockSupport.parkNanos(UPDATE_LATENCY_NANOS);
+                updates.incrementAndGet();
+                exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+                exchange.sendResponseHeaders(200, response.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(response);
+                }
+            });
+            server.start();
+
+            String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/solr/pulse";
+            conduit = new SolrConduit(url, 100, 10000, batchSize, 50, writerThreads, 1000, new MetricRegistry());
+            client = new HttpSolrClient(url);
+            request = ClientRequests.IndexRequest.newBuilder()
+                    .setModuleName("news")
+                    .setModuleId("article")
+                    .setIndexData("the quick brown fox jumps over the lazy dog")
+                    .setMetaTags("{\"format\":\"text\"}")
+                    .setTimestamp(System.currentTimeMillis())
+                    .build();
+        }
+
+        @TearDown
+        public void stop() throws Exception {
+            conduit.shutdown();
+            client.close();
+            server.stop(0);
+            executor.shutdown();
+            System.out.println("\nupdate requests sent to Solr: " + updates.get());
+        }
+    }
+
+    @Benchmark
+    public void perDocument(Solr solr) throws Exception {
+        solr.client.add(solr.conduit.generateDoc(solr.request), 100);
+    }
+
+    @Benchmark
+    public void batched(Solr solr) throws Exception {
+        solr.conduit.index(solr.request);
+    }
+}
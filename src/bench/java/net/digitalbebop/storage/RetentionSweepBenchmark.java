@@ -0,0 +1,93 @@
+package net.digitalbebop.storage;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookups of the latest version in a store that has taken many rounds of new versions, with and
+ * without a retention rule keeping the last few. The size of the store after each round and the
+ * rate of the sweeps are printed during setup.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RetentionSweepBenchmark {
+    private static final int OBJECTS = 10_000;
+    private static final int ROUNDS = 20;
+    private static final int KEPT = 3;
+    private static final int SIZE = 1024;
+
+    @Param({"none", "maxVersions=3"})
+    public String retention;
+
+    private File dir;
+    private FileStorageConduit storage;
+
+    @Setup
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory(new File(System.getProperty("user.home")).toPath(),
+                "pulse-retention-bench").toFile();
+        MetricRegistry metrics = new MetricRegistry();
+        RetentionPolicy policy = retention.equals("none") ? RetentionPolicy.none() :
+                new RetentionPolicy(RetentionPolicy.parse("bench " + retention), 10);
+        File data = new File(dir, "data");
+        storage = FileStorageConduit.builder(data.getPath())
+                .compactionRate(Integer.MAX_VALUE)
+                .retention(policy)
+                .metrics(metrics)
+                .build();
+        Meter expired = metrics.meter(MetricRegistry.name(FileStorageConduit.class, "versions-expired"));
+
+        byte[] bytes = new byte[SIZE];
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int id = 0; id < OBJECTS; id++) {
+                ThreadLocalRandom.current().nextBytes(bytes);
+                storage.putRaw("bench", moduleId(id), round, bytes);
+            }
+            storage.commit(Durability.SYNC).get();
+
+            long start = System.nanoTime();
+            long swept = expired.getCount();
+            long expected = retention.equals("none") ? 0 : (long) OBJECTS * Math.max(0, round + 1 - KEPT);
+            while (expired.getCount() < expected) {
+                Thread.sleep(1);
+            }
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            storage.commit(Durability.SYNC).get();
+            System.out.printf("%nround %d: %d MB on disk, %d more versions swept in %d ms", round + 1,
+                    data.length() >> 20, expired.getCount() - swept, millis);
+        }
+        System.out.println();
+    }
+
+    @TearDown
+    public void teardown() {
+        storage.close();
+        FileUtils.deleteQuietly(dir);
+    }
+
+    @Benchmark
+    public Optional<Long> latest() {
+        return storage.latestVersion("bench", moduleId(ThreadLocalRandom.current().nextInt(OBJECTS)));
+    }
+
+    @Benchmark
+    public Optional<byte[]> getLatest() {
+        return storage.getRaw("bench", moduleId(ThreadLocalRandom.current().nextInt(OBJECTS)), ROUNDS - 1);
+    }
+
+    private static String moduleId(int id) {
+        return "document-" + id;
+    }
+}
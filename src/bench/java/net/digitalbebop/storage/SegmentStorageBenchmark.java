@@ -0,0 +1,93 @@
+package net.digitalbebop.storage;
+
+import com.codahale.metrics.MetricRegistry;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link SegmentStorageConduit} against {@link FileStorageConduit}: throughput of puts of new
+ * versions left to the group commit, and latency of reads of random objects put during setup.
+ * How much disk each store takes up, in allocated blocks as du counts them, is printed at the end
+ * of each trial, next to how much data was put into it.
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SegmentStorageBenchmark {
+    private static final int OBJECTS = 20_000;
+    private static final int SIZE = 8192;
+
+    @Param({"file", "segment"})
+    public String backend;
+
+    private File dir;
+    private StorageConduit storage;
+    private Runnable close;
+    private final LongAdder bytesPut = new LongAdder();
+
+    @Setup
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory(new File(System.getProperty("user.home")).toPath(),
+                "pulse-segment-bench").toFile();
+        if (backend.equals("file")) {
+            FileStorageConduit files = FileStorageConduit.builder(new File(dir, "data").getPath()).build();
+            storage = files;
+            close = files::close;
+        } else {
+            SegmentStorageConduit segments = new SegmentStorageConduit(new File(dir, "segments").getPath(),
+                    256*1024*1024, 50, 8*1024*1024, 32*1024*1024, new MetricRegistry());
+            storage = segments;
+            close = segments::close;
+        }
+        byte[] data = new byte[SIZE];
+        for (int id = 0; id < OBJECTS; id++) {
+            ThreadLocalRandom.current().nextBytes(data);
+            storage.putRaw("bench", moduleId(id), 0, data);
+        }
+        bytesPut.add((long) OBJECTS * SIZE);
+        storage.commit(Durability.SYNC).get();
+    }
+
+    @TearDown
+    public void teardown() throws Exception {
+        storage.commit(Durability.SYNC).get();
+        Process du = new ProcessBuilder("du", "-sk", dir.getPath()).start();
+        String usage = IOUtils.toString(du.getInputStream(), StandardCharsets.UTF_8).split("\\s")[0];
+        System.out.printf("%n%s store takes up %.1f MB on disk for %.1f MB put%n", backend,
+                Long.parseLong(usage) / 1024.0, bytesPut.sum() / 1024.0 / 1024.0);
+        close.run();
+        FileUtils.deleteQuietly(dir);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void put() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        byte[] data = new byte[SIZE];
+        random.nextBytes(data);
+        storage.putRaw("bench", moduleId(random.nextInt(OBJECTS)), random.nextLong(), data);
+        bytesPut.add(SIZE);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Optional<byte[]> get() {
+        return storage.getRaw("bench", moduleId(ThreadLocalRandom.current().nextInt(OBJECTS)), 0);
+    }
+
+    private static String moduleId(int id) {
+        return "document-" + id;
+    }
+}
@@ -0,0 +1,85 @@
+package net.digitalbebop.storage;
+
+import com.codahale.metrics.MetricRegistry;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ingest and read throughput of {@link ShardedStorageConduit} by number of shards, with several
+ * writers putting new versions, either leaving them to the group commit or each waiting for its
+ * own synchronous commit, and with readers looking up the latest version of objects put during
+ * setup. One shard is the same as a plain {@link FileStorageConduit}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class ShardedStorageBenchmark {
+    private static final int OBJECTS = 20_000;
+    private static final int SIZE = 4096;
+
+    @Param({"1", "2", "4"})
+    public int shards;
+
+    private File dir;
+    private ShardedStorageConduit storage;
+
+    @Setup
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory(new File(System.getProperty("user.home")).toPath(),
+                "pulse-shard-bench").toFile();
+        List<String> dirs = new ArrayList<>();
+        for (int i = 0; i < shards; i++) {
+            dirs.add(new File(dir, "data-" + i).getPath());
+        }
+        storage = new ShardedStorageConduit(dirs, 256*1024, 50, 8*1024*1024, 500, RetentionPolicy.none(),
+                CompressionPolicy.none(), new MetricRegistry());
+        byte[] data = new byte[SIZE];
+        for (int id = 0; id < OBJECTS; id++) {
+            ThreadLocalRandom.current().nextBytes(data);
+            storage.putRaw("bench", moduleId(id), 0, data);
+        }
+        storage.commit(Durability.SYNC).get();
+    }
+
+    @TearDown
+    public void teardown() {
+        storage.close();
+        FileUtils.deleteQuietly(dir);
+    }
+
+    @Benchmark
+    public void put() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        byte[] data = new byte[SIZE];
+        random.nextBytes(data);
+        storage.putRaw("bench", moduleId(random.nextInt(OBJECTS)), random.nextLong(), data);
+    }
+
+    @Benchmark
+    public void putSync() throws Exception {
+        put();
+        storage.commit(Durability.SYNC).get();
+    }
+
+    @Benchmark
+    public Optional<byte[]> getLatest() {
+        String id = moduleId(ThreadLocalRandom.current().nextInt(OBJECTS));
+        return storage.latestVersion("bench", id).flatMap(version -> storage.getRaw("bench", id, version));
+    }
+
+    private static String moduleId(int id) {
+        return "document-" + id;
+    }
+}
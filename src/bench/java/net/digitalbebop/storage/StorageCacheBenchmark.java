@@ -0,0 +1,97 @@
+package net.digitalbebop.storage;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A search result page's worth of thumbnail reads, skewed towards popular objects, interleaved
+ * with one-off downloads of raw data much larger in total than the raw cache, against the store
+ * directly and through {@link CachingStorageConduit}. The thumbnail hit ratio is printed at the
+ * end of each trial.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StorageCacheBenchmark {
+    private static final int OBJECTS = 20_000;
+    private static final int THUMBNAIL_SIZE = 8*1024;
+    private static final int RAW_SIZE = 128*1024;
+    private static final int PAGE = 10;
+
+    @Param({"off", "on"})
+    public String cache;
+
+    private File dir;
+    private MetricRegistry metrics;
+    private FileStorageConduit files;
+    private StorageConduit storage;
+
+    @Setup
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory(new File(System.getProperty("user.home")).toPath(),
+                "pulse-cache-bench").toFile();
+        metrics = new MetricRegistry();
+        files = FileStorageConduit.builder(new File(dir, "data").getPath()).metrics(metrics).build();
+        byte[] thumbnail = new byte[THUMBNAIL_SIZE];
+        byte[] raw = new byte[RAW_SIZE];
+        for (int id = 0; id < OBJECTS; id++) {
+            ThreadLocalRandom.current().nextBytes(thumbnail);
+            ThreadLocalRandom.current().nextBytes(raw);
+            files.putRaw("bench", moduleId(id), 0, raw);
+            files.putThumbnail("bench", moduleId(id), 0, thumbnail);
+        }
+        files.commit(Durability.SYNC).get();
+        /* 16MB of thumbnails for 160MB of them, 32MB of raw data for 2.5GB of it */
+        storage = cache.equals("on") ?
+                new CachingStorageConduit(files, 32*1024*1024, 16*1024*1024, 256*1024, metrics) : files;
+    }
+
+    @TearDown
+    public void teardown() {
+        Gauge<?> ratio = metrics.getGauges().get(MetricRegistry.name(OffHeapCache.class, "thumbnails", "hit-ratio"));
+        if (ratio != null) {
+            System.out.printf("%nthumbnail hit ratio %.3f%n", (Double) ratio.getValue());
+            ((CachingStorageConduit) storage).clear();
+        }
+        files.close();
+        FileUtils.deleteQuietly(dir);
+    }
+
+    @Benchmark
+    public int searchPage() {
+        return thumbnails() + download();
+    }
+
+    @Benchmark
+    public int thumbnails() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int found = 0;
+        for (int i = 0; i < PAGE; i++) {
+            /* Most results come from a few hundred popular objects */
+            int id = random.nextInt(10) < 8 ? random.nextInt(500) : random.nextInt(OBJECTS);
+            found += storage.openThumbnail("bench", moduleId(id), 0).isPresent() ? 1 : 0;
+        }
+        return found;
+    }
+
+    @Benchmark
+    public int download() {
+        Optional<byte[]> data = storage.getRaw("bench", moduleId(ThreadLocalRandom.current().nextInt(OBJECTS)), 0);
+        return data.map(bytes -> bytes.length).orElse(0);
+    }
+
+    private static String moduleId(int id) {
+        return "document-" + id;
+    }
+}
@@ -0,0 +1,56 @@
+package net.digitalbebop.storage;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Puts per second into {@link FileStorageConduit} at each durability level, with as many
+ * concurrent writers as the storage pool has threads. Every operation stores one small object and
+ * waits until it is as durable as asked for, the way an index request does.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(16)
+@Fork(1)
+public class StorageCommitBenchmark {
+    private static final int OBJECT_SIZE = 4*1024;
+
+    @State(Scope.Benchmark)
+    public static class Store {
+        @Param({"ASYNC", "BATCHED", "SYNC"})
+        Durability durability;
+
+        final AtomicLong ids = new AtomicLong();
+        final byte[] data = new byte[OBJECT_SIZE];
+        File dir;
+        FileStorageConduit storage;
+
+        @Setup
+        public void setup() throws Exception {
+            new Random(0).nextBytes(data);
+            dir = Files.createTempDirectory(new File(System.getProperty("user.home")).toPath(),
+                    "pulse-commit-bench").toFile();
+            storage = FileStorageConduit.builder(new File(dir, "data").getPath()).build();
+        }
+
+        @TearDown
+        public void teardown() {
+            storage.close();
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    @Benchmark
+    public void put(Store store) throws Exception {
+        store.storage.putThumbnail("bench", Long.toString(store.ids.incrementAndGet()), 0, store.data);
+        store.storage.commit(store.durability).get();
+    }
+}
@@ -0,0 +1,86 @@
+package net.digitalbebop.storage;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Foreground reads of {@link FileStorageConduit} while the compactor works through a backlog of
+ * deleted objects, at the default compaction rate and unthrottled, against a store with nothing
+ * to compact. The compaction throughput is printed at the end of each trial.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class StorageCompactionBenchmark {
+    private static final int OBJECTS = 20_000;
+    private static final int VERSIONS = 5;
+    private static final int SIZE = 4096;
+
+    @Param({"none", "500", "unthrottled"})
+    public String compaction;
+
+    private File dir;
+    private MetricRegistry metrics;
+    private FileStorageConduit storage;
+
+    @Setup
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory(new File(System.getProperty("user.home")).toPath(),
+                "pulse-compaction-bench").toFile();
+        metrics = new MetricRegistry();
+        int rate = compaction.equals("unthrottled") ? Integer.MAX_VALUE : 500;
+        storage = FileStorageConduit.builder(new File(dir, "data").getPath())
+                .compactionRate(rate)
+                .metrics(metrics)
+                .build();
+        byte[] data = new byte[SIZE];
+        for (int id = 0; id < OBJECTS; id++) {
+            for (int v = 0; v < VERSIONS; v++) {
+                ThreadLocalRandom.current().nextBytes(data);
+                storage.putRaw("bench", moduleId(id), v, data);
+            }
+        }
+        storage.commit(Durability.SYNC).get();
+
+        if (!compaction.equals("none")) {
+            /* Every other object, so the reads below are interleaved with what is being removed */
+            for (int id = 1; id < OBJECTS; id += 2) {
+                storage.delete("bench", moduleId(id));
+            }
+            storage.commit(Durability.SYNC).get();
+        }
+    }
+
+    @TearDown
+    public void teardown() {
+        Meter versions = metrics.meter(MetricRegistry.name(FileStorageConduit.class, "versions-compacted"));
+        Meter bytes = metrics.meter(MetricRegistry.name(FileStorageConduit.class, "bytes-reclaimed"));
+        System.out.printf("%ncompacted %d versions (%.0f/s), reclaimed %d bytes (%.0f/s)%n",
+                versions.getCount(), versions.getMeanRate(), bytes.getCount(), bytes.getMeanRate());
+        storage.close();
+        FileUtils.deleteQuietly(dir);
+    }
+
+    @Benchmark
+    public Optional<byte[]> getKept() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int id = random.nextInt(OBJECTS / 2) * 2;
+        return storage.getRaw("bench", moduleId(id), random.nextInt(VERSIONS));
+    }
+
+    private static String moduleId(int id) {
+        return "document-" + id;
+    }
+}
@@ -0,0 +1,125 @@
+package net.digitalbebop.storage;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Puts, reads and sends of chat log like text documents in {@link FileStorageConduit}, stored as
+ * they are or compressed by the {@link CompressionPolicy}. How much disk the store takes up, in
+ * allocated blocks as du counts them, is printed at the end of each trial.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StorageCompressionBenchmark {
+    private static final int OBJECTS = 20_000;
+    private static final int LINES = 200;
+    private static final String[] WORDS = {"the", "build", "is", "broken", "again", "who", "pushed", "to",
+            "master", "lunch", "anyone", "meeting", "moved", "server", "room", "printer", "jammed", "ok", "lol"};
+
+    @Param({"none", "deflate 1"})
+    public String compression;
+
+    private File dir;
+    private FileStorageConduit storage;
+    private byte[][] documents;
+    private final WritableByteChannel discard = Channels.newChannel(new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    });
+
+    @Setup
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory(new File(System.getProperty("user.home")).toPath(),
+                "pulse-compression-bench").toFile();
+        storage = FileStorageConduit.builder(new File(dir, "data").getPath())
+                .compression(new CompressionPolicy(compression))
+                .build();
+        Random random = new Random(0);
+        documents = new byte[64][];
+        for (int i = 0; i < documents.length; i++) {
+            documents[i] = chatLog(random);
+        }
+        for (int id = 0; id < OBJECTS; id++) {
+            storage.putRaw("bench", moduleId(id), 0, unique(documents[id % documents.length], id));
+        }
+        storage.commit(Durability.SYNC).get();
+    }
+
+    @TearDown
+    public void teardown() throws Exception {
+        storage.commit(Durability.SYNC).get();
+        Process du = new ProcessBuilder("du", "-sk", dir.getPath()).start();
+        String usage = IOUtils.toString(du.getInputStream(), StandardCharsets.UTF_8).split("\\s")[0];
+        System.out.printf("%n%s store takes up %.1f MB on disk for %d documents of %d bytes%n", compression,
+                Long.parseLong(usage) / 1024.0, OBJECTS, documents[0].length);
+        storage.close();
+        FileUtils.deleteQuietly(dir);
+    }
+
+    @Benchmark
+    public void put() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        byte[] document = unique(documents[random.nextInt(documents.length)], random.nextInt());
+        storage.putRaw("bench", moduleId(random.nextInt(OBJECTS)), random.nextLong(), document);
+    }
+
+    @Benchmark
+    public Optional<byte[]> get() {
+        return storage.getRaw("bench", moduleId(ThreadLocalRandom.current().nextInt(OBJECTS)), 0);
+    }
+
+    @Benchmark
+    public long send() throws IOException {
+        Blob blob = storage.openRaw("bench", moduleId(ThreadLocalRandom.current().nextInt(OBJECTS)), 0).get();
+        return blob.transferTo(0, blob.length(), discard);
+    }
+
+    private static byte[] chatLog(Random random) {
+        StringBuilder log = new StringBuilder();
+        for (int line = 0; line < LINES; line++) {
+            log.append(String.format("[%02d:%02d] <user%d> ",
+                    random.nextInt(24), random.nextInt(60), random.nextInt(30)));
+            for (int word = random.nextInt(12); word >= 0; word--) {
+                log.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            log.append('\n');
+        }
+        return log.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Stamps the document so that dedupe doesn't store it only once.
+     */
+    private static byte[] unique(byte[] document, int stamp) {
+        byte[] copy = document.clone();
+        byte[] tag = String.format("%08x", stamp).getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(tag, 0, copy, 0, tag.length);
+        return copy;
+    }
+
+    private static String moduleId(int id) {
+        return "document-" + id;
+    }
+}
@@ -0,0 +1,104 @@
+package net.digitalbebop.storage;
+
+import net.digitalbebop.fibers.FiberChannels;
+import net.digitalbebop.http.BlobEntity;
+import net.digitalbebop.http.Response;
+import org.apache.commons.io.FileUtils;
+import org.apache.http.HttpEntity;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of sending a stored object the way /api/get_data does. {@code heapCopy} is the old path,
+ * the object is read into a byte array and copied out through the connection's output stream.
+ * {@code transfer} opens the object as a {@link Blob} and hands the connection's channel the
+ * file directly. Run with "-prof gc" to compare the bytes allocated per download.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StorageDownloadBenchmark {
+
+    /**
+     * Stand-in for the client socket, copies everything it is given into a send buffer the way
+     * the kernel would and throws it away.
+     */
+    private static class DiscardChannel implements WritableByteChannel {
+        private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(64*1024);
+
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            while (src.hasRemaining()) {
+                sendBuffer.clear();
+                ByteBuffer slice = src.duplicate();
+                slice.limit(slice.position() + Math.min(slice.remaining(), sendBuffer.remaining()));
+                sendBuffer.put(slice);
+                src.position(slice.position());
+            }
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {}
+    }
+
+    @State(Scope.Benchmark)
+    public static class Store {
+        @Param({"1048576", "10485760", "104857600"})
+        int size;
+
+        File dir;
+        FileStorageConduit storage;
+        WritableByteChannel channel;
+        OutputStream os;
+
+        @Setup
+        public void setup() throws Exception {
+            dir = Files.createTempDirectory("pulse-download-bench").toFile();
+            storage = FileStorageConduit.builder(new File(dir, "data").getPath()).build();
+
+            byte[] data = new byte[size];
+            new Random(0).nextBytes(data);
+            storage.putRaw("bench", "object", 0, data);
+
+            channel = new DiscardChannel();
+            os = FiberChannels.newUnsharedOutputStream(channel);
+        }
+
+        @TearDown
+        public void teardown() throws IOException {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    @Benchmark
+    public long heapCopy(Store store) throws IOException {
+        HttpEntity entity = Response.ok(store.storage.getRaw("bench", "object", 0).get()).getEntity();
+        entity.writeTo(store.os);
+        store.os.flush();
+        return entity.getContentLength();
+    }
+
+    @Benchmark
+    public long transfer(Store store) throws IOException {
+        BlobEntity entity = (BlobEntity) Response.ok(store.storage.openRaw("bench", "object", 0).get()).getEntity();
+        entity.transferTo(store.channel);
+        return entity.getContentLength();
+    }
+}
@@ -0,0 +1,106 @@
+package net.digitalbebop.storage;
+
+import org.apache.commons.io.FileUtils;
+import org.mapdb.BTreeKeySerializer;
+import org.mapdb.BTreeMap;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.Serializer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Version lookups in MapDB keyed by the old "raw-module-id-timestamp" strings against
+ * {@link StorageKey} bytes, building the key each time as {@link FileStorageConduit} does. The
+ * size of each store on disk is printed during setup. Run with "-prof gc" for the allocation of
+ * building the keys.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StorageKeyBenchmark {
+    private static final String[] MODULES = {"news", "wiki", "ldap", "gallery", "printer-logs"};
+    private static final int OBJECTS_PER_MODULE = 20_000;
+    private static final int VERSIONS = 5;
+    private static final long FIRST_TIMESTAMP = 1445000000000L;
+    /* Empty, so that the size on disk is down to the keys */
+    private static final String CONTENT = "";
+
+    @Param({"string", "binary"})
+    String keys;
+
+    private File dir;
+    private DB db;
+    private BTreeMap<String, String> stringVersions;
+    private BTreeMap<byte[], String> binaryVersions;
+
+    @Setup
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("pulse-key-bench").toFile();
+        File file = new File(dir, "data");
+        db = DBMaker.fileDB(file)
+                .transactionDisable()
+                .cacheHashTableEnable()
+                .make();
+        if (keys.equals("string")) {
+            stringVersions = db.treeMapCreate("versions")
+                    .keySerializer(BTreeKeySerializer.STRING)
+                    .valueSerializer(Serializer.STRING)
+                    .make();
+        } else {
+            binaryVersions = db.treeMapCreate("versions")
+                    .keySerializer(BTreeKeySerializer.BYTE_ARRAY)
+                    .valueSerializer(Serializer.STRING)
+                    .make();
+        }
+
+        for (String module : MODULES) {
+            for (int id = 0; id < OBJECTS_PER_MODULE; id++) {
+                for (int v = 0; v < VERSIONS; v++) {
+                    put(module, moduleId(id), FIRST_TIMESTAMP + v * 60_000L);
+                }
+            }
+        }
+        db.commit();
+        db.compact();
+        System.out.println(keys + " keys: " + MODULES.length * OBJECTS_PER_MODULE * VERSIONS +
+                " versions in " + file.length() / 1024 + "KB");
+    }
+
+    @TearDown
+    public void teardown() {
+        db.close();
+        FileUtils.deleteQuietly(dir);
+    }
+
+    @Benchmark
+    public String get() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String module = MODULES[random.nextInt(MODULES.length)];
+        String id = moduleId(random.nextInt(OBJECTS_PER_MODULE));
+        long timestamp = FIRST_TIMESTAMP + random.nextInt(VERSIONS) * 60_000L;
+        if (stringVersions != null) {
+            return stringVersions.get("raw-" + module + "-" + id + "-" + timestamp);
+        }
+        return binaryVersions.get(StorageKey.raw(module, id, timestamp).toBytes());
+    }
+
+    private void put(String module, String id, long timestamp) {
+        if (stringVersions != null) {
+            stringVersions.put("raw-" + module + "-" + id + "-" + timestamp, CONTENT);
+        } else {
+            binaryVersions.put(StorageKey.raw(module, id, timestamp).toBytes(), CONTENT);
+        }
+    }
+
+    private static String moduleId(int id) {
+        return "document-" + id;
+    }
+}
@@ -0,0 +1,80 @@
+package net.digitalbebop.storage;
+
+import com.codahale.metrics.MetricRegistry;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thumbnail lookups for a page of search results from {@link FileStorageConduit}, where only one
+ * object in five has a thumbnail, as only pdfs and images get one, and lookups of objects that
+ * were never stored at all. How many lookups the bloom filters kept from MapDB is printed at the
+ * end of each trial.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StorageMissBenchmark {
+    private static final int OBJECTS = 200_000;
+    private static final int PAGE = 10;
+
+    private File dir;
+    private MetricRegistry metrics;
+    private FileStorageConduit storage;
+    private long lookups;
+
+    @Setup
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory(new File(System.getProperty("user.home")).toPath(),
+                "pulse-miss-bench").toFile();
+        storage = FileStorageConduit.builder(new File(dir, "data").getPath())
+                .metrics(metrics = new MetricRegistry())
+                .build();
+        byte[] data = new byte[512];
+        for (int id = 0; id < OBJECTS; id++) {
+            ThreadLocalRandom.current().nextBytes(data);
+            storage.putRaw("bench", moduleId(id), 0, data);
+            if (id % 5 == 0) {
+                storage.putThumbnail("bench", moduleId(id), 0, data);
+            }
+        }
+        storage.commit(Durability.SYNC).get();
+    }
+
+    @TearDown
+    public void teardown() {
+        long negatives = metrics.meter(MetricRegistry.name(FileStorageConduit.class, "bloom-negatives")).getCount();
+        System.out.printf("%n%d of %d lookups answered by the bloom filters%n", negatives, lookups);
+        storage.close();
+        FileUtils.deleteQuietly(dir);
+    }
+
+    @Benchmark
+    public int thumbnailPage() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int found = 0;
+        lookups += PAGE;
+        for (int i = 0; i < PAGE; i++) {
+            found += storage.openThumbnail("bench", moduleId(random.nextInt(OBJECTS)), 0).isPresent() ? 1 : 0;
+        }
+        return found;
+    }
+
+    @Benchmark
+    public Optional<Long> latestOfUnknown() {
+        lookups++;
+        return storage.latestVersion("bench", "unknown-" + ThreadLocalRandom.current().nextInt(OBJECTS));
+    }
+
+    private static String moduleId(int id) {
+        return "document-" + id;
+    }
+}
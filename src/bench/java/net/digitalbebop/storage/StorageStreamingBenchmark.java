@@ -0,0 +1,96 @@
+package net.digitalbebop.storage;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams large objects into {@link FileStorageConduit} and back out again. The object comes from
+ * a generated channel, so the only heap the put needs is the chunk it is writing; run with
+ * {@code -prof gc} to see allocation stay flat as the object size grows.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StorageStreamingBenchmark {
+    @Param({"16777216", "134217728", "536870912"})
+    long size;
+
+    private final byte[] pattern = new byte[64*1024];
+    private final byte[] sink = new byte[64*1024];
+    private File dir;
+    private FileStorageConduit storage;
+
+    @Setup
+    public void setup() throws Exception {
+        new Random(0).nextBytes(pattern);
+        dir = Files.createTempDirectory(new File(System.getProperty("user.home")).toPath(),
+                "pulse-stream-bench").toFile();
+        storage = FileStorageConduit.builder(new File(dir, "data").getPath()).build();
+        storage.putRaw("bench", "read", 0, new GeneratedChannel(size));
+    }
+
+    @TearDown
+    public void teardown() {
+        storage.close();
+        FileUtils.deleteQuietly(dir);
+    }
+
+    @Benchmark
+    public void put() throws Exception {
+        storage.putRaw("bench", "write", 0, new GeneratedChannel(size));
+    }
+
+    @Benchmark
+    public long read() throws Exception {
+        long total = 0;
+        try (InputStream in = storage.openRaw("bench", "read", 0).get().openStream()) {
+            int n;
+            while ((n = in.read(sink)) >= 0) {
+                total += n;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Hands out the given number of bytes by repeating the pattern, without buffering any of it.
+     */
+    private class GeneratedChannel implements ReadableByteChannel {
+        private long remaining;
+
+        GeneratedChannel(long size) {
+            this.remaining = size;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (remaining == 0) {
+                return -1;
+            }
+            int n = (int) Math.min(Math.min(dst.remaining(), pattern.length), remaining);
+            dst.put(pattern, 0, n);
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
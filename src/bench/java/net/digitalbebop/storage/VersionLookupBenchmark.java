@@ -0,0 +1,72 @@
+package net.digitalbebop.storage;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Version lookups in {@link FileStorageConduit}, which "open the latest copy" and the versions
+ * endpoint now make instead of asking Solr for the timestamps of an object.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class VersionLookupBenchmark {
+    private static final int OBJECTS = 50_000;
+    private static final int VERSIONS = 20;
+    private static final long FIRST_TIMESTAMP = 1445000000000L;
+    private static final long INTERVAL = 3_600_000L;
+
+    private File dir;
+    private FileStorageConduit storage;
+
+    @Setup
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory(new File(System.getProperty("user.home")).toPath(),
+                "pulse-version-bench").toFile();
+        storage = FileStorageConduit.builder(new File(dir, "data").getPath()).build();
+        byte[] data = new byte[16];
+        for (int id = 0; id < OBJECTS; id++) {
+            for (int v = 0; v < VERSIONS; v++) {
+                storage.putRaw("bench", moduleId(id), FIRST_TIMESTAMP + v * INTERVAL, data);
+            }
+        }
+        storage.commit(Durability.SYNC).get();
+    }
+
+    @TearDown
+    public void teardown() {
+        storage.close();
+        FileUtils.deleteQuietly(dir);
+    }
+
+    @Benchmark
+    public Optional<Long> latest() {
+        return storage.latestVersion("bench", moduleId(ThreadLocalRandom.current().nextInt(OBJECTS)));
+    }
+
+    @Benchmark
+    public Optional<Long> atOrBefore() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long at = FIRST_TIMESTAMP + (long) (random.nextDouble() * VERSIONS * INTERVAL);
+        return storage.versionAtOrBefore("bench", moduleId(random.nextInt(OBJECTS)), at);
+    }
+
+    @Benchmark
+    public List<Long> listAll() {
+        return storage.versions("bench", moduleId(ThreadLocalRandom.current().nextInt(OBJECTS)), Long.MAX_VALUE, 100);
+    }
+
+    private static String moduleId(int id) {
+        return "document-" + id;
+    }
+}
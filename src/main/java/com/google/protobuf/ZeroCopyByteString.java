@@ -0,0 +1,18 @@
+package com.google.protobuf;
+
+/**
+ * Wraps a byte array in a {@link ByteString} without copying it, which protobuf 2.x only allows
+ * from inside its own package. Messages parsed from the result with aliasing enabled on their
+ * {@link CodedInputStream} keep their bytes fields as slices of the array. The array must not
+ * be modified afterwards.
+ */
+public final class ZeroCopyByteString extends LiteralByteString {
+
+    private ZeroCopyByteString() {
+        super(null);
+    }
+
+    public static ByteString wrap(byte[] array) {
+        return new LiteralByteString(array);
+    }
+}
@@ -1,5 +1,7 @@
 package net.digitalbebop;
 
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.MetricRegistry;
 import com.google.inject.Inject;
 import net.digitalbebop.http.HttpServer;
 import org.apache.logging.log4j.LogManager;
@@ -11,6 +13,7 @@ public class PulseApp implements App {
     private static Logger logger = LogManager.getLogger(PulseApp.class);
 
     private HttpServer server;
+    private MetricRegistry metrics;
 
     public PulseApp() {}
 
@@ -19,9 +22,16 @@ public class PulseApp implements App {
         this.server = server;
     }
 
+    @Inject
+    public void getMetrics(MetricRegistry metrics) {
+        this.metrics = metrics;
+    }
+
     @Override
     public void init() {
         logger.info("Initializing pulse instance.");
+        JmxReporter.forRegistry(metrics).inDomain("net.digitalbebop.pulse").build().start();
+
         try {
             server.init();
         } catch (IOException ioe ) {
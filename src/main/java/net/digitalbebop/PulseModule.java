@@ -1,5 +1,6 @@
 package net.digitalbebop;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
 import com.google.inject.name.Names;
@@ -14,11 +15,21 @@ public class PulseModule extends AbstractModule {
      */
     final PulseProperties properties = new PulseProperties();
 
+    /**
+     * Registry that every component reports its metrics to, published over JMX.
+     */
+    final MetricRegistry metrics = new MetricRegistry();
+
     @Provides
     public PulseProperties provideProperties() {
         return properties;
     }
 
+    @Provides
+    public MetricRegistry provideMetrics() {
+        return metrics;
+    }
+
     @Override
     protected void configure() {
         Names.bindProperties(binder(), properties);
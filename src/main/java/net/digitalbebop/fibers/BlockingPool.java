@@ -0,0 +1,86 @@
+package net.digitalbebop.fibers;
+
+import co.paralleluniverse.fibers.Fiber;
+import co.paralleluniverse.fibers.SuspendExecution;
+import co.paralleluniverse.fibers.Suspendable;
+import co.paralleluniverse.fibers.futures.AsyncListenableFuture;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+
+/**
+ * Small fixed size pool for calls that block their thread and can't be made suspendable, like
+ * MapDB or SolrJ. Called from a fiber, the call is handed to the pool and the fiber parks until
+ * it completes, so the fiber scheduler's threads are never tied up. Called from a regular thread
+ * the call simply runs inline.
+ */
+public class BlockingPool {
+
+    /**
+     * A blocking call, which may throw a checked exception of type E.
+     */
+    @FunctionalInterface
+    public interface BlockingCall<T, E extends Exception> {
+        T call() throws E;
+    }
+
+    private final ListeningExecutorService executor;
+
+    public BlockingPool(String name, int threads) {
+        this.executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder()
+                        .setNameFormat(name + "-blocking-%d")
+                        .setDaemon(true)
+                        .build()));
+    }
+
+    /**
+     * Runs the call, on the pool if we are on a fiber, and returns its result. Whatever the call
+     * throws is rethrown as is.
+     */
+    @Suspendable
+    @SuppressWarnings("unchecked")
+    public <T, E extends Exception> T call(BlockingCall<T, E> call) throws E {
+        if (!Fiber.isCurrentFiber()) {
+            return call.call();
+        }
+
+        try {
+            return await(executor.submit(call::call));
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw (E) cause;
+        }
+    }
+
+    /**
+     * Waits for the future, parking the fiber rather than blocking its thread when called from
+     * one.
+     */
+    @Suspendable
+    public static <T> T await(ListenableFuture<T> future) throws ExecutionException {
+        try {
+            if (!Fiber.isCurrentFiber()) {
+                return future.get();
+            }
+            return AsyncListenableFuture.get(future);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting on a blocking call", e);
+        } catch (SuspendExecution e) {
+            /* never actually caught, the instrumentation suspends the fiber past this handler */
+            throw new AssertionError(e);
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
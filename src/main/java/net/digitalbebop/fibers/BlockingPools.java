@@ -0,0 +1,36 @@
+package net.digitalbebop.fibers;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+/**
+ * The purpose specific {@link BlockingPool}s that request handlers push their blocking work to,
+ * so that a slow index can't starve storage reads and the other way around.
+ */
+@Singleton
+public class BlockingPools {
+    private final BlockingPool storage;
+    private final BlockingPool index;
+
+    @Inject
+    public BlockingPools(@Named("storagePoolSize") Integer storageThreads,
+                         @Named("indexPoolSize") Integer indexThreads) {
+        this.storage = new BlockingPool("storage", storageThreads);
+        this.index = new BlockingPool("index", indexThreads);
+    }
+
+    /**
+     * Pool for {@link net.digitalbebop.storage.StorageConduit} calls.
+     */
+    public BlockingPool storage() {
+        return storage;
+    }
+
+    /**
+     * Pool for {@link net.digitalbebop.indexer.IndexConduit} calls.
+     */
+    public BlockingPool index() {
+        return index;
+    }
+}
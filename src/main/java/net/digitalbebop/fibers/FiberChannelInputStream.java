@@ -48,7 +48,7 @@ import java.nio.channels.SelectableChannel;
  */
 
 public class FiberChannelInputStream extends InputStream {
-    private static ReentrantLock lock = new ReentrantLock();
+    private final ReentrantLock lock = new ReentrantLock();
 
     protected final ReadableByteChannel ch;
     private ByteBuffer bb = null;
@@ -59,21 +59,16 @@ public class FiberChannelInputStream extends InputStream {
     public static int read(ReadableByteChannel ch, ByteBuffer bb, boolean block) throws IOException {
         if (ch instanceof SelectableChannel) {
             SelectableChannel sc = (SelectableChannel) ch;
-            try {
-                lock.lock();
-                boolean bm = sc.isBlocking();
-
-                if (!bm)
-                    throw new IllegalBlockingModeException();
-                if (bm != block)
-                    sc.configureBlocking(block);
-                int n = ch.read(bb);
-                if (bm != block)
-                    sc.configureBlocking(bm);
-                return n;
-            } finally {
-                lock.unlock();
-            }
+            boolean bm = sc.isBlocking();
+
+            if (!bm)
+                throw new IllegalBlockingModeException();
+            if (bm != block)
+                sc.configureBlocking(block);
+            int n = ch.read(bb);
+            if (bm != block)
+                sc.configureBlocking(bm);
+            return n;
         } else {
             return ch.read(bb);
         }
@@ -2,6 +2,7 @@ package net.digitalbebop.fibers;
 
 import co.paralleluniverse.fibers.SuspendExecution;
 import co.paralleluniverse.fibers.Suspendable;
+import co.paralleluniverse.fibers.io.FiberSocketChannel;
 import co.paralleluniverse.strands.Strand;
 import co.paralleluniverse.strands.concurrent.ReentrantLock;
 
@@ -14,12 +15,12 @@ import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CharsetEncoder;
 import java.nio.charset.UnsupportedCharsetException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Fiber Utility methods for channels and streams.
  */
 public final class FiberChannels {
-    private static ReentrantLock lock = new ReentrantLock();
 
     private FiberChannels() {}
 
@@ -33,42 +34,32 @@ public final class FiberChannels {
      * If the channel is selectable then it must be configured blocking.
      */
     private static void writeFullyImpl(WritableByteChannel ch, ByteBuffer bb)
-            throws IOException, ExecutionException, InterruptedException, SuspendExecution {
+            throws IOException, SuspendExecution {
         while (bb.remaining() > 0) {
-            int n = 0;
-            try {
-                n = ch.write(bb);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            int n = ch.write(bb);
             if (n <= 0)
-                throw new RuntimeException("no bytes written");
+                throw new IOException("no bytes written");
         }
     }
 
     /**
-     * Write all remaining bytes in buffer to the given channel.
+     * Write all remaining bytes in buffer to the given channel. No lock is
+     * taken here, ordering of concurrent writes to the same channel is the
+     * responsibility of the stream that owns the channel.
      *
      * @throws IllegalBlockingModeException
      *          If the channel is selectable and configured non-blocking.
      */
     private static void writeFully(WritableByteChannel ch, ByteBuffer bb)
-            throws IOException, InterruptedException, ExecutionException, SuspendExecution {
-        try {
-            lock.lock();
-            if (ch instanceof SelectableChannel) {
-                SelectableChannel sc = (SelectableChannel) ch;
-                if (!sc.isBlocking()) {
-                    throw new IllegalBlockingModeException();
-                }
-
-                writeFullyImpl(ch, bb);
-            } else {
-                writeFullyImpl(ch, bb);
+            throws IOException, SuspendExecution {
+        if (ch instanceof SelectableChannel) {
+            SelectableChannel sc = (SelectableChannel) ch;
+            if (!sc.isBlocking()) {
+                throw new IllegalBlockingModeException();
             }
-        } finally {
-            lock.unlock();
         }
+
+        writeFullyImpl(ch, bb);
     }
 
     // -- Byte streams from channels --
@@ -94,14 +85,49 @@ public final class FiberChannels {
         return new FiberChannelInputStream(ch);
     }
 
+    /**
+     * Constructs a stream that reads bytes from the given fiber socket, where
+     * every read gives up after the given timeout.
+     *
+     * <p> This behaves like {@link #newInputStream(ReadableByteChannel)},
+     * except that a read that sees no data within <tt>timeout</tt> fails with
+     * an {@link InterruptedByTimeoutException}. Connections use this to drop
+     * idle keep-alive clients.  </p>
+     *
+     * @param  ch
+     *         The channel from which bytes will be read
+     *
+     * @param  timeout
+     *         The maximum time to wait for a single read
+     *
+     * @param  unit
+     *         The unit of <tt>timeout</tt>
+     *
+     * @return  A new input stream
+     */
+    public static InputStream newInputStream(final FiberSocketChannel ch,
+                                             final long timeout,
+                                             final TimeUnit unit) throws SuspendExecution {
+        checkNotNull(ch, "ch");
+        checkNotNull(unit, "unit");
+        return new FiberChannelInputStream(ch) {
+            @Override
+            @Suspendable
+            protected int read(ByteBuffer bb) throws IOException, SuspendExecution {
+                return ((FiberSocketChannel) ch).read(bb, timeout, unit);
+            }
+        };
+    }
+
     /**
      * Constructs a stream that writes bytes to the given channel.
      *
      * <p> The <tt>write</tt> methods of the resulting stream will throw an
      * {@link IllegalBlockingModeException} if invoked while the underlying
      * channel is in non-blocking mode.  The stream will not be buffered.  The
-     * stream will be safe for access by multiple concurrent threads.  Closing
-     * the stream will in turn cause the channel to be closed.  </p>
+     * stream will be safe for access by multiple concurrent threads, writes
+     * are ordered by a lock private to the returned stream.  Closing the
+     * stream will in turn cause the channel to be closed.  </p>
      *
      * @param  ch
      *         The channel to which bytes will be written
@@ -110,61 +136,94 @@ public final class FiberChannels {
      */
     public static OutputStream newOutputStream(final WritableByteChannel ch) throws SuspendExecution {
         checkNotNull(ch, "ch");
+        return new ChannelOutputStream(ch, new ReentrantLock());
+    }
 
-        return new OutputStream() {
-            private ReentrantLock olock = new ReentrantLock();
+    /**
+     * Constructs a stream that writes bytes to the given channel, for use by
+     * a single fiber that owns the channel.
+     *
+     * <p> This behaves like {@link #newOutputStream(WritableByteChannel)},
+     * except that the stream takes no lock at all. It must not be shared
+     * between strands; a connection fiber writing its own responses is the
+     * intended user.  </p>
+     *
+     * @param  ch
+     *         The channel to which bytes will be written
+     *
+     * @return  A new output stream
+     */
+    public static OutputStream newUnsharedOutputStream(final WritableByteChannel ch) throws SuspendExecution {
+        checkNotNull(ch, "ch");
+        return new ChannelOutputStream(ch, null);
+    }
 
-            private ByteBuffer bb = null;
-            private byte[] bs = null;       // Invoker's previous array
-            private byte[] b1 = null;
+    private static class ChannelOutputStream extends OutputStream {
+        private final WritableByteChannel ch;
+        private final ReentrantLock olock;  // null if owned by one strand
 
-            @Suspendable
-            public void write(int b) throws IOException {
-                try {
+        private ByteBuffer bb = null;
+        private byte[] bs = null;       // Invoker's previous array
+        private byte[] b1 = null;
+
+        ChannelOutputStream(WritableByteChannel ch, ReentrantLock olock) {
+            this.ch = ch;
+            this.olock = olock;
+        }
+
+        @Override
+        @Suspendable
+        public void write(int b) throws IOException {
+            try {
+                if (olock != null)
                     olock.lock();
-                    if (b1 == null)
-                        b1 = new byte[1];
-                    b1[0] = (byte) b;
-                    this.write(b1);
-                } finally {
+                if (b1 == null)
+                    b1 = new byte[1];
+                b1[0] = (byte) b;
+                this.write(b1);
+            } finally {
+                if (olock != null)
                     olock.unlock();
-                }
             }
+        }
 
-            @Suspendable
-            public void write(byte[] bs, int off, int len)
-                    throws IOException
-            {
-                try {
+        @Override
+        @Suspendable
+        public void write(byte[] bs, int off, int len)
+                throws IOException
+        {
+            try {
+                if (olock != null)
                     olock.lock();
-                    if ((off < 0) || (off > bs.length) || (len < 0) ||
-                            ((off + len) > bs.length) || ((off + len) < 0)) {
-                        throw new IndexOutOfBoundsException();
-                    } else if (len == 0) {
-                        return;
-                    }
-                    ByteBuffer bb = ((this.bs == bs)
-                            ? this.bb
-                            : ByteBuffer.wrap(bs));
-                    bb.limit(Math.min(off + len, bb.capacity()));
-                    bb.position(off);
-                    this.bb = bb;
-                    this.bs = bs;
-                    try {
-                        FiberChannels.writeFully(ch, bb);
-                    } catch (InterruptedException | ExecutionException | SuspendExecution e) {
-                        e.printStackTrace();
-                    }
-                } finally {
-                    olock.unlock();
+                if ((off < 0) || (off > bs.length) || (len < 0) ||
+                        ((off + len) > bs.length) || ((off + len) < 0)) {
+                    throw new IndexOutOfBoundsException();
+                } else if (len == 0) {
+                    return;
+                }
+                ByteBuffer bb = ((this.bs == bs)
+                        ? this.bb
+                        : ByteBuffer.wrap(bs));
+                bb.limit(Math.min(off + len, bb.capacity()));
+                bb.position(off);
+                this.bb = bb;
+                this.bs = bs;
+                try {
+                    FiberChannels.writeFully(ch, bb);
+                } catch (SuspendExecution e) {
+                    e.printStackTrace();
                 }
+            } finally {
+                if (olock != null)
+                    olock.unlock();
             }
+        }
 
-            @Suspendable
-            public void close() throws IOException {
-                ch.close();
-            }
-        };
+        @Override
+        @Suspendable
+        public void close() throws IOException {
+            ch.close();
+        }
     }
 
     /**
@@ -375,7 +434,7 @@ public final class FiberChannels {
             extends AbstractInterruptibleChannel    // Not really interruptible
             implements ReadableByteChannel
     {
-        private static ReentrantLock lock = new ReentrantLock();
+        private final ReentrantLock lock = new ReentrantLock();
 
         InputStream in;
         private static final int TRANSFER_SIZE = 8192;
@@ -453,7 +512,7 @@ public final class FiberChannels {
             extends AbstractInterruptibleChannel    // Not really interruptible
             implements WritableByteChannel
     {
-        private static ReentrantLock lock = new ReentrantLock();
+        private final ReentrantLock lock = new ReentrantLock();
 
         OutputStream out;
         private static final int TRANSFER_SIZE = 8192;
@@ -468,6 +527,7 @@ public final class FiberChannels {
             int totalWritten = 0;
 
             try {
+                lock.lock();
                 while (totalWritten < len) {
                     int bytesToWrite = Math.min((len - totalWritten),
                             TRANSFER_SIZE);
@@ -8,14 +8,21 @@ import co.paralleluniverse.strands.Strand;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import net.digitalbebop.fibers.FiberChannels;
+import org.apache.http.ConnectionClosedException;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpException;
 import org.apache.http.HttpRequest;
+import org.apache.http.HttpStatus;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.TokenIterator;
 import org.apache.http.entity.ContentLengthStrategy;
 import org.apache.http.impl.entity.StrictContentLengthStrategy;
 import org.apache.http.impl.io.*;
-import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicTokenIterator;
+import org.apache.http.protocol.HTTP;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -23,23 +30,26 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.nio.channels.InterruptedByTimeoutException;
 import java.util.Optional;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class BasicHttpServerImpl implements HttpServer {
     private static Logger logger = LogManager.getLogger(BasicHttpServerImpl.class);
 
-    private static final int SESSION_BUFFER_SIZE = 100*1024; // 100KB
+    private static final int CHUNK_SIZE = 8*1024; // 8KB
     private final ContentLengthStrategy contentLengthStrategy = StrictContentLengthStrategy.INSTANCE;
 
     private final AtomicBoolean shutdown = new AtomicBoolean(false);
     private final AtomicBoolean initialized = new AtomicBoolean(false);
 
-    private final HttpTransportMetricsImpl transMetricImpl = new HttpTransportMetricsImpl();
-
     private final String serverAddress;
     private final int serverPort;
+    private final int idleTimeout;
+    private final int maxKeepAliveRequests;
+    private final SessionBufferPool bufferPool;
 
     private HttpRouter router;
 
@@ -54,9 +64,15 @@ public class BasicHttpServerImpl implements HttpServer {
     @Inject
     public BasicHttpServerImpl(@Named("bindAddress") String serverAddress,
                                @Named("bindPort") Integer port,
-                               @Named("parallelism") Integer parallelism) {
+                               @Named("parallelism") Integer parallelism,
+                               @Named("httpIdleTimeout") Integer idleTimeout,
+                               @Named("httpMaxKeepAliveRequests") Integer maxKeepAliveRequests,
+                               SessionBufferPool bufferPool) {
         this.serverAddress = serverAddress;
         this.serverPort = port;
+        this.idleTimeout = idleTimeout;
+        this.maxKeepAliveRequests = maxKeepAliveRequests;
+        this.bufferPool = bufferPool;
         fiberScheduler = new FiberForkJoinScheduler("BaseServer", parallelism);
     }
 
@@ -64,54 +80,113 @@ public class BasicHttpServerImpl implements HttpServer {
             throws SuspendExecution, InterruptedException, IOException {
         logger.debug("Started worker");
         long startTime = System.currentTimeMillis();
+        int served = 0;
 
-        try {
-            final SessionInputBufferImpl sessionInputBuffer = new SessionInputBufferImpl(transMetricImpl, SESSION_BUFFER_SIZE);
-            final SessionOutputBufferImpl sessionOutputBuffer = new SessionOutputBufferImpl(transMetricImpl, SESSION_BUFFER_SIZE);
+        /*
+         * Connections start on small pooled buffers, the input side is swapped for a large one the
+         * first time a big request body needs to be streamed in.
+         */
+        SessionInputBufferImpl sessionInputBuffer = bufferPool.acquireInput(false);
+        final SessionOutputBufferImpl sessionOutputBuffer = bufferPool.acquireOutput();
+        boolean largeInput = false;
+        boolean cleanClose = false;
 
-            OutputStream os = FiberChannels.newOutputStream(ch);
-            InputStream is = FiberChannels.newInputStream(ch);
+        try {
+            OutputStream os = FiberChannels.newUnsharedOutputStream(ch);
+            InputStream is = FiberChannels.newInputStream(ch, idleTimeout, TimeUnit.MILLISECONDS);
 
             sessionOutputBuffer.bind(os);
             sessionInputBuffer.bind(is);
 
-            final DefaultHttpRequestParser parser = new DefaultHttpRequestParser(sessionInputBuffer);
-            final HttpRequest rawRequest = parser.parse();
+            DefaultHttpRequestParser parser = new DefaultHttpRequestParser(sessionInputBuffer);
+            final DefaultHttpResponseWriter msgWriter = new DefaultHttpResponseWriter(sessionOutputBuffer);
+
+            /*
+             * Requests are parsed off of the same session buffer one after another, so anything a
+             * client pipelines behind the current request stays buffered until its turn, and the
+             * responses go out in the order the requests came in.
+             */
+            boolean keepAlive = true;
+            while (keepAlive) {
+                final HttpRequest rawRequest;
+                try {
+                    rawRequest = parser.parse();
+                } catch (ConnectionClosedException e) {
+                    logger.debug("Client closed connection after " + served + " requests");
+                    break;
+                } catch (InterruptedByTimeoutException e) {
+                    /* Nothing but the parser has the input buffer, so it goes back to the pool */
+                    logger.debug("Connection idle for more than " + idleTimeout + "ms after " + served +
+                            " requests, closing");
+                    break;
+                }
+                long requestStartTime = System.currentTimeMillis();
+
+                // deals with POST and PUT requests
+                final Optional<InputStream> contentStream;
+                if (rawRequest instanceof HttpEntityEnclosingRequest) {
+                    long len = contentLengthStrategy.determineLength(rawRequest);
+                    if (!largeInput && (len == ContentLengthStrategy.CHUNKED || len > 0) &&
+                            bufferPool.needsLargeInput(len == ContentLengthStrategy.CHUNKED ? -1 : len)) {
+                        sessionInputBuffer = upgradeInputBuffer(sessionInputBuffer, is);
+                        parser = new DefaultHttpRequestParser(sessionInputBuffer);
+                        largeInput = true;
+                    }
 
-            // deals with PUT requests
-            final Optional<InputStream> contentStream;
-            if (rawRequest instanceof HttpEntityEnclosingRequest) {
-                long len = contentLengthStrategy.determineLength(rawRequest);
-                if (len > 0) {
                     if (len == ContentLengthStrategy.CHUNKED) {
                         contentStream = Optional.of(new ChunkedInputStream(sessionInputBuffer));
-                    } else if (len == ContentLengthStrategy.IDENTITY) {
-                        contentStream = Optional.of(new IdentityInputStream(sessionInputBuffer));
-                    } else {
+                    } else if (len > 0) {
                         contentStream = Optional.of(new ContentLengthInputStream(sessionInputBuffer, len));
+                    } else {
+                        contentStream = Optional.empty();
                     }
                 } else {
                     contentStream = Optional.empty();
                 }
-            } else {
-                contentStream = Optional.empty();
-            }
 
-            /* We can wrap this in a fiber if we feel we can be more async */
-            HttpResponse rawResponse = AsyncListenableFuture.get(router.route(rawRequest, address, contentStream));
-            rawResponse.addHeader(new BasicHeader("Access-Control-Allow-Origin", "*"));
+                /* We can wrap this in a fiber if we feel we can be more async */
+                HttpResponse handlerResponse = AsyncListenableFuture.get(router.route(rawRequest, address, contentStream));
 
-            DefaultHttpResponseWriter msgWriter = new DefaultHttpResponseWriter(sessionOutputBuffer);
-            msgWriter.write(rawResponse);
-            sessionOutputBuffer.flush(); // flushes the header
+                served++;
+                keepAlive = !shutdown.get() && served < maxKeepAliveRequests && isKeepAlive(rawRequest);
 
-            if (rawResponse.getEntity() != null) {
-                rawResponse.getEntity().writeTo(os);
-            }
+                final HttpResponse rawResponse = prepareResponse(handlerResponse, keepAlive);
+                final HttpEntity entity = rawResponse.getEntity();
+                msgWriter.write(rawResponse);
 
-            os.flush();
-            sessionOutputBuffer.flush();
+                if (entity != null && entity.getContentLength() < 0) {
+                    final ChunkedOutputStream chunked = new ChunkedOutputStream(CHUNK_SIZE, sessionOutputBuffer);
+                    entity.writeTo(chunked);
+                    chunked.close();
+                    sessionOutputBuffer.flush();
+                } else {
+                    sessionOutputBuffer.flush(); // flushes the header
+                    if (entity instanceof TransferableEntity) {
+                        ((TransferableEntity) entity).transferTo(ch);
+                    } else if (entity != null) {
+                        entity.writeTo(os);
+                    }
+                }
 
+                os.flush();
+                sessionOutputBuffer.flush();
+
+                /*
+                 * Whatever the handler left unread of the request body is drained here, otherwise
+                 * it would be parsed as the start of the next request.
+                 */
+                if (contentStream.isPresent()) {
+                    contentStream.get().close();
+                }
+
+                long requestEndTime = System.currentTimeMillis();
+                logger.debug("Request Time: " + (requestEndTime - requestStartTime) + "ms");
+            }
+
+            cleanClose = true;
+            ch.close();
+        } catch (InterruptedByTimeoutException e) {
+            logger.debug("Connection stalled for more than " + idleTimeout + "ms in the middle of a request, closing");
             ch.close();
         } catch (HttpException | IOException e) {
             logger.error("Error processing request: " + e.getMessage(), e);
@@ -120,9 +195,81 @@ public class BasicHttpServerImpl implements HttpServer {
             logger.error("Failed to properly build response: " + e.getLocalizedMessage(), e);
             ch.close();
         } finally {
+            if (cleanClose) {
+                bufferPool.release(sessionInputBuffer);
+            } else {
+                bufferPool.discard(sessionInputBuffer);
+            }
+            bufferPool.release(sessionOutputBuffer);
+
             long endTime = System.currentTimeMillis();
-            logger.debug("Total Time: " + (endTime - startTime) + "ms");
+            logger.debug("Total Time: " + (endTime - startTime) + "ms, " + served + " requests");
+        }
+    }
+
+    /**
+     * Moves a connection's input from its small buffer onto a large one. The bytes already read
+     * into the small buffer, the start of the body and possibly pipelined requests behind it,
+     * are carried over ahead of the socket stream so nothing is lost in the swap.
+     */
+    private SessionInputBufferImpl upgradeInputBuffer(SessionInputBufferImpl small, InputStream is)
+            throws IOException {
+        final byte[] carried = new byte[small.length()];
+        if (carried.length > 0) {
+            small.read(carried, 0, carried.length);
+        }
+        bufferPool.release(small);
+
+        final SessionInputBufferImpl large = bufferPool.acquireInput(true);
+        large.bind(new CarryOverInputStream(carried, is));
+        return large;
+    }
+
+    /**
+     * HTTP/1.1 connections are persistent unless the client asks for "Connection: close",
+     * HTTP/1.0 connections only persist if the client asks for "Connection: keep-alive".
+     */
+    private boolean isKeepAlive(HttpRequest request) {
+        boolean keepAlive = !request.getProtocolVersion().lessEquals(HttpVersion.HTTP_1_0);
+
+        TokenIterator tokens = new BasicTokenIterator(request.headerIterator(HTTP.CONN_DIRECTIVE));
+        while (tokens.hasNext()) {
+            String token = tokens.nextToken();
+            if (HTTP.CONN_CLOSE.equalsIgnoreCase(token)) {
+                return false;
+            } else if (HTTP.CONN_KEEP_ALIVE.equalsIgnoreCase(token)) {
+                keepAlive = true;
+            }
+        }
+        return keepAlive;
+    }
+
+    /**
+     * Handlers hand back shared instances like {@link Response#OK}, so the connection specific
+     * headers go on a copy. The body is framed with a Content-Length when the entity knows its
+     * length, and chunked otherwise, so that the client can find the end of it without us
+     * closing the connection.
+     */
+    private HttpResponse prepareResponse(HttpResponse response, boolean keepAlive) {
+        final HttpResponse copy = new BasicHttpResponse(response.getStatusLine());
+        copy.setHeaders(response.getAllHeaders());
+        copy.setEntity(response.getEntity());
+
+        copy.setHeader("Access-Control-Allow-Origin", "*");
+        copy.setHeader(HTTP.CONN_DIRECTIVE, keepAlive ? HTTP.CONN_KEEP_ALIVE : HTTP.CONN_CLOSE);
+
+        final HttpEntity entity = copy.getEntity();
+        if (entity == null) {
+            /* a 304 has no body, but a Content-Length on it would describe the cached one */
+            if (copy.getStatusLine().getStatusCode() != HttpStatus.SC_NOT_MODIFIED) {
+                copy.setHeader(HTTP.CONTENT_LEN, "0");
+            }
+        } else if (entity.getContentLength() < 0) {
+            copy.setHeader(HTTP.TRANSFER_ENCODING, HTTP.CHUNK_CODING);
+        } else {
+            copy.setHeader(HTTP.CONTENT_LEN, Long.toString(entity.getContentLength()));
         }
+        return copy;
     }
 
     public boolean isInitialized() {
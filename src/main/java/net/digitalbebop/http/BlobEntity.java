@@ -0,0 +1,92 @@
+package net.digitalbebop.http;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.digitalbebop.storage.Blob;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Entity over a stored {@link Blob}, or a range of one. The server sends these with
+ * {@link #transferTo}, which hands the blob the connection's channel directly instead of copying
+ * it through an output stream.
+ */
+public class BlobEntity extends AbstractHttpEntity implements TransferableEntity {
+    private static final int OUTPUT_BUFFER_SIZE = 8*1024;
+
+    private final Blob blob;
+    private final long offset;
+    private final long count;
+
+    public BlobEntity(Blob blob) {
+        this(blob, 0, blob.length());
+    }
+
+    /**
+     * @param offset the first byte of the blob to send
+     * @param count the number of bytes to send
+     */
+    public BlobEntity(Blob blob, long offset, long count) {
+        this.blob = blob;
+        this.offset = offset;
+        this.count = count;
+        setContentType(ContentType.APPLICATION_OCTET_STREAM.getMimeType());
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return count;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        InputStream in = blob.openStream();
+        long skipped = 0;
+        while (skipped < offset) {
+            long n = in.skip(offset - skipped);
+            if (n <= 0) {
+                in.close();
+                throw new IOException("Blob is shorter than its range");
+            }
+            skipped += n;
+        }
+        return in;
+    }
+
+    @Override
+    @Suspendable
+    public void writeTo(OutputStream outstream) throws IOException {
+        try (InputStream in = getContent()) {
+            byte[] buffer = new byte[OUTPUT_BUFFER_SIZE];
+            long remaining = count;
+            while (remaining > 0) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (n < 0) {
+                    throw new IOException("Blob is shorter than its range");
+                }
+                outstream.write(buffer, 0, n);
+                remaining -= n;
+            }
+        }
+    }
+
+    @Override
+    @Suspendable
+    public void transferTo(WritableByteChannel target) throws IOException {
+        blob.transferTo(offset, count, target);
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+}
@@ -0,0 +1,200 @@
+package net.digitalbebop.http;
+
+import com.google.common.hash.Hashing;
+import net.digitalbebop.storage.Blob;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.message.BasicHttpResponse;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Builds the responses for the blob endpoints. Stored objects are keyed by module name, module id
+ * and timestamp and never change under their key, so they get a strong ETag derived from the key
+ * and are cached by clients for as long as they like. Requests that name the object by something
+ * that can change, like its latest version, have to be revalidated instead. Conditional requests
+ * are answered with a 304, and Range requests are served from the blob without reading the rest
+ * of it.
+ */
+public final class BlobResponses {
+    /* Anything asking for more ranges than this is just sent the whole object */
+    static final int MAX_RANGES = 16;
+
+    private static final String CACHE_CONTROL = "public, max-age=31536000, immutable";
+    private static final String RESOLVED_CACHE_CONTROL = "public, no-cache";
+
+    private BlobResponses() {}
+
+    /**
+     * Range of bytes in a blob, the first and last byte inclusive as in the Range header.
+     */
+    static final class ByteRange {
+        final long first;
+        final long last;
+
+        ByteRange(long first, long last) {
+            this.first = first;
+            this.last = last;
+        }
+
+        long length() {
+            return last - first + 1;
+        }
+
+        String contentRange(long total) {
+            return "bytes " + first + "-" + last + "/" + total;
+        }
+    }
+
+    /**
+     * Strong entity tag for the object stored under the given key.
+     * @param kind which object under the key, e.g. "raw" or "thumbnail"
+     */
+    public static String etag(String kind, String moduleName, String moduleId, long timestamp) {
+        String key = kind + "/" + moduleName + "/" + moduleId + "/" + timestamp;
+        return "\"" + Hashing.sha1().hashString(key, StandardCharsets.UTF_8).toString() + "\"";
+    }
+
+    /**
+     * Responds to a GET of the blob, with a 304 if the client already has it, a 206 or 416 if it
+     * asked for part of it, and the whole blob otherwise.
+     */
+    public static HttpResponse respond(HttpRequest req, Blob blob, String etag) {
+        return respond(req, blob, etag, CACHE_CONTROL);
+    }
+
+    /**
+     * Responds to a GET that found the blob by something other than its key, such as the latest
+     * version of an object. The ETag still saves clients the download, but they have to ask again
+     * every time. Content-Location gives the key the request resolved to.
+     * @param location path that names the version sent
+     */
+    public static HttpResponse respondResolved(HttpRequest req, Blob blob, String etag, String location) {
+        HttpResponse response = respond(req, blob, etag, RESOLVED_CACHE_CONTROL);
+        response.setHeader(HttpHeaders.CONTENT_LOCATION, location);
+        return response;
+    }
+
+    private static HttpResponse respond(HttpRequest req, Blob blob, String etag, String cacheControl) {
+        if (matchesIfNoneMatch(req, etag)) {
+            HttpResponse response = new BasicHttpResponse(Response.VERSION, HttpStatus.SC_NOT_MODIFIED, "Not Modified");
+            addValidators(response, etag, cacheControl);
+            return response;
+        }
+
+        Header rangeHeader = req.getFirstHeader(HttpHeaders.RANGE);
+        Header ifRange = req.getFirstHeader(HttpHeaders.IF_RANGE);
+        if (rangeHeader != null && (ifRange == null || ifRange.getValue().trim().equals(etag))) {
+            Optional<List<ByteRange>> ranges = parseRanges(rangeHeader.getValue(), blob.length());
+            if (ranges.isPresent()) {
+                return partial(blob, ranges.get(), etag, cacheControl);
+            }
+        }
+
+        HttpResponse response = Response.ok(blob);
+        addValidators(response, etag, cacheControl);
+        return response;
+    }
+
+    private static HttpResponse partial(Blob blob, List<ByteRange> ranges, String etag, String cacheControl) {
+        final HttpResponse response;
+        if (ranges.isEmpty()) {
+            response = new BasicHttpResponse(Response.VERSION, HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE,
+                    "Requested Range Not Satisfiable");
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + blob.length());
+        } else if (ranges.size() == 1) {
+            ByteRange range = ranges.get(0);
+            response = new BasicHttpResponse(Response.VERSION, HttpStatus.SC_PARTIAL_CONTENT, "Partial Content");
+            response.setHeader(HttpHeaders.CONTENT_RANGE, range.contentRange(blob.length()));
+            response.setEntity(new BlobEntity(blob, range.first, range.length()));
+        } else {
+            String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+            response = new BasicHttpResponse(Response.VERSION, HttpStatus.SC_PARTIAL_CONTENT, "Partial Content");
+            response.setEntity(new ByteRangesEntity(blob, ranges, boundary));
+        }
+        addValidators(response, etag, cacheControl);
+        return response;
+    }
+
+    private static void addValidators(HttpResponse response, String etag, String cacheControl) {
+        response.setHeader(HttpHeaders.ETAG, etag);
+        response.setHeader(HttpHeaders.CACHE_CONTROL, cacheControl);
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+    }
+
+    static boolean matchesIfNoneMatch(HttpRequest req, String etag) {
+        for (Header header : req.getHeaders(HttpHeaders.IF_NONE_MATCH)) {
+            for (String tag : header.getValue().split(",")) {
+                tag = tag.trim();
+                /* If-None-Match uses the weak comparison, so W/ prefixes are ignored */
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(etag)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses a Range header against a blob of the given length. Headers that are malformed, or
+     * that ask for too many ranges, are ignored and come back empty so the whole blob is sent.
+     * A header whose ranges all fall outside of the blob comes back as an empty list.
+     */
+    static Optional<List<ByteRange>> parseRanges(String header, long length) {
+        header = header.trim();
+        if (!header.startsWith("bytes=")) {
+            return Optional.empty();
+        }
+
+        String[] specs = header.substring("bytes=".length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return Optional.empty();
+        }
+
+        List<ByteRange> ranges = new ArrayList<>();
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return Optional.empty();
+            }
+
+            String firstStr = spec.substring(0, dash).trim();
+            String lastStr = spec.substring(dash + 1).trim();
+            try {
+                if (firstStr.isEmpty()) {
+                    /* suffix range, the last N bytes */
+                    long suffix = Long.parseLong(lastStr);
+                    if (suffix < 0) {
+                        return Optional.empty();
+                    }
+                    if (suffix > 0 && length > 0) {
+                        ranges.add(new ByteRange(Math.max(0, length - suffix), length - 1));
+                    }
+                } else {
+                    long first = Long.parseLong(firstStr);
+                    long last = lastStr.isEmpty() ? Long.MAX_VALUE : Long.parseLong(lastStr);
+                    if (first < 0 || last < first) {
+                        return Optional.empty();
+                    }
+                    if (first < length) {
+                        ranges.add(new ByteRange(first, Math.min(last, length - 1)));
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return Optional.empty();
+            }
+        }
+        return Optional.of(ranges);
+    }
+}
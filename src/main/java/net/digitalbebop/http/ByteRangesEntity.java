@@ -0,0 +1,98 @@
+package net.digitalbebop.http;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.digitalbebop.storage.Blob;
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * multipart/byteranges body for a request that asked for more than one range of a blob. The
+ * part headers are small and built up front, the ranges themselves are sent from the blob the
+ * same way {@link BlobEntity} does.
+ */
+class ByteRangesEntity extends AbstractHttpEntity implements TransferableEntity {
+    private final List<byte[]> partHeaders = new ArrayList<>();
+    private final List<BlobEntity> parts = new ArrayList<>();
+    private final byte[] closeDelimiter;
+    private final long contentLength;
+
+    ByteRangesEntity(Blob blob, List<BlobResponses.ByteRange> ranges, String boundary) {
+        long length = 0;
+        for (BlobResponses.ByteRange range : ranges) {
+            byte[] header = ("\r\n--" + boundary + "\r\n" +
+                    "Content-Type: application/octet-stream\r\n" +
+                    "Content-Range: " + range.contentRange(blob.length()) + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII);
+            partHeaders.add(header);
+            parts.add(new BlobEntity(blob, range.first, range.length()));
+            length += header.length + range.length();
+        }
+        closeDelimiter = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        contentLength = length + closeDelimiter.length;
+        setContentType("multipart/byteranges; boundary=" + boundary);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        List<InputStream> streams = new ArrayList<>();
+        for (int i = 0; i < parts.size(); i++) {
+            streams.add(new ByteArrayInputStream(partHeaders.get(i)));
+            streams.add(parts.get(i).getContent());
+        }
+        streams.add(new ByteArrayInputStream(closeDelimiter));
+        return new SequenceInputStream(Collections.enumeration(streams));
+    }
+
+    @Override
+    @Suspendable
+    public void writeTo(OutputStream outstream) throws IOException {
+        for (int i = 0; i < parts.size(); i++) {
+            outstream.write(partHeaders.get(i));
+            parts.get(i).writeTo(outstream);
+        }
+        outstream.write(closeDelimiter);
+    }
+
+    @Override
+    @Suspendable
+    public void transferTo(WritableByteChannel target) throws IOException {
+        for (int i = 0; i < parts.size(); i++) {
+            writeFully(ByteBuffer.wrap(partHeaders.get(i)), target);
+            parts.get(i).transferTo(target);
+        }
+        writeFully(ByteBuffer.wrap(closeDelimiter), target);
+    }
+
+    @Suspendable
+    private static void writeFully(ByteBuffer buffer, WritableByteChannel target) throws IOException {
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+}
@@ -0,0 +1,53 @@
+package net.digitalbebop.http;
+
+import co.paralleluniverse.fibers.Suspendable;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Replays a handful of bytes that were already read off of a connection before continuing with
+ * the connection's stream, used when a connection changes session buffers mid request.
+ */
+class CarryOverInputStream extends InputStream {
+    private final byte[] carried;
+    private final InputStream in;
+    private int pos = 0;
+
+    CarryOverInputStream(byte[] carried, InputStream in) {
+        this.carried = carried;
+        this.in = in;
+    }
+
+    @Override
+    @Suspendable
+    public int read() throws IOException {
+        if (pos < carried.length) {
+            return carried[pos++] & 0xff;
+        }
+        return in.read();
+    }
+
+    @Override
+    @Suspendable
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (pos < carried.length) {
+            int n = Math.min(len, carried.length - pos);
+            System.arraycopy(carried, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+        return in.read(b, off, len);
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (carried.length - pos) + in.available();
+    }
+
+    @Override
+    @Suspendable
+    public void close() throws IOException {
+        in.close();
+    }
+}
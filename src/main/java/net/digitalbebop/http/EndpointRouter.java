@@ -1,5 +1,6 @@
 package net.digitalbebop.http;
 
+import co.paralleluniverse.fibers.Suspendable;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
@@ -22,55 +23,55 @@ import java.nio.charset.Charset;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Optional;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Set;
 import java.util.concurrent.Executors;
-import java.util.regex.Pattern;
-import java.util.regex.PatternSyntaxException;
 
+/**
+ * Routes requests to the registered endpoint handlers. Handlers either run on a fixed pool of
+ * routerParallelism threads, or, with routerExecution=fibers, directly on the fiber serving the
+ * connection. In the latter mode the handlers push their blocking calls out to the
+ * {@link net.digitalbebop.fibers.BlockingPools}.
+ */
 class EndpointRouter implements HttpRouter {
     private static final Logger logger = LogManager.getLogger(EndpointRouter.class);
 
-    private final ConcurrentLinkedQueue<EndpointMap> endpointMap = new ConcurrentLinkedQueue<>();
+    private final RouteTable.Builder routeBuilder = new RouteTable.Builder();
+    /* Built from the registered endpoints at the end of init(), and never changed after that */
+    private volatile RouteTable routes = null;
     private final ListeningExecutorService executor;
-    private final Integer parallelism;
+    private final Execution execution;
 
     @Inject DeleteRequestHandler deleteRequestHandler;
     @Inject GetDataRequestHandler getDataRequestHandler;
     @Inject IndexRequestHandler indexRequestHandler;
+    @Inject BatchIndexRequestHandler batchIndexRequestHandler;
     @Inject SearchRequestHandler searchRequestHandler;
     @Inject GetThumbnailRequestHandler getThumbnailRequestHandler;
+    @Inject VersionsRequestHandler versionsRequestHandler;
 
-    private static class EndpointMap {
-        private final Pattern _pattern;
-        private final RequestType _requestType;
-        private final RequestHandler _handler;
-
-        public EndpointMap(@NotNull Pattern pattern,
-                           @NotNull RequestType requestType,
-                           @NotNull RequestHandler handler) {
-            this._pattern = pattern;
-            this._requestType = requestType;
-            this._handler = handler;
-        }
-
-        public Pattern getPattern() { return this._pattern; }
-
-        public RequestType getRequestType() { return this._requestType; }
+    private static RequestHandler notFoundHandler = new RequestHandler() {};
 
-        public RequestHandler getHandler() {
-            return this._handler;
-        }
+    enum Execution {
+        /** handlers run on the router's thread pool */
+        THREADS,
+        /** handlers run on the connection's fiber */
+        FIBERS
     }
 
-    private static RequestHandler notFoundHandler = new RequestHandler() {};
-
     @Inject
-    public EndpointRouter(@Named("routerParallelism") Integer parallelism) {
-        this.parallelism = parallelism;
-        this.executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(parallelism));
+    public EndpointRouter(@Named("routerParallelism") Integer parallelism,
+                          @Named("routerExecution") String execution) {
+        this.execution = Execution.valueOf(execution.toUpperCase());
+        if (this.execution == Execution.THREADS) {
+            this.executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(parallelism));
+        } else {
+            this.executor = null;
+        }
+        logger.info("Running request handlers on " + this.execution.name().toLowerCase());
     }
 
     @Override
+    @Suspendable
     public ListenableFuture<HttpResponse> route(HttpRequest request, InetSocketAddress address, Optional<InputStream> payload) {
         long startTime = System.currentTimeMillis();
         try {
@@ -93,20 +94,36 @@ class EndpointRouter implements HttpRouter {
             }
 
             logger.debug("Received request: " + request.getRequestLine());
-            for (EndpointMap map : endpointMap) {
-                if (map.getRequestType().toString().equals(method) && map.getPattern().matcher(path).matches()) {
-                    logger.debug("Handling request (" + path + ") with " + map.getHandler().toString());
-                    switch (map.getRequestType()) {
-                        case GET:
-                            return executor.submit(() -> map.getHandler().handleGet(request, address, parameters));
-                        case POST:
-                            return executor.submit(() -> map.getHandler().handlePost(request, address, parameters, payload));
-                        case DELETE:
-                            return executor.submit(() -> map.getHandler().handleDelete(request, address, parameters));
-                        case PUT:
-                            return executor.submit(() -> map.getHandler().handlePut(request, address, parameters));
-                    }
+            final RouteTable table = routes;
+            if (table == null) {
+                logger.warn("Request received before the router was initialized");
+                return Futures.immediateFuture(Response.SERVER_ERROR);
+            }
+
+            final Optional<RequestType> type = RouteTable.requestType(method);
+            final Optional<RequestHandler> handler = type.flatMap(t -> table.find(t, path));
+            if (handler.isPresent()) {
+                final RequestHandler h = handler.get();
+                logger.debug("Handling request (" + path + ") with " + h.toString());
+                if (execution == Execution.FIBERS) {
+                    return handleInline(h, type.get(), request, address, parameters, payload);
                 }
+                switch (type.get()) {
+                    case GET:
+                        return executor.submit(() -> h.handleGet(request, address, parameters));
+                    case POST:
+                        return executor.submit(() -> h.handlePost(request, address, parameters, payload));
+                    case DELETE:
+                        return executor.submit(() -> h.handleDelete(request, address, parameters));
+                    case PUT:
+                        return executor.submit(() -> h.handlePut(request, address, parameters));
+                }
+            }
+
+            final Set<RequestType> allowed = table.allowed(path);
+            if (!allowed.isEmpty()) {
+                logger.debug("Method " + method + " not allowed for (" + path + ")");
+                return Futures.immediateFuture(Response.methodNotAllowed(allowed));
             }
 
             logger.debug("Couldn't match " + method + " (" + path + ")");
@@ -123,17 +140,43 @@ class EndpointRouter implements HttpRouter {
 
     }
 
+    /**
+     * Runs the handler on the calling fiber. Failures are handed back in the future, the same way
+     * they would come back from the thread pool.
+     */
+    @Suspendable
+    private static ListenableFuture<HttpResponse> handleInline(RequestHandler h, RequestType type, HttpRequest request,
+                                                               InetSocketAddress address, HashMap<String, String> parameters,
+                                                               Optional<InputStream> payload) {
+        try {
+            switch (type) {
+                case GET:
+                    return Futures.immediateFuture(h.handleGet(request, address, parameters));
+                case POST:
+                    return Futures.immediateFuture(h.handlePost(request, address, parameters, payload));
+                case DELETE:
+                    return Futures.immediateFuture(h.handleDelete(request, address, parameters));
+                case PUT:
+                    return Futures.immediateFuture(h.handlePut(request, address, parameters));
+                default:
+                    return Futures.immediateFuture(Response.NOT_FOUND);
+            }
+        } catch (RuntimeException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
+    /**
+     * Adds an endpoint to the route table. Endpoints can only be registered until the router has
+     * been initialized, after that the table is frozen.
+     */
     public void registerEndpoint(@NotNull final String regex,
                                  RequestType type,
                                  RequestHandler handler) {
-        try {
-            Pattern pattern = Pattern.compile(regex);
-            final EndpointMap map = new EndpointMap(pattern, type, handler);
-
-            endpointMap.add(map);
-        } catch (PatternSyntaxException pe) {
-            throw new IllegalArgumentException("Given endpoint URI is a valid regex string.");
+        if (routes != null) {
+            throw new IllegalStateException("Endpoints can't be registered after the router is initialized");
         }
+        routeBuilder.add(regex, type, handler);
     }
 
     @Override
@@ -148,11 +191,14 @@ class EndpointRouter implements HttpRouter {
         });
 
         registerEndpoint("/api/index", RequestType.POST,indexRequestHandler);
+        registerEndpoint("/api/index/batch", RequestType.POST, batchIndexRequestHandler);
         registerEndpoint("/api/delete", RequestType.POST, deleteRequestHandler);
         registerEndpoint("/api/get_data", RequestType.GET, getDataRequestHandler);
         registerEndpoint("/api/get_thumbnail", RequestType.GET, getThumbnailRequestHandler);
+        registerEndpoint("/api/versions", RequestType.GET, versionsRequestHandler);
         registerEndpoint("/api/search", RequestType.GET, searchRequestHandler);
 
+        routes = routeBuilder.build();
         logger.info("Finished configuring endpoints");
     }
 }
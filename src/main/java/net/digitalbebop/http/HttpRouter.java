@@ -1,5 +1,6 @@
 package net.digitalbebop.http;
 
+import co.paralleluniverse.fibers.Suspendable;
 import com.google.common.util.concurrent.ListenableFuture;
 import org.apache.commons.lang.NotImplementedException;
 import org.apache.http.HttpRequest;
@@ -21,6 +22,7 @@ interface HttpRouter {
      * @param payload byte[] payload of posted data
      * @return {@link HttpResponse} to client
      */
+    @Suspendable
     default ListenableFuture<HttpResponse> route(@NotNull HttpRequest req, @NotNull InetSocketAddress address, @NotNull Optional<InputStream> payload) {
         throw new NotImplementedException();
     }
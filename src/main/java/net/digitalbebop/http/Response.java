@@ -1,5 +1,7 @@
 package net.digitalbebop.http;
 
+import net.digitalbebop.storage.Blob;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.HttpVersion;
@@ -8,6 +10,9 @@ import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.message.BasicHeader;
 import org.apache.http.message.BasicHttpResponse;
 
+import java.util.Set;
+import java.util.stream.Collectors;
+
 public final class Response {
     public static final ProtocolVersion VERSION = HttpVersion.HTTP_1_1;
 
@@ -15,15 +20,34 @@ public final class Response {
     public static final HttpResponse NOT_FOUND = new BasicHttpResponse(VERSION, HttpStatus.SC_NOT_FOUND, "NOT IMPLEMENTED");
     public static final HttpResponse SERVER_ERROR = new BasicHttpResponse(VERSION, HttpStatus.SC_INTERNAL_SERVER_ERROR, "server error");
     public static final HttpResponse BAD_REQUEST = new BasicHttpResponse(VERSION, HttpStatus.SC_BAD_REQUEST, "invalid request");
+    public static final HttpResponse REQUEST_TOO_LARGE = new BasicHttpResponse(VERSION, HttpStatus.SC_REQUEST_TOO_LONG, "request too large");
     public static final HttpResponse NO_AUTH = new BasicHttpResponse(VERSION, HttpStatus.SC_FORBIDDEN, "forbidden request");
 
+    public static HttpResponse serviceUnavailable(int retryAfterSeconds) {
+        HttpResponse response = new BasicHttpResponse(VERSION, HttpStatus.SC_SERVICE_UNAVAILABLE, "service unavailable");
+        response.setHeader(HttpHeaders.RETRY_AFTER, Integer.toString(retryAfterSeconds));
+        return response;
+    }
+
     public static HttpResponse badRequest(String message) {
         return new BasicHttpResponse(VERSION, HttpStatus.SC_BAD_REQUEST, message);
     }
 
+    public static HttpResponse methodNotAllowed(Set<RequestType> allowed) {
+        HttpResponse response = new BasicHttpResponse(VERSION, HttpStatus.SC_METHOD_NOT_ALLOWED, "method not allowed");
+        response.setHeader(HttpHeaders.ALLOW, allowed.stream().map(RequestType::name).collect(Collectors.joining(", ")));
+        return response;
+    }
+
     public static HttpResponse ok(byte[] payload) {
         HttpResponse response = new BasicHttpResponse(VERSION, HttpStatus.SC_OK, "OK");
         response.setEntity(new ByteArrayEntity(payload));
         return response;
     }
+
+    public static HttpResponse ok(Blob payload) {
+        HttpResponse response = new BasicHttpResponse(VERSION, HttpStatus.SC_OK, "OK");
+        response.setEntity(new BlobEntity(payload));
+        return response;
+    }
 }
\ No newline at end of file
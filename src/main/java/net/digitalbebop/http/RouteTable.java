@@ -0,0 +1,123 @@
+package net.digitalbebop.http;
+
+import net.digitalbebop.http.handlers.RequestHandler;
+
+import javax.validation.constraints.NotNull;
+import java.util.*;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Immutable table of the router's endpoints. Endpoints registered with a literal path, which is
+ * all of them at the moment, are found with a single hash lookup on the path. Endpoints that
+ * really are regular expressions are only tried, in registration order, when no literal path
+ * handles the request.
+ */
+final class RouteTable {
+    /* Characters that make an endpoint a regex rather than a literal path */
+    private static final String REGEX_META = "\\^$.|?*+()[]{}";
+
+    private static final Map<String, RequestType> METHODS = new HashMap<>();
+    static {
+        for (RequestType type : RequestType.values()) {
+            METHODS.put(type.name(), type);
+        }
+    }
+
+    private static final class PatternRoute {
+        final Pattern pattern;
+        final RequestType type;
+        final RequestHandler handler;
+
+        PatternRoute(Pattern pattern, RequestType type, RequestHandler handler) {
+            this.pattern = pattern;
+            this.type = type;
+            this.handler = handler;
+        }
+    }
+
+    private final Map<String, EnumMap<RequestType, RequestHandler>> literals;
+    private final List<PatternRoute> patterns;
+
+    private RouteTable(Map<String, EnumMap<RequestType, RequestHandler>> literals, List<PatternRoute> patterns) {
+        this.literals = literals;
+        this.patterns = patterns;
+    }
+
+    static class Builder {
+        private final Map<String, EnumMap<RequestType, RequestHandler>> literals = new HashMap<>();
+        private final List<PatternRoute> patterns = new ArrayList<>();
+
+        Builder add(@NotNull String regex, @NotNull RequestType type, @NotNull RequestHandler handler) {
+            if (isLiteral(regex)) {
+                /* the first registration for a path and method wins, as it did with the linear scan */
+                literals.computeIfAbsent(regex, k -> new EnumMap<>(RequestType.class)).putIfAbsent(type, handler);
+            } else {
+                try {
+                    patterns.add(new PatternRoute(Pattern.compile(regex), type, handler));
+                } catch (PatternSyntaxException pe) {
+                    throw new IllegalArgumentException("Given endpoint URI is not a valid regex string: " + regex);
+                }
+            }
+            return this;
+        }
+
+        RouteTable build() {
+            return new RouteTable(new HashMap<>(literals), new ArrayList<>(patterns));
+        }
+    }
+
+    static boolean isLiteral(String regex) {
+        for (int i = 0; i < regex.length(); i++) {
+            if (REGEX_META.indexOf(regex.charAt(i)) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the request type for an HTTP method name, or empty if no endpoint can handle it
+     */
+    static Optional<RequestType> requestType(String method) {
+        return Optional.ofNullable(METHODS.get(method));
+    }
+
+    /**
+     * Finds the handler for a request.
+     */
+    Optional<RequestHandler> find(RequestType type, String path) {
+        EnumMap<RequestType, RequestHandler> handlers = literals.get(path);
+        if (handlers != null) {
+            RequestHandler handler = handlers.get(type);
+            if (handler != null) {
+                return Optional.of(handler);
+            }
+        }
+
+        for (PatternRoute route : patterns) {
+            if (route.type == type && route.pattern.matcher(path).matches()) {
+                return Optional.of(route.handler);
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * @return the request types that some endpoint handles for the path, empty if the path is unknown
+     */
+    Set<RequestType> allowed(String path) {
+        EnumSet<RequestType> allowed = EnumSet.noneOf(RequestType.class);
+        EnumMap<RequestType, RequestHandler> handlers = literals.get(path);
+        if (handlers != null) {
+            allowed.addAll(handlers.keySet());
+        }
+
+        for (PatternRoute route : patterns) {
+            if (!allowed.contains(route.type) && route.pattern.matcher(path).matches()) {
+                allowed.add(route.type);
+            }
+        }
+        return allowed;
+    }
+}
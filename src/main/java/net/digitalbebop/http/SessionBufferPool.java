@@ -0,0 +1,156 @@
+package net.digitalbebop.http;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import org.apache.http.impl.io.HttpTransportMetricsImpl;
+import org.apache.http.impl.io.SessionInputBufferImpl;
+import org.apache.http.impl.io.SessionOutputBufferImpl;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of the session buffers that connections parse requests from and write responses
+ * into. Connections start out on small buffers, which is all that a search request or the headers
+ * of a response need, and only move their input onto a large buffer when they have a big request
+ * body to stream in. Buffers go back to the pool when the connection closes, and anything past
+ * the pool bound is left to the garbage collector.
+ */
+@Singleton
+public class SessionBufferPool {
+    public static final int SMALL_BUFFER_SIZE = 8*1024; // 8KB
+    public static final int LARGE_BUFFER_SIZE = 100*1024; // 100KB
+
+    private final HttpTransportMetricsImpl transMetricImpl = new HttpTransportMetricsImpl();
+
+    private final int maxPooled;
+
+    private final Queue<SessionInputBufferImpl> smallInputs = new ConcurrentLinkedQueue<>();
+    private final Queue<SessionInputBufferImpl> largeInputs = new ConcurrentLinkedQueue<>();
+    private final Queue<SessionOutputBufferImpl> outputs = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger smallInputsPooled = new AtomicInteger(0);
+    private final AtomicInteger largeInputsPooled = new AtomicInteger(0);
+    private final AtomicInteger outputsPooled = new AtomicInteger(0);
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter outstanding;
+
+    /**
+     * @param maxPooled the most idle buffers kept for each kind of buffer
+     */
+    @Inject
+    public SessionBufferPool(@Named("sessionBufferPoolSize") Integer maxPooled, MetricRegistry metrics) {
+        this.maxPooled = maxPooled;
+        this.hits = metrics.counter(MetricRegistry.name(SessionBufferPool.class, "hits"));
+        this.misses = metrics.counter(MetricRegistry.name(SessionBufferPool.class, "misses"));
+        this.outstanding = metrics.counter(MetricRegistry.name(SessionBufferPool.class, "outstanding"));
+    }
+
+    /**
+     * Whether a request body of the given length should be read through a large input buffer.
+     * Chunked bodies have no known length and always qualify.
+     */
+    public boolean needsLargeInput(long contentLength) {
+        return contentLength < 0 || contentLength > SMALL_BUFFER_SIZE;
+    }
+
+    public SessionInputBufferImpl acquireInput(boolean large) {
+        final SessionInputBufferImpl buffer;
+        if (large) {
+            buffer = poll(largeInputs, largeInputsPooled);
+        } else {
+            buffer = poll(smallInputs, smallInputsPooled);
+        }
+        outstanding.inc();
+
+        if (buffer != null) {
+            hits.inc();
+            return buffer;
+        }
+        misses.inc();
+        return new SessionInputBufferImpl(transMetricImpl, large ? LARGE_BUFFER_SIZE : SMALL_BUFFER_SIZE);
+    }
+
+    public SessionOutputBufferImpl acquireOutput() {
+        final SessionOutputBufferImpl buffer = poll(outputs, outputsPooled);
+        outstanding.inc();
+
+        if (buffer != null) {
+            hits.inc();
+            return buffer;
+        }
+        misses.inc();
+        return new SessionOutputBufferImpl(transMetricImpl, SMALL_BUFFER_SIZE);
+    }
+
+    /**
+     * Hands an input buffer back to the pool. Whatever was left buffered in it is discarded.
+     */
+    public void release(SessionInputBufferImpl buffer) {
+        outstanding.dec();
+        buffer.clear();
+        buffer.bind(null);
+
+        if (buffer.capacity() == LARGE_BUFFER_SIZE) {
+            offer(largeInputs, largeInputsPooled, buffer);
+        } else {
+            offer(smallInputs, smallInputsPooled, buffer);
+        }
+    }
+
+    /**
+     * Lets go of an input buffer without pooling it, for connections that failed part way through
+     * a request and might have left a partial line behind in the buffer.
+     */
+    public void discard(SessionInputBufferImpl buffer) {
+        outstanding.dec();
+    }
+
+    /**
+     * Hands an output buffer back to the pool. A buffer still holding unflushed bytes, which
+     * happens when a connection fails mid response, can't be emptied and is dropped instead.
+     */
+    public void release(SessionOutputBufferImpl buffer) {
+        outstanding.dec();
+        if (buffer.length() > 0) {
+            return;
+        }
+
+        buffer.bind(null);
+        offer(outputs, outputsPooled, buffer);
+    }
+
+    public long hits() {
+        return hits.getCount();
+    }
+
+    public long misses() {
+        return misses.getCount();
+    }
+
+    public long outstanding() {
+        return outstanding.getCount();
+    }
+
+    private static <T> T poll(Queue<T> queue, AtomicInteger pooled) {
+        T buffer = queue.poll();
+        if (buffer != null) {
+            pooled.decrementAndGet();
+        }
+        return buffer;
+    }
+
+    private <T> void offer(Queue<T> queue, AtomicInteger pooled, T buffer) {
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        queue.offer(buffer);
+    }
+}
@@ -0,0 +1,20 @@
+package net.digitalbebop.http;
+
+import co.paralleluniverse.fibers.Suspendable;
+import org.apache.http.HttpEntity;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Entity that can write itself to the connection's channel directly, bypassing the output stream
+ * the server otherwise copies response bodies through.
+ */
+public interface TransferableEntity extends HttpEntity {
+
+    /**
+     * Writes the whole entity to the given channel.
+     */
+    @Suspendable
+    void transferTo(WritableByteChannel target) throws IOException;
+}
@@ -0,0 +1,311 @@
+package net.digitalbebop.http.handlers;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.ZeroCopyByteString;
+import net.digitalbebop.ClientRequests;
+import net.digitalbebop.fibers.BlockingPool;
+import net.digitalbebop.fibers.BlockingPools;
+import net.digitalbebop.http.Response;
+import net.digitalbebop.indexer.IndexConduit;
+import net.digitalbebop.storage.Durability;
+import net.digitalbebop.storage.StorageConduit;
+import net.digitalbebop.storage.StoredObject;
+import net.digitalbebop.storage.ThumbnailPipeline;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Handles a {@link ClientRequests.BatchIndexRequest}. The requests in the batch are read off the
+ * connection one at a time and indexed in chunks, each chunk going to the index as one bulk add
+ * and to storage as one grouped write. A chunk is cut at batchIndexChunkSize requests or once it
+ * holds batchIndexChunkBytes, so a batch holds at most that plus one request of up to
+ * indexMaxRequestSize in memory at a time. The reply is a {@link ClientRequests.BatchIndexResponse}
+ * with the status of every request that was read.
+ */
+public class BatchIndexRequestHandler implements RequestHandler {
+    private static final Logger logger = LogManager.getLogger(BatchIndexRequestHandler.class);
+
+    /* The field number of the requests in a BatchIndexRequest */
+    private static final int REQUESTS_FIELD = 1;
+
+    private final IndexConduit indexConduit;
+    private final StorageConduit storageConduit;
+    private final BlockingPools pools;
+    private final ThumbnailPipeline thumbnails;
+    private final int chunkSize;
+    private final long chunkBytes;
+    private final int maxRequestSize;
+    private final Durability defaultDurability;
+
+    @Inject
+    public BatchIndexRequestHandler(IndexConduit indexConduit, StorageConduit storageConduit, BlockingPools pools,
+                                    ThumbnailPipeline thumbnails,
+                                    @Named("batchIndexChunkSize") Integer chunkSize,
+                                    @Named("batchIndexChunkBytes") Integer chunkBytes,
+                                    @Named("indexMaxRequestSize") Integer maxRequestSize,
+                                    @Named("storageDurability") String defaultDurability) {
+        this.indexConduit = indexConduit;
+        this.storageConduit = storageConduit;
+        this.pools = pools;
+        this.thumbnails = thumbnails;
+        this.chunkSize = chunkSize;
+        this.chunkBytes = chunkBytes;
+        this.maxRequestSize = maxRequestSize;
+        this.defaultDurability = Durability.valueOf(defaultDurability.toUpperCase(Locale.ROOT));
+    }
+
+    @Override
+    @Suspendable
+    public HttpResponse handlePost(HttpRequest req, InetSocketAddress address,
+                                   HashMap<String, String> params, Optional<InputStream> payload) {
+        if (!payload.isPresent()) {
+            return Response.BAD_REQUEST;
+        }
+
+        final Durability durability;
+        try {
+            durability = Payloads.durability(params, defaultDurability);
+        } catch (IllegalArgumentException e) {
+            return Response.badRequest("unknown durability: " + params.get("durability"));
+        }
+
+        long startTime = System.currentTimeMillis();
+        final InputStream is = payload.get();
+        final List<ClientRequests.BatchIndexResponse.Status> statuses = new ArrayList<>();
+        final List<ClientRequests.IndexRequest> chunk = new ArrayList<>(chunkSize);
+        final List<Integer> positions = new ArrayList<>(chunkSize);
+        long bytes = 0;
+        int position = 0;
+
+        try {
+            Optional<byte[]> next;
+            while ((next = nextRequest(is, maxRequestSize)).isPresent()) {
+                try {
+                    chunk.add(parse(next.get()));
+                    positions.add(position);
+                    bytes += next.get().length;
+                } catch (InvalidProtocolBufferException e) {
+                    statuses.add(failure(position, null, "invalid IndexRequest: " + e.getMessage()));
+                }
+                position++;
+
+                if (chunk.size() >= chunkSize || bytes >= chunkBytes) {
+                    indexChunk(chunk, positions, statuses, durability);
+                    chunk.clear();
+                    positions.clear();
+                    bytes = 0;
+                }
+            }
+        } catch (IOException e) {
+            /*
+             * Everything before this point has been handled and reported, the client has to
+             * resend whatever comes after it.
+             */
+            logger.warn("Batch index request cut short after " + position + " requests: " + e.getMessage());
+            statuses.add(failure(position, null, "batch could not be read past this request: " + e.getMessage()));
+        }
+        indexChunk(chunk, positions, statuses, durability);
+
+        statuses.sort(Comparator.comparingInt(ClientRequests.BatchIndexResponse.Status::getIndex));
+        logger.debug("Indexed batch of " + position + " requests in " +
+                (System.currentTimeMillis() - startTime) + "ms");
+        return Response.ok(ClientRequests.BatchIndexResponse.newBuilder()
+                .addAllStatuses(statuses)
+                .build()
+                .toByteArray());
+    }
+
+    @Suspendable
+    private void indexChunk(List<ClientRequests.IndexRequest> chunk, List<Integer> positions,
+                            List<ClientRequests.BatchIndexResponse.Status> statuses, Durability durability) {
+        if (chunk.isEmpty()) {
+            return;
+        }
+
+        String error = null;
+        try {
+            pools.index().call(() -> {
+                indexConduit.index(chunk);
+                return null;
+            });
+
+            List<StoredObject> objects = new ArrayList<>(chunk.size());
+            for (ClientRequests.IndexRequest request : chunk) {
+                objects.add(new StoredObject(request.getModuleName(), request.getModuleId(),
+                        request.getTimestamp(), request.getRawData().asReadOnlyByteBuffer()));
+            }
+            pools.storage().call(() -> {
+                storageConduit.putRaw(objects);
+                return null;
+            });
+            BlockingPool.await(storageConduit.commit(durability));
+        } catch (IOException | RuntimeException e) {
+            logger.error("Failed to index chunk of " + chunk.size() + " requests", e);
+            error = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+        } catch (ExecutionException e) {
+            logger.error("Failed to commit chunk of " + chunk.size() + " requests", e.getCause());
+            error = "commit failed: " + e.getCause().getMessage();
+        }
+
+        for (int i = 0; i < chunk.size(); i++) {
+            ClientRequests.IndexRequest request = chunk.get(i);
+            if (error != null) {
+                statuses.add(failure(positions.get(i), request, error));
+                continue;
+            }
+
+            storeThumbnail(request);
+            statuses.add(ClientRequests.BatchIndexResponse.Status.newBuilder()
+                    .setIndex(positions.get(i))
+                    .setModuleName(request.getModuleName())
+                    .setModuleId(request.getModuleId())
+                    .setSuccess(true)
+                    .build());
+        }
+    }
+
+    /**
+     * Thumbnails are best effort, as they are for single index requests, and aren't generated
+     * again for raw data that already has one. They are rendered in the background, behind any
+     * thumbnails of single index requests.
+     */
+    @Suspendable
+    private void storeThumbnail(ClientRequests.IndexRequest request) {
+        try {
+            if (pools.storage().call(() -> storageConduit.reuseThumbnail(request.getModuleName(),
+                    request.getModuleId(), request.getTimestamp()))) {
+                return;
+            }
+            thumbnails.submit(request.getModuleName(), request.getModuleId(), request.getTimestamp(),
+                    getFormat(request.getMetaTags()), request.getRawData(), ThumbnailPipeline.Priority.BACKFILL);
+        } catch (RuntimeException e) {
+            logger.warn("Failed to store thumbnail for " + request.getModuleName() + "-" + request.getModuleId(), e);
+        }
+    }
+
+    /**
+     * Parses with aliasing on, as single index requests are, so the raw data stays a slice of the
+     * request's bytes all the way through to storage and the thumbnail queue.
+     */
+    private static ClientRequests.IndexRequest parse(byte[] bytes) throws InvalidProtocolBufferException {
+        CodedInputStream in = ZeroCopyByteString.wrap(bytes).newCodedInput();
+        in.enableAliasing(true);
+        return ClientRequests.IndexRequest.PARSER.parseFrom(in);
+    }
+
+    private static ClientRequests.BatchIndexResponse.Status failure(int position, ClientRequests.IndexRequest request,
+                                                                    String error) {
+        ClientRequests.BatchIndexResponse.Status.Builder status = ClientRequests.BatchIndexResponse.Status.newBuilder()
+                .setIndex(position)
+                .setSuccess(false)
+                .setError(error);
+        if (request != null) {
+            status.setModuleName(request.getModuleName()).setModuleId(request.getModuleId());
+        }
+        return status.build();
+    }
+
+    /**
+     * Reads the next IndexRequest of a BatchIndexRequest off the stream, skipping over any other
+     * fields. This follows the protobuf wire format directly, rather than going through
+     * CodedInputStream, so that reading the connection can suspend the fiber.
+     * @return the serialized request, or empty at the end of the batch
+     */
+    @Suspendable
+    static Optional<byte[]> nextRequest(InputStream is, int maxRequestSize) throws IOException {
+        for (;;) {
+            int first = is.read();
+            if (first < 0) {
+                return Optional.empty();
+            }
+
+            long tag = readVarint(is, first);
+            int field = (int) (tag >>> 3);
+            int wireType = (int) (tag & 0x7);
+            switch (wireType) {
+                case 0: // varint
+                    readVarint(is, read(is));
+                    break;
+                case 1: // 64-bit
+                    readFully(is, new byte[8]);
+                    break;
+                case 2: // length delimited
+                    long length = readVarint(is, read(is));
+                    if (length < 0 || length > maxRequestSize) {
+                        throw new IOException("request of " + length + " bytes is too large");
+                    }
+                    byte[] bytes = new byte[(int) length];
+                    readFully(is, bytes);
+                    if (field == REQUESTS_FIELD) {
+                        return Optional.of(bytes);
+                    }
+                    break;
+                case 5: // 32-bit
+                    readFully(is, new byte[4]);
+                    break;
+                default:
+                    throw new IOException("unsupported wire type " + wireType);
+            }
+        }
+    }
+
+    @Suspendable
+    private static long readVarint(InputStream is, int first) throws IOException {
+        long result = 0;
+        int b = first;
+        for (int shift = 0; shift < 64; shift += 7) {
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+            b = read(is);
+        }
+        throw new IOException("malformed varint");
+    }
+
+    @Suspendable
+    private static int read(InputStream is) throws IOException {
+        int b = is.read();
+        if (b < 0) {
+            throw new EOFException("batch ended in the middle of a request");
+        }
+        return b;
+    }
+
+    @Suspendable
+    private static void readFully(InputStream is, byte[] bytes) throws IOException {
+        int off = 0;
+        while (off < bytes.length) {
+            int n = is.read(bytes, off, bytes.length - off);
+            if (n < 0) {
+                throw new EOFException("batch ended in the middle of a request");
+            }
+            off += n;
+        }
+    }
+
+    private String getFormat(String metaData) {
+        try {
+            JSONObject obj = new JSONObject(metaData);
+            return obj.getString("format");
+        } catch (JSONException e) {
+            logger.error("Could not get format from metadata: " + metaData, e);
+            return "";
+        }
+    }
+}
@@ -1,10 +1,16 @@
 package net.digitalbebop.http.handlers;
 
+import co.paralleluniverse.fibers.Suspendable;
 import com.google.inject.Inject;
+import com.google.inject.name.Named;
 import com.google.protobuf.InvalidProtocolBufferException;
 import net.digitalbebop.ClientRequests;
+import net.digitalbebop.fibers.BlockingPool;
+import net.digitalbebop.fibers.BlockingPools;
 import net.digitalbebop.http.Response;
 import net.digitalbebop.indexer.IndexConduit;
+import net.digitalbebop.indexer.IndexOverloadedException;
+import net.digitalbebop.storage.Durability;
 import net.digitalbebop.storage.StorageConduit;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
@@ -14,21 +20,41 @@ import org.apache.logging.log4j.Logger;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
 
+/**
+ * Deletes every stored version of an object and marks its document in the index as deleted. The
+ * storage only writes a tombstone here, so this returns as soon as that is as durable as asked
+ * for, and the space is reclaimed in the background.
+ */
 public class DeleteRequestHandler implements RequestHandler {
     private static final Logger logger = LogManager.getLogger(DeleteRequestHandler.class);
+    private static final int OVERLOADED_RETRY_AFTER = 1;
     private final StorageConduit storageConduit;
     private final IndexConduit indexConduit;
+    private final BlockingPools pools;
+    private final Durability defaultDurability;
 
     @Inject
-    public DeleteRequestHandler(StorageConduit dc, IndexConduit ic) {
+    public DeleteRequestHandler(StorageConduit dc, IndexConduit ic, BlockingPools pools,
+                                @Named("storageDurability") String defaultDurability) {
         storageConduit = dc;
         indexConduit = ic;
+        this.pools = pools;
+        this.defaultDurability = Durability.valueOf(defaultDurability.toUpperCase(Locale.ROOT));
     }
 
     @Override
+    @Suspendable
     public HttpResponse handlePost(HttpRequest req, InetSocketAddress address, HashMap<String, String> params, Optional<InputStream> payload) {
+        final Durability durability;
+        try {
+            durability = Payloads.durability(params, defaultDurability);
+        } catch (IllegalArgumentException e) {
+            return Response.badRequest("unknown durability: " + params.get("durability"));
+        }
         try {
             final InputStream is;
             if (payload.isPresent()) {
@@ -40,12 +66,26 @@ public class DeleteRequestHandler implements RequestHandler {
             ClientRequests.DeleteRequest deleteRequest = ClientRequests.DeleteRequest.parseFrom(is);
             logger.debug("Received Delete request from module: " + deleteRequest.getModuleName());
 
-            indexConduit.delete(deleteRequest);
-            storageConduit.delete(deleteRequest.getModuleName(), deleteRequest.getModuleId());
+            /* The stored data goes first, as it is what a get finds whatever the index says */
+            pools.storage().call(() -> {
+                storageConduit.delete(deleteRequest.getModuleName(), deleteRequest.getModuleId());
+                return null;
+            });
+            pools.index().call(() -> {
+                indexConduit.delete(deleteRequest);
+                return null;
+            });
+            BlockingPool.await(storageConduit.commit(durability));
             return Response.OK;
         } catch (InvalidProtocolBufferException pe) {
             logger.warn("Failed to parse payload in Delete handler.");
             return Response.BAD_REQUEST;
+        } catch (IndexOverloadedException e) {
+            logger.warn("Index is overloaded, rejecting delete: " + e.getMessage());
+            return Response.serviceUnavailable(OVERLOADED_RETRY_AFTER);
+        } catch (ExecutionException e) {
+            logger.error("Failed to commit delete", e.getCause());
+            return Response.SERVER_ERROR;
         } catch (Exception e) {
             logger.error("Failed to handle Delete Request: " + e.getMessage(), e);
             return Response.SERVER_ERROR;
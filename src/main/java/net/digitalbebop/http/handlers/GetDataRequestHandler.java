@@ -2,7 +2,9 @@ package net.digitalbebop.http.handlers;
 
 import com.google.inject.Inject;
 import com.google.inject.Provider;
+import co.paralleluniverse.fibers.Suspendable;
 import net.digitalbebop.auth.Authenticator;
+import net.digitalbebop.fibers.BlockingPools;
 import net.digitalbebop.http.Response;
 import net.digitalbebop.storage.StorageConduit;
 import org.apache.http.HttpRequest;
@@ -17,29 +19,40 @@ public class GetDataRequestHandler implements RequestHandler {
     private static final Logger logger = LogManager.getLogger(GetDataRequestHandler.class);
     private StorageConduit storageConduit;
     private Authenticator authenticator;
+    private BlockingPools pools;
 
     @Inject
-    public GetDataRequestHandler(StorageConduit storageConduit, Authenticator authenticator) {
+    public GetDataRequestHandler(StorageConduit storageConduit, Authenticator authenticator, BlockingPools pools) {
         this.storageConduit = storageConduit;
         this.authenticator = authenticator;
+        this.pools = pools;
     }
 
     @Override
+    @Suspendable
     public HttpResponse handleGet(HttpRequest req, InetSocketAddress address, HashMap<String, String> params) {
         if (!authenticator.isAuthorized(req, address)) {
             return Response.NO_AUTH;
         }
         try {
-            if (params.containsKey("moduleName") && params.containsKey("moduleId") &&
-                    params.containsKey("timestamp")) {
+            if (params.containsKey("moduleName") && params.containsKey("moduleId")) {
                 String moduleName = params.get("moduleName");
                 String moduleId = params.get("moduleId");
-                Long timestamp = Long.parseLong(params.get("timestamp"));
-                return storageConduit.getRaw(moduleName, moduleId, timestamp)
-                        .map(Response::ok)
-                        .orElse(Response.OK);
+                final VersionSelector version;
+                try {
+                    version = new VersionSelector(params);
+                } catch (NumberFormatException e) {
+                    return Response.badRequest("'timestamp' and 'at' must be numbers");
+                } catch (IllegalArgumentException e) {
+                    return Response.badRequest(e.getMessage());
+                }
+                return pools.storage().call(() -> version.resolve(storageConduit, moduleName, moduleId)
+                        .flatMap(timestamp -> storageConduit.openRaw(moduleName, moduleId, timestamp)
+                                .map(blob -> version.respond(req, blob, "raw", "/api/get_data",
+                                        moduleName, moduleId, timestamp))))
+                        .orElse(version.isExact() ? Response.OK : Response.NOT_FOUND);
             } else {
-                return Response.badRequest("'moduleId', 'moduleName', and 'timestamp' were not given as parameters");
+                return Response.badRequest("'moduleId' and 'moduleName' were not given as parameters");
             }
         } catch (Exception e) {
             logger.error("Error getting data from HBase:", e);
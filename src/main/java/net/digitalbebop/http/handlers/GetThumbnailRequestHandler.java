@@ -2,9 +2,15 @@ package net.digitalbebop.http.handlers;
 
 import com.google.inject.Inject;
 import com.google.inject.Provider;
+import co.paralleluniverse.fibers.Suspendable;
 import net.digitalbebop.auth.Authenticator;
+import net.digitalbebop.fibers.BlockingPool;
+import net.digitalbebop.fibers.BlockingPools;
 import net.digitalbebop.http.Response;
+import net.digitalbebop.storage.Blob;
+import net.digitalbebop.storage.HeapBlob;
 import net.digitalbebop.storage.StorageConduit;
+import net.digitalbebop.storage.ThumbnailPipeline;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.logging.log4j.LogManager;
@@ -12,39 +18,78 @@ import org.apache.logging.log4j.Logger;
 
 import java.net.InetSocketAddress;
 import java.util.HashMap;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
 
+/**
+ * Serves thumbnails. A version without one whose format is rendered lazily, see
+ * {@link ThumbnailPipeline}, gets it rendered and stored on the first request for it.
+ */
 public class GetThumbnailRequestHandler implements RequestHandler {
     private static final Logger logger = LogManager.getLogger(GetThumbnailRequestHandler.class);
     private StorageConduit storageConduit;
     private Authenticator authenticator;
+    private BlockingPools pools;
+    private ThumbnailPipeline thumbnails;
 
     @Inject
-    public GetThumbnailRequestHandler(StorageConduit storageConduit, Authenticator authenticator) {
+    public GetThumbnailRequestHandler(StorageConduit storageConduit, Authenticator authenticator, BlockingPools pools,
+                                      ThumbnailPipeline thumbnails) {
         this.storageConduit = storageConduit;
         this.authenticator = authenticator;
+        this.pools = pools;
+        this.thumbnails = thumbnails;
     }
 
     @Override
+    @Suspendable
     public HttpResponse handleGet(HttpRequest req, InetSocketAddress address, HashMap<String, String> params) {
         if (!authenticator.isAuthorized(req, address)) {
             return Response.NO_AUTH;
         }
         try {
-            if (params.containsKey("moduleName") && params.containsKey("moduleId") &&
-                    params.containsKey("timestamp")) {
+            if (params.containsKey("moduleName") && params.containsKey("moduleId")) {
                 String moduleName = params.get("moduleName");
                 String moduleId = params.get("moduleId");
-                Long timestamp = Long.parseLong(params.get("timestamp"));
-                return storageConduit.getThumbnail(moduleName, moduleId, timestamp)
-                        .map(Response::ok)
-                        .orElse(Response.OK);
+                final VersionSelector version;
+                try {
+                    version = new VersionSelector(params);
+                } catch (NumberFormatException e) {
+                    return Response.badRequest("'timestamp' and 'at' must be numbers");
+                } catch (IllegalArgumentException e) {
+                    return Response.badRequest(e.getMessage());
+                }
+                Optional<Long> resolved = pools.storage().call(() ->
+                        version.resolve(storageConduit, moduleName, moduleId));
+                if (!resolved.isPresent()) {
+                    return version.isExact() ? Response.OK : Response.NOT_FOUND;
+                }
+                long timestamp = resolved.get();
+                Optional<Blob> thumbnail = pools.storage().call(() ->
+                        storageConduit.openThumbnail(moduleName, moduleId, timestamp));
+                if (!thumbnail.isPresent()) {
+                    thumbnail = renderLazily(moduleName, moduleId, timestamp);
+                }
+                return thumbnail.map(blob -> version.respond(req, blob, "thumbnail", "/api/get_thumbnail",
+                        moduleName, moduleId, timestamp))
+                        .orElse(version.isExact() ? Response.OK : Response.NOT_FOUND);
             } else {
-                return Response.badRequest(
-                        "'moduleId', 'moduleName', and 'timestamp' were not given as parameters");
+                return Response.badRequest("'moduleId' and 'moduleName' were not given as parameters");
             }
         } catch (Exception e) {
             logger.error("Error getting data from HBase:", e);
             return Response.SERVER_ERROR;
         }
     }
+
+    @Suspendable
+    private Optional<Blob> renderLazily(String moduleName, String moduleId, long timestamp) {
+        try {
+            return BlockingPool.await(pools.storage().call(() ->
+                    thumbnails.renderStored(moduleName, moduleId, timestamp))).map(HeapBlob::new);
+        } catch (ExecutionException e) {
+            logger.warn("Could not render thumbnail for " + moduleName + "-" + moduleId + ": " + e.getCause());
+            return Optional.empty();
+        }
+    }
 }
@@ -8,7 +8,9 @@ public class HandlersModule extends AbstractModule {
         bind(DeleteRequestHandler.class);
         bind(GetDataRequestHandler.class);
         bind(IndexRequestHandler.class);
+        bind(BatchIndexRequestHandler.class);
         bind(SearchRequestHandler.class);
         bind(GetThumbnailRequestHandler.class);
+        bind(VersionsRequestHandler.class);
     }
 }
@@ -1,15 +1,21 @@
 package net.digitalbebop.http.handlers;
 
-import co.paralleluniverse.fibers.Fiber;
 import co.paralleluniverse.fibers.Suspendable;
 import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.ZeroCopyByteString;
 import net.digitalbebop.ClientRequests;
+import net.digitalbebop.fibers.BlockingPool;
+import net.digitalbebop.fibers.BlockingPools;
 import net.digitalbebop.http.Response;
 import net.digitalbebop.indexer.IndexConduit;
+import net.digitalbebop.indexer.IndexOverloadedException;
+import net.digitalbebop.storage.Durability;
 import net.digitalbebop.storage.StorageConduit;
-import net.digitalbebop.storage.Thumbnails;
-import org.apache.commons.io.IOUtils;
+import net.digitalbebop.storage.ThumbnailPipeline;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.logging.log4j.LogManager;
@@ -17,25 +23,37 @@ import org.apache.logging.log4j.Logger;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Optional;
 import java.util.concurrent.ExecutionException;
 
 public class IndexRequestHandler implements RequestHandler {
     private static final Logger logger = LogManager.getLogger(IndexRequestHandler.class);
+    private static final int OVERLOADED_RETRY_AFTER = 1;
 
     private final IndexConduit indexConduit;
     private final StorageConduit storageConduit;
+    private final BlockingPools pools;
+    private final ThumbnailPipeline thumbnails;
+    private final int maxRequestSize;
+    private final Durability defaultDurability;
 
     @Inject
-    public IndexRequestHandler(IndexConduit indexConduit, StorageConduit storageConduit) {
+    public IndexRequestHandler(IndexConduit indexConduit, StorageConduit storageConduit, BlockingPools pools,
+                               ThumbnailPipeline thumbnails,
+                               @Named("indexMaxRequestSize") Integer maxRequestSize,
+                               @Named("storageDurability") String defaultDurability) {
         logger.info("Initializing IndexRequestHandler, conduit: " + indexConduit);
         this.indexConduit = indexConduit;
         this.storageConduit = storageConduit;
+        this.pools = pools;
+        this.thumbnails = thumbnails;
+        this.maxRequestSize = maxRequestSize;
+        this.defaultDurability = Durability.valueOf(defaultDurability.toUpperCase(Locale.ROOT));
     }
 
     @Override
@@ -43,6 +61,12 @@ public class IndexRequestHandler implements RequestHandler {
     public HttpResponse handlePost(HttpRequest req, InetSocketAddress address,
                                    HashMap<String, String> params, Optional<InputStream> payload) {
         long startTime = System.currentTimeMillis();
+        final Durability durability;
+        try {
+            durability = Payloads.durability(params, defaultDurability);
+        } catch (IllegalArgumentException e) {
+            return Response.badRequest("unknown durability: " + params.get("durability"));
+        }
         try {
             final InputStream is;
             if (payload.isPresent()) {
@@ -51,44 +75,53 @@ public class IndexRequestHandler implements RequestHandler {
                 return Response.BAD_REQUEST;
             }
 
-            Fiber<ClientRequests.IndexRequest> requestFiber = new Fiber<>(() -> {
-                try {
-                    return ClientRequests.IndexRequest.parseFrom(IOUtils.toByteArray(is));
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-            }).start();
+            /*
+             * The body is parsed out of a single array with aliasing on, so the raw data stays a
+             * slice of that array all the way through to storage and the thumbnail queue.
+             */
+            final byte[] body = Payloads.read(is, Payloads.contentLength(req), maxRequestSize);
+            final CodedInputStream in = ZeroCopyByteString.wrap(body).newCodedInput();
+            in.enableAliasing(true);
+            final ClientRequests.IndexRequest indexRequest = ClientRequests.IndexRequest.parseFrom(in);
+            logger.debug("Received Index request from: " + indexRequest.getModuleName());
 
+            pools.index().call(() -> {
+                indexConduit.index(indexRequest);
+                return null;
+            });
 
-            ClientRequests.IndexRequest indexRequest = requestFiber.get();
-            logger.debug("Received Index request from: " + indexRequest.getModuleName());
+            final ByteString rawData = indexRequest.getRawData();
+            boolean hasThumbnail = pools.storage().call(() -> {
+                storageConduit.putRaw(indexRequest.getModuleName(), indexRequest.getModuleId(),
+                        indexRequest.getTimestamp(), rawData.asReadOnlyByteBuffer());
+                return storageConduit.reuseThumbnail(indexRequest.getModuleName(), indexRequest.getModuleId(),
+                        indexRequest.getTimestamp());
+            });
 
-            indexConduit.index(indexRequest);
+            if (!hasThumbnail) {
+                /* Rendered in the background, the request only waits for the raw data to be durable */
+                thumbnails.submit(indexRequest.getModuleName(), indexRequest.getModuleId(), indexRequest.getTimestamp(),
+                        getFormat(indexRequest.getMetaTags()), rawData, ThumbnailPipeline.Priority.FRESH);
+            }
 
-            byte[] rawPayload = indexRequest.getRawData().toByteArray();
-            storageConduit.putRaw(indexRequest.getModuleName(), indexRequest.getModuleId(),
-                    indexRequest.getTimestamp(), rawPayload);
-            
-            long startThumbnail = System.currentTimeMillis();
-            Thumbnails.convert(getFormat(indexRequest.getMetaTags()), rawPayload).ifPresent(thumbnail ->
-                    storageConduit.putThumbnail(indexRequest.getModuleName(), indexRequest.getModuleId(),
-                                indexRequest.getTimestamp(), thumbnail));
-            long endThumbnail = System.currentTimeMillis();
-            logger.debug("Thumbnail time: " + (endThumbnail - startThumbnail) + "ms");
+            BlockingPool.await(storageConduit.commit(durability));
             logger.debug("finished indexing");
             return Response.OK;
         } catch (InvalidProtocolBufferException pe) {
             logger.warn("Failed to parse payload in Index handler.", pe);
             return Response.BAD_REQUEST;
+        } catch (Payloads.TooLargeException e) {
+            logger.warn("Rejected index request: " + e.getMessage());
+            return Response.REQUEST_TOO_LARGE;
+        } catch (IndexOverloadedException e) {
+            logger.warn("Rejected index request: " + e.getMessage());
+            return Response.serviceUnavailable(OVERLOADED_RETRY_AFTER);
         } catch (IOException e) {
             logger.error("IO exception when inserting data", e);
             return Response.SERVER_ERROR;
-        } catch (InterruptedException e) {
-            logger.error("Interrrupted: " + e.getLocalizedMessage(), e);
-            return Response.SERVER_ERROR;
         } catch (ExecutionException e) {
-            logger.error("Failed to index: " + e.getLocalizedMessage(), e);
-            return Response.BAD_REQUEST; // XXX: Best choice for this?
+            logger.error("Failed to commit stored data", e.getCause());
+            return Response.SERVER_ERROR;
         } finally {
             long endTime = System.currentTimeMillis();
             logger.debug("Time to process index: " + (endTime - startTime) + "ms");
@@ -0,0 +1,106 @@
+package net.digitalbebop.http.handlers;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.digitalbebop.storage.Durability;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Helpers for reading request bodies off the connection, and the parameters that go along with
+ * them. The reads suspend rather than block when the handler runs on a fiber.
+ */
+final class Payloads {
+    private static final int INITIAL_BUFFER_SIZE = 64*1024;
+
+    private Payloads() {}
+
+    /**
+     * Thrown when a request body is larger than the handler accepts.
+     */
+    static class TooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        TooLargeException(long limit) {
+            super("request body is larger than " + limit + " bytes");
+        }
+    }
+
+    /**
+     * @return the length of the request body, or -1 if the client didn't say
+     */
+    static long contentLength(HttpRequest req) {
+        Header header = req.getFirstHeader(HttpHeaders.CONTENT_LENGTH);
+        if (header == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(header.getValue().trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the durability asked for in the "durability" parameter, or the fallback if none was
+     * @throws IllegalArgumentException when the parameter doesn't name a {@link Durability}
+     */
+    static Durability durability(Map<String, String> params, Durability fallback) {
+        String value = params.get("durability");
+        return value == null ? fallback : Durability.valueOf(value.toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * Reads the whole request body. A body with a known length is read straight into an array of
+     * exactly that size, others into an array that grows as needed and is trimmed at the end.
+     * @param contentLength the length of the body, or -1 if unknown
+     * @param limit the largest body accepted
+     */
+    @Suspendable
+    static byte[] read(InputStream is, long contentLength, int limit) throws IOException {
+        if (contentLength > limit) {
+            throw new TooLargeException(limit);
+        }
+
+        if (contentLength >= 0) {
+            byte[] body = new byte[(int) contentLength];
+            int off = 0;
+            while (off < body.length) {
+                int n = is.read(body, off, body.length - off);
+                if (n < 0) {
+                    throw new EOFException("request body ended after " + off + " bytes");
+                }
+                off += n;
+            }
+            return body;
+        }
+
+        byte[] body = new byte[INITIAL_BUFFER_SIZE];
+        int length = 0;
+        for (;;) {
+            if (length == body.length) {
+                if (length >= limit) {
+                    /* full at the limit, the body is only acceptable if it ends right here */
+                    if (is.read() < 0) {
+                        break;
+                    }
+                    throw new TooLargeException(limit);
+                }
+                body = Arrays.copyOf(body, (int) Math.min((long) length * 2, limit));
+            }
+            int n = is.read(body, length, body.length - length);
+            if (n < 0) {
+                break;
+            }
+            length += n;
+        }
+        return length == body.length ? body : Arrays.copyOf(body, length);
+    }
+}
@@ -1,5 +1,6 @@
 package net.digitalbebop.http.handlers;
 
+import co.paralleluniverse.fibers.Suspendable;
 import net.digitalbebop.http.Response;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
@@ -10,21 +11,26 @@ import java.util.HashMap;
 import java.util.Optional;
 
 /**
- * Interface to the different supported HTTP methods
+ * Interface to the different supported HTTP methods. Handlers may run on the connection's fiber,
+ * see {@link net.digitalbebop.fibers.BlockingPools} for where their blocking calls go.
  */
 public interface RequestHandler {
+    @Suspendable
     default HttpResponse handleGet(HttpRequest req, InetSocketAddress address, HashMap<String, String> params) {
         return Response.NOT_FOUND;
     }
 
+    @Suspendable
     default HttpResponse handlePost(HttpRequest req, InetSocketAddress address, HashMap<String, String> params, Optional<InputStream> payload) {
         return Response.NOT_FOUND;
     }
 
+    @Suspendable
     default HttpResponse handleDelete(HttpRequest req, InetSocketAddress address, HashMap<String, String> params) {
         return Response.NOT_FOUND;
     }
 
+    @Suspendable
     default HttpResponse handlePut(HttpRequest req, InetSocketAddress address, HashMap<String, String> params) {
         return Response.NOT_FOUND;
     }
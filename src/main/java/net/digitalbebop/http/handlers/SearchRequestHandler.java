@@ -2,7 +2,9 @@ package net.digitalbebop.http.handlers;
 
 import com.google.inject.Inject;
 import com.google.inject.Provider;
+import co.paralleluniverse.fibers.Suspendable;
 import net.digitalbebop.auth.Authenticator;
+import net.digitalbebop.fibers.BlockingPools;
 import net.digitalbebop.http.Response;
 import net.digitalbebop.indexer.IndexConduit;
 import org.apache.commons.lang.StringUtils;
@@ -21,13 +23,17 @@ public class SearchRequestHandler implements RequestHandler {
     private static final Logger logger = LogManager.getLogger(SearchRequestHandler.class);
     private final IndexConduit indexConduit;
     private final Authenticator authenticator;
+    private final BlockingPools pools;
 
     @Inject
-    public SearchRequestHandler(Provider<IndexConduit> indexProvider, Authenticator authenticator) {
+    public SearchRequestHandler(Provider<IndexConduit> indexProvider, Authenticator authenticator,
+                                BlockingPools pools) {
         this.indexConduit = indexProvider.get();
         this.authenticator = authenticator;
+        this.pools = pools;
     }
 
+    @Suspendable
     public HttpResponse handleGet(HttpRequest req, InetSocketAddress address, HashMap<String, String> params) {
         if (!authenticator.isAuthorized(req, address)) {
             return Response.NO_AUTH;
@@ -67,7 +73,8 @@ public class SearchRequestHandler implements RequestHandler {
         final int fOffset = offset;
         final int fLimit = limit;
         logger.debug("search query: " + search);
-        return indexConduit.search(search, offset, limit).map(result -> {
+        final String fSearch = search;
+        return pools.index().call(() -> indexConduit.search(fSearch, fOffset, fLimit)).map(result -> {
             JSONObject jsonResponse = new JSONObject();
             jsonResponse.put("start", fOffset);
             jsonResponse.put("limit", fLimit);
@@ -0,0 +1,78 @@
+package net.digitalbebop.http.handlers;
+
+import net.digitalbebop.http.BlobResponses;
+import net.digitalbebop.storage.Blob;
+import net.digitalbebop.storage.StorageConduit;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Works out which version of an object a GET of its data or thumbnail is for. A "timestamp"
+ * parameter names the version exactly, "at" asks for the newest version at or before that time,
+ * and with neither the latest version is sent. Only exact requests can be cached for good.
+ */
+final class VersionSelector {
+    private final Optional<Long> timestamp;
+    private final Optional<Long> at;
+
+    /**
+     * @throws NumberFormatException if either parameter isn't a number
+     * @throws IllegalArgumentException if both parameters are given
+     */
+    VersionSelector(Map<String, String> params) {
+        if (params.containsKey("timestamp") && params.containsKey("at")) {
+            throw new IllegalArgumentException("'timestamp' and 'at' can't be given together");
+        }
+        this.timestamp = Optional.ofNullable(params.get("timestamp")).map(Long::parseLong);
+        this.at = Optional.ofNullable(params.get("at")).map(Long::parseLong);
+    }
+
+    boolean isExact() {
+        return timestamp.isPresent();
+    }
+
+    /**
+     * @return the timestamp of the version asked for, if the object has such a version. Exact
+     * requests are taken as they are, without looking the version up.
+     */
+    Optional<Long> resolve(StorageConduit storage, String moduleName, String moduleId) {
+        if (timestamp.isPresent()) {
+            return timestamp;
+        }
+        if (at.isPresent()) {
+            return storage.versionAtOrBefore(moduleName, moduleId, at.get());
+        }
+        return storage.latestVersion(moduleName, moduleId);
+    }
+
+    /**
+     * Responds with the version that the request resolved to.
+     * @param kind which object of the version, as for {@link BlobResponses#etag}
+     * @param endpoint path of the endpoint that was asked
+     */
+    HttpResponse respond(HttpRequest req, Blob blob, String kind, String endpoint,
+                         String moduleName, String moduleId, long timestamp) {
+        String etag = BlobResponses.etag(kind, moduleName, moduleId, timestamp);
+        if (isExact()) {
+            return BlobResponses.respond(req, blob, etag);
+        }
+        return BlobResponses.respondResolved(req, blob, etag, location(endpoint, moduleName, moduleId, timestamp));
+    }
+
+    /**
+     * @return the path that asks for exactly the given version at the endpoint
+     */
+    static String location(String endpoint, String moduleName, String moduleId, long timestamp) {
+        try {
+            return endpoint + "?moduleName=" + URLEncoder.encode(moduleName, "UTF-8") +
+                    "&moduleId=" + URLEncoder.encode(moduleId, "UTF-8") + "&timestamp=" + timestamp;
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("JVM has no UTF-8", e);
+        }
+    }
+}
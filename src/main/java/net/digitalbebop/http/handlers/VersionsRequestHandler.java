@@ -0,0 +1,81 @@
+package net.digitalbebop.http.handlers;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.inject.Inject;
+import net.digitalbebop.auth.Authenticator;
+import net.digitalbebop.fibers.BlockingPools;
+import net.digitalbebop.http.Response;
+import net.digitalbebop.storage.StorageConduit;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Lists the stored versions of an object, newest first, straight from storage. A page holds at
+ * most "limit" versions, and when there are more the response has a "next" timestamp to pass as
+ * "before" for the next page.
+ */
+public class VersionsRequestHandler implements RequestHandler {
+    private static final Logger logger = LogManager.getLogger(VersionsRequestHandler.class);
+    private static final int DEFAULT_LIMIT = 100;
+    private static final int MAX_LIMIT = 1000;
+
+    private final StorageConduit storageConduit;
+    private final Authenticator authenticator;
+    private final BlockingPools pools;
+
+    @Inject
+    public VersionsRequestHandler(StorageConduit storageConduit, Authenticator authenticator, BlockingPools pools) {
+        this.storageConduit = storageConduit;
+        this.authenticator = authenticator;
+        this.pools = pools;
+    }
+
+    @Override
+    @Suspendable
+    public HttpResponse handleGet(HttpRequest req, InetSocketAddress address, HashMap<String, String> params) {
+        if (!authenticator.isAuthorized(req, address)) {
+            return Response.NO_AUTH;
+        }
+        if (!params.containsKey("moduleName") || !params.containsKey("moduleId")) {
+            return Response.badRequest("'moduleId' and 'moduleName' were not given as parameters");
+        }
+        String moduleName = params.get("moduleName");
+        String moduleId = params.get("moduleId");
+        final long before;
+        final int limit;
+        try {
+            before = params.containsKey("before") ? Long.parseLong(params.get("before")) : Long.MAX_VALUE;
+            limit = params.containsKey("limit") ? Integer.parseInt(params.get("limit")) : DEFAULT_LIMIT;
+        } catch (NumberFormatException e) {
+            return Response.badRequest("'before' and 'limit' must be numbers");
+        }
+        if (limit <= 0 || limit > MAX_LIMIT) {
+            return Response.badRequest("limit must be between 1 and " + MAX_LIMIT);
+        }
+
+        try {
+            /* One extra to find out whether there is another page */
+            List<Long> versions = pools.storage().call(() ->
+                    storageConduit.versions(moduleName, moduleId, before, limit + 1));
+            JSONObject json = new JSONObject();
+            json.put("moduleName", moduleName);
+            json.put("moduleId", moduleId);
+            json.put("versions", versions.subList(0, Math.min(limit, versions.size())));
+            if (versions.size() > limit) {
+                json.put("next", versions.get(limit - 1));
+            }
+            return Response.ok(json.toString(2).getBytes(StandardCharsets.UTF_8));
+        } catch (RuntimeException e) {
+            logger.error("Failed to list versions of " + moduleName + "-" + moduleId, e);
+            return Response.SERVER_ERROR;
+        }
+    }
+}
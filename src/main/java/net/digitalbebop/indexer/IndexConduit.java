@@ -13,6 +13,17 @@ public interface IndexConduit {
      */
     void index(ClientRequests.IndexRequest indexRequest) throws IOException;
 
+    /**
+     * Indexes many requests at once. Unlike {@link #index(ClientRequests.IndexRequest)} a failure
+     * is always thrown, so the caller knows which requests need to be retried.
+     * @param indexRequests the Protocol Buffer request messages
+     */
+    default void index(List<ClientRequests.IndexRequest> indexRequests) throws IOException {
+        for (ClientRequests.IndexRequest indexRequest : indexRequests) {
+            index(indexRequest);
+        }
+    }
+
     /**
      * Handler for a delete request
      * @param deleteRequest Delete request protobuf message
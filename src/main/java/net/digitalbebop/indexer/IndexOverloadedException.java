@@ -0,0 +1,15 @@
+package net.digitalbebop.indexer;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the index can't take on any more documents right now, the caller should back off
+ * and retry later rather than treat it as a failure of the request itself.
+ */
+public class IndexOverloadedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public IndexOverloadedException(String message) {
+        super(message);
+    }
+}
@@ -2,17 +2,20 @@ package net.digitalbebop.indexer;
 
 import com.google.inject.Inject;
 import com.google.inject.Provider;
+import com.google.inject.name.Named;
 
 public class IndexProvider implements Provider<IndexConduit> {
 
     @Inject SolrConduit solrConduit;
+    @Inject Provider<SpoolingIndexConduit> spoolingConduit;
+    @Inject @Named("indexSpoolEnabled") Boolean spoolEnabled;
 
     @Override
     public IndexConduit get() {
         return new ThreadLocal<IndexConduit>() {
             @Override
             public IndexConduit initialValue() {
-                return solrConduit;
+                return spoolEnabled ? spoolingConduit.get() : solrConduit;
             }
         }.get();
     }
@@ -0,0 +1,15 @@
+package net.digitalbebop.indexer;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the index refused the request itself, for example because a document doesn't fit
+ * the schema. Unlike {@link IndexOverloadedException}, sending the same request again won't help.
+ */
+public class IndexRejectedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public IndexRejectedException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,418 @@
+package net.digitalbebop.indexer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead spool, kept as a directory of segment files. Every segment is named
+ * after the spool offset of its first byte, so an offset alone tells which segment a record is
+ * in and where. Records are framed as [length][crc32][append time][payload], which lets recovery
+ * find a record that was only half written when the process died and cut it off.
+ *
+ * Appends only become durable through {@link #sync(long)}, which fsyncs on behalf of every
+ * append that is waiting on it at the time. Records are read back from the checkpoint, the
+ * offset up to which everything has been delivered, and segments are deleted once the
+ * checkpoint moves past them.
+ */
+class IndexSpool implements Closeable {
+    private static final Logger logger = LogManager.getLogger(IndexSpool.class);
+
+    static final int HEADER_SIZE = 16;
+    private static final String SEGMENT_SUFFIX = ".spool";
+    private static final String CHECKPOINT = "checkpoint";
+
+    static final class Record {
+        final long appendedMillis;
+        final byte[] payload;
+
+        Record(long appendedMillis, byte[] payload) {
+            this.appendedMillis = appendedMillis;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * Records read from the spool, along with the offset just past the last of them.
+     */
+    static final class Batch {
+        final List<Record> records;
+        final long end;
+
+        Batch(List<Record> records, long end) {
+            this.records = records;
+            this.end = end;
+        }
+    }
+
+    private final File dir;
+    private final long segmentSize;
+
+    private final Object writeLock = new Object();
+    private final Object syncLock = new Object();
+    private final Object syncSignal = new Object();
+
+    private final TreeMap<Long, File> segments = new TreeMap<>(); // guarded by writeLock
+    private FileChannel active; // guarded by writeLock
+    private long activeBase; // guarded by writeLock
+    private long written; // guarded by writeLock
+
+    private final AtomicLong synced = new AtomicLong();
+    private volatile long checkpoint;
+    private volatile long headAppendedMillis;
+
+    /**
+     * Opens the spool, recovering whatever was in the directory. Anything after the first
+     * damaged record of a segment is dropped.
+     * @param segmentSize the size at which the spool moves on to a new segment
+     */
+    IndexSpool(File dir, long segmentSize) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create spool directory: " + dir);
+        }
+
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                segments.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), file);
+            }
+        }
+        for (Map.Entry<Long, File> segment : segments.entrySet()) {
+            recover(segment.getValue());
+        }
+
+        long checkpoint = readCheckpoint();
+        if (segments.isEmpty()) {
+            segments.put(checkpoint, segmentFile(checkpoint));
+        }
+        Map.Entry<Long, File> last = segments.lastEntry();
+        this.activeBase = last.getKey();
+        this.active = FileChannel.open(last.getValue().toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.active.position(active.size());
+        this.written = activeBase + active.size();
+        this.synced.set(written);
+
+        /* A checkpoint can't point outside of the segments that are still around */
+        this.checkpoint = Math.min(Math.max(checkpoint, segments.firstKey()), written);
+        deleteDelivered();
+    }
+
+    /**
+     * Appends the record, without waiting for it to reach the disk.
+     * @return the offset just past the record, to pass to {@link #sync(long)}
+     */
+    long append(byte[] payload) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        record.putInt(payload.length);
+        record.putInt(0);
+        record.putLong(System.currentTimeMillis());
+        record.put(payload);
+        record.putInt(4, crc(record.array(), 8, record.capacity() - 8));
+        record.flip();
+
+        synchronized (writeLock) {
+            if (written > activeBase && written - activeBase + record.remaining() > segmentSize) {
+                roll();
+            }
+            try {
+                while (record.hasRemaining()) {
+                    active.write(record);
+                }
+            } catch (IOException e) {
+                /* Cut off the partial record so the next append still starts at a record boundary */
+                try {
+                    active.truncate(written - activeBase);
+                    active.position(written - activeBase);
+                } catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+                throw e;
+            }
+            written += record.capacity();
+            return written;
+        }
+    }
+
+    /**
+     * Waits until everything up to the offset is on disk. Callers that pile up behind an fsync
+     * that is already running are all covered by the next one.
+     */
+    void sync(long offset) throws IOException {
+        if (synced.get() >= offset) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (synced.get() >= offset) {
+                return;
+            }
+            final FileChannel channel;
+            final long end;
+            synchronized (writeLock) {
+                channel = active;
+                end = written;
+            }
+            try {
+                channel.force(false);
+            } catch (ClosedChannelException e) {
+                synchronized (writeLock) {
+                    if (channel == active) {
+                        throw e;
+                    }
+                }
+                /* The spool moved on to a new segment, which forced this one before closing it */
+            }
+            advanceSynced(end);
+        }
+    }
+
+    /**
+     * Reads up to the given number of durable records from the checkpoint on.
+     */
+    Batch read(int maxRecords) throws IOException {
+        final List<Record> records = new ArrayList<>();
+        final long limit = synced.get();
+        long offset = checkpoint;
+
+        while (records.size() < maxRecords && offset < limit) {
+            final long base;
+            final File file;
+            final Long next;
+            synchronized (writeLock) {
+                Map.Entry<Long, File> segment = segments.floorEntry(offset);
+                base = segment.getKey();
+                file = segment.getValue();
+                next = segments.higherKey(base);
+            }
+
+            long end = limit;
+            try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long fileEnd = base + in.size();
+                end = Math.min(end, fileEnd);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                while (records.size() < maxRecords && offset + HEADER_SIZE <= end) {
+                    header.clear();
+                    readFully(in, header, offset - base);
+                    int length = header.getInt(0);
+                    if (length < 0 || offset + HEADER_SIZE + length > end) {
+                        throw new IOException("Damaged spool record at offset " + offset + " in " + file);
+                    }
+                    ByteBuffer record = ByteBuffer.allocate(8 + length);
+                    readFully(in, record, offset - base + 8);
+                    if (crc(record.array(), 0, record.capacity()) != header.getInt(4)) {
+                        throw new IOException("Checksum mismatch at offset " + offset + " in " + file);
+                    }
+                    byte[] payload = new byte[length];
+                    System.arraycopy(record.array(), 8, payload, 0, length);
+                    records.add(new Record(record.getLong(0), payload));
+                    offset += HEADER_SIZE + length;
+                }
+                if (offset < fileEnd || next == null) {
+                    break;
+                }
+            }
+            offset = next;
+        }
+
+        if (!records.isEmpty()) {
+            headAppendedMillis = records.get(0).appendedMillis;
+        }
+        return new Batch(records, offset);
+    }
+
+    /**
+     * Waits up to the timeout for records past the checkpoint to become durable.
+     */
+    void awaitRecords(long timeoutMillis) throws InterruptedException {
+        synchronized (syncSignal) {
+            if (synced.get() <= checkpoint) {
+                syncSignal.wait(timeoutMillis);
+            }
+        }
+    }
+
+    /**
+     * Marks everything before the offset as delivered and deletes the segments that are now
+     * entirely behind the checkpoint.
+     */
+    void commit(long offset) throws IOException {
+        File tmp = new File(dir, CHECKPOINT + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.allocate(8);
+            buf.putLong(0, offset);
+            while (buf.hasRemaining()) {
+                out.write(buf);
+            }
+            out.force(true);
+        }
+        Files.move(tmp.toPath(), new File(dir, CHECKPOINT).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        checkpoint = offset;
+        deleteDelivered();
+    }
+
+    /**
+     * Number of bytes appended that haven't been delivered yet.
+     */
+    long pendingBytes() {
+        synchronized (writeLock) {
+            return written - checkpoint;
+        }
+    }
+
+    /**
+     * How long the oldest undelivered record has been waiting, in milliseconds.
+     */
+    long lagMillis() {
+        long head = headAppendedMillis;
+        if (head == 0 || synced.get() <= checkpoint) {
+            return 0;
+        }
+        return Math.max(0, System.currentTimeMillis() - head);
+    }
+
+    long checkpoint() {
+        return checkpoint;
+    }
+
+    int segmentCount() {
+        synchronized (writeLock) {
+            return segments.size();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (writeLock) {
+            if (active.isOpen()) {
+                active.force(false);
+                active.close();
+            }
+        }
+    }
+
+    private void roll() throws IOException {
+        active.force(false);
+        active.close();
+        advanceSynced(written);
+
+        File file = segmentFile(written);
+        active = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        activeBase = written;
+        segments.put(activeBase, file);
+        syncDirectory();
+    }
+
+    private void advanceSynced(long offset) {
+        if (synced.accumulateAndGet(offset, Math::max) == offset) {
+            synchronized (syncSignal) {
+                syncSignal.notifyAll();
+            }
+        }
+    }
+
+    private void deleteDelivered() {
+        synchronized (writeLock) {
+            Iterator<Map.Entry<Long, File>> it = segments.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Long, File> segment = it.next();
+                Long next = segments.higherKey(segment.getKey());
+                if (next == null || next > checkpoint) {
+                    return;
+                }
+                if (!segment.getValue().delete()) {
+                    logger.warn("Could not delete delivered spool segment: " + segment.getValue());
+                }
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Truncates the segment after its last intact record.
+     */
+    private static void recover(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            long valid = 0;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (valid + HEADER_SIZE <= size) {
+                header.clear();
+                readFully(channel, header, valid);
+                int length = header.getInt(0);
+                if (length < 0 || valid + HEADER_SIZE + length > size) {
+                    break;
+                }
+                ByteBuffer record = ByteBuffer.allocate(8 + length);
+                readFully(channel, record, valid + 8);
+                if (crc(record.array(), 0, record.capacity()) != header.getInt(4)) {
+                    break;
+                }
+                valid += HEADER_SIZE + length;
+            }
+            if (valid < size) {
+                logger.warn("Dropping " + (size - valid) + " damaged bytes at the end of spool segment " + file);
+                channel.truncate(valid);
+                channel.force(true);
+            }
+        }
+    }
+
+    private long readCheckpoint() throws IOException {
+        File file = new File(dir, CHECKPOINT);
+        if (!file.exists()) {
+            return segments.isEmpty() ? 0 : segments.firstKey();
+        }
+        return ByteBuffer.wrap(Files.readAllBytes(file.toPath())).getLong();
+    }
+
+    private File segmentFile(long base) {
+        return new File(dir, String.format("%020d", base) + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Makes a newly created segment's directory entry durable.
+     */
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            logger.debug("Could not fsync spool directory " + dir, e);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position + buf.position());
+            if (n < 0) {
+                throw new IOException("Unexpected end of spool segment");
+            }
+        }
+        buf.flip();
+    }
+
+    private static int crc(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+}
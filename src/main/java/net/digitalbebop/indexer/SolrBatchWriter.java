@@ -0,0 +1,199 @@
+package net.digitalbebop.indexer;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.common.SolrInputDocument;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces documents into bulk adds against Solr. Documents wait in a bounded queue and a fixed
+ * number of writer threads, each holding its own connection, pull them off in batches. A batch is
+ * sent once it is full or once its oldest document has waited out the maximum batch age,
+ * whichever comes first. When Solr falls behind the queue fills up and {@link #submit} pushes
+ * back on the caller.
+ */
+class SolrBatchWriter {
+    private static final Logger logger = LogManager.getLogger(SolrBatchWriter.class);
+    private static final long IDLE_POLL_MILLIS = 100;
+
+    private static final class Pending {
+        final SolrInputDocument doc;
+        final SettableFuture<Void> done = SettableFuture.create();
+        final long enqueuedNanos = System.nanoTime();
+
+        Pending(SolrInputDocument doc) {
+            this.doc = doc;
+        }
+    }
+
+    private final SolrClient client;
+    private final int flushTime;
+    private final int batchSize;
+    private final long maxBatchAgeNanos;
+    private final BlockingQueue<Pending> queue;
+    private final List<Thread> writers;
+    private volatile boolean running = true;
+
+    private final Histogram batchSizes;
+    private final Timer latency;
+    private final Meter rejected;
+
+    /**
+     * @param capacity the most documents that can be waiting to be sent
+     * @param batchSize the most documents sent in one update request
+     * @param maxBatchAgeMillis how long a document waits for its batch to fill up
+     * @param writerThreads the number of update requests in flight at once
+     */
+    SolrBatchWriter(SolrClient client, int flushTime, int capacity, int batchSize, long maxBatchAgeMillis,
+                    int writerThreads, MetricRegistry metrics) {
+        this.client = client;
+        this.flushTime = flushTime;
+        this.batchSize = batchSize;
+        this.maxBatchAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxBatchAgeMillis);
+        /* Fair, so callers waiting on a full queue get in in turn instead of some starving */
+        this.queue = new ArrayBlockingQueue<>(capacity, true);
+
+        String queueDepth = MetricRegistry.name(SolrBatchWriter.class, "queue-depth");
+        metrics.remove(queueDepth);
+        metrics.register(queueDepth, (Gauge<Integer>) queue::size);
+        this.batchSizes = metrics.histogram(MetricRegistry.name(SolrBatchWriter.class, "batch-size"));
+        this.latency = metrics.timer(MetricRegistry.name(SolrBatchWriter.class, "solr-latency"));
+        this.rejected = metrics.meter(MetricRegistry.name(SolrBatchWriter.class, "rejected"));
+
+        ThreadFactory factory = new ThreadFactoryBuilder()
+                .setNameFormat("solr-writer-%d")
+                .setDaemon(true)
+                .build();
+        this.writers = new ArrayList<>(writerThreads);
+        for (int i = 0; i < writerThreads; i++) {
+            Thread writer = factory.newThread(this::run);
+            writers.add(writer);
+            writer.start();
+        }
+    }
+
+    /**
+     * Queues the document up to be sent, waiting up to the timeout for room in the queue.
+     * @return a future that completes once Solr has taken the document
+     * @throws IndexOverloadedException when the queue stayed full for the whole timeout
+     */
+    ListenableFuture<Void> submit(SolrInputDocument doc, long timeoutMillis) throws InterruptedIOException,
+            IndexOverloadedException {
+        if (!running) {
+            throw new IllegalStateException("Solr writer has been shut down");
+        }
+        Pending pending = new Pending(doc);
+        try {
+            if (!queue.offer(pending, timeoutMillis, TimeUnit.MILLISECONDS)) {
+                rejected.mark();
+                throw new IndexOverloadedException("Solr write queue is full (" + queue.size() + " documents)");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting on the Solr write queue");
+        }
+        return pending.done;
+    }
+
+    int queueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Stops the writers once everything already queued has been sent.
+     */
+    void shutdown() {
+        running = false;
+        for (Thread writer : writers) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void run() {
+        final List<Pending> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                Pending first = queue.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                fill(batch, first.enqueuedNanos + maxBatchAgeNanos);
+                send(batch);
+            } catch (InterruptedException e) {
+                logger.warn("Solr writer interrupted, " + batch.size() + " documents not sent");
+                fail(batch, e);
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Tops the batch up until it's full or the deadline passes.
+     */
+    private void fill(List<Pending> batch, long deadlineNanos) throws InterruptedException {
+        while (batch.size() < batchSize) {
+            queue.drainTo(batch, batchSize - batch.size());
+            long wait = deadlineNanos - System.nanoTime();
+            if (batch.size() >= batchSize || wait <= 0 || !running) {
+                return;
+            }
+            Pending next = queue.poll(wait, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+        }
+    }
+
+    private void send(List<Pending> batch) {
+        List<SolrInputDocument> docs = new ArrayList<>(batch.size());
+        for (Pending pending : batch) {
+            docs.add(pending.doc);
+        }
+        batchSizes.update(docs.size());
+
+        Timer.Context time = latency.time();
+        try {
+            client.add(docs, flushTime);
+        } catch (Exception e) {
+            logger.error("Error indexing batch of " + docs.size() + " documents", e);
+            fail(batch, e);
+            return;
+        } finally {
+            time.stop();
+        }
+        for (Pending pending : batch) {
+            pending.done.set(null);
+        }
+    }
+
+    private static void fail(List<Pending> batch, Throwable cause) {
+        for (Pending pending : batch) {
+            pending.done.setException(cause);
+        }
+    }
+}
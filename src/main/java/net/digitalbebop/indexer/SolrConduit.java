@@ -1,9 +1,12 @@
 package net.digitalbebop.indexer;
 
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
 import com.google.inject.name.Named;
 import net.digitalbebop.ClientRequests;
-import org.apache.commons.lang.NotImplementedException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.solr.client.solrj.SolrQuery;
@@ -12,6 +15,7 @@ import org.apache.solr.client.solrj.impl.HttpSolrClient;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrInputDocument;
 import org.javafp.parsecj.State;
 import org.json.JSONArray;
@@ -19,40 +23,100 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
 
 /**
- * Wraps around all actions with Solr. All insert document requests are performed asynchronously
- * with a configurable flush time.
+ * Wraps around all actions with Solr. Documents from concurrent requests are coalesced into bulk
+ * adds with a configurable flush time by a {@link SolrBatchWriter}, and each request waits until
+ * Solr has taken its documents, so a failure reaches the caller rather than only the log.
  */
+@Singleton
 public class SolrConduit implements IndexConduit {
     private static final Logger logger = LogManager.getLogger(SolrConduit.class);
     private HttpSolrClient client;
-    private int flushTime;
+    private final SolrBatchWriter writer;
+    private final long enqueueTimeout;
 
     @Inject
     public SolrConduit(@Named("solrURL") String solrURL,
-                       @Named("solrFlushtime") Integer flushTime) {
+                       @Named("solrFlushtime") Integer flushTime,
+                       @Named("solrWriterQueueSize") Integer queueSize,
+                       @Named("solrWriterBatchSize") Integer batchSize,
+                       @Named("solrWriterMaxBatchAge") Integer maxBatchAge,
+                       @Named("solrWriterThreads") Integer writerThreads,
+                       @Named("solrWriterEnqueueTimeout") Integer enqueueTimeout,
+                       MetricRegistry metrics) {
         client = new HttpSolrClient(solrURL);
-        this.flushTime = flushTime;
+        this.writer = new SolrBatchWriter(client, flushTime, queueSize, batchSize, maxBatchAge, writerThreads,
+                metrics);
+        this.enqueueTimeout = enqueueTimeout;
     }
 
+    /**
+     * Queues the document up for the next bulk add and waits until Solr has taken it.
+     * @throws IndexOverloadedException when the write queue stays full past the enqueue timeout
+     */
     @Override
-    public void index(ClientRequests.IndexRequest request) {
-        SolrInputDocument newDoc = generateDoc(request);
+    public void index(ClientRequests.IndexRequest request) throws IOException {
+        await(Collections.singletonList(writer.submit(generateDoc(request), enqueueTimeout)));
+    }
+
+    /**
+     * Queues all of the documents up and waits until Solr has taken every one of them.
+     * @throws IndexRejectedException when Solr refused the documents themselves
+     */
+    @Override
+    public void index(List<ClientRequests.IndexRequest> requests) throws IOException {
+        List<ListenableFuture<Void>> sent = new ArrayList<>(requests.size());
+        for (ClientRequests.IndexRequest request : requests) {
+            sent.add(writer.submit(generateDoc(request), enqueueTimeout));
+        }
+        await(sent);
+    }
+
+    private static void await(List<ListenableFuture<Void>> sent) throws IOException {
         try {
-            client.add(newDoc, flushTime);
-        } catch (IOException | SolrServerException e) {
-            logger.error("Error indexing new document: " + newDoc.get("id"), e);
+            Futures.allAsList(sent).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting on batch of " + sent.size() + " documents");
+        } catch (ExecutionException e) {
+            /* Solr answers documents it can't take with a 4xx, anything else may go through on a retry */
+            if (e.getCause() instanceof SolrException) {
+                int code = ((SolrException) e.getCause()).code();
+                if (code >= 400 && code < 500) {
+                    throw new IndexRejectedException("Solr rejected batch of " + sent.size() + " documents",
+                            e.getCause());
+                }
+            }
+            throw new IOException("Error indexing batch of " + sent.size() + " documents", e.getCause());
         }
     }
 
+    /**
+     * Sends off whatever is still queued and stops the writers.
+     */
+    public void shutdown() throws IOException {
+        writer.shutdown();
+        client.close();
+    }
+
+    /**
+     * Queues an update marking the object's document as deleted and no longer current, which goes
+     * out in the same bulk adds as new documents. Like {@link #index(ClientRequests.IndexRequest)}
+     * this waits until Solr has taken it.
+     * @throws IndexOverloadedException when the write queue stays full past the enqueue timeout
+     */
     @Override
-    public void delete(ClientRequests.DeleteRequest request) {
-        throw new NotImplementedException("Solr delete not yet implemented");
+    public void delete(ClientRequests.DeleteRequest request) throws IOException {
+        await(Collections.singletonList(writer.submit(generateDeletion(request), enqueueTimeout)));
     }
 
     @Override
@@ -93,12 +157,12 @@ public class SolrConduit implements IndexConduit {
         }
     }
 
-    private SolrInputDocument generateDoc(ClientRequests.IndexRequest request) {
+    SolrInputDocument generateDoc(ClientRequests.IndexRequest request) {
         SolrInputDocument newDoc = new SolrInputDocument();
         newDoc.addField("id", request.getModuleName() + "-" + request.getModuleId());
         newDoc.addField("current", true);
         newDoc.addField("data", request.getIndexData());
-        newDoc.addField("deleted", false); // TODO fix?
+        newDoc.addField("deleted", false);
         newDoc.addField("format", getFormat(request.getMetaTags()));
         newDoc.addField("metaData", request.getMetaTags());
         newDoc.addField("moduleId", request.getModuleId());
@@ -117,6 +181,22 @@ public class SolrConduit implements IndexConduit {
         }
         return newDoc;
     }
+
+    /**
+     * Builds an atomic update of the document, leaving the rest of its fields as they are. Solr
+     * creates the document when it doesn't exist, so the update also sets the required timestamp,
+     * to the time of the delete.
+     */
+    SolrInputDocument generateDeletion(ClientRequests.DeleteRequest request) {
+        SolrInputDocument doc = new SolrInputDocument();
+        doc.addField("id", request.getModuleName() + "-" + request.getModuleId());
+        doc.addField("current", Collections.singletonMap("set", false));
+        doc.addField("deleted", Collections.singletonMap("set", true));
+        doc.addField("moduleId", Collections.singletonMap("set", request.getModuleId()));
+        doc.addField("moduleName", Collections.singletonMap("set", request.getModuleName()));
+        doc.addField("timestamp", Collections.singletonMap("set", new Date(System.currentTimeMillis())));
+        return doc;
+    }
 }
 
 /**
@@ -0,0 +1,277 @@
+package net.digitalbebop.indexer;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import net.digitalbebop.ClientRequests;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Puts an {@link IndexSpool} in front of another conduit. Index and delete requests are
+ * acknowledged once they are fsync'd to the spool, and a background replayer drains the spool into
+ * the real index in the order they were spooled, retrying with exponential backoff for as long as
+ * it is slow or down. Nothing that was acknowledged is lost to an index outage or a crash, though
+ * a request might be delivered twice when the process dies between delivering a batch and
+ * checkpointing it. Requests the index rejects outright, such as documents that don't fit the
+ * schema, are moved to a dead letter spool in the {@value #DEAD_LETTERS} directory instead of
+ * holding up everything behind them.
+ *
+ * A spooled record is a byte for its type followed by the request.
+ */
+@Singleton
+public class SpoolingIndexConduit implements IndexConduit {
+    private static final Logger logger = LogManager.getLogger(SpoolingIndexConduit.class);
+    private static final long INITIAL_BACKOFF_MILLIS = 100;
+    private static final long IDLE_WAIT_MILLIS = 1000;
+    private static final byte INDEX = 1;
+    private static final byte DELETE = 2;
+    static final String DEAD_LETTERS = "dead-letters";
+
+    private final IndexConduit delegate;
+    private final IndexSpool spool;
+    private final IndexSpool deadLetters;
+    private final Object appendLock = new Object();
+    private final long maxSpoolSize;
+    private final int replayBatchSize;
+    private final long maxBackoff;
+    private final Thread replayer;
+    private volatile boolean running = true;
+
+    private final Counter deadLettered;
+
+    @Inject
+    public SpoolingIndexConduit(SolrConduit solr,
+                                @Named("indexSpoolDir") String dir,
+                                @Named("indexSpoolSegmentSize") Long segmentSize,
+                                @Named("indexSpoolMaxSize") Long maxSpoolSize,
+                                @Named("indexSpoolReplayBatchSize") Integer replayBatchSize,
+                                @Named("indexSpoolMaxBackoff") Integer maxBackoff,
+                                MetricRegistry metrics) {
+        this(solr, open(new File(dir), segmentSize), open(new File(dir, DEAD_LETTERS), segmentSize), maxSpoolSize,
+                replayBatchSize, maxBackoff, metrics);
+    }
+
+    SpoolingIndexConduit(IndexConduit delegate, IndexSpool spool, IndexSpool deadLetters, long maxSpoolSize,
+                         int replayBatchSize, long maxBackoff, MetricRegistry metrics) {
+        this.delegate = delegate;
+        this.spool = spool;
+        this.deadLetters = deadLetters;
+        this.maxSpoolSize = maxSpoolSize;
+        this.replayBatchSize = replayBatchSize;
+        this.maxBackoff = maxBackoff;
+
+        String size = MetricRegistry.name(SpoolingIndexConduit.class, "spool-size");
+        String lag = MetricRegistry.name(SpoolingIndexConduit.class, "replay-lag");
+        metrics.remove(size);
+        metrics.remove(lag);
+        metrics.register(size, (Gauge<Long>) spool::pendingBytes);
+        metrics.register(lag, (Gauge<Long>) spool::lagMillis);
+        this.deadLettered = metrics.counter(MetricRegistry.name(SpoolingIndexConduit.class, "dead-letters"));
+
+        this.replayer = new Thread(this::replay, "index-spool-replayer");
+        this.replayer.setDaemon(true);
+        this.replayer.start();
+    }
+
+    /**
+     * Spools the request, returning once it is on disk.
+     * @throws IndexOverloadedException when the spool has grown past its maximum size
+     */
+    @Override
+    public void index(ClientRequests.IndexRequest indexRequest) throws IOException {
+        index(Collections.singletonList(indexRequest));
+    }
+
+    /**
+     * Spools all of the requests, returning once they are all on disk. One fsync covers the
+     * whole list.
+     */
+    @Override
+    public void index(List<ClientRequests.IndexRequest> indexRequests) throws IOException {
+        long now = System.currentTimeMillis();
+        List<byte[]> records = new ArrayList<>(indexRequests.size());
+        for (ClientRequests.IndexRequest request : indexRequests) {
+            /* The raw data is only ever stored, never indexed, so there is no need to spool it */
+            ClientRequests.IndexRequest.Builder spooled = request.toBuilder().clearRawData();
+            /* Otherwise the document would be stamped with the time it is replayed */
+            if (!request.hasTimestamp()) {
+                spooled.setTimestamp(now);
+            }
+            records.add(record(INDEX, spooled.build().toByteArray()));
+        }
+        spool.sync(append(records));
+    }
+
+    /**
+     * Spools the request, returning once it is on disk. It goes through the spool rather than
+     * straight to the index so that it can't be overtaken by an index request spooled before it.
+     * @throws IndexOverloadedException when the spool has grown past its maximum size
+     */
+    @Override
+    public void delete(ClientRequests.DeleteRequest deleteRequest) throws IOException {
+        spool.sync(append(Collections.singletonList(record(DELETE, deleteRequest.toByteArray()))));
+    }
+
+    @Override
+    public Optional<SearchResult> search(String search, int offset, int limit) {
+        return delegate.search(search, offset, limit);
+    }
+
+    /**
+     * Stops the replayer and closes the spool. Whatever is still spooled gets replayed the next
+     * time the spool is opened.
+     */
+    public void close() throws IOException {
+        running = false;
+        replayer.interrupt();
+        try {
+            replayer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        spool.close();
+        deadLetters.close();
+    }
+
+    private void replay() {
+        final long initialBackoff = Math.min(INITIAL_BACKOFF_MILLIS, maxBackoff);
+        long backoff = initialBackoff;
+        while (running) {
+            try {
+                IndexSpool.Batch batch = spool.read(replayBatchSize);
+                if (batch.records.isEmpty()) {
+                    spool.awaitRecords(IDLE_WAIT_MILLIS);
+                    continue;
+                }
+
+                /* Runs of index requests go out as one bulk add, each delete after the run before it */
+                List<ClientRequests.IndexRequest> requests = new ArrayList<>(batch.records.size());
+                try {
+                    for (IndexSpool.Record record : batch.records) {
+                        replay(record.payload, requests);
+                    }
+                    if (!requests.isEmpty()) {
+                        delegate.index(requests);
+                    }
+                } catch (IndexRejectedException e) {
+                    logger.warn("Index rejected spooled requests, replaying them one at a time", e);
+                    replayOneByOne(batch.records);
+                }
+                spool.commit(batch.end);
+                backoff = initialBackoff;
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                if (!running) {
+                    return;
+                }
+                logger.warn("Could not replay spooled index requests, retrying in " + backoff + "ms", e);
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                backoff = Math.min(backoff * 2, maxBackoff);
+            }
+        }
+    }
+
+    /**
+     * Adds a spooled index request to the run, or sends the run and then a spooled delete.
+     */
+    private void replay(byte[] payload, List<ClientRequests.IndexRequest> requests) throws IOException {
+        final ClientRequests.DeleteRequest delete;
+        try {
+            byte type = payload.length == 0 ? 0 : payload[0];
+            if (type != INDEX && type != DELETE) {
+                throw new InvalidProtocolBufferException("Unknown spooled record type " + type);
+            }
+            CodedInputStream in = CodedInputStream.newInstance(payload, 1, payload.length - 1);
+            if (type == INDEX) {
+                requests.add(ClientRequests.IndexRequest.PARSER.parseFrom(in));
+                return;
+            }
+            delete = ClientRequests.DeleteRequest.PARSER.parseFrom(in);
+        } catch (InvalidProtocolBufferException e) {
+            logger.error("Skipping spooled request that can't be parsed", e);
+            return;
+        }
+        if (!requests.isEmpty()) {
+            delegate.index(requests);
+            requests.clear();
+        }
+        delegate.delete(delete);
+    }
+
+    /**
+     * Sends each record on its own, moving the ones the index rejects to the dead letter spool.
+     */
+    private void replayOneByOne(List<IndexSpool.Record> records) throws IOException {
+        List<ClientRequests.IndexRequest> requests = new ArrayList<>(1);
+        for (IndexSpool.Record record : records) {
+            try {
+                replay(record.payload, requests);
+                if (!requests.isEmpty()) {
+                    delegate.index(requests);
+                }
+            } catch (IndexRejectedException e) {
+                logger.error("Index rejected spooled request, moving it to " + DEAD_LETTERS, e);
+                deadLetters.sync(deadLetters.append(record.payload));
+                deadLettered.inc();
+            }
+            requests.clear();
+        }
+    }
+
+    /**
+     * Appends the records unless they would take the spool past its maximum size. The check and
+     * the appends happen under one lock so that concurrent writers can't overshoot it together.
+     * @return the offset to sync to
+     * @throws IndexOverloadedException when the spool is full
+     */
+    private long append(List<byte[]> records) throws IOException {
+        long bytes = 0;
+        for (byte[] record : records) {
+            bytes += IndexSpool.HEADER_SIZE + record.length;
+        }
+        synchronized (appendLock) {
+            long pending = spool.pendingBytes();
+            if (pending + bytes > maxSpoolSize) {
+                throw new IndexOverloadedException("Index spool is full (" + pending + " bytes)");
+            }
+            long end = 0;
+            for (byte[] record : records) {
+                end = spool.append(record);
+            }
+            return end;
+        }
+    }
+
+    private static byte[] record(byte type, byte[] request) {
+        byte[] record = new byte[1 + request.length];
+        record[0] = type;
+        System.arraycopy(request, 0, record, 1, request.length);
+        return record;
+    }
+
+    private static IndexSpool open(File dir, long segmentSize) {
+        try {
+            return new IndexSpool(dir, segmentSize);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not open index spool: " + dir, e);
+        }
+    }
+}
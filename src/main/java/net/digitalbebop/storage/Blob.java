@@ -0,0 +1,44 @@
+package net.digitalbebop.storage;
+
+import co.paralleluniverse.fibers.Suspendable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Handle to a stored object that can be sent or read without first being loaded into the heap
+ * as a whole. Small objects are backed by a byte array, large ones by a region of a file.
+ */
+public interface Blob {
+
+    /**
+     * @return the length of the object in bytes
+     */
+    long length();
+
+    /**
+     * Opens a stream over the whole object, for consumers that need to parse the data.
+     */
+    InputStream openStream() throws IOException;
+
+    /**
+     * Opens a channel over the whole object, see {@link #openStream()}.
+     */
+    default ReadableByteChannel openChannel() throws IOException {
+        return Channels.newChannel(openStream());
+    }
+
+    /**
+     * Writes part of the object to the given channel. File backed blobs hand the channel slices
+     * of a memory mapping of the file, so the data never passes through a heap buffer.
+     * @param position offset into the object to start writing from
+     * @param count number of bytes to write
+     * @param target channel to write to
+     * @return the number of bytes written
+     */
+    @Suspendable
+    long transferTo(long position, long count, WritableByteChannel target) throws IOException;
+}
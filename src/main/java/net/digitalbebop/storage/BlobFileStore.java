@@ -0,0 +1,207 @@
+package net.digitalbebop.storage;
+
+import com.google.common.hash.Hashing;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Optional;
+
+/**
+ * Directory of files holding the objects that are too large to keep inline in the MapDB store.
+ * Each object gets its own file, named after a hash of its key and fanned out over 256
+ * subdirectories so no single directory grows too large. Objects are written a fixed size chunk
+ * at a time, and every write hands back a {@link ChunkManifest} to check the file against later.
+ */
+class BlobFileStore {
+    private static final Logger logger = LogManager.getLogger(BlobFileStore.class);
+
+    private final File dir;
+
+    BlobFileStore(File dir) {
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IllegalStateException("Could not create blob directory: " + dir);
+        }
+    }
+
+    File fileFor(String id) {
+        String hash = Hashing.sha1().hashString(id, StandardCharsets.UTF_8).toString();
+        return new File(new File(dir, hash.substring(0, 2)), hash);
+    }
+
+    /**
+     * Writes the object to a temporary file first and moves it into place, so readers only ever
+     * see complete files.
+     */
+    ChunkManifest write(String id, byte[] data) throws IOException {
+        return write(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Writes the remaining bytes of the buffer as the object, without changing its position.
+     */
+    ChunkManifest write(String id, ByteBuffer data) throws IOException {
+        return write(id, out -> {
+            /*
+             * Heap buffers are written through a temporary direct buffer the JDK caches per
+             * thread, writing a chunk at a time keeps that buffer from growing to the object size.
+             */
+            ChunkManifest.Builder manifest = new ChunkManifest.Builder(ChunkManifest.CHUNK_SIZE);
+            ByteBuffer src = data.duplicate();
+            while (src.hasRemaining()) {
+                ByteBuffer chunk = src.duplicate();
+                chunk.limit(chunk.position() + Math.min(chunk.remaining(), ChunkManifest.CHUNK_SIZE));
+                manifest.add(chunk);
+                src.position(chunk.limit());
+                writeFully(out, chunk);
+            }
+            return manifest.build();
+        });
+    }
+
+    /**
+     * Writes the remaining bytes of the head followed by everything left in the channel to a
+     * temporary file, hashing it on the way, for the caller to {@link #publish} under its content
+     * id or {@link #discard} if it already has it. Only one chunk is held in memory at a time,
+     * whatever the size of the object.
+     */
+    Staged stage(ByteBuffer head, ReadableByteChannel rest) throws IOException {
+        MessageDigest digest = ContentHashes.newDigest();
+        File tmp = File.createTempFile("staged-", ".tmp", dir);
+        ChunkManifest manifest = writeTo(tmp, out -> {
+            ChunkManifest.Builder builder = new ChunkManifest.Builder(ChunkManifest.CHUNK_SIZE);
+            ByteBuffer chunk = ByteBuffer.allocate(ChunkManifest.CHUNK_SIZE);
+            ByteBuffer src = head.duplicate();
+            boolean end = false;
+            while (!end) {
+                chunk.clear();
+                if (src.hasRemaining()) {
+                    ByteBuffer part = src.duplicate();
+                    part.limit(part.position() + Math.min(part.remaining(), chunk.remaining()));
+                    chunk.put(part);
+                    src.position(part.limit());
+                }
+                while (chunk.hasRemaining() && !end) {
+                    end = rest.read(chunk) < 0;
+                }
+                chunk.flip();
+                if (chunk.hasRemaining()) {
+                    builder.add(chunk);
+                    digest.update(chunk.duplicate());
+                    writeFully(out, chunk);
+                }
+            }
+            return builder.build();
+        });
+        return new Staged(tmp, manifest, ContentHashes.contentId(digest.digest()));
+    }
+
+    /**
+     * Moves a staged object into place as the given object. The caller still has to
+     * {@link #discard} it if this fails.
+     */
+    void publish(Staged staged, String id) throws IOException {
+        File file = fileFor(id);
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create blob directory: " + parent);
+        }
+        Files.move(staged.file.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Deletes the staged file, if it wasn't published.
+     */
+    void discard(Staged staged) {
+        FileUtils.deleteQuietly(staged.file);
+    }
+
+    /**
+     * An object written out to a temporary file but not yet in place.
+     */
+    static final class Staged {
+        private final File file;
+        final ChunkManifest manifest;
+        final String contentId;
+
+        private Staged(File file, ChunkManifest manifest, String contentId) {
+            this.file = file;
+            this.manifest = manifest;
+            this.contentId = contentId;
+        }
+    }
+
+    @FunctionalInterface
+    private interface Body {
+        ChunkManifest writeTo(FileChannel out) throws IOException;
+    }
+
+    private ChunkManifest write(String id, Body body) throws IOException {
+        File file = fileFor(id);
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create blob directory: " + parent);
+        }
+
+        File tmp = File.createTempFile(file.getName(), ".tmp", parent);
+        ChunkManifest manifest = writeTo(tmp, body);
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return manifest;
+    }
+
+    private static ChunkManifest writeTo(File tmp, Body body) throws IOException {
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE)) {
+            ChunkManifest manifest = body.writeTo(out);
+            /* On disk before a commit can make the entry pointing at it durable */
+            out.force(false);
+            return manifest;
+        } catch (IOException | RuntimeException e) {
+            FileUtils.deleteQuietly(tmp);
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the whole object, checking it against its manifest when it has one. Objects written
+     * before manifests were kept don't.
+     */
+    byte[] read(String id, Optional<ChunkManifest> manifest) throws IOException {
+        if (!manifest.isPresent()) {
+            return Files.readAllBytes(fileFor(id).toPath());
+        }
+        try (InputStream in = new ChunkedInputStream(fileFor(id), manifest.get())) {
+            return IOUtils.toByteArray(in, manifest.get().length());
+        }
+    }
+
+    FileBlob open(String id, long length, Optional<ChunkManifest> manifest) {
+        return new FileBlob(fileFor(id), length, manifest);
+    }
+
+    void delete(String id) {
+        File file = fileFor(id);
+        if (file.exists() && !file.delete()) {
+            logger.warn("Failed to delete blob file: " + file);
+        }
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            out.write(src);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package net.digitalbebop.storage;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Keeps recently read raw data and thumbnails of another data store in {@link OffHeapCache}s,
+ * one per kind with a byte budget of its own, so that large raw reads can't push out the
+ * thumbnails every search result shows. Objects larger than the entry limit, which the store
+ * streams from disk anyway, are not cached.
+ *
+ * Puts and deletes made through the cache drop what it holds for them. Versions removed by the
+ * store's retention sweeps can stay cached until they are evicted, but lookups of versions by
+ * time no longer lead to them.
+ */
+public class CachingStorageConduit implements StorageConduit {
+    private static final Logger logger = LogManager.getLogger(CachingStorageConduit.class);
+    private static final int AVERAGE_THUMBNAIL_BYTES = 16*1024;
+    private static final int AVERAGE_RAW_BYTES = 32*1024;
+
+    private final StorageConduit storage;
+    private final OffHeapCache raw;
+    private final OffHeapCache thumbnails;
+
+    public CachingStorageConduit(StorageConduit storage, long rawBytes, long thumbnailBytes, int maxEntryBytes,
+                                 MetricRegistry metrics) {
+        this.storage = storage;
+        this.raw = new OffHeapCache("raw", rawBytes, maxEntryBytes, AVERAGE_RAW_BYTES, metrics);
+        this.thumbnails = new OffHeapCache("thumbnails", thumbnailBytes, maxEntryBytes, AVERAGE_THUMBNAIL_BYTES,
+                metrics);
+    }
+
+    @Override
+    public Optional<byte[]> getRaw(String moduleName, String moduleId, long timestamp) {
+        return get(raw, StorageKey.raw(moduleName, moduleId, timestamp),
+                () -> storage.getRaw(moduleName, moduleId, timestamp));
+    }
+
+    @Override
+    public Optional<byte[]> getThumbnail(String moduleName, String moduleId, long timestamp) {
+        return get(thumbnails, StorageKey.thumbnail(moduleName, moduleId, timestamp),
+                () -> storage.getThumbnail(moduleName, moduleId, timestamp));
+    }
+
+    @Override
+    public Optional<Blob> openRaw(String moduleName, String moduleId, long timestamp) {
+        return open(raw, StorageKey.raw(moduleName, moduleId, timestamp),
+                () -> storage.openRaw(moduleName, moduleId, timestamp));
+    }
+
+    @Override
+    public Optional<Blob> openThumbnail(String moduleName, String moduleId, long timestamp) {
+        return open(thumbnails, StorageKey.thumbnail(moduleName, moduleId, timestamp),
+                () -> storage.openThumbnail(moduleName, moduleId, timestamp));
+    }
+
+    private interface Read<T> {
+        Optional<T> read();
+    }
+
+    private static Optional<byte[]> get(OffHeapCache cache, StorageKey key, Read<byte[]> read) {
+        byte[] bytes = key.toBytes();
+        Optional<byte[]> cached = cache.get(bytes);
+        if (cached.isPresent()) {
+            return cached;
+        }
+        long stamp = cache.stamp(bytes);
+        Optional<byte[]> data = read.read();
+        data.ifPresent(value -> cache.put(bytes, value, stamp));
+        return data;
+    }
+
+    private static Optional<Blob> open(OffHeapCache cache, StorageKey key, Read<Blob> read) {
+        byte[] bytes = key.toBytes();
+        Optional<byte[]> cached = cache.get(bytes);
+        if (cached.isPresent()) {
+            return Optional.of(new HeapBlob(cached.get()));
+        }
+        long stamp = cache.stamp(bytes);
+        Optional<Blob> blob = read.read();
+        if (!blob.isPresent() || !cache.fits(blob.get().length())) {
+            return blob;
+        }
+        try (InputStream in = blob.get().openStream()) {
+            byte[] value = IOUtils.toByteArray(in);
+            cache.put(bytes, value, stamp);
+            return Optional.of(new HeapBlob(value));
+        } catch (IOException e) {
+            logger.warn("Could not read " + key + " into the cache", e);
+            return blob;
+        }
+    }
+
+    @Override
+    public void putRaw(String moduleName, String moduleId, long timestamp, byte[] data) {
+        storage.putRaw(moduleName, moduleId, timestamp, data);
+        raw.invalidate(StorageKey.raw(moduleName, moduleId, timestamp).toBytes());
+    }
+
+    @Override
+    public void putRaw(String moduleName, String moduleId, long timestamp, ByteBuffer data) {
+        storage.putRaw(moduleName, moduleId, timestamp, data);
+        raw.invalidate(StorageKey.raw(moduleName, moduleId, timestamp).toBytes());
+    }
+
+    @Override
+    public void putRaw(String moduleName, String moduleId, long timestamp, ReadableByteChannel data)
+            throws IOException {
+        storage.putRaw(moduleName, moduleId, timestamp, data);
+        raw.invalidate(StorageKey.raw(moduleName, moduleId, timestamp).toBytes());
+    }
+
+    @Override
+    public void putRaw(String moduleName, String moduleId, long timestamp, InputStream data) throws IOException {
+        storage.putRaw(moduleName, moduleId, timestamp, data);
+        raw.invalidate(StorageKey.raw(moduleName, moduleId, timestamp).toBytes());
+    }
+
+    @Override
+    public void putRaw(List<StoredObject> objects) {
+        storage.putRaw(objects);
+        for (StoredObject object : objects) {
+            raw.invalidate(StorageKey.raw(object.getModuleName(), object.getModuleId(), object.getTimestamp())
+                    .toBytes());
+        }
+    }
+
+    @Override
+    public void putThumbnail(String moduleName, String moduleId, long timestamp, byte[] data) {
+        storage.putThumbnail(moduleName, moduleId, timestamp, data);
+        thumbnails.invalidate(StorageKey.thumbnail(moduleName, moduleId, timestamp).toBytes());
+    }
+
+    @Override
+    public boolean reuseThumbnail(String moduleName, String moduleId, long timestamp) {
+        boolean reused = storage.reuseThumbnail(moduleName, moduleId, timestamp);
+        if (reused) {
+            thumbnails.invalidate(StorageKey.thumbnail(moduleName, moduleId, timestamp).toBytes());
+        }
+        return reused;
+    }
+
+    @Override
+    public List<Long> versions(String moduleName, String moduleId, long before, int limit) {
+        return storage.versions(moduleName, moduleId, before, limit);
+    }
+
+    @Override
+    public Optional<Long> versionAtOrBefore(String moduleName, String moduleId, long timestamp) {
+        return storage.versionAtOrBefore(moduleName, moduleId, timestamp);
+    }
+
+    @Override
+    public Optional<Long> latestVersion(String moduleName, String moduleId) {
+        return storage.latestVersion(moduleName, moduleId);
+    }
+
+    @Override
+    public ListenableFuture<Void> commit(Durability durability) {
+        return storage.commit(durability);
+    }
+
+    @Override
+    public void delete(String moduleName, String moduleId) throws IOException {
+        storage.delete(moduleName, moduleId);
+        raw.invalidatePrefix(StorageKey.prefix(StorageKey.Kind.RAW, moduleName, moduleId));
+        thumbnails.invalidatePrefix(StorageKey.prefix(StorageKey.Kind.THUMBNAIL, moduleName, moduleId));
+    }
+
+    /**
+     * Frees everything cached.
+     */
+    public void clear() {
+        raw.clear();
+        thumbnails.clear();
+    }
+}
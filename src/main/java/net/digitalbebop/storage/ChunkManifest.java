@@ -0,0 +1,107 @@
+package net.digitalbebop.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Describes how a large object was written to its blob file: its length, the fixed size of the
+ * chunks it was written in and the CRC32 of every chunk, so that reads can tell when the file
+ * has been damaged. Only the last chunk may be shorter than the chunk size.
+ */
+final class ChunkManifest {
+    static final int CHUNK_SIZE = 1024*1024; // 1MB
+
+    private final long length;
+    private final int chunkSize;
+    private final int[] crcs;
+
+    private ChunkManifest(long length, int chunkSize, int[] crcs) {
+        this.length = length;
+        this.chunkSize = chunkSize;
+        this.crcs = crcs;
+    }
+
+    long length() {
+        return length;
+    }
+
+    int chunkSize() {
+        return chunkSize;
+    }
+
+    int chunks() {
+        return crcs.length;
+    }
+
+    /**
+     * @return the length of the given chunk, which is the chunk size for all but the last one
+     */
+    int chunkLength(int chunk) {
+        return (int) Math.min(chunkSize, length - (long) chunk * chunkSize);
+    }
+
+    /**
+     * Checks the bytes read for the given chunk against its CRC.
+     */
+    void verify(int chunk, byte[] bytes, int offset, int length) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        if ((int) crc.getValue() != crcs[chunk]) {
+            throw new IOException("Checksum mismatch in chunk " + chunk + " of " + crcs.length);
+        }
+    }
+
+    byte[] toBytes() {
+        ByteBuffer buf = ByteBuffer.allocate(12 + 4 * crcs.length);
+        buf.putLong(length);
+        buf.putInt(chunkSize);
+        for (int crc : crcs) {
+            buf.putInt(crc);
+        }
+        return buf.array();
+    }
+
+    static ChunkManifest fromBytes(byte[] bytes) {
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        long length = buf.getLong();
+        int chunkSize = buf.getInt();
+        int[] crcs = new int[buf.remaining() / 4];
+        for (int i = 0; i < crcs.length; i++) {
+            crcs[i] = buf.getInt();
+        }
+        return new ChunkManifest(length, chunkSize, crcs);
+    }
+
+    /**
+     * Builds up a manifest as the chunks of an object are written, in order.
+     */
+    static final class Builder {
+        private final int chunkSize;
+        private int[] crcs = new int[16];
+        private int chunks;
+        private long length;
+
+        Builder(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        /**
+         * Adds the remaining bytes of the buffer as the next chunk, without changing its position.
+         */
+        void add(ByteBuffer chunk) {
+            if (chunks == crcs.length) {
+                crcs = Arrays.copyOf(crcs, chunks * 2);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(chunk.duplicate());
+            crcs[chunks++] = (int) crc.getValue();
+            length += chunk.remaining();
+        }
+
+        ChunkManifest build() {
+            return new ChunkManifest(length, chunkSize, Arrays.copyOf(crcs, chunks));
+        }
+    }
+}
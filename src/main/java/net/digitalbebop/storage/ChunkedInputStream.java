@@ -0,0 +1,89 @@
+package net.digitalbebop.storage;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a blob file a chunk at a time, checking every chunk against the object's
+ * {@link ChunkManifest} before handing out any of its bytes. Holds one chunk in memory no matter
+ * how large the object is.
+ */
+class ChunkedInputStream extends InputStream {
+    private final FileChannel channel;
+    private final ChunkManifest manifest;
+    private final byte[] chunk;
+    private int next = 0;
+    private int position = 0;
+    private int limit = 0;
+
+    ChunkedInputStream(File file, ChunkManifest manifest) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.manifest = manifest;
+        this.chunk = new byte[manifest.chunkSize()];
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return chunk[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(len, limit - position);
+        System.arraycopy(chunk, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return limit - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Reads and checks the next chunk once the current one has been used up.
+     * @return false at the end of the object
+     */
+    private boolean fill() throws IOException {
+        if (position < limit) {
+            return true;
+        }
+        if (next == manifest.chunks()) {
+            return false;
+        }
+
+        int length = manifest.chunkLength(next);
+        ByteBuffer buf = ByteBuffer.wrap(chunk, 0, length);
+        long offset = (long) next * manifest.chunkSize();
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, offset + buf.position()) < 0) {
+                throw new EOFException("Blob file ends in chunk " + next + " of " + manifest.chunks());
+            }
+        }
+        manifest.verify(next, chunk, 0, length);
+
+        next++;
+        position = 0;
+        limit = length;
+        return true;
+    }
+}
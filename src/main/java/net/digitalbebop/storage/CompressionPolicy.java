@@ -0,0 +1,119 @@
+package net.digitalbebop.storage;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+
+/**
+ * Which inline values {@link FileStorageConduit} compresses, set by the storageCompression
+ * property: either none, or deflate followed by an optional level from 1 to 9, for example
+ * {@code deflate 1}. Values are stored as they are when they are small, when they start like a
+ * format that is compressed already, such as pdf, jpeg, png, gif, zip or gzip, or when a sample
+ * of their bytes looks random, so that only text, markup and the like pay for the compression.
+ */
+public final class CompressionPolicy {
+    private static final int MIN_BYTES = 256;
+    private static final int SAMPLE_BYTES = 4096;
+    /* Text stays well under this, compressed or encrypted data is close to 8 */
+    private static final double MAX_ENTROPY_BITS = 7.0;
+    private static final byte[][] COMPRESSED_FORMATS = {
+            "%PDF".getBytes(StandardCharsets.US_ASCII),
+            {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF},              // jpeg
+            {(byte) 0x89, 'P', 'N', 'G'},
+            "GIF8".getBytes(StandardCharsets.US_ASCII),
+            {'P', 'K', 3, 4},                                    // zip, docx, xlsx, jar
+            {0x1F, (byte) 0x8B},                                 // gzip
+            {'R', 'I', 'F', 'F'},                                // webp, avi
+    };
+
+    private final int level;
+
+    @Inject
+    public CompressionPolicy(@Named("storageCompression") String spec) {
+        this(parse(spec));
+    }
+
+    private CompressionPolicy(int level) {
+        this.level = level;
+    }
+
+    /**
+     * @return a policy that stores every value as it is
+     */
+    public static CompressionPolicy none() {
+        return new CompressionPolicy(0);
+    }
+
+    /**
+     * @return the deflate level to compress with, 0 for none
+     */
+    int level() {
+        return level;
+    }
+
+    /**
+     * @return whether the remaining bytes of the buffer are worth trying to compress
+     */
+    boolean shouldCompress(ByteBuffer data) {
+        if (level == 0 || data.remaining() < MIN_BYTES) {
+            return false;
+        }
+        for (byte[] magic : COMPRESSED_FORMATS) {
+            if (startsWith(data, magic)) {
+                return false;
+            }
+        }
+        return entropyBits(data) <= MAX_ENTROPY_BITS;
+    }
+
+    /**
+     * @return the Shannon entropy in bits per byte of a sample from the start of the buffer
+     */
+    static double entropyBits(ByteBuffer data) {
+        int sample = Math.min(data.remaining(), SAMPLE_BYTES);
+        int[] counts = new int[256];
+        for (int i = 0; i < sample; i++) {
+            counts[data.get(data.position() + i) & 0xFF]++;
+        }
+        double bits = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / sample;
+                bits -= p * Math.log(p);
+            }
+        }
+        return bits / Math.log(2);
+    }
+
+    private static boolean startsWith(ByteBuffer data, byte[] magic) {
+        if (data.remaining() < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (data.get(data.position() + i) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int parse(String spec) {
+        String[] words = spec.trim().split("\\s+");
+        switch (words[0]) {
+            case "":
+            case "none":
+                return 0;
+            case "deflate":
+                int level = words.length > 1 ? Integer.parseInt(words[1]) : Deflater.BEST_SPEED;
+                if (level < 1 || level > 9) {
+                    throw new IllegalArgumentException("Deflate level has to be from 1 to 9: " + spec);
+                }
+                return level;
+            default:
+                throw new IllegalArgumentException("Unknown storage compression: " + spec);
+        }
+    }
+}
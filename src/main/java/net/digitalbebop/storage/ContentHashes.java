@@ -0,0 +1,38 @@
+package net.digitalbebop.storage;
+
+import com.google.common.io.BaseEncoding;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The strong hash that content is stored under. Two objects with the same content id are taken
+ * to be the same bytes, so this has to stay collision resistant.
+ */
+final class ContentHashes {
+    private static final String ALGORITHM = "SHA-256";
+
+    private ContentHashes() {}
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("JVM has no " + ALGORITHM, e);
+        }
+    }
+
+    /**
+     * @return the content id of the remaining bytes of the buffer, without changing its position
+     */
+    static String contentId(ByteBuffer data) {
+        MessageDigest digest = newDigest();
+        digest.update(data.duplicate());
+        return contentId(digest.digest());
+    }
+
+    static String contentId(byte[] digest) {
+        return "content-" + BaseEncoding.base16().lowerCase().encode(digest);
+    }
+}
@@ -0,0 +1,71 @@
+package net.digitalbebop.storage;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * Frees direct and memory mapped buffers right away instead of once they are garbage collected.
+ * There is no public API for that, so this looks up {@code Unsafe.invokeCleaner} on Java 9 and
+ * later and the buffer's cleaner on Java 8 by reflection. On a JVM that has neither, or that
+ * refuses the call, buffers are quietly left to the garbage collector.
+ */
+final class DirectBuffers {
+    private static final Logger logger = LogManager.getLogger(DirectBuffers.class);
+    private static final Consumer<ByteBuffer> FREE = findFree();
+
+    private DirectBuffers() {}
+
+    /**
+     * Frees the memory or the mapping behind the buffer, which must not be used afterwards, nor
+     * any duplicates or slices of it.
+     */
+    static void free(ByteBuffer buffer) {
+        if (buffer.isDirect()) {
+            FREE.accept(buffer);
+        }
+    }
+
+    private static Consumer<ByteBuffer> findFree() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Object unsafe = theUnsafe.get(null);
+            return buffer -> invoke(invokeCleaner, unsafe, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // not Java 9 or later
+        }
+        try {
+            Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return buffer -> {
+                Object bufferCleaner = invoke(cleaner, buffer);
+                if (bufferCleaner != null) {
+                    invoke(clean, bufferCleaner);
+                }
+            };
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.info("Direct buffers can't be freed explicitly on this JVM, leaving them to the garbage collector");
+            return buffer -> {};
+        }
+    }
+
+    /**
+     * @return what the method returned, or null if it failed
+     */
+    private static Object invoke(Method method, Object target, Object... args) {
+        try {
+            return method.invoke(target, args);
+        } catch (IllegalAccessException | InvocationTargetException | RuntimeException e) {
+            logger.debug("Could not free direct buffer, leaving it to the garbage collector", e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package net.digitalbebop.storage;
+
+/**
+ * How durable a write has to be before the caller moves on, see
+ * {@link StorageConduit#commit(Durability)}.
+ */
+public enum Durability {
+    /**
+     * Done as soon as the write is in the store, it reaches the disk with the next group commit
+     * and may be lost to a crash before then.
+     */
+    ASYNC,
+
+    /**
+     * Done once the next group commit has made the write durable. A commit starts as soon as the
+     * one before it has finished, and everyone who asked in the meantime shares it.
+     */
+    BATCHED,
+
+    /**
+     * Done once the write is durable, starting a commit as soon as no other one is running.
+     * Callers asking at the same time share the commit.
+     */
+    SYNC
+}
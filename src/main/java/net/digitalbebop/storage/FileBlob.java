@@ -0,0 +1,76 @@
+package net.digitalbebop.storage;
+
+import co.paralleluniverse.fibers.Suspendable;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+
+/**
+ * Blob backed by a file on disk. Sends go through memory mapped windows of the file straight to
+ * the target channel, so serving the object costs no heap copies no matter how big it is. Streams
+ * opened over a file that has a {@link ChunkManifest} check every chunk as it is read, sends
+ * don't, since the data never passes through the process.
+ */
+public class FileBlob implements Blob {
+    /* Mapping the file a window at a time bounds the address space a single send holds on to */
+    private static final long MAP_WINDOW_SIZE = 8*1024*1024; // 8MB
+
+    private final File file;
+    private final long length;
+    private final Optional<ChunkManifest> manifest;
+
+    public FileBlob(File file, long length) {
+        this(file, length, Optional.empty());
+    }
+
+    FileBlob(File file, long length, Optional<ChunkManifest> manifest) {
+        this.file = file;
+        this.length = length;
+        this.manifest = manifest;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public InputStream openStream() throws IOException {
+        if (manifest.isPresent()) {
+            return new ChunkedInputStream(file, manifest.get());
+        }
+        return new BufferedInputStream(new FileInputStream(file));
+    }
+
+    @Override
+    @Suspendable
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long written = 0;
+            while (written < count) {
+                long window = Math.min(MAP_WINDOW_SIZE, count - written);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position + written, window);
+                try {
+                    while (buffer.hasRemaining()) {
+                        written += target.write(buffer);
+                    }
+                } finally {
+                    /*
+                     * Mappings are otherwise only released once the buffer is garbage collected,
+                     * under load that lets them pile up until the process runs out of map areas.
+                     */
+                    DirectBuffers.free(buffer);
+                }
+            }
+            return written;
+        }
+    }
+}
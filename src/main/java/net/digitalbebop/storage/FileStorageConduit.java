@@ -1,10 +1,21 @@
 package net.digitalbebop.storage;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.Striped;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
-import org.apache.commons.io.IOUtils;
+import net.digitalbebop.PulseException;
+import net.digitalbebop.http.HttpStatus;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.mapdb.BTreeKeySerializer;
@@ -14,37 +25,166 @@ import org.mapdb.Serializer;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
 import java.util.Optional;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
 
 /**
  * Uses on disk storage for the backend data store. This uses MapDB to implement the file
  * backend. Make sure that this is a Singleton instance since it cannot deal with more than
  * one open connection to the file backend.
+ *
+ * Content is stored once under its {@link ContentHashes content id}, and the key of each version
+ * of an object only refers to it, with a reference count per content id deciding when the
+ * content can go. Each raw content id also remembers the thumbnail made from it, so uploading the
+ * same data again needs neither a write nor a new thumbnail. Versions are keyed by the binary
+ * {@link StorageKey}, which keeps all versions of an object together in timestamp order. Stores
+ * written with the older string keys have to be converted with {@link StorageKeyMigration}.
+ *
+ * Objects up to the inline limit are kept in MapDB as {@link InlineValue}s, which record how
+ * they are encoded, compressed with deflate when the {@link CompressionPolicy} takes them to be
+ * text or the like. Content written before values had that header is still read from the old
+ * content map, and stays there until it goes with its last reference.
+ *
+ * Objects larger than the inline limit are kept out of MapDB in their own files, see
+ * {@link BlobFileStore}, so that they can be served straight from disk. Their
+ * {@link ChunkManifest}s stay in MapDB, so that reads can check the files for damage.
+ *
+ * MapDB runs with its write-ahead log, and puts are committed in groups by a
+ * {@link GroupCommitter} so that concurrent writers share the cost of each commit.
+ *
+ * A delete only writes a tombstone, which hides the versions it covers from then on. A
+ * background compactor removes those versions afterwards, at a limited rate so that it doesn't
+ * hold up foreground reads and writes, and their content goes with the last reference to it.
+ * Between deletes the compactor also sweeps the versions of modules with a
+ * {@link RetentionPolicy}, a slice of the key space at a time, and removes those the policy no
+ * longer keeps.
+ *
+ * An {@link ObjectBloomFilter} per kind of version answers most lookups of objects that were
+ * never stored, such as thumbnails of documents that don't have one, without going to MapDB. The
+ * filters are written out when the store is closed and read back when it is opened again. After
+ * a crash, or once they fill up, the compactor builds them anew from the versions, and until it
+ * has, lookups go to MapDB.
  */
 @Singleton
 public class FileStorageConduit implements StorageConduit {
     private static final Logger logger = LogManager.getLogger(FileStorageConduit.class);
-    private ConcurrentNavigableMap<String, byte[]> collection;
+    private ConcurrentNavigableMap<String, byte[]> collection; // id -> content written without a header
+    private ConcurrentNavigableMap<String, byte[]> inline; // id -> inline value
+    private ConcurrentNavigableMap<String, Long> largeObjects; // id -> length of the blob file
+    private ConcurrentNavigableMap<String, byte[]> manifests; // id -> chunk manifest of the blob file
+    private ConcurrentNavigableMap<byte[], String> versions; // storage key -> content id
+    private ConcurrentNavigableMap<String, Long> refCounts; // content id -> versions referring to it
+    private ConcurrentNavigableMap<String, String> thumbnailsOf; // raw content id -> thumbnail content id
+    private ConcurrentNavigableMap<byte[], Long> tombstones; // raw key prefix -> newest version deleted
+    /* The tombstones again, on heap, as reads check them and there are only ever as many as the
+     * compactor has yet to get through */
+    private final ConcurrentMap<ByteBuffer, Long> deleted = new ConcurrentHashMap<>();
     private static final int CACHE_SIZE = 10000;
     private static final int FLUSH_TIME = 2000;
+    private static final int LOCK_STRIPES = 1024;
+    private static final long COMPACTOR_IDLE_MILLIS = 1000;
+    private static final long COMPACTOR_COMMIT_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int SWEEP_SLICE = 1000;
+    private static final double BLOOM_FPP = 0.01;
+    private static final double BLOOM_REBUILD_FPP = 0.05;
+    private static final long BLOOM_MIN_OBJECTS = 1_000_000;
+    private static final int BLOOM_SNAPSHOT_VERSION = 1;
+
+    static final String CONTENT = "pulse";
+    static final String INLINE = "pulse-inline";
+    static final String LARGE_OBJECTS = "pulse-large-objects";
+    static final String MANIFESTS = "pulse-large-object-manifests";
+    static final String VERSIONS = "pulse-versions";
+    static final String REF_COUNTS = "pulse-ref-counts";
+    static final String THUMBNAILS_OF = "pulse-thumbnails-by-content";
+    static final String TOMBSTONES = "pulse-tombstones";
+    /* Maps and key prefixes of the string keyed layout that StorageKeyMigration converts */
+    static final String LEGACY_REFS = "pulse-refs";
+    static final String[] LEGACY_PREFIXES = {"raw-", "thumbnail-"};
+    private final BlobFileStore blobFiles;
+    private final int inlineLimit;
+    private final CompressionPolicy compression;
+    private final GroupCommitter committer;
+    private final Striped<Lock> locks = Striped.lock(LOCK_STRIPES);
+    private final RateLimiter compactionRate;
+    private final Thread compactor;
+    private final Object compactorSignal = new Object();
+    private volatile boolean running = true;
+    private long uncommittedCompaction; // only touched by the compactor
+    private long lastCompactionCommit = System.nanoTime(); // only touched by the compactor
+    private final RetentionPolicy retention;
+    private final List<String> sweptModules;
+    private int sweepModule; // only touched by the compactor
+    private byte[] sweepCursor; // only touched by the compactor, last key swept in the module
+    private long nextSweep = System.nanoTime(); // only touched by the compactor
+    private final File bloomSnapshot;
+    /* By kind ordinal, null until built; while they are being built the new ones are in
+     * rebuilding, and versions put in the meantime go into both */
+    private volatile ObjectBloomFilter[] filters;
+    private volatile ObjectBloomFilter[] rebuilding;
     private DB db;
 
+    private final Counter putBytes;
+    private final Counter storedBytes;
+    private final Meter dedupeHits;
+    private final Meter thumbnailsReused;
+    private final Meter bytesReclaimed;
+    private final Meter versionsCompacted;
+    private final Meter versionsExpired;
+    private final Meter bloomNegatives;
+    private final Meter valuesCompressed;
+    private final Counter compressionSaved;
 
     @Inject
-    public FileStorageConduit(@Named("fileStorageFile") String dir) {
-        int cpus = Runtime.getRuntime().availableProcessors();
+    public FileStorageConduit(@Named("fileStorageFile") String dir,
+                              @Named("fileStorageInlineLimit") Integer inlineLimit,
+                              @Named("storageCommitInterval") Integer commitInterval,
+                              @Named("storageCommitBytes") Integer commitBytes,
+                              @Named("storageCompactionRate") Integer compactionRate,
+                              RetentionPolicy retention,
+                              CompressionPolicy compression,
+                              MetricRegistry metrics) {
+        this(builder(dir)
+                .inlineLimit(inlineLimit)
+                .commitInterval(commitInterval)
+                .commitBytes(commitBytes)
+                .compactionRate(compactionRate)
+                .retention(retention)
+                .compression(compression)
+                .metrics(metrics));
+    }
+
+    private FileStorageConduit(Builder builder) {
+        String shard = builder.shard;
+        String dir = builder.dir;
+        MetricRegistry metrics = builder.metrics;
+        this.inlineLimit = builder.inlineLimit;
+        this.compression = builder.compression;
+        this.retention = builder.retention;
+        this.sweptModules = new ArrayList<>(new TreeSet<>(retention.modules()));
+        this.blobFiles = new BlobFileStore(new File(dir + "-blobs"));
+        this.bloomSnapshot = new File(dir + "-bloom");
+
+        String name = shard == null ? "file-storage" : "file-storage-" + shard;
         ThreadFactory factory = new ThreadFactoryBuilder()
-                .setNameFormat("file-storage-conduit-%d")
+                .setNameFormat(name + "-conduit-%d")
                 .setDaemon(true)
                 .build();
-        ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(cpus, factory);
+        ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(builder.threads, factory);
 
 
         db = DBMaker.fileDB(new File(dir))
                 .fileChannelEnable()              // uses file channel for all file IO
-                .transactionDisable()             // disables all transactions for performance
                 .closeOnJvmShutdown()             // cleans up when the JVM shutdowns
                 .cacheHashTableEnable()           // uses a Hash Table for on-heap cache
                 .cacheExecutorEnable(pool)        // background cache eviction
@@ -53,63 +193,1027 @@ public class FileStorageConduit implements StorageConduit {
                 .storeExecutorEnable(pool)        // background thread pool for async writes
                 .make();
 
-        collection = db.treeMapCreate("pulse")
+        collection = db.treeMapCreate(CONTENT)
+                .valuesOutsideNodesEnable()
+                .keySerializer(BTreeKeySerializer.STRING)
+                .valueSerializer(Serializer.BYTE_ARRAY)
+                .makeOrGet();
+
+        inline = db.treeMapCreate(INLINE)
                 .valuesOutsideNodesEnable()
                 .keySerializer(BTreeKeySerializer.STRING)
                 .valueSerializer(Serializer.BYTE_ARRAY)
                 .makeOrGet();
+
+        largeObjects = db.treeMapCreate(LARGE_OBJECTS)
+                .keySerializer(BTreeKeySerializer.STRING)
+                .valueSerializer(Serializer.LONG)
+                .makeOrGet();
+
+        manifests = db.treeMapCreate(MANIFESTS)
+                .keySerializer(BTreeKeySerializer.STRING)
+                .valueSerializer(Serializer.BYTE_ARRAY)
+                .makeOrGet();
+
+        versions = db.treeMapCreate(VERSIONS)
+                .keySerializer(BTreeKeySerializer.BYTE_ARRAY)
+                .valueSerializer(Serializer.STRING)
+                .makeOrGet();
+
+        refCounts = db.treeMapCreate(REF_COUNTS)
+                .keySerializer(BTreeKeySerializer.STRING)
+                .valueSerializer(Serializer.LONG)
+                .makeOrGet();
+
+        thumbnailsOf = db.treeMapCreate(THUMBNAILS_OF)
+                .keySerializer(BTreeKeySerializer.STRING)
+                .valueSerializer(Serializer.STRING)
+                .makeOrGet();
+
+        tombstones = db.treeMapCreate(TOMBSTONES)
+                .keySerializer(BTreeKeySerializer.BYTE_ARRAY)
+                .valueSerializer(Serializer.LONG)
+                .makeOrGet();
+        db.commit();
+        for (Map.Entry<byte[], Long> tombstone : tombstones.entrySet()) {
+            deleted.put(ByteBuffer.wrap(tombstone.getKey()), tombstone.getValue());
+        }
+        filters = readFilters(bloomSnapshot);
+
+        if (hasLegacyKeys(db, collection, largeObjects)) {
+            db.close();
+            throw new IllegalStateException("Storage at " + dir + " still uses string keys, convert it with " +
+                    StorageKeyMigration.class.getName() + " first");
+        }
+
+        committer = new GroupCommitter(name, db::commit, builder.commitInterval, builder.commitBytes, metrics);
+
+        putBytes = metrics.counter(MetricRegistry.name(FileStorageConduit.class, shard, "put-bytes"));
+        storedBytes = metrics.counter(MetricRegistry.name(FileStorageConduit.class, shard, "stored-bytes"));
+        dedupeHits = metrics.meter(MetricRegistry.name(FileStorageConduit.class, shard, "dedupe-hits"));
+        thumbnailsReused = metrics.meter(MetricRegistry.name(FileStorageConduit.class, shard, "thumbnails-reused"));
+        String ratio = MetricRegistry.name(FileStorageConduit.class, shard, "dedupe-ratio");
+        metrics.remove(ratio);
+        metrics.register(ratio, (Gauge<Double>) () ->
+                storedBytes.getCount() == 0 ? 1.0 : (double) putBytes.getCount() / storedBytes.getCount());
+        String saved = MetricRegistry.name(FileStorageConduit.class, shard, "bytes-saved");
+        metrics.remove(saved);
+        metrics.register(saved, (Gauge<Long>) () -> putBytes.getCount() - storedBytes.getCount());
+        bytesReclaimed = metrics.meter(MetricRegistry.name(FileStorageConduit.class, shard, "bytes-reclaimed"));
+        versionsCompacted = metrics.meter(MetricRegistry.name(FileStorageConduit.class, shard, "versions-compacted"));
+        versionsExpired = metrics.meter(MetricRegistry.name(FileStorageConduit.class, shard, "versions-expired"));
+        String pending = MetricRegistry.name(FileStorageConduit.class, shard, "pending-deletes");
+        metrics.remove(pending);
+        metrics.register(pending, (Gauge<Integer>) deleted::size);
+        bloomNegatives = metrics.meter(MetricRegistry.name(FileStorageConduit.class, shard, "bloom-negatives"));
+        valuesCompressed = metrics.meter(MetricRegistry.name(FileStorageConduit.class, shard, "values-compressed"));
+        compressionSaved = metrics.counter(MetricRegistry.name(FileStorageConduit.class, shard,
+                "compression-bytes-saved"));
+        for (StorageKey.Kind kind : StorageKey.Kind.values()) {
+            String fpp = MetricRegistry.name(FileStorageConduit.class, shard,
+                    kind.name().toLowerCase() + "-bloom-fpp");
+            metrics.remove(fpp);
+            metrics.register(fpp, (Gauge<Double>) () -> {
+                ObjectBloomFilter[] current = filters;
+                return current == null ? 1.0 : current[kind.ordinal()].expectedFpp();
+            });
+        }
+
+        /* Picks up whatever deletes were still being compacted when the store was last closed, and
+         * builds the bloom filters if they couldn't be read */
+        this.compactionRate = RateLimiter.create(builder.compactionRate);
+        this.compactor = new Thread(this::compact, name + "-compactor");
+        this.compactor.setDaemon(true);
+        this.compactor.start();
+    }
+
+    /**
+     * @return a builder for a store at the given path, with the defaults of pulse.properties and
+     * neither retention nor compression
+     */
+    public static Builder builder(String dir) {
+        return new Builder(dir);
+    }
+
+    /**
+     * The settings of a store, so that callers only name those they don't want the defaults of.
+     */
+    public static final class Builder {
+        private final String dir;
+        private String shard;
+        private int inlineLimit = 256*1024;
+        private int commitInterval = 50;
+        private int commitBytes = 8*1024*1024;
+        private int compactionRate = 500;
+        private int threads = Runtime.getRuntime().availableProcessors();
+        private RetentionPolicy retention = RetentionPolicy.none();
+        private CompressionPolicy compression = CompressionPolicy.none();
+        private MetricRegistry metrics = new MetricRegistry();
+
+        private Builder(String dir) {
+            this.dir = dir;
+        }
+
+        /**
+         * Names the threads and metrics of one shard of a {@link ShardedStorageConduit}, a store
+         * of its own has none.
+         */
+        Builder shard(String shard) {
+            this.shard = shard;
+            return this;
+        }
+
+        public Builder inlineLimit(int inlineLimit) {
+            this.inlineLimit = inlineLimit;
+            return this;
+        }
+
+        public Builder commitInterval(int commitInterval) {
+            this.commitInterval = commitInterval;
+            return this;
+        }
+
+        public Builder commitBytes(int commitBytes) {
+            this.commitBytes = commitBytes;
+            return this;
+        }
+
+        public Builder compactionRate(int compactionRate) {
+            this.compactionRate = compactionRate;
+            return this;
+        }
+
+        /**
+         * Sets the size of the pool MapDB writes and evicts its cache with.
+         */
+        public Builder threads(int threads) {
+            this.threads = threads;
+            return this;
+        }
+
+        public Builder retention(RetentionPolicy retention) {
+            this.retention = retention;
+            return this;
+        }
+
+        public Builder compression(CompressionPolicy compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        public Builder metrics(MetricRegistry metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        public FileStorageConduit build() {
+            return new FileStorageConduit(this);
+        }
     }
 
     @Override
     public Optional<byte[]> getRaw(String moduleName, String moduleId, long timestamp) {
-        String id = getRawId(moduleName, moduleId, timestamp);
-        logger.debug("get raw data: " + id);
+        StorageKey key = StorageKey.raw(moduleName, moduleId, timestamp);
+        logger.debug("get raw data: " + key);
+        return get(key);
+    }
+
+    @Override
+    public Optional<byte[]> getThumbnail(String moduleName, String moduleId, long timestamp) {
+        StorageKey key = StorageKey.thumbnail(moduleName, moduleId, timestamp);
+        logger.debug("get thumbnail: " + key);
+        return get(key);
+    }
+
+    @Override
+    public Optional<Blob> openRaw(String moduleName, String moduleId, long timestamp) {
+        StorageKey key = StorageKey.raw(moduleName, moduleId, timestamp);
+        logger.debug("open raw data: " + key);
+        return open(key);
+    }
+
+    @Override
+    public Optional<Blob> openThumbnail(String moduleName, String moduleId, long timestamp) {
+        StorageKey key = StorageKey.thumbnail(moduleName, moduleId, timestamp);
+        logger.debug("open thumbnail: " + key);
+        return open(key);
+    }
+
+    @Override
+    public void putRaw(String moduleName, String moduleId, long timestamp, byte[] data) {
+        StorageKey key = StorageKey.raw(moduleName, moduleId, timestamp);
+        logger.debug("putting raw: " + key);
+        link(key, store(ByteBuffer.wrap(data)));
+    }
+
+    /**
+     * Objects that go to the blob files are written straight from the buffer, only inline ones are
+     * copied into an array for MapDB.
+     */
+    @Override
+    public void putRaw(String moduleName, String moduleId, long timestamp, ByteBuffer data) {
+        StorageKey key = StorageKey.raw(moduleName, moduleId, timestamp);
+        logger.debug("putting raw: " + key);
+        link(key, store(data));
+    }
+
+    /**
+     * Reads just past the inline limit to find out where the object goes. Large objects are then
+     * streamed to a staged blob file a chunk at a time, so memory use stays the same whatever
+     * their size, and the file is dropped again if its content turns out to be stored already.
+     */
+    @Override
+    public void putRaw(String moduleName, String moduleId, long timestamp, ReadableByteChannel data)
+            throws IOException {
+        StorageKey key = StorageKey.raw(moduleName, moduleId, timestamp);
+        logger.debug("streaming raw: " + key);
+
+        ByteBuffer head = ByteBuffer.allocate(inlineLimit + 1);
+        while (head.hasRemaining() && data.read(head) >= 0) {
+            // keep reading until the head is full or the object ends
+        }
+        head.flip();
+        if (head.remaining() <= inlineLimit) {
+            link(key, store(head));
+            return;
+        }
+
+        BlobFileStore.Staged staged = blobFiles.stage(head, data);
+        try {
+            addReference(staged.contentId, staged.manifest.length(), () -> {
+                blobFiles.publish(staged, staged.contentId);
+                putManifest(staged.contentId, staged.manifest);
+            });
+        } finally {
+            blobFiles.discard(staged);
+        }
+        link(key, staged.contentId);
+    }
+
+    /**
+     * Objects small enough to be kept inline are handed to MapDB as one sorted batch, which
+     * fills the BTree leaves in order rather than walking down from the root for each of them.
+     * Content is never changed once written, so it is safe to write it ahead of taking the
+     * reference counts.
+     */
+    @Override
+    public void putRaw(List<StoredObject> objects) {
+        List<String> contentIds = new ArrayList<>(objects.size());
+        SortedMap<String, byte[]> values = new TreeMap<>();
+        for (StoredObject object : objects) {
+            ByteBuffer data = object.getData();
+            if (object.getLength() > inlineLimit) {
+                contentIds.add(store(data));
+                continue;
+            }
+            String content = ContentHashes.contentId(data);
+            contentIds.add(content);
+            if (!refCounts.containsKey(content) && !values.containsKey(content)) {
+                values.put(content, encode(data));
+            }
+        }
+        logger.debug("putting " + values.size() + " new raw objects inline");
+
+        inline.putAll(values);
+        long bytes = 0;
+        for (byte[] value : values.values()) {
+            bytes += value.length;
+        }
+        committer.written(bytes);
+
+        for (int i = 0; i < objects.size(); i++) {
+            StoredObject object = objects.get(i);
+            String content = contentIds.get(i);
+            if (object.getLength() <= inlineLimit) {
+                try {
+                    addReference(content, object.getLength(), () -> {
+                        /* Released and removed again by someone else since the batch went in */
+                        if (!inline.containsKey(content)) {
+                            inline.put(content, encode(object.getData()));
+                        }
+                    });
+                } catch (IOException e) {
+                    throw new IllegalStateException("Inline writes do not do IO", e);
+                }
+            }
+            link(StorageKey.raw(object.getModuleName(), object.getModuleId(), object.getTimestamp()), content);
+        }
+    }
+
+    /**
+     * All versions of an object are next to each other in the versions map, in timestamp order,
+     * so this walks back from the given time for as long as it stays within the object, or until
+     * it reaches the deleted versions.
+     */
+    @Override
+    public List<Long> versions(String moduleName, String moduleId, long before, int limit) {
+        byte[] first = StorageKey.raw(moduleName, moduleId, Long.MIN_VALUE).toBytes();
+        byte[] end = StorageKey.raw(moduleName, moduleId, before).toBytes();
+        if (!mightExist(first, StorageKey.Kind.RAW)) {
+            return new ArrayList<>();
+        }
+        long upTo = deletedUpTo(moduleName, moduleId);
+        List<Long> timestamps = new ArrayList<>(Math.min(limit, 64));
+        for (byte[] key : versions.subMap(first, true, end, false).descendingKeySet()) {
+            long timestamp = StorageKey.timestampOf(key);
+            if (timestamps.size() == limit || timestamp <= upTo) {
+                break;
+            }
+            timestamps.add(timestamp);
+        }
+        return timestamps;
+    }
+
+    @Override
+    public Optional<Long> versionAtOrBefore(String moduleName, String moduleId, long timestamp) {
+        long upTo = deletedUpTo(moduleName, moduleId);
+        return storedAtOrBefore(StorageKey.raw(moduleName, moduleId, timestamp)).filter(found -> found > upTo);
+    }
+
+    @Override
+    public ListenableFuture<Void> commit(Durability durability) {
+        return committer.commit(durability);
+    }
+
+    /**
+     * Commits whatever is outstanding and closes the store.
+     */
+    public void close() {
+        /* Not interrupted, which would close MapDB's file channel under it */
+        running = false;
+        synchronized (compactorSignal) {
+            compactorSignal.notifyAll();
+        }
+        try {
+            compactor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        committer.shutdown();
+        db.close();
+        writeFilters();
+    }
+
+    /**
+     * @return the keys of every stored version, deleted or not, for tools that go through the
+     * whole store
+     */
+    NavigableSet<byte[]> storedKeys() {
+        return versions.keySet();
+    }
+
+    @Override
+    public void putThumbnail(String moduleName, String moduleId, long timestamp, byte[] data) {
+        StorageKey key = StorageKey.thumbnail(moduleName, moduleId, timestamp);
+        logger.debug("putting thumbnail: " + key);
+        String content = store(ByteBuffer.wrap(data));
+        link(key, content);
+
+        String raw = versions.get(key.as(StorageKey.Kind.RAW).toBytes());
+        if (raw != null) {
+            thumbnailsOf.put(raw, content);
+        }
+    }
+
+    /**
+     * Looks up the thumbnail made from the same raw content as this version, and points this
+     * version's thumbnail at it.
+     */
+    @Override
+    public boolean reuseThumbnail(String moduleName, String moduleId, long timestamp) {
+        StorageKey key = StorageKey.thumbnail(moduleName, moduleId, timestamp);
+        byte[] rawKey = key.as(StorageKey.Kind.RAW).toBytes();
+        if (!mightExist(rawKey, StorageKey.Kind.RAW)) {
+            return false;
+        }
+        String raw = versions.get(rawKey);
+        if (raw == null || isDeleted(key)) {
+            return false;
+        }
+        String thumbnail = thumbnailsOf.get(raw);
+        if (thumbnail == null) {
+            return false;
+        }
+
+        Lock lock = locks.get(thumbnail);
+        lock.lock();
+        try {
+            Long count = refCounts.get(thumbnail);
+            if (count == null) {
+                /* Every version using the thumbnail has since been overwritten */
+                thumbnailsOf.remove(raw, thumbnail);
+                return false;
+            }
+            refCounts.put(thumbnail, count + 1);
+        } finally {
+            lock.unlock();
+        }
+
+        link(key, thumbnail);
+        thumbnailsReused.mark();
+        putBytes.inc(length(thumbnail));
+        return true;
+    }
+
+    private Optional<byte[]> get(StorageKey key) {
+        byte[] bytes = key.toBytes();
+        if (!mightExist(bytes, key.kind())) {
+            return Optional.empty();
+        }
+        String id = versions.get(bytes);
+        if (id == null || isDeleted(key)) {
+            return Optional.empty();
+        }
+        byte[] value = inline.get(id);
+        if (value != null) {
+            try {
+                return Optional.of(InlineValue.decode(value));
+            } catch (IOException e) {
+                logger.error("Failed to decode inline value for: " + key, e);
+                return Optional.empty();
+            }
+        }
         byte[] arr = collection.get(id);
         if (arr != null) {
             return Optional.of(arr);
-        } else {
+        }
+
+        if (largeObjects.containsKey(id)) {
+            try {
+                return Optional.of(blobFiles.read(id, manifest(id)));
+            } catch (IOException e) {
+                logger.error("Failed to read blob file for: " + key, e);
+            }
+        }
+        return Optional.empty();
+    }
+
+    private Optional<Blob> open(StorageKey key) {
+        byte[] bytes = key.toBytes();
+        if (!mightExist(bytes, key.kind())) {
+            return Optional.empty();
+        }
+        String id = versions.get(bytes);
+        if (id == null || isDeleted(key)) {
             return Optional.empty();
         }
+        byte[] value = inline.get(id);
+        if (value != null) {
+            return Optional.of(InlineValue.open(value));
+        }
+        byte[] arr = collection.get(id);
+        if (arr != null) {
+            return Optional.of(new HeapBlob(arr));
+        }
+
+        Long length = largeObjects.get(id);
+        if (length != null) {
+            return Optional.of(blobFiles.open(id, length, manifest(id)));
+        }
+        return Optional.empty();
     }
 
-    @Override
-    public Optional<byte[]> getThumbnail(String moduleName, String moduleId, long timestamp) {
-        String id = getThumbnailId(moduleName, moduleId, timestamp);
-        logger.debug("get thumbnail: " + id);
+    private long length(String id) {
+        byte[] value = inline.get(id);
+        if (value != null) {
+            return InlineValue.length(value);
+        }
         byte[] arr = collection.get(id);
         if (arr != null) {
-            return Optional.of(arr);
+            return arr.length;
+        }
+        return largeObjects.getOrDefault(id, 0L);
+    }
+
+    /**
+     * Takes a reference to the content of the buffer, writing the content if it isn't stored yet.
+     * @return the content id
+     */
+    private String store(ByteBuffer data) {
+        String content = ContentHashes.contentId(data);
+        try {
+            addReference(content, data.remaining(), () -> write(content, data));
+        } catch (IOException e) {
+            throw new PulseException(HttpStatus.INTERNAL_ERROR, "Failed to write blob file for: " + content);
+        }
+        return content;
+    }
+
+    @FunctionalInterface
+    private interface ContentWriter {
+        void write() throws IOException;
+    }
+
+    /**
+     * Counts one more reference to the content, calling the writer first if there were none.
+     */
+    private void addReference(String content, long length, ContentWriter writer) throws IOException {
+        Lock lock = locks.get(content);
+        lock.lock();
+        try {
+            Long count = refCounts.get(content);
+            if (count == null) {
+                writer.write();
+                storedBytes.inc(length);
+            } else {
+                dedupeHits.mark();
+            }
+            refCounts.put(content, count == null ? 1L : count + 1);
+        } finally {
+            lock.unlock();
+        }
+        putBytes.inc(length);
+    }
+
+    /**
+     * Drops one reference to the content, removing the content with the last one.
+     */
+    private void release(String content) {
+        Lock lock = locks.get(content);
+        lock.lock();
+        try {
+            Long count = refCounts.get(content);
+            if (count == null) {
+                return;
+            }
+            if (count > 1) {
+                refCounts.put(content, count - 1);
+                return;
+            }
+            refCounts.remove(content);
+            thumbnailsOf.remove(content);
+            byte[] value = inline.remove(content);
+            byte[] legacy = value == null ? collection.remove(content) : null;
+            bytesReclaimed.mark(value != null ? InlineValue.length(value)
+                    : legacy != null ? legacy.length : removeLarge(content));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Points the version at the content, releasing whatever it referred to before.
+     */
+    private void link(StorageKey key, String content) {
+        byte[] bytes = key.toBytes();
+        String previous = versions.put(bytes, content);
+        remember(bytes, key.kind());
+        if (previous != null) {
+            release(previous);
+        }
+        committer.written(bytes.length + content.length());
+    }
+
+    private void write(String id, ByteBuffer data) throws IOException {
+        if (data.remaining() > inlineLimit) {
+            putManifest(id, blobFiles.write(id, data));
         } else {
-            return Optional.empty();
+            byte[] value = encode(data);
+            inline.put(id, value);
+            committer.written(value.length);
         }
     }
 
-    @Override
-    public void putRaw(String moduleName, String moduleId, long timestamp, byte[] data) {
-        String id = getRawId(moduleName, moduleId, timestamp);
-        logger.debug("putting raw: " + id);
-        collection.put(id, data);
-        //db.commit();
+    private byte[] encode(ByteBuffer data) {
+        byte[] value = InlineValue.encode(data, compression);
+        if (InlineValue.isCompressed(value)) {
+            valuesCompressed.mark();
+            compressionSaved.inc(data.remaining() + InlineValue.HEADER - value.length);
+        }
+        return value;
     }
 
-    @Override
-    public void putThumbnail(String moduleName, String moduleId, long timestamp, byte[] data) {
-        String id = getThumbnailId(moduleName, moduleId, timestamp);
-        logger.debug("putting thumbnail: " + id);
-        collection.put(id, data);
-        //db.commit();
+    private void putManifest(String id, ChunkManifest manifest) {
+        byte[] bytes = manifest.toBytes();
+        manifests.put(id, bytes);
+        largeObjects.put(id, manifest.length());
+        committer.written(Long.BYTES + bytes.length);
+    }
+
+    /**
+     * The blob file is only deleted once the removal of its entry has been committed, so that a
+     * crash can't leave a committed entry pointing at a missing file. If the same content is
+     * stored again in the meantime the file is kept.
+     * @return the length of the blob file, or 0 if there was none
+     */
+    private long removeLarge(String id) {
+        Long length = largeObjects.remove(id);
+        if (length == null) {
+            return 0;
+        }
+        manifests.remove(id);
+        Futures.addCallback(committer.commit(Durability.BATCHED), new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                Lock lock = locks.get(id);
+                lock.lock();
+                try {
+                    if (!largeObjects.containsKey(id)) {
+                        blobFiles.delete(id);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                logger.warn("Keeping blob file of " + id + " as the commit removing it failed");
+            }
+        }, MoreExecutors.directExecutor());
+        return length;
     }
 
+    private Optional<ChunkManifest> manifest(String id) {
+        return Optional.ofNullable(manifests.get(id)).map(ChunkManifest::fromBytes);
+    }
+
+    /**
+     * Writes a tombstone covering every version of the object stored so far, raw data and
+     * thumbnails alike, and leaves the rest to the compactor. Versions put afterwards are only
+     * kept if they are newer than all of the deleted ones.
+     */
     @Override
     public void delete(String moduleName, String moduleId) {
-        throw new UnsupportedOperationException("delete not yet supported");
+        Optional<Long> raw = storedAtOrBefore(StorageKey.raw(moduleName, moduleId, Long.MAX_VALUE));
+        Optional<Long> thumbnail = storedAtOrBefore(StorageKey.thumbnail(moduleName, moduleId, Long.MAX_VALUE));
+        if (!raw.isPresent() && !thumbnail.isPresent()) {
+            logger.debug("nothing stored to delete for: " + moduleName + "-" + moduleId);
+            return;
+        }
+        long newest = Math.max(raw.orElse(Long.MIN_VALUE), thumbnail.orElse(Long.MIN_VALUE));
+
+        byte[] prefix = StorageKey.prefix(StorageKey.Kind.RAW, moduleName, moduleId);
+        ByteBuffer object = ByteBuffer.wrap(prefix);
+        Lock lock = locks.get(object);
+        lock.lock();
+        try {
+            deleted.put(object, tombstones.merge(prefix, newest, Math::max));
+        } finally {
+            lock.unlock();
+        }
+        committer.written(prefix.length + Long.BYTES);
+        synchronized (compactorSignal) {
+            compactorSignal.notifyAll();
+        }
+    }
+
+    /**
+     * @return the timestamp of the newest version at or before the key's, whether deleted or not
+     */
+    private Optional<Long> storedAtOrBefore(StorageKey key) {
+        byte[] first = new StorageKey(key.kind(), key.moduleName(), key.moduleId(), Long.MIN_VALUE).toBytes();
+        if (!mightExist(first, key.kind())) {
+            return Optional.empty();
+        }
+        byte[] found = versions.floorKey(key.toBytes());
+        if (found == null || versions.comparator().compare(found, first) < 0) {
+            /* Nothing, or the last version of whatever object sorts before this one */
+            return Optional.empty();
+        }
+        return Optional.of(StorageKey.timestampOf(found));
+    }
+
+    /**
+     * @return the timestamp up to which the object's versions have been deleted, or
+     * {@link Long#MIN_VALUE} if none have
+     */
+    private long deletedUpTo(String moduleName, String moduleId) {
+        if (deleted.isEmpty()) {
+            return Long.MIN_VALUE;
+        }
+        Long upTo = deleted.get(ByteBuffer.wrap(StorageKey.prefix(StorageKey.Kind.RAW, moduleName, moduleId)));
+        return upTo == null ? Long.MIN_VALUE : upTo;
+    }
+
+    private boolean isDeleted(StorageKey key) {
+        return key.timestamp() <= deletedUpTo(key.moduleName(), key.moduleId());
+    }
+
+    /**
+     * @return false if the bloom filter says the object has no versions of the kind
+     */
+    private boolean mightExist(byte[] key, StorageKey.Kind kind) {
+        ObjectBloomFilter[] current = filters;
+        if (current == null || current[kind.ordinal()].mightContain(key)) {
+            return true;
+        }
+        bloomNegatives.mark();
+        return false;
+    }
+
+    /**
+     * Adds a version that was just put to the bloom filters. Reading the filters being built
+     * first means that a version the build has already gone past is always in the filters in use
+     * once the build is done.
+     */
+    private void remember(byte[] key, StorageKey.Kind kind) {
+        ObjectBloomFilter[] next = rebuilding;
+        ObjectBloomFilter[] current = filters;
+        if (next != null) {
+            next[kind.ordinal()].put(key);
+        }
+        if (current != null) {
+            current[kind.ordinal()].put(key);
+        }
     }
 
-    private String getRawId(String moduleName, String moduleId, long timestamp) {
-        return "raw-" + moduleName + "-" + moduleId + "-" + timestamp;
+    private boolean filtersNeedBuilding() {
+        ObjectBloomFilter[] current = filters;
+        if (current == null) {
+            return true;
+        }
+        for (ObjectBloomFilter filter : current) {
+            if (filter.expectedFpp() > BLOOM_REBUILD_FPP) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Builds new bloom filters from every stored version, with room for twice as many objects as
+     * the fullest of the current ones holds, or as there are versions if there are no filters yet.
+     */
+    private void buildFilters() {
+        ObjectBloomFilter[] current = filters;
+        long objects = BLOOM_MIN_OBJECTS;
+        if (current == null) {
+            objects = Math.max(objects, versions.size());
+        } else {
+            for (ObjectBloomFilter filter : current) {
+                objects = Math.max(objects, 2 * filter.approximateObjects());
+            }
+        }
+        long start = System.nanoTime();
+        ObjectBloomFilter[] next = new ObjectBloomFilter[StorageKey.Kind.values().length];
+        for (int i = 0; i < next.length; i++) {
+            next[i] = ObjectBloomFilter.create(objects, BLOOM_FPP);
+        }
+        rebuilding = next;
+        byte[] last = null;
+        long inserted = 0;
+        for (byte[] key : versions.keySet()) {
+            if (!running) {
+                rebuilding = null;
+                return;
+            }
+            if (last == null || !StorageKey.sameObject(last, key)) {
+                next[StorageKey.Kind.of(key[0]).ordinal()].put(key);
+                last = key;
+                inserted++;
+            }
+        }
+        filters = next;
+        rebuilding = null;
+        logger.info("Built storage bloom filters for " + inserted + " objects, sized for " + objects + ", in " +
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+
+    /**
+     * Reads the filters written when the store was last closed, and removes them, so that they
+     * aren't read again after a crash that leaves them behind the store.
+     */
+    private static ObjectBloomFilter[] readFilters(File snapshot) {
+        if (!snapshot.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot)))) {
+            if (in.readInt() != BLOOM_SNAPSHOT_VERSION || in.readInt() != StorageKey.Kind.values().length) {
+                return null;
+            }
+            ObjectBloomFilter[] read = new ObjectBloomFilter[StorageKey.Kind.values().length];
+            for (int i = 0; i < read.length; i++) {
+                read[i] = ObjectBloomFilter.readFrom(in);
+            }
+            return read;
+        } catch (IOException e) {
+            logger.warn("Could not read storage bloom filters, building them again", e);
+            return null;
+        } finally {
+            if (!snapshot.delete()) {
+                throw new IllegalStateException("Could not remove storage bloom filters at " + snapshot);
+            }
+        }
+    }
+
+    private void writeFilters() {
+        ObjectBloomFilter[] current = filters;
+        if (current == null) {
+            return;
+        }
+        File temp = new File(bloomSnapshot.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(BLOOM_SNAPSHOT_VERSION);
+            out.writeInt(current.length);
+            for (ObjectBloomFilter filter : current) {
+                filter.writeTo(out);
+            }
+        } catch (IOException e) {
+            logger.warn("Could not write storage bloom filters, they will be built again", e);
+            return;
+        }
+        if (!temp.renameTo(bloomSnapshot)) {
+            logger.warn("Could not move storage bloom filters into place, they will be built again");
+        }
+    }
+
+    /**
+     * Works through the tombstones one at a time for as long as the store is open, and sweeps for
+     * expired versions when there are none left, waiting for new ones when neither has anything
+     * to do.
+     */
+    private void compact() {
+        while (running) {
+            try {
+                if (filtersNeedBuilding()) {
+                    buildFilters();
+                    continue;
+                }
+                Map.Entry<byte[], Long> tombstone = tombstones.firstEntry();
+                if (tombstone == null) {
+                    if (sweep()) {
+                        continue;
+                    }
+                    compacted(0, true);
+                    synchronized (compactorSignal) {
+                        if (running && tombstones.isEmpty()) {
+                            compactorSignal.wait(COMPACTOR_IDLE_MILLIS);
+                        }
+                    }
+                    continue;
+                }
+                compact(tombstone.getKey(), tombstone.getValue());
+            } catch (InterruptedException e) {
+                logger.warn("Storage compactor interrupted, stopping");
+                return;
+            } catch (RuntimeException e) {
+                logger.error("Failed to compact deleted versions, retrying", e);
+                try {
+                    Thread.sleep(COMPACTOR_IDLE_MILLIS);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the versions of both kinds that the tombstone covers, then the tombstone itself
+     * unless a later delete has moved it on in the meantime. Versions are removed one at a time
+     * under the compaction rate, and a version overwritten at the same moment is released only
+     * once, by whichever of the two removed it from the map.
+     */
+    private void compact(byte[] prefix, long upTo) {
+        for (StorageKey.Kind kind : StorageKey.Kind.values()) {
+            byte[] first = StorageKey.key(prefix, kind, Long.MIN_VALUE);
+            byte[] last = StorageKey.key(prefix, kind, upTo);
+            for (byte[] key : versions.subMap(first, true, last, true).keySet()) {
+                if (!running) {
+                    return;
+                }
+                compactionRate.acquire();
+                String content = versions.remove(key);
+                if (content != null) {
+                    release(content);
+                    compacted(key.length, false);
+                    versionsCompacted.mark();
+                }
+            }
+        }
+        ByteBuffer object = ByteBuffer.wrap(prefix);
+        Lock lock = locks.get(object);
+        lock.lock();
+        try {
+            if (tombstones.remove(prefix, upTo)) {
+                deleted.remove(object);
+            }
+        } finally {
+            lock.unlock();
+        }
+        compacted(prefix.length, false);
+    }
+
+    /**
+     * Sweeps the next slice of the raw versions of the modules with a retention rule, always
+     * finishing the object it is in. Once it has been through all of the modules it waits out the
+     * sweep interval before starting over.
+     * @return false if there was nothing to sweep
+     */
+    private boolean sweep() {
+        long now = System.nanoTime();
+        if (sweptModules.isEmpty() || now - nextSweep < 0) {
+            return false;
+        }
+        if (sweepModule == sweptModules.size()) {
+            sweepModule = 0;
+            nextSweep = now + TimeUnit.MILLISECONDS.toNanos(retention.sweepIntervalMillis());
+            return false;
+        }
+
+        String module = sweptModules.get(sweepModule);
+        RetentionPolicy.Rule rule = retention.rule(module).get();
+        byte[] prefix = StorageKey.prefix(StorageKey.Kind.RAW, module);
+        NavigableMap<byte[], String> slice = sweepCursor == null ?
+                versions.subMap(prefix, true, StorageKey.end(prefix), false) :
+                versions.subMap(sweepCursor, false, StorageKey.end(prefix), false);
+
+        List<byte[]> keys = new ArrayList<>();
+        List<String> contents = new ArrayList<>();
+        int swept = 0;
+        for (Map.Entry<byte[], String> version : slice.entrySet()) {
+            if (!keys.isEmpty() && !StorageKey.sameObject(keys.get(0), version.getKey())) {
+                expire(rule, keys, contents);
+                sweepCursor = keys.get(keys.size() - 1);
+                keys.clear();
+                contents.clear();
+                if (swept >= SWEEP_SLICE || !running) {
+                    return true;
+                }
+            }
+            keys.add(version.getKey());
+            contents.add(version.getValue());
+            swept++;
+        }
+        if (!keys.isEmpty()) {
+            expire(rule, keys, contents);
+        }
+        sweepModule++;
+        sweepCursor = null;
+        return true;
+    }
+
+    /**
+     * Removes the versions of one object that the rule doesn't keep, along with their thumbnails.
+     * @param keys the keys of all the object's raw versions, oldest first
+     * @param contents the content each of the versions referred to
+     */
+    private void expire(RetentionPolicy.Rule rule, List<byte[]> keys, List<String> contents) {
+        int count = keys.size();
+        long[] timestamps = new long[count];
+        long[] lengths = new long[count];
+        for (int i = 0; i < count; i++) {
+            int version = count - 1 - i;
+            timestamps[i] = StorageKey.timestampOf(keys.get(version));
+            if (rule.limitsBytes()) {
+                lengths[i] = length(contents.get(version));
+            }
+        }
+
+        int expired = count - rule.keep(System.currentTimeMillis(), timestamps, lengths, count);
+        for (int i = 0; i < expired; i++) {
+            byte[] key = keys.get(i);
+            compactionRate.acquire();
+            /* Only if it wasn't put again since the sweep read it */
+            if (!versions.remove(key, contents.get(i))) {
+                continue;
+            }
+            release(contents.get(i));
+            compacted(key.length, false);
+
+            byte[] thumbnail = StorageKey.as(key, StorageKey.Kind.THUMBNAIL);
+            String content = versions.remove(thumbnail);
+            if (content != null) {
+                release(content);
+                compacted(thumbnail.length, false);
+            }
+            versionsExpired.mark();
+        }
+    }
+
+    /**
+     * Hands what the compactor wrote to the committer about once a second rather than with every
+     * version, so that compaction alone doesn't have the store commit every commit interval.
+     * Removals that are lost to a crash are simply done again, as their tombstone is still there.
+     */
+    private void compacted(long bytes, boolean idle) {
+        uncommittedCompaction += bytes;
+        long now = System.nanoTime();
+        if (uncommittedCompaction > 0 && (idle || now - lastCompactionCommit >= COMPACTOR_COMMIT_NANOS)) {
+            committer.written(uncommittedCompaction);
+            uncommittedCompaction = 0;
+            lastCompactionCommit = now;
+        }
+    }
+
+    /**
+     * @return whether the store still has versions under the string keys used before
+     * {@link StorageKey}
+     */
+    static boolean hasLegacyKeys(DB db, NavigableMap<String, ?> collection, NavigableMap<String, ?> largeObjects) {
+        if (db.exists(LEGACY_REFS)) {
+            return true;
+        }
+        for (String prefix : LEGACY_PREFIXES) {
+            if (hasPrefix(collection, prefix) || hasPrefix(largeObjects, prefix)) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    private String getThumbnailId(String moduleName, String moduleId, long timestamp) {
-        return "thumbnail-" + moduleName + "-" + moduleId + "-" + timestamp;
+    private static boolean hasPrefix(NavigableMap<String, ?> map, String prefix) {
+        String key = map.ceilingKey(prefix);
+        return key != null && key.startsWith(prefix);
     }
 }
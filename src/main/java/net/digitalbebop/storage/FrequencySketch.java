@@ -0,0 +1,61 @@
+package net.digitalbebop.storage;
+
+/**
+ * Estimates how often keys have been seen lately, for the TinyLFU admission of
+ * {@link OffHeapCache}. A count-min sketch of four 4-bit counters per key, halved every ten
+ * times the table size additions so that old popularity fades. Not thread safe.
+ */
+final class FrequencySketch {
+    private static final int[] SEEDS = {0x97cb3127, 0xb3a0f4d5, 0x4f8e2c3b, 0xe1d6a7f9};
+    private static final long HALF_MASK = 0x7777777777777777L;
+    private static final int MAX_COUNT = 15;
+
+    private final long[] table; // sixteen counters per long
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * @param entries roughly how many keys the cache holds
+     */
+    FrequencySketch(int entries) {
+        int size = Integer.highestOneBit(Math.max(entries, 64) - 1) << 1;
+        this.table = new long[size];
+        this.mask = size - 1;
+        this.sampleSize = 10 * size;
+    }
+
+    int frequency(int hash) {
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < SEEDS.length; i++) {
+            int h = spread(hash, i);
+            int offset = (h >>> 28) << 2;
+            frequency = Math.min(frequency, (int) (table[h & mask] >>> offset) & MAX_COUNT);
+        }
+        return frequency;
+    }
+
+    void increment(int hash) {
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            int h = spread(hash, i);
+            int offset = (h >>> 28) << 2;
+            int index = h & mask;
+            if (((table[index] >>> offset) & MAX_COUNT) < MAX_COUNT) {
+                table[index] += 1L << offset;
+                added = true;
+            }
+        }
+        if (added && ++additions == sampleSize) {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & HALF_MASK;
+            }
+            additions /= 2;
+        }
+    }
+
+    private static int spread(int hash, int i) {
+        int h = (hash ^ SEEDS[i]) * 0x9e3779b1;
+        return h ^ (h >>> 15);
+    }
+}
@@ -0,0 +1,164 @@
+package net.digitalbebop.storage;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batches the commits of a store. Writers report how much they wrote, and a single committer
+ * thread commits as soon as someone waits on a commit and the previous one has finished, or at
+ * the latest an interval after the first uncommitted write, or once enough bytes pile up.
+ * Everyone who starts waiting while a commit runs shares the next one, so the cost of an fsync is
+ * spread over all of the writes it covers.
+ */
+class GroupCommitter {
+    private static final Logger logger = LogManager.getLogger(GroupCommitter.class);
+
+    @FunctionalInterface
+    interface Commit {
+        void commit() throws IOException;
+    }
+
+    private final Commit commit;
+    private final long intervalNanos;
+    private final long maxPendingBytes;
+    private final Thread committer;
+
+    private final Object lock = new Object();
+    private SettableFuture<Void> next = SettableFuture.create(); // guarded by lock
+    private long pendingBytes; // guarded by lock
+    private boolean dirty; // guarded by lock
+    private boolean waiting; // guarded by lock
+    private boolean running = true; // guarded by lock
+    private long dirtySinceNanos; // guarded by lock
+
+    private final Timer latency;
+    private final Histogram commitSizes;
+
+    /**
+     * @param intervalMillis how long a write nobody waits on may stay uncommitted
+     * @param maxPendingBytes how many uncommitted bytes trigger a commit before the interval is up
+     */
+    GroupCommitter(String name, Commit commit, long intervalMillis, long maxPendingBytes, MetricRegistry metrics) {
+        this.commit = commit;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.maxPendingBytes = maxPendingBytes;
+        this.latency = metrics.timer(MetricRegistry.name(GroupCommitter.class, name, "commit-latency"));
+        this.commitSizes = metrics.histogram(MetricRegistry.name(GroupCommitter.class, name, "commit-bytes"));
+
+        this.committer = new Thread(this::run, name + "-group-commit");
+        this.committer.setDaemon(true);
+        this.committer.start();
+    }
+
+    /**
+     * Notes that the given number of bytes were written and will need committing.
+     */
+    void written(long bytes) {
+        synchronized (lock) {
+            boolean wasDirty = dirty;
+            pendingBytes += bytes;
+            markDirty();
+            if (!wasDirty || pendingBytes >= maxPendingBytes) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return a future that completes once everything written before the call is as durable
+     * as asked for, or fails if the commit covering it did
+     */
+    ListenableFuture<Void> commit(Durability durability) {
+        if (durability == Durability.ASYNC) {
+            return Futures.immediateFuture(null);
+        }
+        synchronized (lock) {
+            if (!running) {
+                return Futures.immediateFailedFuture(new IOException("Store has been shut down"));
+            }
+            markDirty();
+            waiting = true;
+            lock.notifyAll();
+            return next;
+        }
+    }
+
+    private void markDirty() {
+        if (!dirty) {
+            dirty = true;
+            dirtySinceNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Commits whatever is outstanding and stops the committer.
+     */
+    void shutdown() {
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+        }
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        for (;;) {
+            final SettableFuture<Void> committing;
+            final long bytes;
+            synchronized (lock) {
+                try {
+                    while (running && !dirty) {
+                        lock.wait();
+                    }
+                    while (running && !waiting && pendingBytes < maxPendingBytes) {
+                        long wait = dirtySinceNanos + intervalNanos - System.nanoTime();
+                        if (wait <= 0) {
+                            break;
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(lock, wait);
+                    }
+                } catch (InterruptedException e) {
+                    logger.warn("Group committer interrupted, stopping");
+                    running = false;
+                    next.setException(new IOException("Group committer was interrupted"));
+                    return;
+                }
+                if (!running && !dirty) {
+                    return;
+                }
+
+                committing = next;
+                bytes = pendingBytes;
+                next = SettableFuture.create();
+                pendingBytes = 0;
+                dirty = false;
+                waiting = false;
+            }
+
+            Timer.Context time = latency.time();
+            try {
+                commit.commit();
+                committing.set(null);
+            } catch (IOException | RuntimeException e) {
+                logger.error("Group commit of " + bytes + " bytes failed", e);
+                committing.setException(e);
+            } finally {
+                time.stop();
+            }
+            commitSizes.update(bytes);
+        }
+    }
+}
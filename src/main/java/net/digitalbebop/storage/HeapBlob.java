@@ -0,0 +1,51 @@
+package net.digitalbebop.storage;
+
+import co.paralleluniverse.fibers.Suspendable;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Blob backed by a byte array, used for objects that are small enough to be kept inline.
+ */
+public class HeapBlob implements Blob {
+    private final byte[] data;
+    private final int offset;
+    private final int length;
+
+    public HeapBlob(byte[] data) {
+        this(data, 0, data.length);
+    }
+
+    /**
+     * Wraps just a range of the array, such as an inline value without its header.
+     */
+    public HeapBlob(byte[] data, int offset, int length) {
+        this.data = data;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public InputStream openStream() {
+        return new ByteArrayInputStream(data, offset, length);
+    }
+
+    @Override
+    @Suspendable
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(data, offset + (int) position, (int) count);
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,181 @@
+package net.digitalbebop.storage;
+
+import co.paralleluniverse.fibers.Suspendable;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Encoding of the values {@link FileStorageConduit} keeps inline in MapDB: a codec byte, the
+ * length of the content as 4 bytes, and then the content as the codec left it. Content that
+ * doesn't shrink by at least an eighth is stored as it is.
+ */
+final class InlineValue {
+    static final byte STORED = 0;
+    static final byte DEFLATED = 1;
+    static final int HEADER = 5;
+    private static final int TRANSFER_CHUNK = 16*1024;
+
+    private InlineValue() {}
+
+    static byte[] encode(ByteBuffer data, CompressionPolicy policy) {
+        int length = data.remaining();
+        if (policy.shouldCompress(data)) {
+            byte[] deflated = deflate(data, policy.level(), length - length / 8);
+            if (deflated != null) {
+                return deflated;
+            }
+        }
+        byte[] value = header(STORED, length, HEADER + length);
+        data.duplicate().get(value, HEADER, length);
+        return value;
+    }
+
+    /**
+     * @return the length of the content
+     */
+    static int length(byte[] value) {
+        return ByteBuffer.wrap(value, 1, Integer.BYTES).getInt();
+    }
+
+    static boolean isCompressed(byte[] value) {
+        return value[0] == DEFLATED;
+    }
+
+    static byte[] decode(byte[] value) throws IOException {
+        if (value[0] == STORED) {
+            return Arrays.copyOfRange(value, HEADER, value.length);
+        }
+        byte[] content = new byte[length(value)];
+        Inflater inflater = inflater(value);
+        try {
+            int n = 0;
+            while (n < content.length) {
+                int inflated = inflater.inflate(content, n, content.length - n);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += inflated;
+            }
+            if (n != content.length) {
+                throw new IOException("Deflated value is " + n + " bytes, expected " + content.length);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt deflated value", e);
+        } finally {
+            inflater.end();
+        }
+        return content;
+    }
+
+    /**
+     * @return the content to send, inflated as it is sent if it is compressed
+     */
+    static Blob open(byte[] value) {
+        if (value[0] == STORED) {
+            return new HeapBlob(value, HEADER, value.length - HEADER);
+        }
+        return new DeflatedBlob(value);
+    }
+
+    /**
+     * @return the encoded value, or null if it would be longer than the limit
+     */
+    private static byte[] deflate(ByteBuffer data, int level, int limit) {
+        byte[] input;
+        int offset;
+        if (data.hasArray()) {
+            input = data.array();
+            offset = data.arrayOffset() + data.position();
+        } else {
+            input = new byte[data.remaining()];
+            data.duplicate().get(input);
+            offset = 0;
+        }
+        byte[] value = header(DEFLATED, data.remaining(), HEADER + limit);
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(input, offset, data.remaining());
+            deflater.finish();
+            int n = HEADER;
+            while (!deflater.finished() && n < value.length) {
+                n += deflater.deflate(value, n, value.length - n);
+            }
+            return deflater.finished() ? Arrays.copyOf(value, n) : null;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] header(byte codec, int length, int capacity) {
+        byte[] value = new byte[capacity];
+        ByteBuffer.wrap(value).put(codec).putInt(length);
+        return value;
+    }
+
+    private static Inflater inflater(byte[] value) {
+        Inflater inflater = new Inflater();
+        inflater.setInput(value, HEADER, value.length - HEADER);
+        return inflater;
+    }
+
+    /**
+     * Inflates a chunk at a time straight into the target, so sending never holds the whole
+     * content.
+     */
+    private static final class DeflatedBlob implements Blob {
+        private final byte[] value;
+
+        DeflatedBlob(byte[] value) {
+            this.value = value;
+        }
+
+        @Override
+        public long length() {
+            return InlineValue.length(value);
+        }
+
+        @Override
+        public InputStream openStream() {
+            return new InflaterInputStream(new ByteArrayInputStream(value, HEADER, value.length - HEADER));
+        }
+
+        @Override
+        @Suspendable
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            Inflater inflater = inflater(value);
+            byte[] chunk = new byte[(int) Math.min(TRANSFER_CHUNK, position + count)];
+            try {
+                long skipped = 0;
+                long sent = 0;
+                while (sent < count) {
+                    int n = inflater.inflate(chunk);
+                    if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new IOException("Deflated value ended after " + (skipped + sent) + " bytes");
+                    }
+                    int from = (int) Math.min(n, position - skipped);
+                    skipped += from;
+                    int length = (int) Math.min(n - from, count - sent);
+                    ByteBuffer buffer = ByteBuffer.wrap(chunk, from, length);
+                    while (buffer.hasRemaining()) {
+                        target.write(buffer);
+                    }
+                    sent += length;
+                }
+                return count;
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt deflated value", e);
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+}
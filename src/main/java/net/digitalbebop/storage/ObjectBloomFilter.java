@@ -0,0 +1,122 @@
+package net.digitalbebop.storage;
+
+import com.google.common.hash.Hashing;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter over the objects of one kind in {@link FileStorageConduit}, keyed by the
+ * {@link StorageKey} of a version without its timestamp, so that lookups of objects that were
+ * never stored don't have to go to the store. Objects can't be taken out again, deleted ones only
+ * cost false positives until the filter is next rebuilt. Safe for concurrent use without locks.
+ */
+final class ObjectBloomFilter {
+    private final AtomicLongArray words;
+    private final long bits;
+    private final int hashes;
+    private final AtomicLong bitsSet = new AtomicLong();
+
+    /**
+     * @param objects how many objects the filter is sized for
+     * @param fpp the false positive rate wanted with that many objects in it
+     */
+    static ObjectBloomFilter create(long objects, double fpp) {
+        long bits = Math.max(64, (long) (-objects * Math.log(fpp) / (Math.log(2) * Math.log(2))));
+        int hashes = Math.max(1, (int) Math.round((double) bits / objects * Math.log(2)));
+        return new ObjectBloomFilter(new AtomicLongArray((int) ((bits + 63) / 64)), hashes);
+    }
+
+    private ObjectBloomFilter(AtomicLongArray words, int hashes) {
+        this.words = words;
+        this.bits = 64L * words.length();
+        this.hashes = hashes;
+    }
+
+    /**
+     * @param key an encoded key of any version of the object
+     */
+    void put(byte[] key) {
+        ByteBuffer hash = hash(key);
+        long h1 = hash.getLong(0);
+        long h2 = hash.getLong(Long.BYTES);
+        for (int i = 0; i < hashes; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bits;
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long old = words.get(word);
+            while ((old & mask) == 0) {
+                if (words.compareAndSet(word, old, old | mask)) {
+                    bitsSet.incrementAndGet();
+                    break;
+                }
+                old = words.get(word);
+            }
+        }
+    }
+
+    /**
+     * @return false if no version of the object was ever put
+     */
+    boolean mightContain(byte[] key) {
+        ByteBuffer hash = hash(key);
+        long h1 = hash.getLong(0);
+        long h2 = hash.getLong(Long.BYTES);
+        for (int i = 0; i < hashes; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bits;
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the chance of a false positive for an object that isn't in the filter, from how
+     * full it is
+     */
+    double expectedFpp() {
+        return Math.pow((double) bitsSet.get() / bits, hashes);
+    }
+
+    /**
+     * @return roughly how many objects have been put, from how full the filter is
+     */
+    long approximateObjects() {
+        double full = Math.min((double) bitsSet.get() / bits, 1 - 1.0 / bits);
+        return Math.round(-(double) bits / hashes * Math.log(1 - full));
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(hashes);
+        out.writeInt(words.length());
+        for (int i = 0; i < words.length(); i++) {
+            out.writeLong(words.get(i));
+        }
+    }
+
+    static ObjectBloomFilter readFrom(DataInputStream in) throws IOException {
+        int hashes = in.readInt();
+        AtomicLongArray words = new AtomicLongArray(in.readInt());
+        ObjectBloomFilter filter = new ObjectBloomFilter(words, hashes);
+        long set = 0;
+        for (int i = 0; i < words.length(); i++) {
+            long word = in.readLong();
+            words.set(i, word);
+            set += Long.bitCount(word);
+        }
+        filter.bitsSet.set(set);
+        return filter;
+    }
+
+    /**
+     * Leaves the timestamp out, so that every version of the object hashes the same.
+     */
+    private static ByteBuffer hash(byte[] key) {
+        return ByteBuffer.wrap(Hashing.murmur3_128().hashBytes(key, 0, key.length - Long.BYTES).asBytes());
+    }
+}
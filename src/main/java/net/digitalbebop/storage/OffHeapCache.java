@@ -0,0 +1,271 @@
+package net.digitalbebop.storage;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A byte bounded cache of values kept in direct buffers, out of the heap, for
+ * {@link CachingStorageConduit}. New values go into a small LRU window, and those pushed out of
+ * it only make it into the main LRU when {@link FrequencySketch} says they are asked for more
+ * often than what they would evict, so that a run of one-off reads doesn't flush the hot values
+ * (W-TinyLFU). Values read only once lately aren't taken in at all, which spares one-off
+ * downloads the copy. Reads copy the value out, so a value can be evicted and freed while it is
+ * sent.
+ */
+final class OffHeapCache {
+    private static final int WINDOW_PERCENT = 1;
+    private static final int INVALIDATION_STRIPES = 64;
+
+    private static final class Entry {
+        final ByteBuffer key;
+        final int hash;
+        final ByteBuffer data;
+        /* One for being in the cache, one for every read copying it out */
+        final AtomicInteger refs = new AtomicInteger(1);
+
+        Entry(ByteBuffer key, int hash, ByteBuffer data) {
+            this.key = key;
+            this.hash = hash;
+            this.data = data;
+        }
+
+        int length() {
+            return data.capacity();
+        }
+
+        void retain() {
+            refs.incrementAndGet();
+        }
+
+        void release() {
+            if (refs.decrementAndGet() == 0) {
+                /*
+                 * Direct buffers are otherwise only freed once they are garbage collected, which
+                 * lets evicted values hold on to memory well past the budget.
+                 */
+                DirectBuffers.free(data);
+            }
+        }
+    }
+
+    private final long windowCapacity;
+    private final long mainCapacity;
+    private final int maxEntryBytes;
+    private final FrequencySketch sketch;
+    /* Both in access order, least recently used first; guarded by this */
+    private final LinkedHashMap<ByteBuffer, Entry> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<ByteBuffer, Entry> main = new LinkedHashMap<>(16, 0.75f, true);
+    private long windowBytes; // guarded by this
+    private long mainBytes; // guarded by this
+    /* Invalidations by stripe of the key's hash, written under this */
+    private final AtomicLongArray invalidations = new AtomicLongArray(INVALIDATION_STRIPES);
+
+    private final Meter hits;
+    private final Meter misses;
+    private final Meter evictions;
+    private final Meter rejections;
+
+    /**
+     * @param name scopes the metrics, one per kind of value
+     * @param averageEntryBytes sizes the frequency sketch
+     */
+    OffHeapCache(String name, long capacity, int maxEntryBytes, int averageEntryBytes, MetricRegistry metrics) {
+        this.windowCapacity = capacity * WINDOW_PERCENT / 100;
+        this.mainCapacity = capacity - windowCapacity;
+        this.maxEntryBytes = maxEntryBytes;
+        this.sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, capacity / averageEntryBytes));
+
+        hits = metrics.meter(MetricRegistry.name(OffHeapCache.class, name, "hits"));
+        misses = metrics.meter(MetricRegistry.name(OffHeapCache.class, name, "misses"));
+        evictions = metrics.meter(MetricRegistry.name(OffHeapCache.class, name, "evictions"));
+        rejections = metrics.meter(MetricRegistry.name(OffHeapCache.class, name, "rejections"));
+        String ratio = MetricRegistry.name(OffHeapCache.class, name, "hit-ratio");
+        metrics.remove(ratio);
+        metrics.register(ratio, new RatioGauge() {
+            @Override
+            protected Ratio getRatio() {
+                return Ratio.of(hits.getOneMinuteRate(), hits.getOneMinuteRate() + misses.getOneMinuteRate());
+            }
+        });
+        String bytes = MetricRegistry.name(OffHeapCache.class, name, "bytes");
+        metrics.remove(bytes);
+        metrics.register(bytes, (Gauge<Long>) this::bytes);
+    }
+
+    Optional<byte[]> get(byte[] key) {
+        ByteBuffer k = ByteBuffer.wrap(key);
+        Entry entry;
+        synchronized (this) {
+            sketch.increment(k.hashCode());
+            entry = window.get(k);
+            if (entry == null) {
+                entry = main.get(k);
+            }
+            if (entry == null) {
+                misses.mark();
+                return Optional.empty();
+            }
+            entry.retain();
+        }
+        try {
+            byte[] value = new byte[entry.length()];
+            entry.data.duplicate().get(value);
+            hits.mark();
+            return Optional.of(value);
+        } finally {
+            entry.release();
+        }
+    }
+
+    /**
+     * @return a stamp to {@link #put} the key's value read after it with, so that the value is
+     * dropped if the key was invalidated while it was being read. Keys share the stamps of their
+     * stripe, so now and then a value is dropped for another key's invalidation.
+     */
+    long stamp(byte[] key) {
+        return invalidations.get(stripe(ByteBuffer.wrap(key).hashCode()));
+    }
+
+    boolean fits(long length) {
+        return length <= maxEntryBytes && length <= mainCapacity;
+    }
+
+    void put(byte[] key, byte[] value, long stamp) {
+        if (!fits(value.length)) {
+            return;
+        }
+        ByteBuffer k = ByteBuffer.wrap(key);
+        synchronized (this) {
+            /* Not even copied out of the heap until it is asked for a second time */
+            if (sketch.frequency(k.hashCode()) < 2) {
+                return;
+            }
+        }
+        ByteBuffer data = ByteBuffer.allocateDirect(value.length);
+        data.put(value).flip();
+        Entry entry = new Entry(k, k.hashCode(), data);
+        synchronized (this) {
+            if (invalidations.get(stripe(entry.hash)) != stamp || window.containsKey(k) || main.containsKey(k)) {
+                entry.release();
+                return;
+            }
+            window.put(k, entry);
+            windowBytes += entry.length();
+            while (windowBytes > windowCapacity) {
+                Entry candidate = window.values().iterator().next();
+                window.remove(candidate.key);
+                windowBytes -= candidate.length();
+                admit(candidate);
+            }
+        }
+    }
+
+    /**
+     * Moves a value pushed out of the window into the main LRU, if it is wanted more often than
+     * each of the values it would evict.
+     */
+    private void admit(Entry candidate) {
+        long needed = mainBytes + candidate.length() - mainCapacity;
+        if (needed > 0) {
+            int frequency = sketch.frequency(candidate.hash);
+            long freed = 0;
+            for (Iterator<Entry> victims = main.values().iterator(); freed < needed; ) {
+                Entry victim = victims.next();
+                if (sketch.frequency(victim.hash) >= frequency) {
+                    rejections.mark();
+                    candidate.release();
+                    return;
+                }
+                freed += victim.length();
+            }
+            freed = 0;
+            for (Iterator<Entry> victims = main.values().iterator(); freed < needed; ) {
+                Entry victim = victims.next();
+                victims.remove();
+                freed += victim.length();
+                mainBytes -= victim.length();
+                evictions.mark();
+                victim.release();
+            }
+        }
+        main.put(candidate.key, candidate);
+        mainBytes += candidate.length();
+    }
+
+    synchronized void invalidate(byte[] key) {
+        ByteBuffer k = ByteBuffer.wrap(key);
+        invalidations.incrementAndGet(stripe(k.hashCode()));
+        remove(window.remove(k), true);
+        remove(main.remove(k), false);
+    }
+
+    /**
+     * Drops every key that starts with the prefix.
+     */
+    synchronized void invalidatePrefix(byte[] prefix) {
+        invalidateAll();
+        removePrefix(window, prefix, true);
+        removePrefix(main, prefix, false);
+    }
+
+    synchronized void clear() {
+        invalidateAll();
+        window.values().forEach(Entry::release);
+        main.values().forEach(Entry::release);
+        window.clear();
+        main.clear();
+        windowBytes = 0;
+        mainBytes = 0;
+    }
+
+    synchronized long bytes() {
+        return windowBytes + mainBytes;
+    }
+
+    private void invalidateAll() {
+        for (int i = 0; i < INVALIDATION_STRIPES; i++) {
+            invalidations.incrementAndGet(i);
+        }
+    }
+
+    private static int stripe(int hash) {
+        return (hash ^ (hash >>> 16)) & (INVALIDATION_STRIPES - 1);
+    }
+
+    private void removePrefix(Map<ByteBuffer, Entry> entries, byte[] prefix, boolean inWindow) {
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (startsWith(entry.key.array(), prefix)) {
+                it.remove();
+                remove(entry, inWindow);
+            }
+        }
+    }
+
+    private void remove(Entry entry, boolean inWindow) {
+        if (entry == null) {
+            return;
+        }
+        if (inWindow) {
+            windowBytes -= entry.length();
+        } else {
+            mainBytes -= entry.length();
+        }
+        entry.release();
+    }
+
+    private static boolean startsWith(byte[] key, byte[] prefix) {
+        return key.length >= prefix.length && Arrays.equals(Arrays.copyOf(key, prefix.length), prefix);
+    }
+}
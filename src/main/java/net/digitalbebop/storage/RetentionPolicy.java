@@ -0,0 +1,161 @@
+package net.digitalbebop.storage;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long the raw data of each module is kept. Rules are given per module name in the
+ * storageRetention property, separated by semicolons, each as the module name followed by any of
+ * <pre>
+ *     maxAge=30d       versions older than this go, suffixed s, m, h or d
+ *     maxVersions=10   only the newest versions of each object are kept
+ *     maxBytes=100m    only the newest versions of each object that fit in this are kept,
+ *                      suffixed k, m or g
+ * </pre>
+ * for example {@code chat maxAge=30d; news maxAge=90d maxVersions=10}. Modules without a rule
+ * keep every version. Apart from maxAge the newest version of an object is always kept, however
+ * large it is.
+ */
+public final class RetentionPolicy {
+    static final class Rule {
+        final long maxAgeMillis;
+        final int maxVersions;
+        final long maxBytes;
+
+        Rule(long maxAgeMillis, int maxVersions, long maxBytes) {
+            this.maxAgeMillis = maxAgeMillis;
+            this.maxVersions = maxVersions;
+            this.maxBytes = maxBytes;
+        }
+
+        boolean limitsBytes() {
+            return maxBytes != Long.MAX_VALUE;
+        }
+
+        /**
+         * @param timestamps the object's versions, newest first
+         * @param lengths the length of each version, only looked at if the rule limits bytes
+         * @return how many of the newest versions to keep
+         */
+        int keep(long now, long[] timestamps, long[] lengths, int count) {
+            long oldest = maxAgeMillis == Long.MAX_VALUE ? Long.MIN_VALUE : now - maxAgeMillis;
+            long bytes = 0;
+            for (int i = 0; i < count; i++) {
+                bytes += limitsBytes() ? lengths[i] : 0;
+                if (timestamps[i] < oldest || i > 0 && (i >= maxVersions || bytes > maxBytes)) {
+                    return i;
+                }
+            }
+            return count;
+        }
+    }
+
+    private final Map<String, Rule> rules;
+    private final long sweepIntervalMillis;
+
+    @Inject
+    public RetentionPolicy(@Named("storageRetention") String rules,
+                           @Named("storageRetentionInterval") Integer sweepIntervalMillis) {
+        this(parse(rules), sweepIntervalMillis);
+    }
+
+    RetentionPolicy(Map<String, Rule> rules, long sweepIntervalMillis) {
+        this.rules = Collections.unmodifiableMap(rules);
+        this.sweepIntervalMillis = sweepIntervalMillis;
+    }
+
+    /**
+     * @return a policy that keeps everything
+     */
+    public static RetentionPolicy none() {
+        return new RetentionPolicy(Collections.emptyMap(), Long.MAX_VALUE);
+    }
+
+    Set<String> modules() {
+        return rules.keySet();
+    }
+
+    Optional<Rule> rule(String moduleName) {
+        return Optional.ofNullable(rules.get(moduleName));
+    }
+
+    /**
+     * @return how long the sweeper waits after going through every module before starting again
+     */
+    long sweepIntervalMillis() {
+        return sweepIntervalMillis;
+    }
+
+    static Map<String, Rule> parse(String spec) {
+        Map<String, Rule> rules = new HashMap<>();
+        for (String entry : spec.split(";")) {
+            String[] words = entry.trim().split("\\s+");
+            if (words[0].isEmpty()) {
+                continue;
+            }
+            long maxAge = Long.MAX_VALUE;
+            int maxVersions = Integer.MAX_VALUE;
+            long maxBytes = Long.MAX_VALUE;
+            for (int i = 1; i < words.length; i++) {
+                String[] setting = words[i].split("=", 2);
+                if (setting.length != 2) {
+                    throw new IllegalArgumentException("Expected name=value in retention rule: " + entry);
+                }
+                switch (setting[0]) {
+                    case "maxAge":
+                        maxAge = duration(setting[1]);
+                        break;
+                    case "maxVersions":
+                        maxVersions = Integer.parseInt(setting[1]);
+                        break;
+                    case "maxBytes":
+                        maxBytes = bytes(setting[1]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown retention setting: " + setting[0]);
+                }
+            }
+            if (maxVersions < 1) {
+                throw new IllegalArgumentException("maxVersions has to be at least 1: " + entry);
+            }
+            if (rules.put(words[0], new Rule(maxAge, maxVersions, maxBytes)) != null) {
+                throw new IllegalArgumentException("More than one retention rule for module: " + words[0]);
+            }
+        }
+        return rules;
+    }
+
+    private static long duration(String value) {
+        TimeUnit unit;
+        switch (suffix(value)) {
+            case 's': unit = TimeUnit.SECONDS; break;
+            case 'm': unit = TimeUnit.MINUTES; break;
+            case 'h': unit = TimeUnit.HOURS; break;
+            case 'd': unit = TimeUnit.DAYS; break;
+            default: throw new IllegalArgumentException("Expected s, m, h or d after retention age: " + value);
+        }
+        return unit.toMillis(Long.parseLong(value.substring(0, value.length() - 1)));
+    }
+
+    private static long bytes(String value) {
+        int shift;
+        switch (suffix(value)) {
+            case 'k': shift = 10; break;
+            case 'm': shift = 20; break;
+            case 'g': shift = 30; break;
+            default: return Long.parseLong(value);
+        }
+        return Long.parseLong(value.substring(0, value.length() - 1)) << shift;
+    }
+
+    private static char suffix(String value) {
+        return value.isEmpty() ? 0 : Character.toLowerCase(value.charAt(value.length() - 1));
+    }
+}
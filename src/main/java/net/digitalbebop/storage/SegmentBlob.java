@@ -0,0 +1,64 @@
+package net.digitalbebop.storage;
+
+import co.paralleluniverse.fibers.Suspendable;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.io.IOException;
+
+/**
+ * Blob backed by a slice of a memory mapped segment of {@link SegmentStorageConduit}. Sends hand
+ * the target channel the mapped memory itself, and the mapping stays valid for as long as the
+ * blob is held, even once the segment has been compacted away.
+ */
+class SegmentBlob implements Blob {
+    private final ByteBuffer data;
+
+    SegmentBlob(ByteBuffer data) {
+        this.data = data.asReadOnlyBuffer();
+    }
+
+    @Override
+    public long length() {
+        return data.remaining();
+    }
+
+    @Override
+    public InputStream openStream() {
+        ByteBuffer buffer = data.duplicate();
+        return new InputStream() {
+            @Override
+            public int read() {
+                return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (!buffer.hasRemaining()) {
+                    return -1;
+                }
+                int n = Math.min(len, buffer.remaining());
+                buffer.get(b, off, n);
+                return n;
+            }
+
+            @Override
+            public int available() {
+                return buffer.remaining();
+            }
+        };
+    }
+
+    @Override
+    @Suspendable
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        ByteBuffer buffer = data.duplicate();
+        buffer.position(buffer.position() + (int) position);
+        buffer.limit(buffer.position() + (int) count);
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+        return count;
+    }
+}
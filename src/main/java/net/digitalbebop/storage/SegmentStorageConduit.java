@@ -0,0 +1,645 @@
+package net.digitalbebop.storage;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.primitives.UnsignedBytes;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Log structured data store, an alternative to {@link FileStorageConduit} chosen with the
+ * storageBackend property. Every put and delete is appended as a record to the active segment, a
+ * large file mapped into memory, and an index on the heap maps the key of each version to where
+ * its record is. Reads copy out of the mapping, or hand it out as a {@link SegmentBlob} to send
+ * from, so they never go through a file channel. Appends are committed in groups by a
+ * {@link GroupCommitter}, which forces the mappings written since the last commit to disk.
+ *
+ * Records carry a sequence number, and a delete appends a tombstone that hides every version of
+ * the object with a lower one. Opening the store replays all segments to rebuild the index,
+ * stopping at the first record of a segment whose checksums don't match, which is where a crash
+ * cut it short. A background compactor copies the live records of the segments that are mostly
+ * dead into the active segment, at a limited rate, and then removes them. Copies keep their
+ * sequence numbers, so a crash half way through compaction only leaves duplicates that replay
+ * settles. Removed segments stay mapped until their last reader is garbage collected.
+ *
+ * Unlike {@link FileStorageConduit} this doesn't share content between versions, keep
+ * thumbnails for reuse or sweep versions under a {@link RetentionPolicy}, and streamed puts are
+ * read into memory first.
+ */
+@Singleton
+public class SegmentStorageConduit implements StorageConduit {
+    private static final Logger logger = LogManager.getLogger(SegmentStorageConduit.class);
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.log");
+    private static final Comparator<byte[]> KEY_ORDER = UnsignedBytes.lexicographicalComparator();
+    private static final double COMPACT_BELOW_LIVE = 0.5;
+    private static final long COMPACTOR_IDLE_MILLIS = 1000;
+
+    /* Record layout: magic, checksum of seq through key, checksum of the data, seq, type, key
+     * length, data length, key, data */
+    private static final int MAGIC = 0x50534547;
+    private static final int HEADER_CRC = 4;
+    private static final int DATA_CRC = 8;
+    private static final int SEQ = 12;
+    private static final int TYPE = 20;
+    private static final int KEY_LENGTH = 21;
+    private static final int DATA_LENGTH = 25;
+    private static final int HEADER = 29;
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+
+    private static final class Segment {
+        final int id;
+        final File file;
+        final FileChannel channel;
+        final MappedByteBuffer map;
+        final AtomicLong liveBytes = new AtomicLong();
+        int end; // written under lock, only while active
+        long minSeq = Long.MAX_VALUE; // guarded by lock
+
+        Segment(int id, File file, FileChannel channel, MappedByteBuffer map) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+            this.map = map;
+        }
+
+        /* Sealed segments left empty by a crash count as dead */
+        double liveRatio() {
+            return end == 0 ? 0.0 : (double) liveBytes.get() / end;
+        }
+    }
+
+    private static final class Location {
+        final Segment segment;
+        final int offset;
+        final int keyLength;
+        final int dataLength;
+        final long seq;
+
+        Location(Segment segment, int offset, int keyLength, int dataLength, long seq) {
+            this.segment = segment;
+            this.offset = offset;
+            this.keyLength = keyLength;
+            this.dataLength = dataLength;
+            this.seq = seq;
+        }
+
+        int length() {
+            return HEADER + keyLength + dataLength;
+        }
+
+        ByteBuffer data() {
+            ByteBuffer data = segment.map.duplicate();
+            data.position(offset + HEADER + keyLength).limit(offset + length());
+            return data.slice();
+        }
+    }
+
+    private final File dir;
+    private final int segmentSize;
+    private final ConcurrentNavigableMap<byte[], Location> index = new ConcurrentSkipListMap<>(KEY_ORDER);
+    /* Raw key prefix -> newest delete of the object; guarded by lock */
+    private final Map<ByteBuffer, Location> tombstones = new HashMap<>();
+    private final List<Segment> segments = new CopyOnWriteArrayList<>(); // written under lock
+    private final List<Segment> unforced = new ArrayList<>(); // sealed since the last commit; guarded by lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private Segment active; // guarded by lock
+    private long nextSeq; // guarded by lock
+    private final GroupCommitter committer;
+    private final RateLimiter compactionRate;
+    private final Thread compactor;
+    private final Object compactorSignal = new Object();
+    private volatile boolean running = true;
+
+    private final Meter bytesWritten;
+    private final Meter bytesCompacted;
+
+    @Inject
+    public SegmentStorageConduit(@Named("segmentStorageDir") String dir,
+                                 @Named("segmentStorageSegmentSize") Integer segmentSize,
+                                 @Named("storageCommitInterval") Integer commitInterval,
+                                 @Named("storageCommitBytes") Integer commitBytes,
+                                 @Named("segmentStorageCompactionRate") Integer compactionRate,
+                                 MetricRegistry metrics) {
+        this.dir = new File(dir);
+        this.segmentSize = segmentSize;
+        if (!this.dir.isDirectory() && !this.dir.mkdirs()) {
+            throw new IllegalStateException("Could not create segment directory " + dir);
+        }
+        try {
+            replay();
+            active = create(nextSegmentId(), segmentSize);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not open segments in " + dir, e);
+        }
+
+        committer = new GroupCommitter("segment-storage", this::force, commitInterval, commitBytes, metrics);
+
+        bytesWritten = metrics.meter(MetricRegistry.name(SegmentStorageConduit.class, "bytes-written"));
+        bytesCompacted = metrics.meter(MetricRegistry.name(SegmentStorageConduit.class, "bytes-compacted"));
+        String count = MetricRegistry.name(SegmentStorageConduit.class, "segments");
+        metrics.remove(count);
+        metrics.register(count, (Gauge<Integer>) segments::size);
+        String used = MetricRegistry.name(SegmentStorageConduit.class, "segment-bytes");
+        metrics.remove(used);
+        metrics.register(used, (Gauge<Long>) this::segmentBytes);
+        String live = MetricRegistry.name(SegmentStorageConduit.class, "live-ratio");
+        metrics.remove(live);
+        metrics.register(live, (Gauge<Double>) () -> {
+            long total = segmentBytes();
+            return total == 0 ? 1.0 : (double) segments.stream().mapToLong(s -> s.liveBytes.get()).sum() / total;
+        });
+
+        this.compactionRate = RateLimiter.create(compactionRate);
+        this.compactor = new Thread(this::compact, "segment-storage-compactor");
+        this.compactor.setDaemon(true);
+        this.compactor.start();
+    }
+
+    @Override
+    public Optional<byte[]> getRaw(String moduleName, String moduleId, long timestamp) {
+        return get(StorageKey.raw(moduleName, moduleId, timestamp));
+    }
+
+    @Override
+    public Optional<byte[]> getThumbnail(String moduleName, String moduleId, long timestamp) {
+        return get(StorageKey.thumbnail(moduleName, moduleId, timestamp));
+    }
+
+    @Override
+    public Optional<Blob> openRaw(String moduleName, String moduleId, long timestamp) {
+        return open(StorageKey.raw(moduleName, moduleId, timestamp));
+    }
+
+    @Override
+    public Optional<Blob> openThumbnail(String moduleName, String moduleId, long timestamp) {
+        return open(StorageKey.thumbnail(moduleName, moduleId, timestamp));
+    }
+
+    @Override
+    public void putRaw(String moduleName, String moduleId, long timestamp, byte[] data) {
+        put(StorageKey.raw(moduleName, moduleId, timestamp), ByteBuffer.wrap(data));
+    }
+
+    @Override
+    public void putRaw(String moduleName, String moduleId, long timestamp, ByteBuffer data) {
+        put(StorageKey.raw(moduleName, moduleId, timestamp), data);
+    }
+
+    @Override
+    public void putThumbnail(String moduleName, String moduleId, long timestamp, byte[] data) {
+        put(StorageKey.thumbnail(moduleName, moduleId, timestamp), ByteBuffer.wrap(data));
+    }
+
+    @Override
+    public List<Long> versions(String moduleName, String moduleId, long before, int limit) {
+        byte[] first = StorageKey.raw(moduleName, moduleId, Long.MIN_VALUE).toBytes();
+        byte[] end = StorageKey.raw(moduleName, moduleId, before).toBytes();
+        List<Long> timestamps = new ArrayList<>(Math.min(limit, 64));
+        for (byte[] key : index.subMap(first, true, end, false).descendingKeySet()) {
+            if (timestamps.size() == limit) {
+                break;
+            }
+            timestamps.add(StorageKey.timestampOf(key));
+        }
+        return timestamps;
+    }
+
+    @Override
+    public Optional<Long> versionAtOrBefore(String moduleName, String moduleId, long timestamp) {
+        byte[] first = StorageKey.raw(moduleName, moduleId, Long.MIN_VALUE).toBytes();
+        byte[] found = index.floorKey(StorageKey.raw(moduleName, moduleId, timestamp).toBytes());
+        if (found == null || KEY_ORDER.compare(found, first) < 0) {
+            return Optional.empty();
+        }
+        return Optional.of(StorageKey.timestampOf(found));
+    }
+
+    @Override
+    public ListenableFuture<Void> commit(Durability durability) {
+        return committer.commit(durability);
+    }
+
+    /**
+     * Removes the versions of both kinds from the index, and appends a tombstone so that replay
+     * doesn't bring them back.
+     */
+    @Override
+    public void delete(String moduleName, String moduleId) {
+        byte[] prefix = StorageKey.prefix(StorageKey.Kind.RAW, moduleName, moduleId);
+        int length;
+        lock.lock();
+        try {
+            boolean stored = false;
+            for (StorageKey.Kind kind : StorageKey.Kind.values()) {
+                byte[] start = StorageKey.prefix(kind, moduleName, moduleId);
+                Map<byte[], Location> versions = index.subMap(start, StorageKey.end(start));
+                for (Location location : versions.values()) {
+                    location.segment.liveBytes.addAndGet(-location.length());
+                    stored = true;
+                }
+                versions.clear();
+            }
+            if (!stored) {
+                logger.debug("nothing stored to delete for: " + moduleName + "-" + moduleId);
+                return;
+            }
+            Location tombstone = append(DELETE, prefix, ByteBuffer.allocate(0), 0, nextSeq++);
+            release(tombstones.put(ByteBuffer.wrap(prefix), tombstone));
+            length = tombstone.length();
+        } finally {
+            lock.unlock();
+        }
+        bytesWritten.mark(length);
+        committer.written(length);
+    }
+
+    /**
+     * Commits whatever is outstanding and closes the store.
+     */
+    public void close() {
+        running = false;
+        synchronized (compactorSignal) {
+            compactorSignal.notifyAll();
+        }
+        try {
+            compactor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        committer.shutdown();
+        force();
+        for (Segment segment : segments) {
+            try {
+                segment.channel.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close " + segment.file, e);
+            }
+        }
+    }
+
+    /**
+     * @return the bytes of records in the segments, live or not
+     */
+    long segmentBytes() {
+        return segments.stream().mapToLong(s -> s.end).sum();
+    }
+
+    int segmentCount() {
+        return segments.size();
+    }
+
+    private Optional<byte[]> get(StorageKey key) {
+        Location location = index.get(key.toBytes());
+        if (location == null) {
+            return Optional.empty();
+        }
+        byte[] data = new byte[location.dataLength];
+        location.data().get(data);
+        return Optional.of(data);
+    }
+
+    private Optional<Blob> open(StorageKey key) {
+        Location location = index.get(key.toBytes());
+        return location == null ? Optional.empty() : Optional.of(new SegmentBlob(location.data()));
+    }
+
+    private void put(StorageKey key, ByteBuffer data) {
+        logger.debug("putting: " + key);
+        byte[] bytes = key.toBytes();
+        /* The data is checksummed outside the lock, only the copy into the segment is under it */
+        CRC32 crc = new CRC32();
+        crc.update(data.duplicate());
+        int length;
+        lock.lock();
+        try {
+            Location location = append(PUT, bytes, data, (int) crc.getValue(), nextSeq++);
+            release(index.put(bytes, location));
+            length = location.length();
+        } finally {
+            lock.unlock();
+        }
+        bytesWritten.mark(length);
+        committer.written(length);
+    }
+
+    /**
+     * Writes a record to the active segment, starting a new one when it doesn't fit, and counts
+     * it as live. Must hold the lock, so that records are appended in the order the index
+     * changes.
+     */
+    private Location append(byte type, byte[] key, ByteBuffer data, int dataCrc, long seq) {
+        int length = HEADER + key.length + data.remaining();
+        if (active.map.capacity() - active.end < length) {
+            roll(length);
+        }
+        Segment segment = active;
+        int offset = segment.end;
+        ByteBuffer out = segment.map.duplicate();
+        out.position(offset + SEQ);
+        out.putLong(seq).put(type).putInt(key.length).putInt(data.remaining()).put(key);
+        CRC32 crc = new CRC32();
+        ByteBuffer header = segment.map.duplicate();
+        header.position(offset + SEQ).limit(offset + HEADER + key.length);
+        crc.update(header);
+        out.put(data.duplicate());
+        out.putInt(offset + HEADER_CRC, (int) crc.getValue());
+        out.putInt(offset + DATA_CRC, dataCrc);
+        out.putInt(offset, MAGIC);
+        segment.end = offset + length;
+        segment.minSeq = Math.min(segment.minSeq, seq);
+        segment.liveBytes.addAndGet(length);
+        return new Location(segment, offset, key.length, data.remaining(), seq);
+    }
+
+    /**
+     * Seals the active segment and starts a new one, of its own size for records larger than a
+     * segment. Must hold the lock.
+     */
+    private void roll(int length) {
+        try {
+            unforced.add(active);
+            active = create(nextSegmentId(), Math.max(segmentSize, length));
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not start a new segment in " + dir, e);
+        }
+    }
+
+    private int nextSegmentId() {
+        return segments.stream().mapToInt(s -> s.id).max().orElse(0) + 1;
+    }
+
+    private Segment create(int id, int capacity) throws IOException {
+        File file = new File(dir, String.format("segment-%08d.log", id));
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        Segment segment = new Segment(id, file, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+        segments.add(segment);
+        return segment;
+    }
+
+    private static void release(Location replaced) {
+        if (replaced != null) {
+            replaced.segment.liveBytes.addAndGet(-replaced.length());
+        }
+    }
+
+    /**
+     * Forces the active segment and those sealed since the last commit to disk.
+     */
+    private void force() {
+        List<Segment> dirty;
+        lock.lock();
+        try {
+            dirty = new ArrayList<>(unforced);
+            unforced.clear();
+            dirty.add(active);
+        } finally {
+            lock.unlock();
+        }
+        for (Segment segment : dirty) {
+            segment.map.force();
+        }
+    }
+
+    /**
+     * Rebuilds the index from every segment. Records are settled by sequence number rather than
+     * by the order they are found in, as compaction moves older records into newer segments.
+     */
+    private void replay() throws IOException {
+        TreeMap<Integer, File> files = new TreeMap<>();
+        File[] listed = dir.listFiles();
+        for (File file : listed == null ? new File[0] : listed) {
+            Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+            if (matcher.matches()) {
+                files.put(Integer.parseInt(matcher.group(1)), file);
+            }
+        }
+        long maxSeq = -1;
+        for (Map.Entry<Integer, File> entry : files.entrySet()) {
+            File file = entry.getValue();
+            FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+            Segment segment = new Segment(entry.getKey(), file, channel,
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            int offset = 0;
+            for (int length; (length = validRecordAt(segment.map, offset)) > 0; offset += length) {
+                Location location = new Location(segment, offset, segment.map.getInt(offset + KEY_LENGTH),
+                        segment.map.getInt(offset + DATA_LENGTH), segment.map.getLong(offset + SEQ));
+                byte[] key = new byte[location.keyLength];
+                ByteBuffer keyBytes = segment.map.duplicate();
+                keyBytes.position(offset + HEADER);
+                keyBytes.get(key);
+                if (segment.map.get(offset + TYPE) == DELETE) {
+                    tombstones.merge(ByteBuffer.wrap(key), location, SegmentStorageConduit::newer);
+                } else {
+                    index.merge(key, location, SegmentStorageConduit::newer);
+                }
+                segment.minSeq = Math.min(segment.minSeq, location.seq);
+                maxSeq = Math.max(maxSeq, location.seq);
+            }
+            if (offset + Integer.BYTES <= segment.map.capacity() && segment.map.getInt(offset) != 0) {
+                logger.warn("Ignoring a damaged record and whatever follows it at " + offset + " in " + file);
+            }
+            segment.end = offset;
+            segments.add(segment);
+        }
+        nextSeq = maxSeq + 1;
+
+        for (Map.Entry<ByteBuffer, Location> tombstone : tombstones.entrySet()) {
+            byte[] prefix = tombstone.getKey().array();
+            for (StorageKey.Kind kind : StorageKey.Kind.values()) {
+                byte[] start = StorageKey.as(prefix, kind);
+                index.subMap(start, StorageKey.end(start)).values()
+                        .removeIf(location -> location.seq < tombstone.getValue().seq);
+            }
+        }
+        index.values().forEach(location -> location.segment.liveBytes.addAndGet(location.length()));
+        tombstones.values().forEach(location -> location.segment.liveBytes.addAndGet(location.length()));
+        logger.info("Replayed " + segments.size() + " segments in " + dir);
+    }
+
+    private static Location newer(Location a, Location b) {
+        return a.seq >= b.seq ? a : b;
+    }
+
+    /**
+     * @return the length of the record at the offset, or 0 if there is no whole record there
+     * with matching checksums
+     */
+    private static int validRecordAt(ByteBuffer map, int offset) {
+        int limit = map.capacity();
+        if (limit - offset < HEADER || map.getInt(offset) != MAGIC) {
+            return 0;
+        }
+        int keyLength = map.getInt(offset + KEY_LENGTH);
+        int dataLength = map.getInt(offset + DATA_LENGTH);
+        if (keyLength < 0 || dataLength < 0 || (long) HEADER + keyLength + dataLength > limit - offset) {
+            return 0;
+        }
+        CRC32 crc = new CRC32();
+        ByteBuffer header = map.duplicate();
+        header.position(offset + SEQ).limit(offset + HEADER + keyLength);
+        crc.update(header);
+        if ((int) crc.getValue() != map.getInt(offset + HEADER_CRC)) {
+            return 0;
+        }
+        crc.reset();
+        ByteBuffer data = map.duplicate();
+        data.position(offset + HEADER + keyLength).limit(offset + HEADER + keyLength + dataLength);
+        crc.update(data);
+        if ((int) crc.getValue() != map.getInt(offset + DATA_CRC)) {
+            return 0;
+        }
+        return HEADER + keyLength + dataLength;
+    }
+
+    /**
+     * Compacts the sealed segment with the least live data in it, for as long as the store is
+     * open and there is one that is mostly dead.
+     */
+    private void compact() {
+        while (running) {
+            try {
+                Segment victim = null;
+                for (Segment segment : segments) {
+                    if (segment != activeSegment() && segment.liveRatio() < COMPACT_BELOW_LIVE &&
+                            (victim == null || segment.liveRatio() < victim.liveRatio())) {
+                        victim = segment;
+                    }
+                }
+                if (victim == null) {
+                    synchronized (compactorSignal) {
+                        if (running) {
+                            compactorSignal.wait(COMPACTOR_IDLE_MILLIS);
+                        }
+                    }
+                    continue;
+                }
+                compact(victim);
+            } catch (InterruptedException e) {
+                logger.warn("Segment compactor interrupted, stopping");
+                return;
+            } catch (RuntimeException e) {
+                logger.error("Failed to compact segments, retrying", e);
+                try {
+                    Thread.sleep(COMPACTOR_IDLE_MILLIS);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private Segment activeSegment() {
+        lock.lock();
+        try {
+            return active;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copies the records of the segment that are still in the index into the active segment,
+     * one at a time under the compaction rate, and removes the segment once the copies are on
+     * disk. A record overwritten or deleted while it is being copied is left behind. Tombstones
+     * are dropped once no other segment could hold a version they hide.
+     */
+    private void compact(Segment segment) {
+        logger.info("Compacting " + segment.file + " at " + Math.round(segment.liveRatio() * 100) + "% live");
+        long copied = 0;
+        for (int offset = 0, length; running && offset < segment.end; offset += length) {
+            int keyLength = segment.map.getInt(offset + KEY_LENGTH);
+            length = HEADER + keyLength + segment.map.getInt(offset + DATA_LENGTH);
+            byte[] key = new byte[keyLength];
+            ByteBuffer keyBytes = segment.map.duplicate();
+            keyBytes.position(offset + HEADER);
+            keyBytes.get(key);
+            boolean tombstone = segment.map.get(offset + TYPE) == DELETE;
+            compactionRate.acquire(length);
+            lock.lock();
+            try {
+                Location current = tombstone ? tombstones.get(ByteBuffer.wrap(key)) : index.get(key);
+                if (current == null || current.segment != segment || current.offset != offset) {
+                    continue;
+                }
+                if (tombstone && !hidesOlderRecords(current)) {
+                    tombstones.remove(ByteBuffer.wrap(key));
+                } else {
+                    Location moved = append(current.segment.map.get(offset + TYPE), key, current.data(),
+                            segment.map.getInt(offset + DATA_CRC), current.seq);
+                    if (tombstone) {
+                        tombstones.put(ByteBuffer.wrap(key), moved);
+                    } else {
+                        index.put(key, moved);
+                    }
+                    copied += length;
+                }
+                release(current);
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (!running) {
+            return;
+        }
+        force();
+        lock.lock();
+        try {
+            segments.remove(segment);
+            unforced.remove(segment);
+        } finally {
+            lock.unlock();
+        }
+        try {
+            segment.channel.close();
+        } catch (IOException e) {
+            logger.warn("Failed to close " + segment.file, e);
+        }
+        if (!segment.file.delete()) {
+            logger.warn("Failed to remove compacted segment " + segment.file);
+        }
+        bytesCompacted.mark(copied);
+        logger.info("Compacted " + segment.file + ", kept " + copied + " of " + segment.end + " bytes");
+    }
+
+    /**
+     * @return whether any segment other than the tombstone's own has a record from before it.
+     * Must hold the lock.
+     */
+    private boolean hidesOlderRecords(Location tombstone) {
+        for (Segment other : segments) {
+            if (other != tombstone.segment && other.minSeq < tombstone.seq) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
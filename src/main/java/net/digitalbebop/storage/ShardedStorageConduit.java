@@ -0,0 +1,248 @@
+package net.digitalbebop.storage;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Functions;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * Spreads objects over several {@link FileStorageConduit}s, each in its own MapDB file with its
+ * own executor, group committer and compactor, so that writers to different shards don't wait on
+ * each other's locks and commits. The files can be on different disks. They are listed in the
+ * fileStorageShards property, separated like a classpath.
+ *
+ * All versions and thumbnails of an object live in the same shard, picked by a consistent hash of
+ * its module name and id, so content is deduplicated within each shard only. Changing the number
+ * of shards moves about the share of objects the new shards take over, which
+ * {@link StorageShardRebalancer} does with the server stopped.
+ */
+@Singleton
+public class ShardedStorageConduit implements StorageConduit {
+    private static final Logger logger = LogManager.getLogger(ShardedStorageConduit.class);
+
+    private static final class Shard {
+        final FileStorageConduit store;
+        private boolean written; // guarded by this
+        private ListenableFuture<Void> lastCommit = Futures.immediateFuture(null); // guarded by this
+
+        Shard(FileStorageConduit store) {
+            this.store = store;
+        }
+
+        /**
+         * Called once a write to the shard has returned.
+         */
+        synchronized void written() {
+            written = true;
+        }
+
+        /**
+         * Shards nothing was written to since their last commit only wait on that commit, rather
+         * than all paying for a commit of their own.
+         */
+        synchronized ListenableFuture<Void> commit(Durability durability) {
+            if (durability == Durability.ASYNC) {
+                return store.commit(durability);
+            }
+            if (written || durability == Durability.SYNC && !lastCommit.isDone()) {
+                lastCommit = store.commit(durability);
+                written = false;
+            }
+            return lastCommit;
+        }
+    }
+
+    private final Shard[] shards;
+
+    @Inject
+    public ShardedStorageConduit(@Named("fileStorageShards") String dirs,
+                                 @Named("fileStorageInlineLimit") Integer inlineLimit,
+                                 @Named("storageCommitInterval") Integer commitInterval,
+                                 @Named("storageCommitBytes") Integer commitBytes,
+                                 @Named("storageCompactionRate") Integer compactionRate,
+                                 RetentionPolicy retention,
+                                 CompressionPolicy compression,
+                                 MetricRegistry metrics) {
+        this(parseDirs(dirs), inlineLimit, commitInterval, commitBytes, compactionRate, retention, compression,
+                metrics);
+    }
+
+    ShardedStorageConduit(List<String> dirs, int inlineLimit, int commitInterval, int commitBytes,
+                          int compactionRate, RetentionPolicy retention, CompressionPolicy compression,
+                          MetricRegistry metrics) {
+        if (dirs.isEmpty()) {
+            throw new IllegalStateException("No storage shards given");
+        }
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / dirs.size());
+        shards = new Shard[dirs.size()];
+        for (int i = 0; i < shards.length; i++) {
+            logger.info("Opening storage shard " + i + " at " + dirs.get(i));
+            shards[i] = new Shard(FileStorageConduit.builder(dirs.get(i))
+                    .shard("shard-" + i)
+                    .inlineLimit(inlineLimit)
+                    .commitInterval(commitInterval)
+                    .commitBytes(commitBytes)
+                    .compactionRate(compactionRate)
+                    .threads(threads)
+                    .retention(retention)
+                    .compression(compression)
+                    .metrics(metrics)
+                    .build());
+        }
+    }
+
+    /**
+     * @return the directories listed in a fileStorageShards property
+     */
+    static List<String> parseDirs(String dirs) {
+        return Arrays.stream(dirs.split(File.pathSeparator))
+                .map(String::trim)
+                .filter(dir -> !dir.isEmpty())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @return which of the given number of shards holds the object
+     */
+    static int shardOf(String moduleName, String moduleId, int shards) {
+        byte[] prefix = StorageKey.prefix(StorageKey.Kind.RAW, moduleName, moduleId);
+        return Hashing.consistentHash(Hashing.murmur3_128().hashBytes(prefix), shards);
+    }
+
+    private Shard shard(String moduleName, String moduleId) {
+        return shards[shardOf(moduleName, moduleId, shards.length)];
+    }
+
+    @Override
+    public Optional<byte[]> getRaw(String moduleName, String moduleId, long timestamp) {
+        return shard(moduleName, moduleId).store.getRaw(moduleName, moduleId, timestamp);
+    }
+
+    @Override
+    public Optional<byte[]> getThumbnail(String moduleName, String moduleId, long timestamp) {
+        return shard(moduleName, moduleId).store.getThumbnail(moduleName, moduleId, timestamp);
+    }
+
+    @Override
+    public Optional<Blob> openRaw(String moduleName, String moduleId, long timestamp) {
+        return shard(moduleName, moduleId).store.openRaw(moduleName, moduleId, timestamp);
+    }
+
+    @Override
+    public Optional<Blob> openThumbnail(String moduleName, String moduleId, long timestamp) {
+        return shard(moduleName, moduleId).store.openThumbnail(moduleName, moduleId, timestamp);
+    }
+
+    @Override
+    public void putRaw(String moduleName, String moduleId, long timestamp, byte[] data) {
+        Shard shard = shard(moduleName, moduleId);
+        shard.store.putRaw(moduleName, moduleId, timestamp, data);
+        shard.written();
+    }
+
+    @Override
+    public void putRaw(String moduleName, String moduleId, long timestamp, ByteBuffer data) {
+        Shard shard = shard(moduleName, moduleId);
+        shard.store.putRaw(moduleName, moduleId, timestamp, data);
+        shard.written();
+    }
+
+    @Override
+    public void putRaw(String moduleName, String moduleId, long timestamp, ReadableByteChannel data)
+            throws IOException {
+        Shard shard = shard(moduleName, moduleId);
+        shard.store.putRaw(moduleName, moduleId, timestamp, data);
+        shard.written();
+    }
+
+    @Override
+    public void putRaw(String moduleName, String moduleId, long timestamp, InputStream data) throws IOException {
+        Shard shard = shard(moduleName, moduleId);
+        shard.store.putRaw(moduleName, moduleId, timestamp, data);
+        shard.written();
+    }
+
+    @Override
+    public void putRaw(List<StoredObject> objects) {
+        Map<Shard, List<StoredObject>> byShard = new LinkedHashMap<>();
+        for (StoredObject object : objects) {
+            byShard.computeIfAbsent(shard(object.getModuleName(), object.getModuleId()),
+                    shard -> new ArrayList<>()).add(object);
+        }
+        for (Map.Entry<Shard, List<StoredObject>> batch : byShard.entrySet()) {
+            batch.getKey().store.putRaw(batch.getValue());
+            batch.getKey().written();
+        }
+    }
+
+    @Override
+    public void putThumbnail(String moduleName, String moduleId, long timestamp, byte[] data) {
+        Shard shard = shard(moduleName, moduleId);
+        shard.store.putThumbnail(moduleName, moduleId, timestamp, data);
+        shard.written();
+    }
+
+    @Override
+    public boolean reuseThumbnail(String moduleName, String moduleId, long timestamp) {
+        Shard shard = shard(moduleName, moduleId);
+        boolean reused = shard.store.reuseThumbnail(moduleName, moduleId, timestamp);
+        if (reused) {
+            shard.written();
+        }
+        return reused;
+    }
+
+    @Override
+    public List<Long> versions(String moduleName, String moduleId, long before, int limit) {
+        return shard(moduleName, moduleId).store.versions(moduleName, moduleId, before, limit);
+    }
+
+    @Override
+    public Optional<Long> versionAtOrBefore(String moduleName, String moduleId, long timestamp) {
+        return shard(moduleName, moduleId).store.versionAtOrBefore(moduleName, moduleId, timestamp);
+    }
+
+    @Override
+    public ListenableFuture<Void> commit(Durability durability) {
+        List<ListenableFuture<Void>> commits = new ArrayList<>(shards.length);
+        for (Shard shard : shards) {
+            commits.add(shard.commit(durability));
+        }
+        return Futures.transform(Futures.allAsList(commits), Functions.<Void>constant(null));
+    }
+
+    @Override
+    public void delete(String moduleName, String moduleId) {
+        Shard shard = shard(moduleName, moduleId);
+        shard.store.delete(moduleName, moduleId);
+        shard.written();
+    }
+
+    /**
+     * Commits whatever is outstanding and closes every shard.
+     */
+    public void close() {
+        for (Shard shard : shards) {
+            shard.store.close();
+        }
+    }
+}
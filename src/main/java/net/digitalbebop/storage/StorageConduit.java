@@ -1,7 +1,14 @@
 package net.digitalbebop.storage;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.apache.commons.io.IOUtils;
+
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
 import java.util.Optional;
 
 /**
@@ -13,9 +20,109 @@ public interface StorageConduit {
 
     Optional<byte[]> getThumbnail(String moduleName, String moduleId, long timestamp);
 
+    /**
+     * Opens the raw data for sending or streaming. Unlike {@link #getRaw} this doesn't require
+     * the object to be read into memory, data stores should override it to hand back large
+     * objects as file regions.
+     */
+    default Optional<Blob> openRaw(String moduleName, String moduleId, long timestamp) {
+        return getRaw(moduleName, moduleId, timestamp).map(HeapBlob::new);
+    }
+
+    /**
+     * Opens the thumbnail for sending or streaming, see {@link #openRaw}.
+     */
+    default Optional<Blob> openThumbnail(String moduleName, String moduleId, long timestamp) {
+        return getThumbnail(moduleName, moduleId, timestamp).map(HeapBlob::new);
+    }
+
     void putRaw(String moduleName, String moduleId, long timestamp, byte[] data);
 
+    /**
+     * Stores raw data that the caller holds in a buffer, such as a slice of a request body.
+     * Data stores that can write a buffer out directly should override this, the default copies
+     * it into an array.
+     */
+    default void putRaw(String moduleName, String moduleId, long timestamp, ByteBuffer data) {
+        byte[] bytes = new byte[data.remaining()];
+        data.duplicate().get(bytes);
+        putRaw(moduleName, moduleId, timestamp, bytes);
+    }
+
+    /**
+     * Stores raw data read off the channel up to its end. Data stores should override this to
+     * store large objects without holding them in memory as a whole, the default reads the
+     * channel into an array.
+     */
+    default void putRaw(String moduleName, String moduleId, long timestamp, ReadableByteChannel data)
+            throws IOException {
+        putRaw(moduleName, moduleId, timestamp, IOUtils.toByteArray(Channels.newInputStream(data)));
+    }
+
+    /**
+     * Stores raw data read off the stream up to its end, see
+     * {@link #putRaw(String, String, long, ReadableByteChannel)}.
+     */
+    default void putRaw(String moduleName, String moduleId, long timestamp, InputStream data) throws IOException {
+        putRaw(moduleName, moduleId, timestamp, Channels.newChannel(data));
+    }
+
     void putThumbnail(String moduleName, String moduleId, long timestamp, byte[] data);
 
+    /**
+     * Gives this version the thumbnail already stored for the same raw data, if there is one. Call
+     * it after storing the raw data, and only generate a thumbnail when it returns false. Data
+     * stores that don't know which objects share their data can keep the default.
+     * @return true if the version now has its thumbnail
+     */
+    default boolean reuseThumbnail(String moduleName, String moduleId, long timestamp) {
+        return false;
+    }
+
+    /**
+     * Stores the raw data of many objects at once. Data stores that can group their writes should
+     * override this, the default stores the objects one at a time.
+     */
+    default void putRaw(List<StoredObject> objects) {
+        for (StoredObject object : objects) {
+            putRaw(object.getModuleName(), object.getModuleId(), object.getTimestamp(), object.getData());
+        }
+    }
+
+    /**
+     * Lists the timestamps of the stored versions of an object, newest first, starting with the
+     * newest version before the given time. Data stores need to keep the versions of an object in
+     * order to support this.
+     */
+    default List<Long> versions(String moduleName, String moduleId, long before, int limit) {
+        throw new UnsupportedOperationException("versions not supported");
+    }
+
+    /**
+     * @return the timestamp of the newest version of the object at or before the given time
+     */
+    default Optional<Long> versionAtOrBefore(String moduleName, String moduleId, long timestamp) {
+        throw new UnsupportedOperationException("versions not supported");
+    }
+
+    /**
+     * @return the timestamp of the newest version of the object
+     */
+    default Optional<Long> latestVersion(String moduleName, String moduleId) {
+        return versionAtOrBefore(moduleName, moduleId, Long.MAX_VALUE);
+    }
+
+    /**
+     * Returns a future that completes once everything put before the call is as durable as asked
+     * for. Data stores that are durable as soon as a put returns can keep the default.
+     */
+    default ListenableFuture<Void> commit(Durability durability) {
+        return Futures.immediateFuture(null);
+    }
+
+    /**
+     * Deletes every version of the object stored so far, raw data and thumbnails. Data stores may
+     * hide the versions right away and reclaim their space later on.
+     */
     void delete(String moduleName, String moduleId) throws IOException;
 }
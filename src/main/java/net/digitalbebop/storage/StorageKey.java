@@ -0,0 +1,294 @@
+package net.digitalbebop.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * Key of one version of an object: its kind, module name, module id and timestamp. Keys are
+ * stored as bytes that sort the same way as the fields do, compared unsigned, so all versions of
+ * an object sit next to each other in timestamp order.
+ *
+ * The layout is the kind byte, then each of the two names as UTF-8 with any 0x00 escaped as
+ * 0x00 0xFF and ended by 0x00 0x01, then the timestamp as 8 big-endian bytes with the sign bit
+ * flipped. Escaping keeps a name from running into the next field, so a dash or any other
+ * character in a module id can't make two keys alike.
+ */
+final class StorageKey {
+    enum Kind {
+        RAW(1), THUMBNAIL(2);
+
+        private final byte tag;
+
+        Kind(int tag) {
+            this.tag = (byte) tag;
+        }
+
+        byte tag() {
+            return tag;
+        }
+
+        static Kind of(byte tag) {
+            for (Kind kind : values()) {
+                if (kind.tag == tag) {
+                    return kind;
+                }
+            }
+            throw new IllegalArgumentException("Unknown storage key kind: " + tag);
+        }
+    }
+
+    private static final byte ESCAPE = 0x00;
+    private static final byte ESCAPED_ZERO = (byte) 0xFF;
+    private static final byte TERMINATOR = 0x01;
+
+    private final Kind kind;
+    private final String moduleName;
+    private final String moduleId;
+    private final long timestamp;
+
+    StorageKey(Kind kind, String moduleName, String moduleId, long timestamp) {
+        this.kind = kind;
+        this.moduleName = moduleName;
+        this.moduleId = moduleId;
+        this.timestamp = timestamp;
+    }
+
+    static StorageKey raw(String moduleName, String moduleId, long timestamp) {
+        return new StorageKey(Kind.RAW, moduleName, moduleId, timestamp);
+    }
+
+    static StorageKey thumbnail(String moduleName, String moduleId, long timestamp) {
+        return new StorageKey(Kind.THUMBNAIL, moduleName, moduleId, timestamp);
+    }
+
+    Kind kind() {
+        return kind;
+    }
+
+    String moduleName() {
+        return moduleName;
+    }
+
+    String moduleId() {
+        return moduleId;
+    }
+
+    long timestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return the key of the same version of the object, but of the given kind
+     */
+    StorageKey as(Kind kind) {
+        return new StorageKey(kind, moduleName, moduleId, timestamp);
+    }
+
+    /**
+     * Encodes straight into one array of the exact size, as this runs for every get and put.
+     */
+    byte[] toBytes() {
+        byte[] bytes = new byte[prefixLength(moduleName, moduleId) + Long.BYTES];
+        int pos = writePrefix(bytes, kind, moduleName, moduleId);
+        writeTimestamp(bytes, pos, timestamp);
+        return bytes;
+    }
+
+    /**
+     * @return the bytes every key of the object's versions starts with, for scanning them
+     */
+    static byte[] prefix(Kind kind, String moduleName, String moduleId) {
+        byte[] bytes = new byte[prefixLength(moduleName, moduleId)];
+        writePrefix(bytes, kind, moduleName, moduleId);
+        return bytes;
+    }
+
+    /**
+     * @return the bytes every key of the module's objects starts with
+     */
+    static byte[] prefix(Kind kind, String moduleName) {
+        byte[] bytes = new byte[1 + nameLength(moduleName)];
+        bytes[0] = kind.tag;
+        writeName(bytes, 1, moduleName);
+        return bytes;
+    }
+
+    /**
+     * @return the first key past all of those starting with the prefix, which always ends in a
+     * name terminator
+     */
+    static byte[] end(byte[] prefix) {
+        byte[] bytes = prefix.clone();
+        bytes[bytes.length - 1]++;
+        return bytes;
+    }
+
+    /**
+     * @return the encoded key of the same version, but of the given kind
+     */
+    static byte[] as(byte[] key, Kind kind) {
+        byte[] bytes = key.clone();
+        bytes[0] = kind.tag;
+        return bytes;
+    }
+
+    /**
+     * @return whether the two keys are of versions of the same object
+     */
+    static boolean sameObject(byte[] a, byte[] b) {
+        if (a.length != b.length) {
+            return false;
+        }
+        for (int i = a.length - Long.BYTES - 1; i >= 0; i--) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the key of the given kind and time of the object that the prefix, of any kind,
+     * belongs to
+     */
+    static byte[] key(byte[] prefix, Kind kind, long timestamp) {
+        byte[] bytes = Arrays.copyOf(prefix, prefix.length + Long.BYTES);
+        bytes[0] = kind.tag;
+        writeTimestamp(bytes, prefix.length, timestamp);
+        return bytes;
+    }
+
+    /**
+     * Reads just the timestamp of an encoded key.
+     */
+    static long timestampOf(byte[] bytes) {
+        return ByteBuffer.wrap(bytes, bytes.length - Long.BYTES, Long.BYTES).getLong() ^ Long.MIN_VALUE;
+    }
+
+    static StorageKey fromBytes(byte[] bytes) {
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        Kind kind = Kind.of(buf.get());
+        String moduleName = readName(buf);
+        String moduleId = readName(buf);
+        return new StorageKey(kind, moduleName, moduleId, buf.getLong() ^ Long.MIN_VALUE);
+    }
+
+    private static int prefixLength(String moduleName, String moduleId) {
+        return 1 + nameLength(moduleName) + nameLength(moduleId);
+    }
+
+    private static int writePrefix(byte[] bytes, Kind kind, String moduleName, String moduleId) {
+        bytes[0] = kind.tag;
+        int pos = writeName(bytes, 1, moduleName);
+        return writeName(bytes, pos, moduleId);
+    }
+
+    private static void writeTimestamp(byte[] bytes, int pos, long timestamp) {
+        long sortable = timestamp ^ Long.MIN_VALUE;
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            bytes[pos++] = (byte) (sortable >>> shift);
+        }
+    }
+
+    /**
+     * @return the length of the name as escaped UTF-8, terminator included
+     */
+    private static int nameLength(String name) {
+        int length = 2;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == 0) {
+                length += 2;
+            } else if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (isSurrogatePair(name, i)) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Writes the name as UTF-8, replacing unpaired surrogates with '?' the way
+     * {@link String#getBytes} does.
+     */
+    private static int writeName(byte[] bytes, int pos, String name) {
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == 0) {
+                bytes[pos++] = ESCAPE;
+                bytes[pos++] = ESCAPED_ZERO;
+            } else if (c < 0x80) {
+                bytes[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[pos++] = (byte) (0xC0 | (c >> 6));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (isSurrogatePair(name, i)) {
+                int cp = Character.toCodePoint(c, name.charAt(++i));
+                bytes[pos++] = (byte) (0xF0 | (cp >> 18));
+                bytes[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                bytes[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                bytes[pos++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                bytes[pos++] = '?';
+            } else {
+                bytes[pos++] = (byte) (0xE0 | (c >> 12));
+                bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        bytes[pos++] = ESCAPE;
+        bytes[pos++] = TERMINATOR;
+        return pos;
+    }
+
+    private static boolean isSurrogatePair(String name, int i) {
+        return Character.isHighSurrogate(name.charAt(i)) && i + 1 < name.length() &&
+                Character.isLowSurrogate(name.charAt(i + 1));
+    }
+
+    private static String readName(ByteBuffer buf) {
+        ByteArrayOutputStream name = new ByteArrayOutputStream();
+        for (;;) {
+            byte b = buf.get();
+            if (b != ESCAPE) {
+                name.write(b);
+            } else if (buf.get() == ESCAPED_ZERO) {
+                name.write(ESCAPE);
+            } else {
+                return new String(name.toByteArray(), StandardCharsets.UTF_8);
+            }
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof StorageKey)) {
+            return false;
+        }
+        StorageKey other = (StorageKey) o;
+        return kind == other.kind && timestamp == other.timestamp &&
+                moduleName.equals(other.moduleName) && moduleId.equals(other.moduleId);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(kind, moduleName, moduleId, timestamp);
+    }
+
+    @Override
+    public String toString() {
+        return kind.name().toLowerCase(Locale.ROOT) + "-" + moduleName + "-" + moduleId + "-" + timestamp;
+    }
+}
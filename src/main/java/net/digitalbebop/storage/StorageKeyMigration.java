@@ -0,0 +1,352 @@
+package net.digitalbebop.storage;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Options;
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.mapdb.BTreeKeySerializer;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.Serializer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+
+/**
+ * Converts a {@link FileStorageConduit} store from the string keys it used to have,
+ * "raw-module-id-timestamp" and "thumbnail-module-id-timestamp", to {@link StorageKey}s. Versions
+ * that still held their own data are moved over to content addressing on the way. Run it with
+ * the server stopped:
+ *
+ *   java -cp $(cat build/runtime.classpath) net.digitalbebop.storage.StorageKeyMigration -file /var/pulse/data
+ *
+ * A string key doesn't say where the module name ends when it has a dash in it, so module names
+ * with dashes have to be listed with -modules. Any other module name is taken to end at the first
+ * dash. The conversion commits as it goes and can be run again if it is cut short.
+ */
+public final class StorageKeyMigration {
+    private static final Logger logger = LogManager.getLogger(StorageKeyMigration.class);
+    private static final int COMMIT_EVERY = 1000;
+    private static final int READ_SIZE = 64*1024;
+
+    private final DB db;
+    private final BlobFileStore blobFiles;
+    private final List<String> modules;
+    private final ConcurrentNavigableMap<String, byte[]> collection;
+    private final ConcurrentNavigableMap<String, Long> largeObjects;
+    private final ConcurrentNavigableMap<String, byte[]> manifests;
+    private final ConcurrentNavigableMap<byte[], String> versions;
+    private final ConcurrentNavigableMap<String, Long> refCounts;
+    private final ConcurrentNavigableMap<String, String> thumbnailsOf;
+
+    private final List<File> replacedFiles = new ArrayList<>(); // deleted once the move is committed
+    private int uncommitted = 0;
+    private long converted = 0;
+    private long failed = 0;
+
+    /**
+     * @param modules module names that have a dash in them
+     */
+    StorageKeyMigration(String dir, Collection<String> modules) {
+        this.blobFiles = new BlobFileStore(new File(dir + "-blobs"));
+        this.modules = new ArrayList<>(modules);
+        /* Longest first, so that a module named "a-b" wins over one named "a" */
+        this.modules.sort((a, b) -> b.length() - a.length());
+
+        db = DBMaker.fileDB(new File(dir))
+                .fileChannelEnable()
+                .make();
+        collection = db.treeMapCreate(FileStorageConduit.CONTENT)
+                .valuesOutsideNodesEnable()
+                .keySerializer(BTreeKeySerializer.STRING)
+                .valueSerializer(Serializer.BYTE_ARRAY)
+                .makeOrGet();
+        largeObjects = db.treeMapCreate(FileStorageConduit.LARGE_OBJECTS)
+                .keySerializer(BTreeKeySerializer.STRING)
+                .valueSerializer(Serializer.LONG)
+                .makeOrGet();
+        manifests = db.treeMapCreate(FileStorageConduit.MANIFESTS)
+                .keySerializer(BTreeKeySerializer.STRING)
+                .valueSerializer(Serializer.BYTE_ARRAY)
+                .makeOrGet();
+        versions = db.treeMapCreate(FileStorageConduit.VERSIONS)
+                .keySerializer(BTreeKeySerializer.BYTE_ARRAY)
+                .valueSerializer(Serializer.STRING)
+                .makeOrGet();
+        refCounts = db.treeMapCreate(FileStorageConduit.REF_COUNTS)
+                .keySerializer(BTreeKeySerializer.STRING)
+                .valueSerializer(Serializer.LONG)
+                .makeOrGet();
+        thumbnailsOf = db.treeMapCreate(FileStorageConduit.THUMBNAILS_OF)
+                .keySerializer(BTreeKeySerializer.STRING)
+                .valueSerializer(Serializer.STRING)
+                .makeOrGet();
+    }
+
+    /**
+     * @return true if every version was converted
+     */
+    boolean migrate() throws IOException {
+        if (db.exists(FileStorageConduit.LEGACY_REFS)) {
+            ConcurrentNavigableMap<String, String> refs = db.treeMapCreate(FileStorageConduit.LEGACY_REFS)
+                    .keySerializer(BTreeKeySerializer.STRING)
+                    .valueSerializer(Serializer.STRING)
+                    .makeOrGet();
+            logger.info("Converting " + refs.size() + " content references");
+            for (Map.Entry<String, String> ref : refs.entrySet()) {
+                StorageKey key = parse(ref.getKey());
+                if (key != null) {
+                    versions.put(key.toBytes(), ref.getValue());
+                    converted();
+                }
+            }
+            if (failed == 0) {
+                db.delete(FileStorageConduit.LEGACY_REFS);
+            }
+            commit();
+        }
+
+        for (String prefix : FileStorageConduit.LEGACY_PREFIXES) {
+            migrateInline(prefix);
+            migrateLarge(prefix);
+        }
+        commit();
+
+        linkThumbnails();
+        commit();
+        logger.info("Converted " + converted + " versions, " + failed + " could not be converted");
+        return failed == 0;
+    }
+
+    void close() {
+        db.close();
+    }
+
+    /**
+     * Moves versions that held their data inline in MapDB over to content addressing.
+     */
+    private void migrateInline(String prefix) {
+        String from = prefix;
+        String legacy;
+        while ((legacy = ceiling(collection, from, prefix)) != null) {
+            StorageKey key = parse(legacy);
+            if (key == null) {
+                from = legacy + '\0';
+                continue;
+            }
+
+            if (!versions.containsKey(key.toBytes())) {
+                byte[] data = collection.get(legacy);
+                String content = ContentHashes.contentId(ByteBuffer.wrap(data));
+                if (reference(content)) {
+                    collection.put(content, data);
+                }
+                versions.put(key.toBytes(), content);
+            }
+            collection.remove(legacy);
+            converted();
+        }
+    }
+
+    /**
+     * Moves versions that had a blob file of their own over to content addressing. The file is
+     * hard linked under its content id, so that it is in both places until the move is committed.
+     */
+    private void migrateLarge(String prefix) throws IOException {
+        String from = prefix;
+        String legacy;
+        while ((legacy = ceiling(largeObjects, from, prefix)) != null) {
+            StorageKey key = parse(legacy);
+            File file = blobFiles.fileFor(legacy);
+            if (key == null) {
+                from = legacy + '\0';
+                continue;
+            }
+            if (versions.containsKey(key.toBytes())) {
+                /* Left over from before the version was stored again */
+                largeObjects.remove(legacy);
+                manifests.remove(legacy);
+                replacedFiles.add(file);
+                converted();
+                continue;
+            }
+
+            if (!file.exists()) {
+                logger.error("Blob file of " + legacy + " is missing, dropping it");
+                largeObjects.remove(legacy);
+                manifests.remove(legacy);
+                failed++;
+                continue;
+            }
+
+            String content = contentId(file);
+            if (reference(content)) {
+                File target = blobFiles.fileFor(content);
+                FileUtils.forceMkdir(target.getParentFile());
+                try {
+                    Files.createLink(target.toPath(), file.toPath());
+                } catch (UnsupportedOperationException | IOException e) {
+                    Files.copy(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                largeObjects.put(content, largeObjects.get(legacy));
+                byte[] manifest = manifests.get(legacy);
+                if (manifest != null) {
+                    manifests.put(content, manifest);
+                }
+            }
+            versions.put(key.toBytes(), content);
+            largeObjects.remove(legacy);
+            manifests.remove(legacy);
+            replacedFiles.add(file);
+            converted();
+        }
+    }
+
+    /**
+     * Remembers the thumbnail of every raw content that has one, so that it is reused.
+     */
+    private void linkThumbnails() {
+        byte[] from = {StorageKey.Kind.THUMBNAIL.tag()};
+        byte[] to = {(byte) (StorageKey.Kind.THUMBNAIL.tag() + 1)};
+        for (Map.Entry<byte[], String> thumbnail : versions.subMap(from, to).entrySet()) {
+            StorageKey key = StorageKey.fromBytes(thumbnail.getKey());
+            String raw = versions.get(key.as(StorageKey.Kind.RAW).toBytes());
+            if (raw != null) {
+                thumbnailsOf.putIfAbsent(raw, thumbnail.getValue());
+            }
+        }
+    }
+
+    /**
+     * Counts a reference to the content.
+     * @return true if it is new and has to be written
+     */
+    private boolean reference(String content) {
+        Long count = refCounts.get(content);
+        refCounts.put(content, count == null ? 1L : count + 1);
+        return count == null;
+    }
+
+    private void converted() {
+        converted++;
+        if (++uncommitted >= COMMIT_EVERY) {
+            commit();
+        }
+    }
+
+    private void commit() {
+        db.commit();
+        uncommitted = 0;
+        for (File file : replacedFiles) {
+            FileUtils.deleteQuietly(file);
+        }
+        replacedFiles.clear();
+    }
+
+    /**
+     * @return the parsed key, or null if it can't be
+     */
+    private StorageKey parse(String legacy) {
+        try {
+            return parse(legacy, modules);
+        } catch (IllegalArgumentException e) {
+            logger.error("Can't convert " + legacy + ": " + e.getMessage());
+            failed++;
+            return null;
+        }
+    }
+
+    /**
+     * @param modules module names that have a dash in them, longest first
+     */
+    static StorageKey parse(String legacy, List<String> modules) {
+        final StorageKey.Kind kind;
+        final String rest;
+        if (legacy.startsWith("raw-")) {
+            kind = StorageKey.Kind.RAW;
+            rest = legacy.substring("raw-".length());
+        } else if (legacy.startsWith("thumbnail-")) {
+            kind = StorageKey.Kind.THUMBNAIL;
+            rest = legacy.substring("thumbnail-".length());
+        } else {
+            throw new IllegalArgumentException("not a version key");
+        }
+
+        int timestampStart = rest.lastIndexOf('-');
+        if (timestampStart < 0) {
+            throw new IllegalArgumentException("no timestamp");
+        }
+        final long timestamp;
+        try {
+            timestamp = Long.parseLong(rest.substring(timestampStart + 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("bad timestamp");
+        }
+        String names = rest.substring(0, timestampStart);
+
+        for (String module : modules) {
+            if (names.startsWith(module + "-")) {
+                return new StorageKey(kind, module, names.substring(module.length() + 1), timestamp);
+            }
+        }
+        int idStart = names.indexOf('-');
+        if (idStart < 0) {
+            throw new IllegalArgumentException("no module id");
+        }
+        return new StorageKey(kind, names.substring(0, idStart), names.substring(idStart + 1), timestamp);
+    }
+
+    private static String ceiling(ConcurrentNavigableMap<String, ?> map, String from, String prefix) {
+        String key = map.ceilingKey(from);
+        return key != null && key.startsWith(prefix) ? key : null;
+    }
+
+    private static String contentId(File file) throws IOException {
+        MessageDigest digest = ContentHashes.newDigest();
+        byte[] buf = new byte[READ_SIZE];
+        try (InputStream in = new FileInputStream(file)) {
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                digest.update(buf, 0, n);
+            }
+        }
+        return ContentHashes.contentId(digest.digest());
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        options.addOption("file", true, "The fileStorageFile of the store to convert.");
+        options.addOption("modules", true, "Comma separated module names that have a dash in them.");
+        CommandLine cmd = new DefaultParser().parse(options, args);
+        if (!cmd.hasOption("file")) {
+            System.err.println("Usage: StorageKeyMigration -file <fileStorageFile> [-modules a-b,c-d]");
+            System.exit(1);
+        }
+
+        List<String> modules = cmd.hasOption("modules") ?
+                Arrays.asList(cmd.getOptionValue("modules").split(",")) : Collections.emptyList();
+        StorageKeyMigration migration = new StorageKeyMigration(cmd.getOptionValue("file"), modules);
+        boolean complete;
+        try {
+            complete = migration.migrate();
+        } finally {
+            migration.close();
+        }
+        System.exit(complete ? 0 : 1);
+    }
+}
@@ -6,6 +6,6 @@ import com.google.inject.Singleton;
 public class StorageModule extends AbstractModule {
     @Override
     protected void configure() {
-        bind(StorageConduit.class).to(FileStorageConduit.class).in(Singleton.class);
+        bind(StorageConduit.class).toProvider(StorageProvider.class).in(Singleton.class);
     }
 }
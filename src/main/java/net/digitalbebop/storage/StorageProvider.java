@@ -0,0 +1,41 @@
+package net.digitalbebop.storage;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.name.Named;
+
+import java.util.Locale;
+
+public class StorageProvider implements Provider<StorageConduit> {
+
+    @Inject Provider<FileStorageConduit> fileStorage;
+    @Inject Provider<ShardedStorageConduit> shardedStorage;
+    @Inject Provider<SegmentStorageConduit> segmentStorage;
+    @Inject @Named("storageBackend") String backend;
+    @Inject @Named("fileStorageShards") String shards;
+    @Inject @Named("storageCacheRawBytes") Long cacheRawBytes;
+    @Inject @Named("storageCacheThumbnailBytes") Long cacheThumbnailBytes;
+    @Inject @Named("fileStorageInlineLimit") Integer inlineLimit;
+    @Inject MetricRegistry metrics;
+
+    @Override
+    public StorageConduit get() {
+        StorageConduit storage;
+        switch (backend.trim().toLowerCase(Locale.ROOT)) {
+            case "file":
+                storage = shards.trim().isEmpty() ? fileStorage.get() : shardedStorage.get();
+                break;
+            case "segment":
+                storage = segmentStorage.get();
+                break;
+            default:
+                throw new IllegalStateException("Unknown storageBackend: " + backend);
+        }
+        if (cacheRawBytes > 0 || cacheThumbnailBytes > 0) {
+            /* Anything larger than the inline limit is streamed from its own file */
+            storage = new CachingStorageConduit(storage, cacheRawBytes, cacheThumbnailBytes, inlineLimit, metrics);
+        }
+        return storage;
+    }
+}
@@ -0,0 +1,182 @@
+package net.digitalbebop.storage;
+
+import com.codahale.metrics.MetricRegistry;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Options;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Moves objects between the shards of a {@link ShardedStorageConduit} after the list of shards in
+ * fileStorageShards has changed. Run it with the server stopped, giving the old and the new list:
+ *
+ *   java -cp $(cat build/runtime.classpath) net.digitalbebop.storage.StorageShardRebalancer \
+ *       -from /disk1/pulse/data:/disk2/pulse/data -to /disk1/pulse/data:/disk2/pulse/data:/disk3/pulse/data
+ *
+ * A single store moves to shards with -from set to its fileStorageFile. Stores that appear in
+ * both lists keep the objects that still hash to them. Every version is first copied to its new
+ * shard and committed, and only then deleted from its old one, so the rebalancing can be run again
+ * if it is cut short. Stores left out of the new list are emptied and can be removed afterwards.
+ */
+public final class StorageShardRebalancer {
+    private static final Logger logger = LogManager.getLogger(StorageShardRebalancer.class);
+    private static final int COMMIT_EVERY = 1000;
+
+    private final Map<String, FileStorageConduit> stores = new LinkedHashMap<>(); // path -> store
+    private final List<FileStorageConduit> from = new ArrayList<>();
+    private final List<FileStorageConduit> to = new ArrayList<>();
+    private int uncommitted = 0;
+    private long copied = 0;
+    private long failed = 0;
+
+    StorageShardRebalancer(List<String> from, List<String> to, int inlineLimit, CompressionPolicy compression)
+            throws IOException {
+        MetricRegistry metrics = new MetricRegistry();
+        for (String dir : from) {
+            this.from.add(open(dir, inlineLimit, compression, metrics));
+        }
+        for (String dir : to) {
+            this.to.add(open(dir, inlineLimit, compression, metrics));
+        }
+    }
+
+    private FileStorageConduit open(String dir, int inlineLimit, CompressionPolicy compression, MetricRegistry metrics)
+            throws IOException {
+        String path = new File(dir).getCanonicalPath();
+        FileStorageConduit store = stores.get(path);
+        if (store == null) {
+            store = FileStorageConduit.builder(dir)
+                    .shard("shard-" + stores.size())
+                    .inlineLimit(inlineLimit)
+                    .compactionRate(Integer.MAX_VALUE)
+                    .threads(1)
+                    .compression(compression)
+                    .metrics(metrics)
+                    .build();
+            stores.put(path, store);
+        }
+        return store;
+    }
+
+    /**
+     * @return whether every version that has to move was moved
+     */
+    boolean rebalance() throws IOException, ExecutionException, InterruptedException {
+        for (FileStorageConduit source : from) {
+            for (byte[] bytes : source.storedKeys()) {
+                StorageKey key = StorageKey.fromBytes(bytes);
+                FileStorageConduit target = target(key);
+                if (target != source) {
+                    copy(key, source, target);
+                }
+            }
+        }
+        commit();
+        logger.info("Copied " + copied + " versions to their new shards, " + failed + " could not be copied");
+        if (failed > 0) {
+            return false;
+        }
+
+        long deleted = 0;
+        for (FileStorageConduit source : from) {
+            byte[] last = null;
+            for (byte[] bytes : source.storedKeys()) {
+                if (last != null && StorageKey.sameObject(last, bytes)) {
+                    continue;
+                }
+                last = bytes;
+                StorageKey key = StorageKey.fromBytes(bytes);
+                if (target(key) != source) {
+                    source.delete(key.moduleName(), key.moduleId());
+                    deleted++;
+                }
+            }
+        }
+        commit();
+        logger.info("Deleted " + deleted + " objects from their old shards");
+        return true;
+    }
+
+    private FileStorageConduit target(StorageKey key) {
+        return to.get(ShardedStorageConduit.shardOf(key.moduleName(), key.moduleId(), to.size()));
+    }
+
+    private void copy(StorageKey key, FileStorageConduit source, FileStorageConduit target)
+            throws IOException, ExecutionException, InterruptedException {
+        try {
+            if (key.kind() == StorageKey.Kind.RAW) {
+                Optional<Blob> blob = source.openRaw(key.moduleName(), key.moduleId(), key.timestamp());
+                if (!blob.isPresent()) {
+                    return; // deleted
+                }
+                try (InputStream in = blob.get().openStream()) {
+                    target.putRaw(key.moduleName(), key.moduleId(), key.timestamp(), in);
+                }
+            } else {
+                Optional<byte[]> thumbnail = source.getThumbnail(key.moduleName(), key.moduleId(), key.timestamp());
+                if (!thumbnail.isPresent()) {
+                    return;
+                }
+                target.putThumbnail(key.moduleName(), key.moduleId(), key.timestamp(), thumbnail.get());
+            }
+            copied++;
+        } catch (Exception e) {
+            logger.error("Could not copy " + key + ", leaving it where it is", e);
+            failed++;
+            return;
+        }
+        if (++uncommitted >= COMMIT_EVERY) {
+            commit();
+            logger.info("Copied " + copied + " versions");
+        }
+    }
+
+    private void commit() throws ExecutionException, InterruptedException {
+        for (FileStorageConduit store : stores.values()) {
+            store.commit(Durability.SYNC).get();
+        }
+        uncommitted = 0;
+    }
+
+    void close() {
+        stores.values().forEach(FileStorageConduit::close);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        options.addOption("from", true, "The fileStorageShards, or fileStorageFile, the objects are in now.");
+        options.addOption("to", true, "The fileStorageShards to move the objects to.");
+        options.addOption("inlineLimit", true, "The fileStorageInlineLimit, 262144 if not given.");
+        options.addOption("compression", true, "The storageCompression, deflate 1 if not given.");
+        CommandLine cmd = new DefaultParser().parse(options, args);
+        if (!cmd.hasOption("from") || !cmd.hasOption("to")) {
+            System.err.println("Usage: StorageShardRebalancer -from <old shards> -to <new shards> [-inlineLimit n] " +
+                    "[-compression policy]");
+            System.exit(1);
+        }
+
+        int inlineLimit = Integer.parseInt(cmd.getOptionValue("inlineLimit", "262144"));
+        StorageShardRebalancer rebalancer = new StorageShardRebalancer(
+                ShardedStorageConduit.parseDirs(cmd.getOptionValue("from")),
+                ShardedStorageConduit.parseDirs(cmd.getOptionValue("to")), inlineLimit,
+                new CompressionPolicy(cmd.getOptionValue("compression", "deflate 1")));
+        boolean complete;
+        try {
+            complete = rebalancer.rebalance();
+        } finally {
+            rebalancer.close();
+        }
+        System.exit(complete ? 0 : 1);
+    }
+}
@@ -0,0 +1,51 @@
+package net.digitalbebop.storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The data of one object along with the key it is stored under, for writing objects in bulk.
+ */
+public class StoredObject {
+    private final String moduleName;
+    private final String moduleId;
+    private final long timestamp;
+    private final ByteBuffer data;
+
+    public StoredObject(String moduleName, String moduleId, long timestamp, byte[] data) {
+        this(moduleName, moduleId, timestamp, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Holds on to the remaining bytes of the buffer without copying them, so neither they nor
+     * the buffer's position may change until the object is stored.
+     */
+    public StoredObject(String moduleName, String moduleId, long timestamp, ByteBuffer data) {
+        this.moduleName = moduleName;
+        this.moduleId = moduleId;
+        this.timestamp = timestamp;
+        this.data = data;
+    }
+
+    public String getModuleName() {
+        return moduleName;
+    }
+
+    public String getModuleId() {
+        return moduleId;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return a new buffer over the data, so that reading it doesn't use it up
+     */
+    public ByteBuffer getData() {
+        return data.duplicate();
+    }
+
+    public int getLength() {
+        return data.remaining();
+    }
+}
@@ -0,0 +1,523 @@
+package net.digitalbebop.storage;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.ZeroCopyByteString;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renders thumbnails off the request path. Jobs wait in a queue bounded by the bytes of raw data
+ * they hold, and a worker per core takes fresh uploads ahead of backfills. A render that runs past
+ * the time limit is given up on and its worker replaced, so a pathological document can hold on to
+ * a core only until it finishes on its own. Once twice the pool's worth of workers are stuck like
+ * that, replacements wait until one of them finishes, so that renders that never return can't pile
+ * up threads without bound. Thumbnails are best effort: a job that doesn't fit in
+ * the queue is dropped, though a fresh one first pushes out the newest backfills to make room.
+ * <p>
+ * Formats listed in the thumbnailLazyFormats property, separated by spaces, aren't rendered when
+ * they are indexed but the first time their thumbnail is asked for, see {@link #renderStored}.
+ */
+@Singleton
+public class ThumbnailPipeline {
+    private static final Logger logger = LogManager.getLogger(ThumbnailPipeline.class);
+    private static final long UNRENDERABLE_TTL_MINUTES = 10;
+    private static final long MAX_UNRENDERABLE = 100_000;
+
+    public enum Priority {
+        /* In the order the workers take them */
+        VIEW, FRESH, BACKFILL
+    }
+
+    interface Renderer {
+        Optional<byte[]> render(String format, InputStream data, long maxPixelBytes);
+    }
+
+    private final StorageConduit storage;
+    private final Renderer renderer;
+    private final Set<String> lazyFormats;
+    private final long maxQueueBytes;
+    private final long timeoutMillis;
+    private final long maxPixelBytes;
+    private final MetricRegistry metrics;
+    private final Meter rejected;
+    private final Meter timeouts;
+    private final Meter shared;
+    private final int poolSize;
+    private final ScheduledExecutorService watchdog;
+    private final AtomicInteger workerIds = new AtomicInteger();
+    private final Set<Worker> workers = ConcurrentHashMap.newKeySet();
+    private final Map<StorageKey, ListenableFuture<Optional<byte[]>>> inFlight = new ConcurrentHashMap<>();
+    /* Versions whose lazy render failed, timed out or came out empty, not tried again for a while */
+    private final Cache<StorageKey, Boolean> unrenderable = CacheBuilder.newBuilder()
+            .expireAfterWrite(UNRENDERABLE_TTL_MINUTES, TimeUnit.MINUTES)
+            .maximumSize(MAX_UNRENDERABLE)
+            .build();
+
+    /* Guarded by this */
+    private final Map<Priority, ArrayDeque<Job>> queues = new EnumMap<>(Priority.class);
+    private long queuedBytes;
+    private boolean running = true;
+    private int stuckWorkers;
+    private int missingWorkers;
+
+    @Inject
+    public ThumbnailPipeline(StorageConduit storage,
+                             @Named("thumbnailWorkers") Integer workers,
+                             @Named("thumbnailQueueBytes") Long maxQueueBytes,
+                             @Named("thumbnailTimeout") Integer timeoutMillis,
+                             @Named("thumbnailMaxPixelBytes") Long maxPixelBytes,
+                             @Named("thumbnailLazyFormats") String lazyFormats,
+                             MetricRegistry metrics) {
+        this(storage, Thumbnails::convert, parseFormats(lazyFormats), workers, maxQueueBytes, timeoutMillis,
+                maxPixelBytes, metrics);
+    }
+
+    /**
+     * @param workers the number of render threads, or 0 for one per core
+     */
+    ThumbnailPipeline(StorageConduit storage, Renderer renderer, Set<String> lazyFormats, int workers,
+                      long maxQueueBytes, long timeoutMillis, long maxPixelBytes, MetricRegistry metrics) {
+        this.storage = storage;
+        this.renderer = renderer;
+        this.lazyFormats = lazyFormats;
+        this.maxQueueBytes = maxQueueBytes;
+        this.timeoutMillis = timeoutMillis;
+        this.maxPixelBytes = maxPixelBytes;
+        this.metrics = metrics;
+        for (Priority priority : Priority.values()) {
+            queues.put(priority, new ArrayDeque<>());
+        }
+
+        this.rejected = metrics.meter(MetricRegistry.name(ThumbnailPipeline.class, "rejected"));
+        this.timeouts = metrics.meter(MetricRegistry.name(ThumbnailPipeline.class, "timeouts"));
+        this.shared = metrics.meter(MetricRegistry.name(ThumbnailPipeline.class, "renders-shared"));
+        String lag = MetricRegistry.name(ThumbnailPipeline.class, "queue-lag");
+        String bytes = MetricRegistry.name(ThumbnailPipeline.class, "queue-bytes");
+        String stuck = MetricRegistry.name(ThumbnailPipeline.class, "stuck-workers");
+        metrics.remove(lag);
+        metrics.remove(bytes);
+        metrics.remove(stuck);
+        metrics.register(lag, (Gauge<Long>) this::lagMillis);
+        metrics.register(bytes, (Gauge<Long>) this::queuedBytes);
+        metrics.register(stuck, (Gauge<Integer>) this::stuckWorkers);
+
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "thumbnail-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.poolSize = workers > 0 ? workers : Runtime.getRuntime().availableProcessors();
+        for (int i = 0; i < poolSize; i++) {
+            startWorker();
+        }
+    }
+
+    /**
+     * Queues a render of the data, to be stored as the thumbnail of the version once it is done.
+     * Formats that are rendered lazily are left for {@link #renderStored}.
+     * @return false if the thumbnail was dropped because the queue is full
+     */
+    public boolean submit(String moduleName, String moduleId, long timestamp, String format, ByteString data,
+                          Priority priority) {
+        if (!Thumbnails.supports(format) || lazyFormats.contains(format)) {
+            return true;
+        }
+        Job job = new Job(format, data, priority);
+        if (!offer(job)) {
+            rejected.mark();
+            return false;
+        }
+        Futures.addCallback(job.result, new FutureCallback<Optional<byte[]>>() {
+            @Override
+            public void onSuccess(Optional<byte[]> result) {
+                if (!result.isPresent()) {
+                    return;
+                }
+                try {
+                    storage.putThumbnail(moduleName, moduleId, timestamp, result.get());
+                } catch (RuntimeException e) {
+                    logger.warn("Failed to store thumbnail for " + moduleName + "-" + moduleId, e);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                logger.debug("No thumbnail for " + moduleName + "-" + moduleId + ": " + t);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Queues a render of the data without storing it.
+     * @return the thumbnail, empty if the format has none or the data could not be rendered. Fails
+     *         with a RejectedExecutionException when the queue is full and with a TimeoutException
+     *         when the render takes too long.
+     */
+    public ListenableFuture<Optional<byte[]>> render(String format, ByteString data, Priority priority) {
+        if (!Thumbnails.supports(format)) {
+            return Futures.immediateFuture(Optional.empty());
+        }
+        Job job = new Job(format, data, priority);
+        if (!offer(job)) {
+            rejected.mark();
+            return Futures.immediateFailedFuture(new RejectedExecutionException(
+                    "Thumbnail queue is full (" + queuedBytes() + " bytes)"));
+        }
+        return job.result;
+    }
+
+    /**
+     * Renders and stores the missing thumbnail of a stored version, if its format is one that is
+     * rendered lazily. Concurrent calls for the same version share a single render. A version whose
+     * render failed, timed out or came out empty isn't rendered again for a few minutes. The raw
+     * data is read on the calling thread, so this belongs on the storage pool.
+     * @return the thumbnail, empty if there is no raw data or its format isn't rendered lazily. Fails
+     *         as {@link #render} does.
+     */
+    public ListenableFuture<Optional<byte[]>> renderStored(String moduleName, String moduleId, long timestamp) {
+        if (lazyFormats.isEmpty()) {
+            return Futures.immediateFuture(Optional.empty());
+        }
+        StorageKey key = StorageKey.thumbnail(moduleName, moduleId, timestamp);
+        if (unrenderable.getIfPresent(key) != null) {
+            return Futures.immediateFuture(Optional.empty());
+        }
+        SettableFuture<Optional<byte[]>> flight = SettableFuture.create();
+        ListenableFuture<Optional<byte[]>> existing;
+        while ((existing = inFlight.putIfAbsent(key, flight)) != null) {
+            if (!existing.isDone()) {
+                shared.mark();
+                return existing;
+            }
+            /* Finished, but its listener hasn't removed it yet. A new flight finds the thumbnail
+             * it stored, so only renders still running count as shared. */
+            inFlight.remove(key, existing);
+        }
+        /* Stored before it is removed, so that later callers find it one way or the other */
+        flight.addListener(() -> inFlight.remove(key, flight), MoreExecutors.directExecutor());
+        try {
+            renderStored(key, moduleName, moduleId, timestamp, flight);
+        } catch (IOException | RuntimeException e) {
+            flight.setException(e);
+        }
+        return flight;
+    }
+
+    private void renderStored(StorageKey key, String moduleName, String moduleId, long timestamp,
+                              SettableFuture<Optional<byte[]>> flight) throws IOException {
+        /* A render that finished between the caller's miss and this flight */
+        Optional<byte[]> stored = storage.getThumbnail(moduleName, moduleId, timestamp);
+        if (stored.isPresent()) {
+            flight.set(stored);
+            return;
+        }
+        Optional<Blob> blob = storage.openRaw(moduleName, moduleId, timestamp);
+        Optional<String> format = Optional.empty();
+        if (blob.isPresent()) {
+            try (InputStream in = blob.get().openStream()) {
+                format = Thumbnails.detectFormat(in);
+            }
+        }
+        Optional<byte[]> raw = format.isPresent() && lazyFormats.contains(format.get())
+                ? storage.getRaw(moduleName, moduleId, timestamp) : Optional.empty();
+        if (!raw.isPresent()) {
+            flight.set(Optional.empty());
+            return;
+        }
+
+        Futures.addCallback(render(format.get(), ZeroCopyByteString.wrap(raw.get()), Priority.VIEW),
+                new FutureCallback<Optional<byte[]>>() {
+                    @Override
+                    public void onSuccess(Optional<byte[]> result) {
+                        if (result.isPresent()) {
+                            try {
+                                storage.putThumbnail(moduleName, moduleId, timestamp, result.get());
+                            } catch (RuntimeException e) {
+                                logger.warn("Failed to store thumbnail for " + moduleName + "-" + moduleId, e);
+                            }
+                        } else {
+                            unrenderable.put(key, true);
+                        }
+                        flight.set(result);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        /* A full queue or a closing pipeline says nothing about the document */
+                        if (!(t instanceof RejectedExecutionException || t instanceof CancellationException)) {
+                            unrenderable.put(key, true);
+                        }
+                        flight.setException(t);
+                    }
+                });
+    }
+
+    /**
+     * Stops the workers once they finish what they are rendering. Jobs still queued are cancelled.
+     */
+    public void close() {
+        synchronized (this) {
+            running = false;
+            for (ArrayDeque<Job> queue : queues.values()) {
+                for (Job job : queue) {
+                    job.result.cancel(false);
+                }
+                queue.clear();
+            }
+            queuedBytes = 0;
+            notifyAll();
+        }
+        for (Worker worker : workers) {
+            try {
+                worker.join(timeoutMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        watchdog.shutdownNow();
+    }
+
+    synchronized long queuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * @return how many workers were left behind on renders that timed out and haven't finished yet
+     */
+    synchronized int stuckWorkers() {
+        return stuckWorkers;
+    }
+
+    /**
+     * @return how long the oldest queued job has been waiting
+     */
+    synchronized long lagMillis() {
+        long oldest = Long.MAX_VALUE;
+        for (ArrayDeque<Job> queue : queues.values()) {
+            if (!queue.isEmpty()) {
+                oldest = Math.min(oldest, queue.peekFirst().queuedAt);
+            }
+        }
+        return oldest == Long.MAX_VALUE ? 0 : System.currentTimeMillis() - oldest;
+    }
+
+    private synchronized boolean offer(Job job) {
+        if (!running) {
+            return false;
+        }
+        if (queuedBytes + job.size > maxQueueBytes && job.priority != Priority.BACKFILL
+                && queuedBytes - backfillBytes() + job.size <= maxQueueBytes) {
+            /* Backfills can be sent again, an upload someone just made or is looking at can't */
+            Iterator<Job> backfills = queues.get(Priority.BACKFILL).descendingIterator();
+            while (queuedBytes + job.size > maxQueueBytes && backfills.hasNext()) {
+                Job evicted = backfills.next();
+                backfills.remove();
+                queuedBytes -= evicted.size;
+                rejected.mark();
+                evicted.result.setException(new RejectedExecutionException("Pushed out by a fresh thumbnail"));
+            }
+        }
+        if (queuedBytes + job.size > maxQueueBytes) {
+            return false;
+        }
+        queues.get(job.priority).addLast(job);
+        queuedBytes += job.size;
+        notify();
+        return true;
+    }
+
+    private synchronized long backfillBytes() {
+        long bytes = 0;
+        for (Job job : queues.get(Priority.BACKFILL)) {
+            bytes += job.size;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the next job to render, or null once the pipeline is closed
+     */
+    private synchronized Job take() throws InterruptedException {
+        for (;;) {
+            if (!running) {
+                return null;
+            }
+            for (Priority priority : Priority.values()) {
+                Job job = queues.get(priority).pollFirst();
+                if (job != null) {
+                    queuedBytes -= job.size;
+                    return job;
+                }
+            }
+            wait();
+        }
+    }
+
+    private void startWorker() {
+        Worker worker = new Worker("thumbnail-worker-" + workerIds.incrementAndGet());
+        workers.add(worker);
+        worker.start();
+    }
+
+    private void timeOut(Job job) {
+        synchronized (job) {
+            if (job.finished) {
+                return;
+            }
+            job.timedOut = true;
+            job.worker.retired = true;
+            job.worker.interrupt();
+        }
+        timeouts.mark();
+        logger.warn("Gave up on " + job.format + " thumbnail of " + job.size + " bytes after " + timeoutMillis + "ms");
+        job.result.setException(new TimeoutException("Thumbnail took longer than " + timeoutMillis + "ms"));
+        synchronized (this) {
+            stuckWorkers++;
+            if (!running) {
+                return;
+            }
+            if (stuckWorkers <= 2 * poolSize) {
+                startWorker();
+            } else {
+                missingWorkers++;
+                logger.warn(stuckWorkers + " thumbnail workers are stuck, not replacing any more until one finishes");
+            }
+        }
+    }
+
+    /**
+     * Starts the replacement held back for a stuck worker that has now finished, if there is one.
+     */
+    private synchronized void retiredWorkerExited() {
+        stuckWorkers--;
+        if (missingWorkers > 0 && running) {
+            missingWorkers--;
+            startWorker();
+        }
+    }
+
+    private static Set<String> parseFormats(String formats) {
+        Set<String> parsed = new HashSet<>(Arrays.asList(formats.trim().split("\\s+")));
+        parsed.remove("");
+        return parsed;
+    }
+
+    private static final class Job {
+        final String format;
+        final ByteString data;
+        final Priority priority;
+        final long size;
+        final long queuedAt = System.currentTimeMillis();
+        final SettableFuture<Optional<byte[]>> result = SettableFuture.create();
+        /* Guarded by this */
+        Worker worker;
+        boolean finished;
+        boolean timedOut;
+
+        Job(String format, ByteString data, Priority priority) {
+            this.format = format;
+            this.data = data;
+            this.priority = priority;
+            this.size = data.size();
+        }
+    }
+
+    private final class Worker extends Thread {
+        /* Set when the worker is left behind on a render that timed out */
+        volatile boolean retired;
+
+        Worker(String name) {
+            super(name);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!retired) {
+                    Job job = take();
+                    if (job == null) {
+                        return;
+                    }
+                    render(job);
+                }
+            } catch (InterruptedException e) {
+                // closed
+            } finally {
+                workers.remove(this);
+                if (retired) {
+                    retiredWorkerExited();
+                }
+            }
+        }
+
+        private void render(Job job) {
+            synchronized (job) {
+                job.worker = this;
+            }
+            ScheduledFuture<?> timeout = watchdog.schedule(() -> timeOut(job), timeoutMillis, TimeUnit.MILLISECONDS);
+            Timer.Context time = metrics.timer(MetricRegistry.name(ThumbnailPipeline.class, "render-time",
+                    job.format)).time();
+            Optional<byte[]> thumbnail = Optional.empty();
+            RuntimeException failure = null;
+            try {
+                thumbnail = renderer.render(job.format, job.data.newInput(), maxPixelBytes);
+            } catch (RuntimeException e) {
+                failure = e;
+            } finally {
+                time.stop();
+                timeout.cancel(false);
+            }
+            synchronized (job) {
+                if (job.timedOut) {
+                    return;
+                }
+                job.finished = true;
+            }
+            /* The watchdog can't interrupt this job any more, clear an interrupt it sent before */
+            Thread.interrupted();
+            if (failure != null) {
+                logger.warn("Failed to render " + job.format + " thumbnail", failure);
+                job.result.setException(failure);
+            } else {
+                job.result.set(thumbnail);
+            }
+        }
+    }
+}
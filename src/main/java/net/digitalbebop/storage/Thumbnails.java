@@ -1,16 +1,23 @@
 package net.digitalbebop.storage;
 
 import net.digitalbebop.ClientRequests;
+import org.apache.commons.io.IOUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
 import org.apache.pdfbox.util.ImageIOUtil;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Optional;
 
@@ -22,25 +29,73 @@ public final class Thumbnails {
     private static final Logger logger = LogManager.getLogger(Thumbnails.class);
     private static final int THUMBNAIL_SIZE = 100;
     private static final String IMAGE_TYPE = "png";
+    /* PDF sizes are in points, 72 to the inch */
+    private static final float POINTS_PER_INCH = 72f;
+    private static final int BYTES_PER_PIXEL = 4;
+    /* Enough for the signature of any format ImageIO reads */
+    private static final int DETECT_BYTES = 64;
+    private static final byte[] PDF_MAGIC = "%PDF".getBytes(StandardCharsets.US_ASCII);
 
     /**
      * Creates the OutputStream of the thumbnail generated. Returns null if no thumbnail could be
      * generated. This happens in the case of errors of when the given type is not supported.
      */
     public static Optional<byte[]> convert(String format, byte[] data) {
+        return convert(format, new ByteArrayInputStream(data));
+    }
+
+    /**
+     * Same as {@link #convert(String, byte[])}, but reads the data from a stream so that callers
+     * holding the data in some other form don't have to copy it into an array first.
+     */
+    public static Optional<byte[]> convert(String format, InputStream data) {
+        return convert(format, data, Long.MAX_VALUE);
+    }
+
+    /**
+     * Same as {@link #convert(String, InputStream)}, but gives up on images and pdf pages that
+     * would take more than maxPixelBytes to decode, going by the dimensions they declare, before
+     * any of their pixels are allocated.
+     */
+    public static Optional<byte[]> convert(String format, InputStream data, long maxPixelBytes) {
         switch(format) {
-            case "pdf": return generatePdfThumbnail(data);
-            case "image": return generateImageThumbnail(data);
+            case "pdf": return generatePdfThumbnail(data, maxPixelBytes);
+            case "image": return generateImageThumbnail(data, maxPixelBytes);
             default: return Optional.empty();
         }
     }
 
-    private static Optional<byte[]> generatePdfThumbnail(byte[] data) {
-        try {
-            ByteArrayInputStream stream = new ByteArrayInputStream(data);
+    /**
+     * Works out the format of data stored without its metadata from the first bytes of it.
+     * @return the format to convert the data as, or empty if none of the generators can read it
+     */
+    public static Optional<String> detectFormat(InputStream data) throws IOException {
+        byte[] head = new byte[DETECT_BYTES];
+        int n = IOUtils.read(data, head);
+        if (n >= PDF_MAGIC.length && Arrays.equals(Arrays.copyOf(head, PDF_MAGIC.length), PDF_MAGIC)) {
+            return Optional.of("pdf");
+        }
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(head, 0, n))) {
+            return ImageIO.getImageReaders(input).hasNext() ? Optional.of("image") : Optional.empty();
+        }
+    }
+
+    /**
+     * @return whether there is a thumbnail generator for the format at all
+     */
+    public static boolean supports(String format) {
+        return format.equals("pdf") || format.equals("image");
+    }
+
+    private static Optional<byte[]> generatePdfThumbnail(InputStream stream, long maxPixelBytes) {
+        try (PDDocument document = PDDocument.load(stream)) {
             ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            PDDocument document = PDDocument.load(stream);
             List<PDPage> pages = document.getDocumentCatalog().getAllPages();
+            PDRectangle size = pages.get(0).findMediaBox();
+            float scale = THUMBNAIL_SIZE / POINTS_PER_INCH;
+            if (tooLarge(size.getWidth() * scale, size.getHeight() * scale, maxPixelBytes)) {
+                return Optional.empty();
+            }
             BufferedImage img = pages.get(0).convertToImage(BufferedImage.TYPE_INT_RGB, THUMBNAIL_SIZE);
             ImageIOUtil.writeImage(img, IMAGE_TYPE, outputStream);
             return Optional.of(outputStream.toByteArray());
@@ -50,11 +105,25 @@ public final class Thumbnails {
         }
     }
 
-    private static Optional<byte[]> generateImageThumbnail(byte[] data) {
-        try {
-            ByteArrayInputStream stream = new ByteArrayInputStream(data);
+    private static Optional<byte[]> generateImageThumbnail(InputStream stream, long maxPixelBytes) {
+        try (ImageInputStream input = ImageIO.createImageInputStream(stream)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                logger.warn("could not generate thumbnail for image of unknown type");
+                return Optional.empty();
+            }
+            ImageReader reader = readers.next();
+            BufferedImage img;
+            try {
+                reader.setInput(input, true, true);
+                if (tooLarge(reader.getWidth(0), reader.getHeight(0), maxPixelBytes)) {
+                    return Optional.empty();
+                }
+                img = reader.read(0);
+            } finally {
+                reader.dispose();
+            }
             ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            BufferedImage img = ImageIO.read(stream);
             int scaleBy = Math.max(img.getHeight(), img.getWidth()) / THUMBNAIL_SIZE;
             int height = img.getHeight() / scaleBy;
             int width = img.getWidth() / scaleBy;
@@ -72,4 +141,13 @@ public final class Thumbnails {
         }
     }
 
+    private static boolean tooLarge(double width, double height, long maxPixelBytes) {
+        double bytes = width * height * BYTES_PER_PIXEL;
+        if (bytes > maxPixelBytes) {
+            logger.warn("not generating thumbnail for " + (int) width + "x" + (int) height + " pixels, over the "
+                    + maxPixelBytes + " byte limit");
+            return true;
+        }
+        return false;
+    }
 }
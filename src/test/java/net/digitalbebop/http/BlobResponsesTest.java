@@ -0,0 +1,131 @@
+package net.digitalbebop.http;
+
+import net.digitalbebop.UnitTestBase;
+import net.digitalbebop.storage.HeapBlob;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.message.BasicHttpRequest;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Optional;
+
+public class BlobResponsesTest extends UnitTestBase {
+    private static final byte[] DATA = "0123456789".getBytes(StandardCharsets.US_ASCII);
+    private static final String ETAG = BlobResponses.etag("raw", "module", "id", 0);
+
+    public BlobResponsesTest() {
+        super(false, false);
+    }
+
+    private static BasicHttpRequest get(String... headers) {
+        BasicHttpRequest req = new BasicHttpRequest("GET", "/api/get_data");
+        for (int i = 0; i < headers.length; i += 2) {
+            req.addHeader(headers[i], headers[i + 1]);
+        }
+        return req;
+    }
+
+    private static String body(HttpResponse response) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((TransferableEntity) response.getEntity()).transferTo(Channels.newChannel(out));
+        return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void testParseRanges() {
+        List<BlobResponses.ByteRange> ranges = BlobResponses.parseRanges("bytes=0-1, 4-, -3", 10).get();
+        Assert.assertEquals(3, ranges.size());
+        Assert.assertEquals(0, ranges.get(0).first);
+        Assert.assertEquals(1, ranges.get(0).last);
+        Assert.assertEquals(4, ranges.get(1).first);
+        Assert.assertEquals(9, ranges.get(1).last);
+        Assert.assertEquals(7, ranges.get(2).first);
+        Assert.assertEquals(9, ranges.get(2).last);
+
+        Assert.assertEquals(9, BlobResponses.parseRanges("bytes=5-100", 10).get().get(0).last);
+        Assert.assertTrue(BlobResponses.parseRanges("bytes=10-", 10).get().isEmpty());
+
+        Assert.assertFalse(BlobResponses.parseRanges("bytes=5-1", 10).isPresent());
+        Assert.assertFalse(BlobResponses.parseRanges("bytes=a-b", 10).isPresent());
+        Assert.assertFalse(BlobResponses.parseRanges("lines=1-2", 10).isPresent());
+    }
+
+    @Test
+    public void testFullResponse() throws Exception {
+        HttpResponse response = BlobResponses.respond(get(), new HeapBlob(DATA), ETAG);
+        Assert.assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+        Assert.assertEquals(ETAG, response.getFirstHeader(HttpHeaders.ETAG).getValue());
+        Assert.assertNotNull(response.getFirstHeader(HttpHeaders.CACHE_CONTROL));
+        Assert.assertEquals("0123456789", body(response));
+    }
+
+    @Test
+    public void testNotModified() {
+        HttpResponse response = BlobResponses.respond(get(HttpHeaders.IF_NONE_MATCH, "\"other\", " + ETAG),
+                new HeapBlob(DATA), ETAG);
+        Assert.assertEquals(HttpStatus.SC_NOT_MODIFIED, response.getStatusLine().getStatusCode());
+        Assert.assertNull(response.getEntity());
+    }
+
+    @Test
+    public void testResolvedResponseIsRevalidated() {
+        String location = "/api/get_data?moduleName=module&moduleId=id&timestamp=0";
+        HttpResponse response = BlobResponses.respondResolved(get(), new HeapBlob(DATA), ETAG, location);
+        Assert.assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+        Assert.assertTrue(response.getFirstHeader(HttpHeaders.CACHE_CONTROL).getValue().contains("no-cache"));
+        Assert.assertEquals(location, response.getFirstHeader(HttpHeaders.CONTENT_LOCATION).getValue());
+
+        response = BlobResponses.respondResolved(get(HttpHeaders.IF_NONE_MATCH, ETAG), new HeapBlob(DATA), ETAG, location);
+        Assert.assertEquals(HttpStatus.SC_NOT_MODIFIED, response.getStatusLine().getStatusCode());
+    }
+
+    @Test
+    public void testSingleRange() throws Exception {
+        HttpResponse response = BlobResponses.respond(get(HttpHeaders.RANGE, "bytes=2-4"), new HeapBlob(DATA), ETAG);
+        Assert.assertEquals(HttpStatus.SC_PARTIAL_CONTENT, response.getStatusLine().getStatusCode());
+        Assert.assertEquals("bytes 2-4/10", response.getFirstHeader(HttpHeaders.CONTENT_RANGE).getValue());
+        Assert.assertEquals(3, response.getEntity().getContentLength());
+        Assert.assertEquals("234", body(response));
+    }
+
+    @Test
+    public void testMultipleRanges() throws Exception {
+        HttpResponse response = BlobResponses.respond(get(HttpHeaders.RANGE, "bytes=0-0,-2"), new HeapBlob(DATA), ETAG);
+        Assert.assertEquals(HttpStatus.SC_PARTIAL_CONTENT, response.getStatusLine().getStatusCode());
+
+        String contentType = response.getEntity().getContentType().getValue();
+        Assert.assertTrue(contentType.startsWith("multipart/byteranges; boundary="));
+        String boundary = contentType.substring(contentType.indexOf('=') + 1);
+
+        String body = body(response);
+        Assert.assertEquals(response.getEntity().getContentLength(), body.length());
+        Assert.assertEquals("\r\n--" + boundary + "\r\n" +
+                "Content-Type: application/octet-stream\r\n" +
+                "Content-Range: bytes 0-0/10\r\n\r\n0" +
+                "\r\n--" + boundary + "\r\n" +
+                "Content-Type: application/octet-stream\r\n" +
+                "Content-Range: bytes 8-9/10\r\n\r\n89" +
+                "\r\n--" + boundary + "--\r\n", body);
+    }
+
+    @Test
+    public void testUnsatisfiableRange() {
+        HttpResponse response = BlobResponses.respond(get(HttpHeaders.RANGE, "bytes=20-"), new HeapBlob(DATA), ETAG);
+        Assert.assertEquals(HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE, response.getStatusLine().getStatusCode());
+        Assert.assertEquals("bytes */10", response.getFirstHeader(HttpHeaders.CONTENT_RANGE).getValue());
+    }
+
+    @Test
+    public void testStaleIfRange() {
+        HttpResponse response = BlobResponses.respond(
+                get(HttpHeaders.RANGE, "bytes=2-4", HttpHeaders.IF_RANGE, "\"stale\""), new HeapBlob(DATA), ETAG);
+        Assert.assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+        Assert.assertEquals(10, response.getEntity().getContentLength());
+    }
+}
@@ -0,0 +1,54 @@
+package net.digitalbebop.http;
+
+import net.digitalbebop.UnitTestBase;
+import net.digitalbebop.http.handlers.RequestHandler;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.EnumSet;
+
+public class RouteTableTest extends UnitTestBase {
+    private final RequestHandler getHandler = new RequestHandler() {};
+    private final RequestHandler postHandler = new RequestHandler() {};
+    private final RequestHandler patternHandler = new RequestHandler() {};
+
+    private final RouteTable table = new RouteTable.Builder()
+            .add("/api/data", RequestType.GET, getHandler)
+            .add("/api/data", RequestType.POST, postHandler)
+            .add("/api/module/[a-z]+", RequestType.GET, patternHandler)
+            .build();
+
+    public RouteTableTest() {
+        super(false, false);
+    }
+
+    @Test
+    public void testLiteralRoutes() {
+        Assert.assertTrue(RouteTable.isLiteral("/api/get_data"));
+        Assert.assertFalse(RouteTable.isLiteral("/api/module/[a-z]+"));
+
+        Assert.assertSame(getHandler, table.find(RequestType.GET, "/api/data").get());
+        Assert.assertSame(postHandler, table.find(RequestType.POST, "/api/data").get());
+        Assert.assertFalse(table.find(RequestType.DELETE, "/api/data").isPresent());
+        Assert.assertFalse(table.find(RequestType.GET, "/api/data/").isPresent());
+    }
+
+    @Test
+    public void testPatternRoutes() {
+        Assert.assertSame(patternHandler, table.find(RequestType.GET, "/api/module/foo").get());
+        Assert.assertFalse(table.find(RequestType.GET, "/api/module/42").isPresent());
+    }
+
+    @Test
+    public void testAllowed() {
+        Assert.assertEquals(EnumSet.of(RequestType.GET, RequestType.POST), table.allowed("/api/data"));
+        Assert.assertEquals(EnumSet.of(RequestType.GET), table.allowed("/api/module/foo"));
+        Assert.assertTrue(table.allowed("/missing").isEmpty());
+    }
+
+    @Test
+    public void testRequestType() {
+        Assert.assertEquals(RequestType.GET, RouteTable.requestType("GET").get());
+        Assert.assertFalse(RouteTable.requestType("HEAD").isPresent());
+    }
+}
@@ -0,0 +1,203 @@
+package net.digitalbebop.http.handlers;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import net.digitalbebop.ClientRequests;
+import net.digitalbebop.UnitTestBase;
+import net.digitalbebop.fibers.BlockingPools;
+import net.digitalbebop.indexer.IndexConduit;
+import net.digitalbebop.indexer.SearchResult;
+import net.digitalbebop.storage.StorageConduit;
+import net.digitalbebop.storage.StoredObject;
+import net.digitalbebop.storage.ThumbnailPipeline;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpResponse;
+import org.apache.http.message.BasicHttpRequest;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.*;
+
+public class BatchIndexRequestHandlerTest extends UnitTestBase {
+
+    private final List<Integer> indexCalls = new ArrayList<>();
+    private final Map<String, byte[]> stored = new HashMap<>();
+
+    private final IndexConduit indexConduit = new IndexConduit() {
+        @Override
+        public void index(ClientRequests.IndexRequest indexRequest) {
+            indexCalls.add(1);
+        }
+
+        @Override
+        public void index(List<ClientRequests.IndexRequest> indexRequests) {
+            indexCalls.add(indexRequests.size());
+        }
+
+        @Override
+        public void delete(ClientRequests.DeleteRequest deleteRequest) {}
+
+        @Override
+        public Optional<SearchResult> search(String search, int offset, int limit) {
+            return Optional.empty();
+        }
+    };
+
+    private final StorageConduit storageConduit = new StorageConduit() {
+        @Override
+        public Optional<byte[]> getRaw(String moduleName, String moduleId, long timestamp) {
+            return Optional.ofNullable(stored.get(moduleId));
+        }
+
+        @Override
+        public Optional<byte[]> getThumbnail(String moduleName, String moduleId, long timestamp) {
+            return Optional.empty();
+        }
+
+        @Override
+        public void putRaw(String moduleName, String moduleId, long timestamp, byte[] data) {
+            stored.put(moduleId, data);
+        }
+
+        @Override
+        public void putRaw(List<StoredObject> objects) {
+            for (StoredObject object : objects) {
+                byte[] data = new byte[object.getLength()];
+                object.getData().get(data);
+                stored.put(object.getModuleId(), data);
+            }
+        }
+
+        @Override
+        public void putThumbnail(String moduleName, String moduleId, long timestamp, byte[] data) {}
+
+        @Override
+        public void delete(String moduleName, String moduleId) {}
+    };
+
+    private final ThumbnailPipeline thumbnails = new ThumbnailPipeline(storageConduit, 1, 1024*1024L, 10_000,
+            1024*1024L, "", new MetricRegistry());
+    private BatchIndexRequestHandler handler = handler(1024*1024, 1024*1024);
+
+    public BatchIndexRequestHandlerTest() {
+        super(false, false);
+    }
+
+    private BatchIndexRequestHandler handler(int chunkBytes, int maxRequestSize) {
+        return new BatchIndexRequestHandler(indexConduit, storageConduit, new BlockingPools(1, 1), thumbnails,
+                2, chunkBytes, maxRequestSize, "batched");
+    }
+
+    @After
+    public void closeThumbnails() {
+        thumbnails.close();
+    }
+
+    private static ClientRequests.IndexRequest request(String moduleId) {
+        return ClientRequests.IndexRequest.newBuilder()
+                .setModuleName("FooModule")
+                .setModuleId(moduleId)
+                .setIndexData("FooIndex")
+                .setMetaTags("{}")
+                .setRawData(ByteString.copyFromUtf8("data-" + moduleId))
+                .build();
+    }
+
+    private ClientRequests.BatchIndexResponse post(byte[] body) throws IOException {
+        HttpResponse response = handler.handlePost(new BasicHttpRequest("POST", "/api/index/batch"),
+                new InetSocketAddress("127.0.0.1", 0), new HashMap<>(),
+                Optional.of(new ByteArrayInputStream(body)));
+        Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+        return ClientRequests.BatchIndexResponse.parseFrom(IOUtils.toByteArray(response.getEntity().getContent()));
+    }
+
+    @Test
+    public void testBatch() throws IOException {
+        ClientRequests.BatchIndexRequest batch = ClientRequests.BatchIndexRequest.newBuilder()
+                .addRequests(request("a"))
+                .addRequests(request("b"))
+                .addRequests(request("c"))
+                .build();
+
+        ClientRequests.BatchIndexResponse response = post(batch.toByteArray());
+        Assert.assertEquals(3, response.getStatusesCount());
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(i, response.getStatuses(i).getIndex());
+            Assert.assertTrue(response.getStatuses(i).getSuccess());
+        }
+        Assert.assertEquals(Arrays.asList(2, 1), indexCalls);
+        Assert.assertArrayEquals("data-c".getBytes(), stored.get("c"));
+    }
+
+    @Test
+    public void testChunksCutBySize() throws IOException {
+        int size = request("a").getSerializedSize();
+        handler = handler(size + 1, 1024*1024);
+        ClientRequests.BatchIndexRequest batch = ClientRequests.BatchIndexRequest.newBuilder()
+                .addRequests(request("a"))
+                .addRequests(request("b"))
+                .addRequests(request("c"))
+                .build();
+
+        ClientRequests.BatchIndexResponse response = post(batch.toByteArray());
+        Assert.assertEquals(3, response.getStatusesCount());
+        Assert.assertEquals(Arrays.asList(2, 1), indexCalls);
+
+        indexCalls.clear();
+        handler = handler(size, 1024*1024);
+        post(batch.toByteArray());
+        Assert.assertEquals(Arrays.asList(1, 1, 1), indexCalls);
+    }
+
+    @Test
+    public void testRequestTooLarge() throws IOException {
+        handler = handler(1024*1024, request("a").getSerializedSize() - 1);
+        ClientRequests.BatchIndexRequest batch = ClientRequests.BatchIndexRequest.newBuilder()
+                .addRequests(request("a"))
+                .build();
+
+        ClientRequests.BatchIndexResponse response = post(batch.toByteArray());
+        Assert.assertEquals(1, response.getStatusesCount());
+        Assert.assertFalse(response.getStatuses(0).getSuccess());
+        Assert.assertTrue(indexCalls.isEmpty());
+        Assert.assertFalse(stored.containsKey("a"));
+    }
+
+    @Test
+    public void testInvalidRequestInBatch() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CodedOutputStream coded = CodedOutputStream.newInstance(out);
+        coded.writeMessage(1, request("a"));
+        coded.writeBytes(1, ByteString.copyFromUtf8("not an IndexRequest"));
+        coded.writeMessage(1, request("c"));
+        coded.flush();
+
+        ClientRequests.BatchIndexResponse response = post(out.toByteArray());
+        Assert.assertEquals(3, response.getStatusesCount());
+        Assert.assertTrue(response.getStatuses(0).getSuccess());
+        Assert.assertFalse(response.getStatuses(1).getSuccess());
+        Assert.assertTrue(response.getStatuses(2).getSuccess());
+        Assert.assertEquals("c", response.getStatuses(2).getModuleId());
+    }
+
+    @Test
+    public void testTruncatedBatch() throws IOException {
+        ClientRequests.BatchIndexRequest batch = ClientRequests.BatchIndexRequest.newBuilder()
+                .addRequests(request("a"))
+                .addRequests(request("b"))
+                .build();
+        byte[] bytes = batch.toByteArray();
+
+        ClientRequests.BatchIndexResponse response = post(Arrays.copyOf(bytes, bytes.length - 3));
+        Assert.assertEquals(2, response.getStatusesCount());
+        Assert.assertTrue(response.getStatuses(0).getSuccess());
+        Assert.assertFalse(response.getStatuses(1).getSuccess());
+        Assert.assertFalse(stored.containsKey("b"));
+    }
+}
@@ -0,0 +1,34 @@
+package net.digitalbebop.http.handlers;
+
+import net.digitalbebop.UnitTestBase;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class VersionSelectorTest extends UnitTestBase {
+
+    public VersionSelectorTest() {
+        super(false, false);
+    }
+
+    @Test
+    public void takesEitherTimestampOrAt() {
+        Assert.assertTrue(new VersionSelector(params("timestamp", "5")).isExact());
+        Assert.assertFalse(new VersionSelector(params("at", "5")).isExact());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTimestampTogetherWithAt() {
+        Map<String, String> params = params("timestamp", "5");
+        params.put("at", "10");
+        new VersionSelector(params);
+    }
+
+    private static Map<String, String> params(String name, String value) {
+        Map<String, String> params = new HashMap<>();
+        params.put(name, value);
+        return params;
+    }
+}
@@ -0,0 +1,309 @@
+package net.digitalbebop.indexer;
+
+import com.codahale.metrics.MetricRegistry;
+import net.digitalbebop.ClientRequests;
+import net.digitalbebop.UnitTestBase;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Crash recovery of the index spool. A crash is simulated by opening a second spool over the same
+ * directory without closing the first one, optionally after damaging the files the way a write
+ * cut short by the process dying would.
+ */
+public class IndexSpoolTest extends UnitTestBase {
+    private static final long SEGMENT_SIZE = 1024*1024;
+
+    private File dir;
+
+    public IndexSpoolTest() {
+        super(false, false);
+    }
+
+    @Before
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory("pulse-spool").toFile();
+    }
+
+    @After
+    public void deleteDir() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void recoversSyncedRecordsAfterCrash() throws IOException {
+        IndexSpool spool = new IndexSpool(dir, SEGMENT_SIZE);
+        spool.sync(append(spool, "a", "b", "c"));
+
+        Assert.assertEquals(Arrays.asList("a", "b", "c"), payloads(new IndexSpool(dir, SEGMENT_SIZE).read(10)));
+    }
+
+    @Test
+    public void dropsTornRecordAtTheTail() throws IOException {
+        IndexSpool spool = new IndexSpool(dir, SEGMENT_SIZE);
+        spool.sync(append(spool, "a", "b"));
+
+        /* A header promising 100 bytes, followed by only 10 of them */
+        try (RandomAccessFile file = new RandomAccessFile(onlySegment(), "rw")) {
+            file.seek(file.length());
+            ByteBuffer header = ByteBuffer.allocate(IndexSpool.HEADER_SIZE);
+            header.putInt(100).putInt(42).putLong(System.currentTimeMillis());
+            file.write(header.array());
+            file.write(new byte[10]);
+        }
+
+        IndexSpool recovered = new IndexSpool(dir, SEGMENT_SIZE);
+        Assert.assertEquals(Arrays.asList("a", "b"), payloads(recovered.read(10)));
+
+        recovered.sync(append(recovered, "c"));
+        Assert.assertEquals(Arrays.asList("a", "b", "c"), payloads(recovered.read(10)));
+    }
+
+    @Test
+    public void dropsRecordWithBadChecksum() throws IOException {
+        IndexSpool spool = new IndexSpool(dir, SEGMENT_SIZE);
+        spool.sync(append(spool, "a", "b"));
+
+        try (RandomAccessFile file = new RandomAccessFile(onlySegment(), "rw")) {
+            file.seek(file.length() - 1);
+            file.write('x');
+        }
+
+        Assert.assertEquals(Arrays.asList("a"), payloads(new IndexSpool(dir, SEGMENT_SIZE).read(10)));
+    }
+
+    @Test
+    public void resumesFromCheckpointAndDeletesDeliveredSegments() throws IOException {
+        /* Small enough that every record gets a segment of its own */
+        IndexSpool spool = new IndexSpool(dir, 20);
+        spool.sync(append(spool, "a", "b", "c", "d", "e"));
+        Assert.assertEquals(5, spool.segmentCount());
+
+        IndexSpool.Batch delivered = spool.read(2);
+        Assert.assertEquals(Arrays.asList("a", "b"), payloads(delivered));
+        spool.commit(delivered.end);
+        Assert.assertEquals(3, spool.segmentCount());
+
+        IndexSpool recovered = new IndexSpool(dir, 20);
+        Assert.assertEquals(Arrays.asList("c", "d", "e"), payloads(recovered.read(10)));
+        Assert.assertEquals(3 * (IndexSpool.HEADER_SIZE + 1), recovered.pendingBytes());
+    }
+
+    @Test
+    public void replaysIntoIndexOnceItRecovers() throws Exception {
+        StubIndex index = new StubIndex(3);
+        SpoolingIndexConduit conduit = new SpoolingIndexConduit(index, new IndexSpool(dir, SEGMENT_SIZE),
+                deadLetters(), SEGMENT_SIZE, 10, 20, new MetricRegistry());
+        try {
+            conduit.index(request("a"));
+            conduit.index(request("b"));
+            awaitIndexed(index, 2);
+            Assert.assertEquals(Arrays.asList("a", "b"), index.indexed);
+        } finally {
+            conduit.close();
+        }
+    }
+
+    @Test
+    public void replaysAcknowledgedRequestsAfterRestart() throws Exception {
+        StubIndex down = new StubIndex(Integer.MAX_VALUE);
+        SpoolingIndexConduit conduit = new SpoolingIndexConduit(down, new IndexSpool(dir, SEGMENT_SIZE),
+                deadLetters(), SEGMENT_SIZE, 10, 20, new MetricRegistry());
+        conduit.index(Arrays.asList(request("a"), request("b")));
+        conduit.close();
+        Assert.assertTrue(down.indexed.isEmpty());
+
+        StubIndex up = new StubIndex(0);
+        conduit = new SpoolingIndexConduit(up, new IndexSpool(dir, SEGMENT_SIZE),
+                deadLetters(), SEGMENT_SIZE, 10, 20, new MetricRegistry());
+        try {
+            awaitIndexed(up, 2);
+            Assert.assertEquals(Arrays.asList("a", "b"), up.indexed);
+        } finally {
+            conduit.close();
+        }
+    }
+
+    @Test
+    public void replaysDeletesInOrderWithIndexRequests() throws Exception {
+        StubIndex index = new StubIndex(1);
+        SpoolingIndexConduit conduit = new SpoolingIndexConduit(index, new IndexSpool(dir, SEGMENT_SIZE),
+                deadLetters(), SEGMENT_SIZE, 10, 20, new MetricRegistry());
+        try {
+            conduit.index(request("a"));
+            conduit.delete(ClientRequests.DeleteRequest.newBuilder().setModuleName("test").setModuleId("a").build());
+            conduit.index(request("b"));
+            awaitIndexed(index, 3);
+            Assert.assertEquals(Arrays.asList("a", "delete a", "b"), index.indexed);
+        } finally {
+            conduit.close();
+        }
+    }
+
+    @Test(expected = IndexOverloadedException.class)
+    public void rejectsRequestsWhenSpoolIsFull() throws Exception {
+        SpoolingIndexConduit conduit = new SpoolingIndexConduit(new StubIndex(Integer.MAX_VALUE),
+                new IndexSpool(dir, SEGMENT_SIZE), deadLetters(), 1, 10, 20, new MetricRegistry());
+        try {
+            conduit.index(request("a"));
+            conduit.index(request("b"));
+        } finally {
+            conduit.close();
+        }
+    }
+
+    @Test
+    public void stampsRequestsWithTheTimeTheyWereSpooled() throws Exception {
+        StubIndex index = new StubIndex(Integer.MAX_VALUE);
+        SpoolingIndexConduit conduit = new SpoolingIndexConduit(index, new IndexSpool(dir, SEGMENT_SIZE),
+                deadLetters(), SEGMENT_SIZE, 10, 20, new MetricRegistry());
+        long before = System.currentTimeMillis();
+        conduit.index(Arrays.asList(request("a"), request("b").toBuilder().setTimestamp(42).build()));
+        long after = System.currentTimeMillis();
+        conduit.close();
+
+        index.failures.set(0);
+        conduit = new SpoolingIndexConduit(index, new IndexSpool(dir, SEGMENT_SIZE),
+                deadLetters(), SEGMENT_SIZE, 10, 20, new MetricRegistry());
+        try {
+            awaitIndexed(index, 2);
+            long stamped = index.received.get(0).getTimestamp();
+            Assert.assertTrue(stamped >= before && stamped <= after);
+            Assert.assertEquals(42, index.received.get(1).getTimestamp());
+        } finally {
+            conduit.close();
+        }
+    }
+
+    @Test
+    public void movesRejectedRequestsToDeadLetters() throws Exception {
+        StubIndex index = new StubIndex(0);
+        index.rejected.add("bad");
+        MetricRegistry metrics = new MetricRegistry();
+        SpoolingIndexConduit conduit = new SpoolingIndexConduit(index, new IndexSpool(dir, SEGMENT_SIZE),
+                deadLetters(), SEGMENT_SIZE, 10, 20, metrics);
+        try {
+            conduit.index(Arrays.asList(request("a"), request("bad"), request("b")));
+            awaitIndexed(index, 2);
+            Assert.assertEquals(Arrays.asList("a", "b"), index.indexed);
+            Assert.assertEquals(1, metrics.counter(
+                    MetricRegistry.name(SpoolingIndexConduit.class, "dead-letters")).getCount());
+        } finally {
+            conduit.close();
+        }
+
+        IndexSpool.Batch dead = deadLetters().read(10);
+        Assert.assertEquals(1, dead.records.size());
+        byte[] payload = dead.records.get(0).payload;
+        Assert.assertEquals("bad", ClientRequests.IndexRequest.PARSER
+                .parseFrom(Arrays.copyOfRange(payload, 1, payload.length)).getModuleId());
+    }
+
+    /**
+     * Index that fails the first few calls, then records the module ids it's given, and those of
+     * deletes as "delete id". Requests with a module id in {@code rejected} are refused outright.
+     */
+    private static class StubIndex implements IndexConduit {
+        final List<String> indexed = new CopyOnWriteArrayList<>();
+        final List<ClientRequests.IndexRequest> received = new CopyOnWriteArrayList<>();
+        final Set<String> rejected = new HashSet<>();
+        final AtomicInteger failures;
+
+        StubIndex(int failures) {
+            this.failures = new AtomicInteger(failures);
+        }
+
+        @Override
+        public void index(ClientRequests.IndexRequest indexRequest) throws IOException {
+            index(Arrays.asList(indexRequest));
+        }
+
+        @Override
+        public void index(List<ClientRequests.IndexRequest> indexRequests) throws IOException {
+            if (failures.getAndDecrement() > 0) {
+                throw new IOException("index is down");
+            }
+            for (ClientRequests.IndexRequest request : indexRequests) {
+                if (rejected.contains(request.getModuleId())) {
+                    throw new IndexRejectedException("bad document " + request.getModuleId(), null);
+                }
+            }
+            for (ClientRequests.IndexRequest request : indexRequests) {
+                indexed.add(request.getModuleId());
+                received.add(request);
+            }
+        }
+
+        @Override
+        public void delete(ClientRequests.DeleteRequest deleteRequest) throws IOException {
+            if (failures.getAndDecrement() > 0) {
+                throw new IOException("index is down");
+            }
+            indexed.add("delete " + deleteRequest.getModuleId());
+        }
+
+        @Override
+        public Optional<SearchResult> search(String search, int offset, int limit) {
+            return Optional.empty();
+        }
+    }
+
+    private static void awaitIndexed(StubIndex index, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (index.indexed.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private IndexSpool deadLetters() throws IOException {
+        return new IndexSpool(new File(dir, SpoolingIndexConduit.DEAD_LETTERS), SEGMENT_SIZE);
+    }
+
+    private static ClientRequests.IndexRequest request(String moduleId) {
+        return ClientRequests.IndexRequest.newBuilder()
+                .setModuleName("test")
+                .setModuleId(moduleId)
+                .setIndexData("data")
+                .build();
+    }
+
+    private static long append(IndexSpool spool, String... payloads) throws IOException {
+        long end = 0;
+        for (String payload : payloads) {
+            end = spool.append(payload.getBytes(StandardCharsets.UTF_8));
+        }
+        return end;
+    }
+
+    private static List<String> payloads(IndexSpool.Batch batch) {
+        List<String> payloads = new ArrayList<>();
+        for (IndexSpool.Record record : batch.records) {
+            payloads.add(new String(record.payload, StandardCharsets.UTF_8));
+        }
+        return payloads;
+    }
+
+    private File onlySegment() {
+        File[] segments = dir.listFiles((d, name) -> name.endsWith(".spool"));
+        Assert.assertEquals(1, segments.length);
+        return segments[0];
+    }
+}
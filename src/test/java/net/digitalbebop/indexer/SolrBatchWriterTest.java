@@ -0,0 +1,146 @@
+package net.digitalbebop.indexer;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ListenableFuture;
+import net.digitalbebop.UnitTestBase;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class SolrBatchWriterTest extends UnitTestBase {
+
+    /**
+     * Records the size of every update it gets, holding each one until the gate opens.
+     */
+    private static class StubSolr extends SolrClient {
+        private static final long serialVersionUID = 1L;
+
+        final List<Integer> batches = new CopyOnWriteArrayList<>();
+        final CountDownLatch gate = new CountDownLatch(1);
+        volatile boolean failing = false;
+
+        // SolrClient declares this parameter raw, so the override has to match it.
+        @Override
+        @SuppressWarnings("rawtypes")
+        public NamedList<Object> request(SolrRequest request, String collection)
+                throws SolrServerException, IOException {
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (failing) {
+                throw new SolrServerException("solr is down");
+            }
+            batches.add(((UpdateRequest) request).getDocuments().size());
+            return new NamedList<>();
+        }
+
+        /**
+         * Only here because SolrClient still declares it abstract, the writer closes clients.
+         */
+        @Override
+        @Deprecated
+        public void shutdown() {}
+
+        @Override
+        public void close() {}
+    }
+
+    private final StubSolr solr = new StubSolr();
+    private SolrBatchWriter writer;
+
+    public SolrBatchWriterTest() {
+        super(false, false);
+    }
+
+    @After
+    public void tearDown() {
+        solr.gate.countDown();
+        writer.shutdown();
+    }
+
+    @Test
+    public void fillsBatchesUpToTheBatchSize() throws Exception {
+        writer = new SolrBatchWriter(solr, 100, 100, 10, 200, 1, new MetricRegistry());
+        List<ListenableFuture<Void>> sent = submit(25);
+        solr.gate.countDown();
+
+        awaitAll(sent);
+        Assert.assertEquals(Arrays.asList(10, 10, 5), solr.batches);
+    }
+
+    @Test
+    public void sendsPartialBatchOnceItIsOldEnough() throws Exception {
+        writer = new SolrBatchWriter(solr, 100, 100, 1000, 50, 1, new MetricRegistry());
+        solr.gate.countDown();
+
+        awaitAll(submit(3));
+        Assert.assertEquals(Arrays.asList(3), solr.batches);
+    }
+
+    @Test(expected = IndexOverloadedException.class)
+    public void rejectsWhenQueueIsFull() throws Exception {
+        writer = new SolrBatchWriter(solr, 100, 2, 1, 0, 1, new MetricRegistry());
+        submit(1);
+        while (writer.queueDepth() > 0) {
+            Thread.sleep(1);
+        }
+
+        /* The writer is stuck on the first document, so two more fill the queue */
+        submit(2);
+        writer.submit(doc(), 10);
+    }
+
+    @Test
+    public void failedBatchFailsEveryDocument() throws Exception {
+        writer = new SolrBatchWriter(solr, 100, 100, 10, 50, 1, new MetricRegistry());
+        solr.failing = true;
+        List<ListenableFuture<Void>> sent = submit(5);
+        solr.gate.countDown();
+
+        for (ListenableFuture<Void> future : sent) {
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                Assert.fail("Document was acknowledged although Solr failed");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof SolrServerException);
+            }
+        }
+    }
+
+    private List<ListenableFuture<Void>> submit(int count) throws IOException {
+        List<ListenableFuture<Void>> sent = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            sent.add(writer.submit(doc(), 1000));
+        }
+        return sent;
+    }
+
+    private static void awaitAll(List<ListenableFuture<Void>> sent) throws Exception {
+        for (ListenableFuture<Void> future : sent) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private static SolrInputDocument doc() {
+        SolrInputDocument doc = new SolrInputDocument();
+        doc.addField("id", "test-doc");
+        return doc;
+    }
+}
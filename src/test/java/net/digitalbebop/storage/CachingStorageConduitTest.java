@@ -0,0 +1,146 @@
+package net.digitalbebop.storage;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import net.digitalbebop.UnitTestBase;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+public class CachingStorageConduitTest extends UnitTestBase {
+    private static final int INLINE_LIMIT = 64*1024;
+
+    private final MetricRegistry metrics = new MetricRegistry();
+    private File dir;
+    private FileStorageConduit files;
+    private CachingStorageConduit storage;
+
+    public CachingStorageConduitTest() {
+        super(false, false);
+    }
+
+    @Before
+    public void open() throws IOException {
+        dir = Files.createTempDirectory("pulse-cache").toFile();
+        files = FileStorageConduit.builder(new File(dir, "data").getPath())
+                .inlineLimit(INLINE_LIMIT)
+                .commitBytes(1024*1024)
+                .compactionRate(1000)
+                .metrics(metrics)
+                .build();
+        storage = new CachingStorageConduit(files, 1024*1024, 1024*1024, INLINE_LIMIT, metrics);
+    }
+
+    @After
+    public void close() throws IOException {
+        storage.clear();
+        files.close();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void servesRepeatedReadsAndDropsWhatChanges() throws IOException {
+        storage.putRaw("test", "a", 1, bytes("first"));
+        storage.putThumbnail("test", "a", 1, bytes("thumbnail"));
+        /* Cached from the second read on */
+        for (int i = 0; i < 4; i++) {
+            Assert.assertArrayEquals(bytes("first"), storage.getRaw("test", "a", 1).get());
+            Assert.assertArrayEquals(bytes("thumbnail"), storage.getThumbnail("test", "a", 1).get());
+        }
+        Assert.assertEquals(2, meter("raw", "hits").getCount());
+        Assert.assertEquals(2, meter("thumbnails", "hits").getCount());
+
+        storage.putRaw("test", "a", 1, bytes("second"));
+        Assert.assertArrayEquals(bytes("second"), storage.getRaw("test", "a", 1).get());
+
+        storage.delete("test", "a");
+        Assert.assertFalse(storage.getRaw("test", "a", 1).isPresent());
+        Assert.assertFalse(storage.openThumbnail("test", "a", 1).isPresent());
+
+        /* Streamed from its file rather than cached */
+        storage.putRaw("test", "large", 1, new byte[INLINE_LIMIT + 1]);
+        Assert.assertTrue(storage.openRaw("test", "large", 1).get() instanceof FileBlob);
+        Assert.assertTrue(storage.openRaw("test", "large", 1).get() instanceof FileBlob);
+    }
+
+    @Test
+    public void keepsHotValuesThroughAScan() {
+        OffHeapCache cache = new OffHeapCache("scan", 100*1024, 1024, 1024, metrics);
+        byte[] value = new byte[1024];
+        for (int round = 0; round < 10; round++) {
+            for (int key = 0; key < 50; key++) {
+                if (!cache.get(key(key)).isPresent()) {
+                    cache.put(key(key), value, cache.stamp(key(key)));
+                }
+            }
+        }
+        Random random = new Random(0);
+        for (int i = 0; i < 1000; i++) {
+            byte[] key = key(1000 + random.nextInt(1_000_000));
+            cache.get(key);
+            cache.put(key, value, cache.stamp(key));
+        }
+        /* Past the doorkeeper, but still not wanted as often as the hot ones */
+        for (int key = 100; key < 200; key++) {
+            cache.get(key(key));
+            cache.get(key(key));
+            cache.put(key(key), value, cache.stamp(key(key)));
+        }
+        Assert.assertTrue(cache.bytes() <= 100*1024);
+        for (int key = 0; key < 50; key++) {
+            Assert.assertTrue(cache.get(key(key)).isPresent());
+        }
+        cache.clear();
+    }
+
+    @Test
+    public void dropsOnlyValuesReadAcrossTheirOwnInvalidation() {
+        OffHeapCache cache = new OffHeapCache("stamps", 100*1024, 1024, 1024, metrics);
+        byte[] value = new byte[16];
+        byte[] invalidated = key(0);
+        cache.get(invalidated);
+        cache.get(invalidated);
+        long invalidatedStamp = cache.stamp(invalidated);
+
+        /* Some other key outside of the invalidated key's stripe */
+        byte[] other = null;
+        long otherStamp = 0;
+        for (int key = 1; other == null; key++) {
+            cache.get(key(key));
+            cache.get(key(key));
+            otherStamp = cache.stamp(key(key));
+            cache.invalidate(invalidated);
+            if (cache.stamp(key(key)) == otherStamp) {
+                other = key(key);
+            } else {
+                invalidatedStamp = cache.stamp(invalidated);
+            }
+        }
+
+        cache.put(invalidated, value, invalidatedStamp);
+        cache.put(other, value, otherStamp);
+        Assert.assertFalse(cache.get(invalidated).isPresent());
+        Assert.assertTrue(cache.get(other).isPresent());
+        cache.clear();
+    }
+
+    private Meter meter(String cache, String name) {
+        return metrics.meter(MetricRegistry.name(OffHeapCache.class, cache, name));
+    }
+
+    private static byte[] key(int key) {
+        return StorageKey.thumbnail("test", "" + key, 0).toBytes();
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,332 @@
+package net.digitalbebop.storage;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import net.digitalbebop.UnitTestBase;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+public class FileStorageConduitTest extends UnitTestBase {
+    private static final int INLINE_LIMIT = 64*1024;
+
+    private final MetricRegistry metrics = new MetricRegistry();
+    private File dir;
+    private FileStorageConduit storage;
+
+    public FileStorageConduitTest() {
+        super(false, false);
+    }
+
+    @Before
+    public void open() throws IOException {
+        dir = Files.createTempDirectory("pulse-storage").toFile();
+        storage = FileStorageConduit.builder(new File(dir, "data").getPath())
+                .inlineLimit(INLINE_LIMIT)
+                .commitBytes(1024*1024)
+                .compactionRate(1000)
+                .compression(new CompressionPolicy("deflate 1"))
+                .metrics(metrics)
+                .build();
+    }
+
+    @After
+    public void close() throws IOException {
+        storage.close();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void streamsLargeObjectsInAndOut() throws IOException {
+        /* Not a whole number of chunks, so the last one is short */
+        byte[] data = random(3 * ChunkManifest.CHUNK_SIZE + 12345);
+        storage.putRaw("test", "large", 1, new ByteArrayInputStream(data));
+
+        Blob blob = storage.openRaw("test", "large", 1).get();
+        Assert.assertTrue(blob instanceof FileBlob);
+        Assert.assertEquals(data.length, blob.length());
+        try (InputStream in = blob.openStream()) {
+            Assert.assertArrayEquals(data, IOUtils.toByteArray(in));
+        }
+        Assert.assertArrayEquals(data, storage.getRaw("test", "large", 1).get());
+    }
+
+    @Test
+    public void keepsSmallStreamedObjectsInline() throws IOException {
+        byte[] data = random(INLINE_LIMIT);
+        storage.putRaw("test", "small", 1, new ByteArrayInputStream(data));
+
+        Blob blob = storage.openRaw("test", "small", 1).get();
+        Assert.assertTrue(blob instanceof HeapBlob);
+        Assert.assertArrayEquals(data, storage.getRaw("test", "small", 1).get());
+    }
+
+    @Test
+    public void detectsDamagedChunks() throws IOException {
+        byte[] data = random(2 * ChunkManifest.CHUNK_SIZE);
+        storage.putRaw("test", "damaged", 1, new ByteArrayInputStream(data));
+
+        Collection<File> blobs = blobFiles();
+        Assert.assertEquals(1, blobs.size());
+        try (RandomAccessFile file = new RandomAccessFile(blobs.iterator().next(), "rw")) {
+            file.seek(ChunkManifest.CHUNK_SIZE + 100);
+            file.write(data[ChunkManifest.CHUNK_SIZE + 100] ^ 0xff);
+        }
+
+        Assert.assertFalse(storage.getRaw("test", "damaged", 1).isPresent());
+        try (InputStream in = storage.openRaw("test", "damaged", 1).get().openStream()) {
+            IOUtils.toByteArray(in);
+            Assert.fail("Read a damaged chunk without noticing");
+        } catch (IOException expected) {
+            Assert.assertTrue(expected.getMessage().contains("chunk 1"));
+        }
+    }
+
+    @Test
+    public void compressesTextButNotCompressedFormats() throws IOException {
+        StringBuilder html = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            html.append("<tr><td>").append(i).append("</td><td>chat log line ").append(i * 7).append("</td></tr>\n");
+        }
+        byte[] text = html.toString().getBytes(StandardCharsets.UTF_8);
+        storage.putRaw("test", "text", 1, text);
+        Counter saved = metrics.counter(MetricRegistry.name(FileStorageConduit.class, "compression-bytes-saved"));
+        Assert.assertTrue(saved.getCount() > text.length / 2);
+
+        Assert.assertArrayEquals(text, storage.getRaw("test", "text", 1).get());
+        Blob blob = storage.openRaw("test", "text", 1).get();
+        Assert.assertEquals(text.length, blob.length());
+        try (InputStream in = blob.openStream()) {
+            Assert.assertArrayEquals(text, IOUtils.toByteArray(in));
+        }
+        ByteArrayOutputStream range = new ByteArrayOutputStream();
+        blob.transferTo(10000, 5000, Channels.newChannel(range));
+        Assert.assertArrayEquals(Arrays.copyOfRange(text, 10000, 15000), range.toByteArray());
+
+        long before = saved.getCount();
+        byte[] pdf = Arrays.copyOf("%PDF-1.4\n".getBytes(StandardCharsets.US_ASCII), text.length);
+        storage.putRaw("test", "pdf", 1, pdf);
+        storage.putRaw("test", "random", 1, random(text.length));
+        Assert.assertEquals(before, saved.getCount());
+        Assert.assertArrayEquals(pdf, storage.getRaw("test", "pdf", 1).get());
+    }
+
+    @Test
+    public void storesRepeatedUploadsOnce() throws IOException {
+        byte[] data = random(2 * ChunkManifest.CHUNK_SIZE);
+        storage.putRaw("test", "repeat", 1, data);
+        storage.putRaw("test", "repeat", 2, data);
+
+        Assert.assertEquals(1, blobFiles().size());
+        Assert.assertArrayEquals(data, storage.getRaw("test", "repeat", 1).get());
+        Assert.assertArrayEquals(data, storage.getRaw("test", "repeat", 2).get());
+        Assert.assertEquals((long) data.length, metrics.getGauges().get(
+                MetricRegistry.name(FileStorageConduit.class, "bytes-saved")).getValue());
+    }
+
+    @Test
+    public void reusesThumbnailOfTheSameRawData() {
+        byte[] data = random(1000);
+        byte[] thumbnail = random(100);
+        storage.putRaw("test", "thumb", 1, data);
+        Assert.assertFalse(storage.reuseThumbnail("test", "thumb", 1));
+        storage.putThumbnail("test", "thumb", 1, thumbnail);
+
+        storage.putRaw("test", "thumb", 2, data);
+        Assert.assertTrue(storage.reuseThumbnail("test", "thumb", 2));
+        Assert.assertArrayEquals(thumbnail, storage.getThumbnail("test", "thumb", 2).get());
+
+        storage.putRaw("test", "thumb", 3, random(1001));
+        Assert.assertFalse(storage.reuseThumbnail("test", "thumb", 3));
+    }
+
+    @Test
+    public void releasesContentNoLongerReferred() throws Exception {
+        byte[] first = random(2 * ChunkManifest.CHUNK_SIZE);
+        byte[] second = random(2 * ChunkManifest.CHUNK_SIZE + 1);
+        storage.putRaw("test", "release", 1, first);
+        storage.putRaw("test", "release", 2, first);
+
+        storage.putRaw("test", "release", 1, second);
+        storage.commit(Durability.SYNC).get();
+        Assert.assertEquals(2, awaitBlobFiles(2));
+        Assert.assertArrayEquals(first, storage.getRaw("test", "release", 2).get());
+
+        storage.putRaw("test", "release", 2, second);
+        storage.commit(Durability.SYNC).get();
+        Assert.assertEquals(1, awaitBlobFiles(1));
+        Assert.assertArrayEquals(second, storage.getRaw("test", "release", 2).get());
+    }
+
+    @Test
+    public void findsVersionsInTimestampOrder() {
+        for (long timestamp : new long[]{20, 5, 100, 10}) {
+            storage.putRaw("test", "versions", timestamp, random(10));
+        }
+        /* Neighbours in the key order, which must not show up */
+        storage.putRaw("test", "version", 50, random(10));
+        storage.putRaw("test", "versions2", 1, random(10));
+
+        Assert.assertEquals(Arrays.asList(100L, 20L, 10L, 5L), storage.versions("test", "versions", Long.MAX_VALUE, 10));
+        Assert.assertEquals(Arrays.asList(10L, 5L), storage.versions("test", "versions", 20, 10));
+        Assert.assertEquals(Collections.singletonList(100L), storage.versions("test", "versions", Long.MAX_VALUE, 1));
+        Assert.assertEquals(Optional.of(100L), storage.latestVersion("test", "versions"));
+        Assert.assertEquals(Optional.of(10L), storage.versionAtOrBefore("test", "versions", 19));
+        Assert.assertEquals(Optional.of(20L), storage.versionAtOrBefore("test", "versions", 20));
+        Assert.assertEquals(Optional.empty(), storage.versionAtOrBefore("test", "versions", 4));
+        Assert.assertEquals(Optional.empty(), storage.latestVersion("test", "missing"));
+    }
+
+    @Test
+    public void deletesEveryVersionAndReclaimsItsSpace() throws Exception {
+        byte[] large = random(2 * ChunkManifest.CHUNK_SIZE);
+        storage.putRaw("test", "delete", 1, large);
+        storage.putRaw("test", "delete", 2, random(10));
+        storage.putThumbnail("test", "delete", 2, random(5));
+        storage.putRaw("test", "kept", 1, large);
+        storage.putRaw("test", "other", 1, random(2 * ChunkManifest.CHUNK_SIZE + 1));
+
+        storage.delete("test", "delete");
+        storage.delete("test", "other");
+        Assert.assertFalse(storage.getRaw("test", "delete", 2).isPresent());
+        Assert.assertFalse(storage.openThumbnail("test", "delete", 2).isPresent());
+        Assert.assertEquals(Optional.empty(), storage.latestVersion("test", "delete"));
+        Assert.assertEquals(Collections.emptyList(), storage.versions("test", "delete", Long.MAX_VALUE, 10));
+
+        /* Newer versions put after the delete are kept */
+        storage.putRaw("test", "delete", 3, random(20));
+        Assert.assertEquals(Collections.singletonList(3L), storage.versions("test", "delete", Long.MAX_VALUE, 10));
+
+        awaitCompaction();
+        storage.commit(Durability.SYNC).get();
+        Assert.assertEquals(1, awaitBlobFiles(1));
+        Assert.assertArrayEquals(large, storage.getRaw("test", "kept", 1).get());
+        Assert.assertTrue(storage.getRaw("test", "delete", 3).isPresent());
+        Assert.assertEquals(4, metrics.getMeters().get(
+                MetricRegistry.name(FileStorageConduit.class, "versions-compacted")).getCount());
+        Assert.assertEquals(2L * ChunkManifest.CHUNK_SIZE + 1 + 10 + 5, metrics.getMeters().get(
+                MetricRegistry.name(FileStorageConduit.class, "bytes-reclaimed")).getCount());
+    }
+
+    @Test
+    public void sweepsVersionsPastRetention() throws Exception {
+        long now = System.currentTimeMillis();
+        for (long timestamp = 1; timestamp <= 4; timestamp++) {
+            storage.putRaw("news", "a", timestamp, random(10 + (int) timestamp));
+            storage.putRaw("other", "a", timestamp, random(20 + (int) timestamp));
+        }
+        storage.putThumbnail("news", "a", 1, random(5));
+        storage.putRaw("news", "b", 1, random(30));
+        storage.putRaw("chat", "a", now - TimeUnit.DAYS.toMillis(2), random(40));
+        storage.putRaw("chat", "a", now, random(41));
+        /* Reopened with the rules only once everything is in, so the sweep sees it all at once */
+        storage.close();
+        RetentionPolicy retention = new RetentionPolicy(RetentionPolicy.parse("news maxVersions=2; chat maxAge=1d"), 10);
+        storage = FileStorageConduit.builder(new File(dir, "data").getPath())
+                .inlineLimit(INLINE_LIMIT)
+                .commitBytes(1024*1024)
+                .compactionRate(1000)
+                .retention(retention)
+                .metrics(metrics)
+                .build();
+
+        Meter expired = metrics.meter(MetricRegistry.name(FileStorageConduit.class, "versions-expired"));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (expired.getCount() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(3, expired.getCount());
+        Assert.assertEquals(Arrays.asList(4L, 3L), storage.versions("news", "a", Long.MAX_VALUE, 10));
+        Assert.assertFalse(storage.getThumbnail("news", "a", 1).isPresent());
+        Assert.assertEquals(Collections.singletonList(1L), storage.versions("news", "b", Long.MAX_VALUE, 10));
+        Assert.assertEquals(Collections.singletonList(now), storage.versions("chat", "a", Long.MAX_VALUE, 10));
+        Assert.assertEquals(4, storage.versions("other", "a", Long.MAX_VALUE, 10).size());
+    }
+
+    @Test
+    public void answersMissesFromTheBloomFilters() throws Exception {
+        storage.putRaw("test", "a", 1, random(10));
+        storage.putRaw("test", "b", 1, random(11));
+        Gauge<?> fpp = metrics.getGauges().get(MetricRegistry.name(FileStorageConduit.class, "raw-bloom-fpp"));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (fpp.getValue().equals(1.0) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue((Double) fpp.getValue() < 0.01);
+
+        /* Put before and after the filters were built */
+        storage.putThumbnail("test", "b", 1, random(5));
+        Meter negatives = metrics.meter(MetricRegistry.name(FileStorageConduit.class, "bloom-negatives"));
+        Assert.assertFalse(storage.getThumbnail("test", "a", 1).isPresent());
+        Assert.assertFalse(storage.latestVersion("test", "c").isPresent());
+        Assert.assertEquals(2, negatives.getCount());
+        Assert.assertTrue(storage.getRaw("test", "a", 1).isPresent());
+        Assert.assertTrue(storage.getThumbnail("test", "b", 1).isPresent());
+
+        /* Read back on opening, and not again */
+        storage.close();
+        File snapshot = new File(dir, "data-bloom");
+        Assert.assertTrue(snapshot.exists());
+        storage = FileStorageConduit.builder(new File(dir, "data").getPath())
+                .inlineLimit(INLINE_LIMIT)
+                .commitBytes(1024*1024)
+                .compactionRate(1000)
+                .metrics(metrics)
+                .build();
+        Assert.assertFalse(snapshot.exists());
+        Assert.assertFalse(storage.getThumbnail("test", "a", 1).isPresent());
+        Assert.assertEquals(3, negatives.getCount());
+        Assert.assertTrue(storage.getThumbnail("test", "b", 1).isPresent());
+    }
+
+    private Collection<File> blobFiles() {
+        return FileUtils.listFiles(new File(dir, "data-blobs"), null, true);
+    }
+
+    /**
+     * Blob files are deleted once the commit that removes them is through, which can be just
+     * after the commit future completes.
+     */
+    private int awaitBlobFiles(int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (blobFiles().size() != expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        return blobFiles().size();
+    }
+
+    private void awaitCompaction() throws InterruptedException {
+        Gauge<?> pending = metrics.getGauges().get(MetricRegistry.name(FileStorageConduit.class, "pending-deletes"));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!pending.getValue().equals(0) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static byte[] random(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+}
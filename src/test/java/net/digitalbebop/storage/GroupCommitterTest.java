@@ -0,0 +1,147 @@
+package net.digitalbebop.storage;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ListenableFuture;
+import net.digitalbebop.UnitTestBase;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class GroupCommitterTest extends UnitTestBase {
+    private static final long LONG_INTERVAL = 60_000;
+
+    private final AtomicInteger commits = new AtomicInteger();
+    private volatile boolean failing = false;
+    private volatile CountDownLatch gate = new CountDownLatch(0);
+    private volatile Thread committerThread;
+    private GroupCommitter committer;
+
+    public GroupCommitterTest() {
+        super(false, false);
+    }
+
+    @After
+    public void tearDown() {
+        committer.shutdown();
+    }
+
+    @Test
+    public void batchedCommitsOnceTheCommitterIsFree() throws Exception {
+        committer = committer(LONG_INTERVAL, Long.MAX_VALUE);
+        committer.written(10);
+        committer.commit(Durability.BATCHED).get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(1, commits.get());
+    }
+
+    @Test
+    public void waitersShareTheCommitAfterARunningOne() throws Exception {
+        committer = committer(LONG_INTERVAL, Long.MAX_VALUE);
+        gate = new CountDownLatch(1);
+        committer.written(10);
+        ListenableFuture<Void> first = committer.commit(Durability.BATCHED);
+        while (commits.get() == 0) {
+            Thread.sleep(1);
+        }
+
+        committer.written(10);
+        ListenableFuture<Void> second = committer.commit(Durability.BATCHED);
+        ListenableFuture<Void> third = committer.commit(Durability.SYNC);
+        gate.countDown();
+
+        first.get(5, TimeUnit.SECONDS);
+        second.get(5, TimeUnit.SECONDS);
+        third.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(2, commits.get());
+    }
+
+    @Test
+    public void unwaitedWritesCommitWithinTheInterval() throws Exception {
+        committer = committer(50, Long.MAX_VALUE);
+        committer.written(10);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (commits.get() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(1, commits.get());
+    }
+
+    @Test
+    public void interruptFailsWaiters() throws Exception {
+        committer = committer(LONG_INTERVAL, Long.MAX_VALUE);
+        committer.written(10);
+        committer.commit(Durability.SYNC).get(5, TimeUnit.SECONDS);
+
+        committerThread.interrupt();
+        committerThread.join(5000);
+        try {
+            committer.commit(Durability.BATCHED).get(5, TimeUnit.SECONDS);
+            Assert.fail("Commit succeeded after the committer stopped");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void syncCommitsRightAway() throws Exception {
+        committer = committer(LONG_INTERVAL, Long.MAX_VALUE);
+        committer.written(10);
+        committer.commit(Durability.SYNC).get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(1, commits.get());
+    }
+
+    @Test
+    public void asyncDoesNotWait() {
+        committer = committer(LONG_INTERVAL, Long.MAX_VALUE);
+        committer.written(10);
+        Assert.assertTrue(committer.commit(Durability.ASYNC).isDone());
+        Assert.assertEquals(0, commits.get());
+    }
+
+    @Test
+    public void commitsEarlyOnceEnoughBytesPileUp() throws Exception {
+        committer = committer(LONG_INTERVAL, 100);
+        ListenableFuture<Void> batched = committer.commit(Durability.BATCHED);
+        committer.written(60);
+        committer.written(60);
+
+        batched.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(1, commits.get());
+    }
+
+    @Test
+    public void failedCommitFailsItsWaiters() throws Exception {
+        committer = committer(LONG_INTERVAL, Long.MAX_VALUE);
+        failing = true;
+        committer.written(10);
+        try {
+            committer.commit(Durability.SYNC).get(5, TimeUnit.SECONDS);
+            Assert.fail("Commit succeeded although the store failed it");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+        }
+
+        failing = false;
+        committer.commit(Durability.SYNC).get(5, TimeUnit.SECONDS);
+    }
+
+    private GroupCommitter committer(long intervalMillis, long maxPendingBytes) {
+        return new GroupCommitter("test", () -> {
+            committerThread = Thread.currentThread();
+            commits.incrementAndGet();
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (failing) {
+                throw new IOException("disk full");
+            }
+        }, intervalMillis, maxPendingBytes, new MetricRegistry());
+    }
+}
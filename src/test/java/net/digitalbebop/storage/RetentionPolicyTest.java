@@ -0,0 +1,53 @@
+package net.digitalbebop.storage;
+
+import net.digitalbebop.UnitTestBase;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class RetentionPolicyTest extends UnitTestBase {
+    private static final long NOW = 1445000000000L;
+
+    public RetentionPolicyTest() {
+        super(false, false);
+    }
+
+    @Test
+    public void parsesRulesPerModule() {
+        Map<String, RetentionPolicy.Rule> rules =
+                RetentionPolicy.parse(" chat maxAge=30d;news maxAge=12h maxVersions=10 maxBytes=2m ; ");
+        Assert.assertEquals(2, rules.size());
+        Assert.assertEquals(TimeUnit.DAYS.toMillis(30), rules.get("chat").maxAgeMillis);
+        Assert.assertEquals(Integer.MAX_VALUE, rules.get("chat").maxVersions);
+        Assert.assertFalse(rules.get("chat").limitsBytes());
+        Assert.assertEquals(TimeUnit.HOURS.toMillis(12), rules.get("news").maxAgeMillis);
+        Assert.assertEquals(10, rules.get("news").maxVersions);
+        Assert.assertEquals(2 * 1024 * 1024, rules.get("news").maxBytes);
+        Assert.assertTrue(RetentionPolicy.parse("").isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownSettings() {
+        RetentionPolicy.parse("chat maxAge=30d maxSize=1g");
+    }
+
+    @Test
+    public void keepsTheNewestVersionsWithinEveryLimit() {
+        long[] timestamps = {NOW - 1000, NOW - 2000, NOW - 3000, NOW - 4000};
+        long[] lengths = {100, 50, 50, 50};
+
+        Assert.assertEquals(4, rule(Long.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE).keep(NOW, timestamps, lengths, 4));
+        Assert.assertEquals(2, rule(2500, Integer.MAX_VALUE, Long.MAX_VALUE).keep(NOW, timestamps, lengths, 4));
+        Assert.assertEquals(3, rule(Long.MAX_VALUE, 3, Long.MAX_VALUE).keep(NOW, timestamps, lengths, 4));
+        Assert.assertEquals(2, rule(Long.MAX_VALUE, Integer.MAX_VALUE, 190).keep(NOW, timestamps, lengths, 4));
+        /* The newest version is kept even when it is larger than allowed, but not once it is too old */
+        Assert.assertEquals(1, rule(Long.MAX_VALUE, Integer.MAX_VALUE, 10).keep(NOW, timestamps, lengths, 4));
+        Assert.assertEquals(0, rule(500, Integer.MAX_VALUE, 10).keep(NOW, timestamps, lengths, 4));
+    }
+
+    private static RetentionPolicy.Rule rule(long maxAgeMillis, int maxVersions, long maxBytes) {
+        return new RetentionPolicy.Rule(maxAgeMillis, maxVersions, maxBytes);
+    }
+}
@@ -0,0 +1,145 @@
+package net.digitalbebop.storage;
+
+import com.codahale.metrics.MetricRegistry;
+import net.digitalbebop.UnitTestBase;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+public class SegmentStorageConduitTest extends UnitTestBase {
+    private static final int SEGMENT_SIZE = 64*1024;
+
+    private File dir;
+    private SegmentStorageConduit storage;
+
+    public SegmentStorageConduitTest() {
+        super(false, false);
+    }
+
+    @Before
+    public void open() throws IOException {
+        dir = Files.createTempDirectory("pulse-segments").toFile();
+        storage = reopen(null);
+    }
+
+    @After
+    public void close() throws IOException {
+        storage.close();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void storesVersionsAcrossRestarts() throws Exception {
+        byte[] large = random(3 * SEGMENT_SIZE);
+        storage.putRaw("test", "a", 1, bytes("first"));
+        storage.putRaw("test", "a", 2, bytes("second"));
+        storage.putRaw("test", "a", 2, bytes("overwritten"));
+        storage.putThumbnail("test", "a", 2, bytes("thumbnail"));
+        storage.putRaw("test", "large", 1, large);
+        storage.putRaw("test", "gone", 1, bytes("deleted"));
+        storage.delete("test", "gone");
+        storage.putRaw("test", "back", 1, bytes("deleted"));
+        storage.delete("test", "back");
+        storage.putRaw("test", "back", 2, bytes("stored again"));
+
+        for (int round = 0; round < 2; round++) {
+            Assert.assertArrayEquals(bytes("first"), storage.getRaw("test", "a", 1).get());
+            Assert.assertArrayEquals(bytes("overwritten"), storage.getRaw("test", "a", 2).get());
+            Assert.assertArrayEquals(bytes("thumbnail"), storage.getThumbnail("test", "a", 2).get());
+            Assert.assertEquals(Arrays.asList(2L, 1L), storage.versions("test", "a", Long.MAX_VALUE, 10));
+            Assert.assertEquals(Long.valueOf(1), storage.versionAtOrBefore("test", "a", 1).get());
+            Assert.assertFalse(storage.latestVersion("test", "b").isPresent());
+            Blob blob = storage.openRaw("test", "large", 1).get();
+            Assert.assertTrue(blob instanceof SegmentBlob);
+            try (InputStream in = blob.openStream()) {
+                Assert.assertArrayEquals(large, IOUtils.toByteArray(in));
+            }
+            Assert.assertFalse(storage.getRaw("test", "gone", 1).isPresent());
+            Assert.assertFalse(storage.getRaw("test", "back", 1).isPresent());
+            Assert.assertArrayEquals(bytes("stored again"), storage.getRaw("test", "back", 2).get());
+
+            storage.commit(Durability.SYNC).get();
+            storage = reopen(storage);
+        }
+    }
+
+    @Test
+    public void stopsReplayAtATornRecord() throws Exception {
+        storage.putRaw("test", "a", 1, bytes("kept"));
+        storage.putRaw("test", "b", 1, bytes("torn"));
+        storage.close();
+        /* Damages the data of the last record written */
+        File segment = dir.listFiles()[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            byte[] contents = new byte[(int) file.length()];
+            file.readFully(contents);
+            int at = new String(contents, "ISO-8859-1").indexOf("torn");
+            file.seek(at);
+            file.write('T');
+        }
+        storage = reopen(null);
+        Assert.assertArrayEquals(bytes("kept"), storage.getRaw("test", "a", 1).get());
+        Assert.assertFalse(storage.getRaw("test", "b", 1).isPresent());
+    }
+
+    @Test
+    public void compactsSegmentsThatAreMostlyDead() throws Exception {
+        byte[] data = random(1024);
+        storage.putRaw("test", "deleted", 1, data);
+        storage.delete("test", "deleted");
+        /* Live versions spread thinly over segments that are otherwise overwritten */
+        for (int i = 0; i < 400; i++) {
+            storage.putRaw("test", "overwritten-" + i % 10, 1, data);
+            if (i % 20 == 0) {
+                storage.putRaw("test", "live-" + i, 1, data);
+            }
+        }
+        storage.putRaw("test", "deleted", 2, bytes("after the delete"));
+        long written = storage.segmentBytes();
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (storage.segmentBytes() > written / 4 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(storage.segmentBytes() <= written / 4);
+        Assert.assertEquals(storage.segmentCount(), dir.list().length);
+
+        storage.commit(Durability.SYNC).get();
+        storage = reopen(storage);
+        for (int i = 0; i < 400; i += 20) {
+            Assert.assertArrayEquals(data, storage.getRaw("test", "live-" + i, 1).get());
+        }
+        Assert.assertFalse(storage.getRaw("test", "deleted", 1).isPresent());
+        Assert.assertArrayEquals(bytes("after the delete"), storage.getRaw("test", "deleted", 2).get());
+    }
+
+    private SegmentStorageConduit reopen(SegmentStorageConduit previous) {
+        if (previous != null) {
+            previous.close();
+        }
+        return new SegmentStorageConduit(dir.getPath(), SEGMENT_SIZE, 50, 1024*1024, 10*1024*1024,
+                new MetricRegistry());
+    }
+
+    private static byte[] random(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
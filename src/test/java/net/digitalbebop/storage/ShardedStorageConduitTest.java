@@ -0,0 +1,141 @@
+package net.digitalbebop.storage;
+
+import com.codahale.metrics.MetricRegistry;
+import net.digitalbebop.UnitTestBase;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ShardedStorageConduitTest extends UnitTestBase {
+    private static final int OBJECTS = 300;
+
+    private File dir;
+
+    public ShardedStorageConduitTest() {
+        super(false, false);
+    }
+
+    @Before
+    public void open() throws IOException {
+        dir = Files.createTempDirectory("pulse-shards").toFile();
+    }
+
+    @After
+    public void close() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void spreadsObjectsOverTheShards() throws Exception {
+        List<String> dirs = shards(3);
+        ShardedStorageConduit storage = open(dirs);
+        try {
+            for (int id = 0; id < OBJECTS; id++) {
+                storage.putRaw("test", "" + id, 1, data(id, 1));
+                storage.putRaw("test", "" + id, 2, data(id, 2));
+                storage.putThumbnail("test", "" + id, 2, data(id, -2));
+            }
+            storage.commit(Durability.SYNC).get();
+            storage.delete("test", "0");
+            storage.commit(Durability.BATCHED).get();
+
+            Assert.assertFalse(storage.getRaw("test", "0", 1).isPresent());
+            for (int id = 1; id < OBJECTS; id++) {
+                Assert.assertArrayEquals(data(id, 1), storage.getRaw("test", "" + id, 1).get());
+                Assert.assertArrayEquals(data(id, -2), storage.getThumbnail("test", "" + id, 2).get());
+                Assert.assertEquals(Arrays.asList(2L, 1L), storage.versions("test", "" + id, Long.MAX_VALUE, 10));
+            }
+        } finally {
+            storage.close();
+        }
+
+        /* Every shard has its share, and only that */
+        for (int shard = 0; shard < dirs.size(); shard++) {
+            FileStorageConduit store = FileStorageConduit.builder(dirs.get(shard))
+                    .inlineLimit(64*1024)
+                    .commitBytes(1024*1024)
+                    .compactionRate(1000)
+                    .build();
+            try {
+                int held = 0;
+                for (int id = 1; id < OBJECTS; id++) {
+                    boolean ours = ShardedStorageConduit.shardOf("test", "" + id, dirs.size()) == shard;
+                    Assert.assertEquals(ours, store.getRaw("test", "" + id, 2).isPresent());
+                    held += ours ? 1 : 0;
+                }
+                Assert.assertTrue(held > OBJECTS / 6);
+            } finally {
+                store.close();
+            }
+        }
+    }
+
+    @Test
+    public void rebalancesOntoMoreShards() throws Exception {
+        List<String> before = shards(2);
+        ShardedStorageConduit storage = open(before);
+        try {
+            for (int id = 0; id < OBJECTS; id++) {
+                storage.putRaw("test", "" + id, 1, data(id, 1));
+                storage.putThumbnail("test", "" + id, 1, data(id, -1));
+            }
+            storage.commit(Durability.SYNC).get();
+        } finally {
+            storage.close();
+        }
+
+        List<String> after = shards(3);
+        StorageShardRebalancer rebalancer = new StorageShardRebalancer(before, after, 64*1024,
+                CompressionPolicy.none());
+        try {
+            Assert.assertTrue(rebalancer.rebalance());
+        } finally {
+            rebalancer.close();
+        }
+
+        int moved = 0;
+        storage = open(after);
+        try {
+            for (int id = 0; id < OBJECTS; id++) {
+                Assert.assertArrayEquals(data(id, 1), storage.getRaw("test", "" + id, 1).get());
+                Assert.assertArrayEquals(data(id, -1), storage.getThumbnail("test", "" + id, 1).get());
+                int shard = ShardedStorageConduit.shardOf("test", "" + id, 3);
+                if (shard != ShardedStorageConduit.shardOf("test", "" + id, 2)) {
+                    /* Objects only ever move to the new shard */
+                    Assert.assertEquals(2, shard);
+                    moved++;
+                }
+            }
+        } finally {
+            storage.close();
+        }
+        Assert.assertTrue(moved > OBJECTS / 6 && moved < OBJECTS / 2);
+    }
+
+    private List<String> shards(int count) {
+        List<String> dirs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            dirs.add(new File(dir, "data-" + i).getPath());
+        }
+        return dirs;
+    }
+
+    private static ShardedStorageConduit open(List<String> dirs) {
+        return new ShardedStorageConduit(dirs, 64*1024, 50, 1024*1024, 1000, RetentionPolicy.none(),
+                CompressionPolicy.none(), new MetricRegistry());
+    }
+
+    private static byte[] data(int id, int version) {
+        return ("object " + id + " version " + version).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,112 @@
+package net.digitalbebop.storage;
+
+import net.digitalbebop.UnitTestBase;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mapdb.BTreeKeySerializer;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.Serializer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+
+public class StorageKeyMigrationTest extends UnitTestBase {
+    private static final int INLINE_LIMIT = 64*1024;
+
+    private File dir;
+    private String path;
+
+    public StorageKeyMigrationTest() {
+        super(false, false);
+    }
+
+    @Before
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory("pulse-migration").toFile();
+        path = new File(dir, "data").getPath();
+    }
+
+    @After
+    public void deleteDir() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void convertsStringKeyedStore() throws IOException {
+        byte[] inline = random(1000);
+        byte[] thumbnail = random(100);
+        byte[] large = random(2 * ChunkManifest.CHUNK_SIZE + 7);
+        byte[] shared = random(2000);
+        String sharedId = ContentHashes.contentId(ByteBuffer.wrap(shared));
+
+        DB db = DBMaker.fileDB(new File(path)).make();
+        Map<String, byte[]> collection = stringMap(db, FileStorageConduit.CONTENT, Serializer.BYTE_ARRAY);
+        collection.put("raw-news-a-b-5", inline);
+        collection.put("thumbnail-news-a-b-5", thumbnail);
+        collection.put(sharedId, shared);
+        stringMap(db, FileStorageConduit.LEGACY_REFS, Serializer.STRING).put("raw-my-module-x-9", sharedId);
+        stringMap(db, FileStorageConduit.REF_COUNTS, Serializer.LONG).put(sharedId, 1L);
+        ChunkManifest manifest = new BlobFileStore(new File(path + "-blobs")).write("raw-news-big-7", large);
+        stringMap(db, FileStorageConduit.LARGE_OBJECTS, Serializer.LONG).put("raw-news-big-7", (long) large.length);
+        stringMap(db, FileStorageConduit.MANIFESTS, Serializer.BYTE_ARRAY).put("raw-news-big-7", manifest.toBytes());
+        db.commit();
+        db.close();
+
+        try {
+            open().close();
+            Assert.fail("Opened a store that still has string keys");
+        } catch (IllegalStateException expected) {
+        }
+
+        StorageKeyMigration migration = new StorageKeyMigration(path, Collections.singletonList("my-module"));
+        try {
+            Assert.assertTrue(migration.migrate());
+        } finally {
+            migration.close();
+        }
+
+        FileStorageConduit storage = open();
+        try {
+            Assert.assertArrayEquals(inline, storage.getRaw("news", "a-b", 5).get());
+            Assert.assertArrayEquals(thumbnail, storage.getThumbnail("news", "a-b", 5).get());
+            Assert.assertArrayEquals(shared, storage.getRaw("my-module", "x", 9).get());
+            Assert.assertArrayEquals(large, storage.getRaw("news", "big", 7).get());
+            Assert.assertEquals(1, FileUtils.listFiles(new File(path + "-blobs"), null, true).size());
+
+            storage.putRaw("news", "a-b", 6, inline);
+            Assert.assertTrue(storage.reuseThumbnail("news", "a-b", 6));
+        } finally {
+            storage.close();
+        }
+    }
+
+    private FileStorageConduit open() {
+        return FileStorageConduit.builder(path)
+                .inlineLimit(INLINE_LIMIT)
+                .commitBytes(1024*1024)
+                .compactionRate(1000)
+                .build();
+    }
+
+    private static <V> Map<String, V> stringMap(DB db, String name, Serializer<V> values) {
+        return db.treeMapCreate(name)
+                .keySerializer(BTreeKeySerializer.STRING)
+                .valueSerializer(values)
+                .makeOrGet();
+    }
+
+    private static byte[] random(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,110 @@
+package net.digitalbebop.storage;
+
+import com.google.common.primitives.UnsignedBytes;
+import net.digitalbebop.UnitTestBase;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+public class StorageKeyTest extends UnitTestBase {
+    private static final String ALPHABET = "\0-abé中";
+
+    public StorageKeyTest() {
+        super(false, false);
+    }
+
+    @Test
+    public void roundTrips() {
+        for (StorageKey key : Arrays.asList(
+                StorageKey.raw("news", "1", 1445000000000L),
+                StorageKey.thumbnail("my-module", "a-b-c", -1),
+                StorageKey.raw("", "", Long.MIN_VALUE),
+                StorageKey.raw("nul\0in\0name", "é中😀", Long.MAX_VALUE))) {
+            Assert.assertEquals(key, StorageKey.fromBytes(key.toBytes()));
+        }
+    }
+
+    @Test
+    public void bytesSortLikeTheFields() {
+        Random random = new Random(0);
+        List<StorageKey> keys = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            StorageKey.Kind kind = random.nextBoolean() ? StorageKey.Kind.RAW : StorageKey.Kind.THUMBNAIL;
+            keys.add(new StorageKey(kind, name(random), name(random), random.nextInt(2000) - 1000));
+        }
+
+        List<StorageKey> byFields = new ArrayList<>(keys);
+        byFields.sort(Comparator.comparing(StorageKey::kind)
+                .thenComparing(StorageKey::moduleName, StorageKeyTest::compareUtf8)
+                .thenComparing(StorageKey::moduleId, StorageKeyTest::compareUtf8)
+                .thenComparingLong(StorageKey::timestamp));
+        List<StorageKey> byBytes = new ArrayList<>(keys);
+        byBytes.sort((a, b) -> UnsignedBytes.lexicographicalComparator().compare(a.toBytes(), b.toBytes()));
+
+        Assert.assertEquals(byFields, byBytes);
+    }
+
+    @Test
+    public void prefixCoversExactlyTheObject() {
+        byte[] prefix = StorageKey.prefix(StorageKey.Kind.RAW, "news", "1");
+        Assert.assertTrue(startsWith(StorageKey.raw("news", "1", 5).toBytes(), prefix));
+        Assert.assertFalse(startsWith(StorageKey.raw("news", "12", 5).toBytes(), prefix));
+        Assert.assertFalse(startsWith(StorageKey.raw("news-1", "", 5).toBytes(), prefix));
+        Assert.assertFalse(startsWith(StorageKey.thumbnail("news", "1", 5).toBytes(), prefix));
+        Assert.assertArrayEquals(StorageKey.thumbnail("news", "1", -5).toBytes(),
+                StorageKey.key(prefix, StorageKey.Kind.THUMBNAIL, -5));
+    }
+
+    @Test
+    public void modulePrefixEndsBeforeTheNextModule() {
+        byte[] prefix = StorageKey.prefix(StorageKey.Kind.RAW, "news");
+        byte[] end = StorageKey.end(prefix);
+        Comparator<byte[]> order = UnsignedBytes.lexicographicalComparator();
+        for (StorageKey key : Arrays.asList(StorageKey.raw("news", "", Long.MIN_VALUE),
+                StorageKey.raw("news", "\uffff", Long.MAX_VALUE))) {
+            Assert.assertTrue(order.compare(prefix, key.toBytes()) < 0);
+            Assert.assertTrue(order.compare(key.toBytes(), end) < 0);
+        }
+        Assert.assertTrue(order.compare(StorageKey.raw("news\0", "", 0).toBytes(), end) > 0);
+        Assert.assertTrue(order.compare(StorageKey.raw("newsa", "", 0).toBytes(), end) > 0);
+
+        Assert.assertTrue(StorageKey.sameObject(StorageKey.raw("news", "1", 1).toBytes(),
+                StorageKey.raw("news", "1", 2).toBytes()));
+        Assert.assertFalse(StorageKey.sameObject(StorageKey.raw("news", "1", 1).toBytes(),
+                StorageKey.raw("news", "2", 1).toBytes()));
+    }
+
+    @Test
+    public void parsesLegacyKeys() {
+        List<String> modules = Collections.singletonList("my-module");
+        Assert.assertEquals(StorageKey.raw("news", "a-b", 12),
+                StorageKeyMigration.parse("raw-news-a-b-12", modules));
+        Assert.assertEquals(StorageKey.thumbnail("my-module", "x", 3),
+                StorageKeyMigration.parse("thumbnail-my-module-x-3", modules));
+    }
+
+    private static String name(Random random) {
+        StringBuilder name = new StringBuilder();
+        int length = random.nextInt(4);
+        for (int i = 0; i < length; i++) {
+            name.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        }
+        return name.toString();
+    }
+
+    private static int compareUtf8(String a, String b) {
+        return UnsignedBytes.lexicographicalComparator().compare(
+                a.getBytes(StandardCharsets.UTF_8), b.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static boolean startsWith(byte[] bytes, byte[] prefix) {
+        return bytes.length >= prefix.length && Arrays.equals(Arrays.copyOf(bytes, prefix.length), prefix);
+    }
+}
@@ -0,0 +1,296 @@
+package net.digitalbebop.storage;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.ByteString;
+import net.digitalbebop.UnitTestBase;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ThumbnailPipelineTest extends UnitTestBase {
+    private final MetricRegistry metrics = new MetricRegistry();
+
+    public ThumbnailPipelineTest() {
+        super(false, false);
+    }
+
+    @Test
+    public void rendersFreshBeforeBackfillAndPushesOutBackfills() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> rendered = new CopyOnWriteArrayList<>();
+        ThumbnailPipeline pipeline = new ThumbnailPipeline(null, (format, data, maxPixelBytes) -> {
+            String name = read(data).trim();
+            rendered.add(name);
+            if (name.equals("blocker")) {
+                await(release);
+            }
+            return Optional.of(name.getBytes(StandardCharsets.UTF_8));
+        }, Collections.emptySet(), 1, 100, 10_000, Long.MAX_VALUE, metrics);
+        try {
+            ListenableFuture<Optional<byte[]>> blocker =
+                    render(pipeline, "blocker", 10, ThumbnailPipeline.Priority.FRESH);
+            while (rendered.isEmpty()) {
+                Thread.sleep(1);
+            }
+            ListenableFuture<Optional<byte[]>> kept = render(pipeline, "kept", 40, ThumbnailPipeline.Priority.BACKFILL);
+            ListenableFuture<Optional<byte[]>> pushedOut =
+                    render(pipeline, "pushed-out", 40, ThumbnailPipeline.Priority.BACKFILL);
+            ListenableFuture<Optional<byte[]>> fresh = render(pipeline, "fresh", 40, ThumbnailPipeline.Priority.FRESH);
+            ListenableFuture<Optional<byte[]>> tooLarge =
+                    render(pipeline, "too-large", 200, ThumbnailPipeline.Priority.FRESH);
+            Assert.assertEquals(80, pipeline.queuedBytes());
+
+            release.countDown();
+            Assert.assertEquals("kept", new String(kept.get(10, TimeUnit.SECONDS).get(), StandardCharsets.UTF_8));
+            Assert.assertTrue(blocker.isDone() && fresh.isDone());
+            Assert.assertEquals(Arrays.asList("blocker", "fresh", "kept"), rendered);
+            assertFailsWith(RejectedExecutionException.class, pushedOut);
+            assertFailsWith(RejectedExecutionException.class, tooLarge);
+            Assert.assertEquals(2, metrics.meter(MetricRegistry.name(ThumbnailPipeline.class, "rejected")).getCount());
+            Assert.assertEquals(3, metrics.timer(MetricRegistry.name(ThumbnailPipeline.class, "render-time", "image"))
+                    .getCount());
+        } finally {
+            release.countDown();
+            pipeline.close();
+        }
+    }
+
+    @Test
+    public void replacesWorkersStuckOnRendersThatTakeTooLong() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ThumbnailPipeline pipeline = new ThumbnailPipeline(null, (format, data, maxPixelBytes) -> {
+            if (read(data).trim().equals("stuck")) {
+                /* Like a renderer that doesn't notice interrupts */
+                while (release.getCount() > 0) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            }
+            return Optional.of(new byte[1]);
+        }, Collections.emptySet(), 1, 1024, 100, Long.MAX_VALUE, metrics);
+        try {
+            ListenableFuture<Optional<byte[]>> stuck = render(pipeline, "stuck", 10, ThumbnailPipeline.Priority.FRESH);
+            ListenableFuture<Optional<byte[]>> next = render(pipeline, "next", 10, ThumbnailPipeline.Priority.FRESH);
+            assertFailsWith(TimeoutException.class, stuck);
+            Assert.assertTrue(next.get(10, TimeUnit.SECONDS).isPresent());
+            Assert.assertEquals(1, metrics.meter(MetricRegistry.name(ThumbnailPipeline.class, "timeouts")).getCount());
+        } finally {
+            release.countDown();
+            pipeline.close();
+        }
+    }
+
+    @Test
+    public void holdsBackReplacementsOnceTooManyWorkersAreStuck() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ThumbnailPipeline pipeline = new ThumbnailPipeline(null, (format, data, maxPixelBytes) -> {
+            if (read(data).trim().startsWith("stuck")) {
+                while (release.getCount() > 0) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            }
+            return Optional.of(new byte[1]);
+        }, Collections.emptySet(), 1, 1024, 100, Long.MAX_VALUE, metrics);
+        Gauge<?> stuckWorkers = metrics.getGauges().get(MetricRegistry.name(ThumbnailPipeline.class, "stuck-workers"));
+        try {
+            /* One worker in the pool, so the third stuck render leaves no worker to replace it */
+            for (int i = 0; i < 3; i++) {
+                assertFailsWith(TimeoutException.class,
+                        render(pipeline, "stuck" + i, 10, ThumbnailPipeline.Priority.FRESH));
+            }
+            ListenableFuture<Optional<byte[]>> next = render(pipeline, "next", 10, ThumbnailPipeline.Priority.FRESH);
+            Thread.sleep(300);
+            Assert.assertFalse(next.isDone());
+            Assert.assertEquals(3, stuckWorkers.getValue());
+
+            release.countDown();
+            Assert.assertTrue(next.get(10, TimeUnit.SECONDS).isPresent());
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (!stuckWorkers.getValue().equals(0) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(0, stuckWorkers.getValue());
+        } finally {
+            release.countDown();
+            pipeline.close();
+        }
+    }
+
+    @Test
+    public void storesThumbnailsWithinTheMemoryLimit() throws Exception {
+        File dir = Files.createTempDirectory("pulse-thumbnails").toFile();
+        FileStorageConduit storage = FileStorageConduit.builder(new File(dir, "data").getPath())
+                .commitBytes(1024*1024)
+                .metrics(metrics)
+                .build();
+        /* Room for a 500x500 image, but not a 2000x2000 one */
+        ThumbnailPipeline pipeline = new ThumbnailPipeline(storage, 1, 64L*1024*1024, 10_000, 4L*1024*1024, "",
+                metrics);
+        try {
+            Assert.assertTrue(pipeline.submit("test", "small", 1, "image", png(500), ThumbnailPipeline.Priority.FRESH));
+            Assert.assertFalse(pipeline.render("image", png(2000), ThumbnailPipeline.Priority.FRESH)
+                    .get(10, TimeUnit.SECONDS).isPresent());
+            Assert.assertFalse(pipeline.render("binary", png(500), ThumbnailPipeline.Priority.FRESH)
+                    .get().isPresent());
+
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (!storage.getThumbnail("test", "small", 1).isPresent() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            BufferedImage thumbnail = ImageIO.read(new ByteArrayInputStream(
+                    storage.getThumbnail("test", "small", 1).get()));
+            Assert.assertEquals(100, thumbnail.getWidth());
+        } finally {
+            pipeline.close();
+            storage.close();
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    @Test
+    public void rendersLazyFormatsOnceWhenFirstViewed() throws Exception {
+        File dir = Files.createTempDirectory("pulse-thumbnails").toFile();
+        FileStorageConduit storage = FileStorageConduit.builder(new File(dir, "data").getPath())
+                .commitBytes(1024*1024)
+                .metrics(metrics)
+                .build();
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger renders = new AtomicInteger();
+        ThumbnailPipeline pipeline = new ThumbnailPipeline(storage, (format, data, maxPixelBytes) -> {
+            renders.incrementAndGet();
+            await(release);
+            return Optional.of(format.getBytes(StandardCharsets.UTF_8));
+        }, Collections.singleton("image"), 2, 64L*1024*1024, 10_000, Long.MAX_VALUE, metrics);
+        try {
+            ByteString image = png(10);
+            storage.putRaw("test", "image", 1, image.toByteArray());
+            storage.putRaw("test", "pdf", 1, "%PDF-1.4".getBytes(StandardCharsets.US_ASCII));
+            Assert.assertTrue(pipeline.submit("test", "image", 1, "image", image, ThumbnailPipeline.Priority.FRESH));
+
+            List<ListenableFuture<Optional<byte[]>>> views = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                views.add(pipeline.renderStored("test", "image", 1));
+            }
+            Assert.assertFalse(pipeline.renderStored("test", "pdf", 1).get().isPresent());
+            Assert.assertFalse(pipeline.renderStored("test", "missing", 1).get().isPresent());
+            release.countDown();
+            for (ListenableFuture<Optional<byte[]>> view : views) {
+                Assert.assertArrayEquals("image".getBytes(StandardCharsets.UTF_8),
+                        view.get(10, TimeUnit.SECONDS).get());
+            }
+            Assert.assertTrue(pipeline.renderStored("test", "image", 1).get().isPresent());
+            Assert.assertEquals(1, renders.get());
+            Assert.assertEquals(7, metrics.meter(MetricRegistry.name(ThumbnailPipeline.class, "renders-shared"))
+                    .getCount());
+            Assert.assertTrue(storage.getThumbnail("test", "image", 1).isPresent());
+        } finally {
+            release.countDown();
+            pipeline.close();
+            storage.close();
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    @Test
+    public void doesNotRetryFailedLazyRendersRightAway() throws Exception {
+        File dir = Files.createTempDirectory("pulse-thumbnails").toFile();
+        FileStorageConduit storage = FileStorageConduit.builder(new File(dir, "data").getPath())
+                .commitBytes(1024*1024)
+                .metrics(metrics)
+                .build();
+        AtomicInteger renders = new AtomicInteger();
+        ThumbnailPipeline pipeline = new ThumbnailPipeline(storage, (format, data, maxPixelBytes) -> {
+            if (renders.incrementAndGet() == 1) {
+                throw new IllegalArgumentException("corrupt image");
+            }
+            return Optional.empty();
+        }, Collections.singleton("image"), 1, 64L*1024*1024, 10_000, Long.MAX_VALUE, metrics);
+        try {
+            storage.putRaw("test", "broken", 1, png(10).toByteArray());
+            storage.putRaw("test", "blank", 1, png(10).toByteArray());
+
+            assertFailsWith(IllegalArgumentException.class, pipeline.renderStored("test", "broken", 1));
+            Assert.assertFalse(pipeline.renderStored("test", "broken", 1).get().isPresent());
+            Assert.assertFalse(pipeline.renderStored("test", "blank", 1).get(10, TimeUnit.SECONDS).isPresent());
+            Assert.assertFalse(pipeline.renderStored("test", "blank", 1).get().isPresent());
+            Assert.assertEquals(2, renders.get());
+        } finally {
+            pipeline.close();
+            storage.close();
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    private static ListenableFuture<Optional<byte[]>> render(ThumbnailPipeline pipeline, String name, int size,
+                                                             ThumbnailPipeline.Priority priority) {
+        StringBuilder padded = new StringBuilder(name);
+        while (padded.length() < size) {
+            padded.append(' ');
+        }
+        return pipeline.render("image", ByteString.copyFromUtf8(padded.toString()), priority);
+    }
+
+    private static void assertFailsWith(Class<? extends Exception> expected, ListenableFuture<?> future)
+            throws Exception {
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            Assert.fail("expected " + expected.getSimpleName());
+        } catch (ExecutionException e) {
+            Assert.assertEquals(expected, e.getCause().getClass());
+        }
+    }
+
+    private static ByteString png(int size) throws IOException {
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return ByteString.copyFrom(out.toByteArray());
+    }
+
+    private static String read(InputStream data) {
+        try {
+            return IOUtils.toString(data, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}